@@ -0,0 +1,86 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.parser.LocationTextExtractionStrategy;
+import com.itextpdf.text.pdf.parser.PdfReaderContentParser;
+import com.itextpdf.text.pdf.parser.SimpleTextExtractionStrategy;
+import com.itextpdf.text.pdf.parser.TextExtractionStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a single page's content stream with each of the text extraction strategies, including the streaming
+ * classifier PageExtractor uses. Run with -prof gc to compare allocation per page.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExtractionBenchmark {
+
+  @Param({"simple", "location", "fontGrouping", "page", "streaming"})
+  public String strategy;
+
+  private PdfReader reader;
+  private PdfReaderContentParser contentParser;
+  private PageLabelIndex pageLabels;
+  private final FontIds fontIds = new FontIds();
+  private int pdfPageNumber = 0;
+
+  @Setup
+  public void setUp() throws IOException {
+    reader = new PdfReader(new SyntheticBookGenerator(200, 3, 3, 42).generate());
+    contentParser = new PdfReaderContentParser(reader);
+    pageLabels = PageLabelIndex.read(reader);
+  }
+
+  @TearDown
+  public void tearDown() {
+    reader.close();
+  }
+
+  @Benchmark
+  public Object extractPage() throws IOException {
+    // Cycle through the pages so the benchmark isn't measuring one page's quirks
+    pdfPageNumber = pdfPageNumber % reader.getNumberOfPages() + 1;
+    TextExtractionStrategy extracted = contentParser.processContent(pdfPageNumber, newStrategy());
+    if ("streaming".equals(strategy)) {
+      // Nothing to return as text, only the classification
+      FontGroupingTextExtractionStrategy streamed = (FontGroupingTextExtractionStrategy) extracted;
+      return streamed.getWordCount() + streamed.getContentTypeMask();
+    }
+    return extracted.getResultantText();
+  }
+
+  private TextExtractionStrategy newStrategy() {
+    switch (strategy) {
+      case "simple":
+        return new SimpleTextExtractionStrategy();
+      case "location":
+        return new LocationTextExtractionStrategy();
+      case "fontGrouping":
+        return new FontGroupingTextExtractionStrategy(false);
+      case "page":
+        return new PageExtractionStrategy(false);
+      case "streaming":
+        return new FontGroupingTextExtractionStrategy(fontIds, pageLabels.getLabel(pdfPageNumber));
+      default:
+        throw new IllegalArgumentException("Unknown strategy " + strategy);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.text.pdf.PdfReader;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The whole ingest, from PDF bytes to a populated store in a temporary directory, written either in a transaction
+ * like a normal run or with the batch inserter like a --bulk run
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class IngestBenchmark {
+
+  @Param({"500"})
+  public int pageCount;
+
+  @Param({"transactional", "bulk"})
+  public String writer;
+
+  private byte[] pdfBytes;
+  private Path graphDbPath;
+
+  @Setup(Level.Trial)
+  public void createBook() throws IOException {
+    pdfBytes = new SyntheticBookGenerator(pageCount, 3, 3, 42).generate();
+  }
+
+  @Setup(Level.Invocation)
+  public void createStoreDirectory() throws IOException {
+    graphDbPath = Files.createTempDirectory("adventurer-bench").resolve("graph-db");
+  }
+
+  @TearDown(Level.Invocation)
+  public void deleteStoreDirectory() throws IOException {
+    try (Stream<Path> paths = Files.walk(graphDbPath.getParent())) {
+      paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  @Benchmark
+  public BookGraph ingest() throws IOException {
+    PdfReader reader = new PdfReader(pdfBytes);
+    PageLabelIndex pageLabels = PageLabelIndex.read(reader);
+
+    PageExtractor extractor = new PageExtractor(reader, pageLabels);
+    List<PageExtraction> pages = new ArrayList<>(reader.getNumberOfPages());
+    for (int pdfPageNumber = 1; pdfPageNumber <= reader.getNumberOfPages(); pdfPageNumber++) {
+      pages.add(extractor.extract(pdfPageNumber));
+    }
+    reader.close();
+
+    BookGraph bookGraph = BookGraph.build(pages, pageLabels);
+
+    if ("bulk".equals(writer)) {
+      new BulkGraphLoader(graphDbPath).load(bookGraph);
+    }
+    else {
+      GraphDatabaseService graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(graphDbPath.toFile());
+      try {
+        App.createSchema(graphDb, App.UNIQUE_PAGE_PROPERTIES);
+        App.populateDatabase(bookGraph, graphDb);
+      }
+      finally {
+        graphDb.shutdown();
+      }
+    }
+
+    return bookGraph;
+  }
+}
@@ -0,0 +1,66 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.text.pdf.PdfReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolving link annotations to the PDF page numbers they point at, both building the named destination lookup and
+ * resolving every link in the book with it
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LinkResolutionBenchmark {
+
+  @Param({"1000"})
+  public int pageCount;
+
+  @Param({"3"})
+  public int choicesPerPage;
+
+  private PdfReader reader;
+  private PageLabelIndex pageLabels;
+  private PageExtractor extractor;
+
+  @Setup
+  public void setUp() throws IOException {
+    reader = new PdfReader(new SyntheticBookGenerator(pageCount, choicesPerPage, 3, 42).generate());
+    pageLabels = PageLabelIndex.read(reader);
+    extractor = new PageExtractor(reader, pageLabels);
+  }
+
+  @TearDown
+  public void tearDown() {
+    reader.close();
+  }
+
+  @Benchmark
+  public LinkDestinationIndex buildDestinationLookup() {
+    return LinkDestinationIndex.build(reader);
+  }
+
+  @Benchmark
+  public void resolveAllLinks(Blackhole blackhole) {
+    for (int pdfPageNumber = 1; pdfPageNumber <= reader.getNumberOfPages(); pdfPageNumber++) {
+      blackhole.consume(extractor.extractLinkTargets(pdfPageNumber));
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.text.pdf.PdfReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Everything ingest does to a single page: link resolution, fingerprinting and classifying its content, either
+ * capturing the text or with the streaming classifier. Run with -prof gc to compare allocation per page.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PageExtractorBenchmark {
+
+  @Param({"false", "true"})
+  public boolean captureText;
+
+  private PdfReader reader;
+  private PageExtractor extractor;
+  private int pdfPageNumber = 0;
+
+  @Setup
+  public void setUp() throws IOException {
+    reader = new PdfReader(new SyntheticBookGenerator(200, 3, 3, 42).generate());
+    extractor = new PageExtractor(reader, PageLabelIndex.read(reader), captureText);
+  }
+
+  @TearDown
+  public void tearDown() {
+    reader.close();
+  }
+
+  @Benchmark
+  public PageExtraction extractPage() throws IOException {
+    pdfPageNumber = pdfPageNumber % reader.getNumberOfPages() + 1;
+    return extractor.extract(pdfPageNumber);
+  }
+}
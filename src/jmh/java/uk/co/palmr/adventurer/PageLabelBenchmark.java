@@ -0,0 +1,79 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.text.pdf.PdfReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.co.palmr.adventurer.itextbug.FixedPdfPageLabels;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding the page label number tree into a label for every page, against reading just its ranges and labelling or
+ * finding pages from them
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PageLabelBenchmark {
+
+  @Param({"1000"})
+  public int pageCount;
+
+  @Param({"3", "100", "1000"})
+  public int labelRanges;
+
+  private PdfReader reader;
+  private PageLabelIndex index;
+  private String[] labels;
+
+  @Setup
+  public void setUp() throws IOException {
+    reader = new PdfReader(new SyntheticBookGenerator(pageCount, 1, labelRanges, 42).generate());
+    index = PageLabelIndex.read(reader);
+    labels = index.toArray();
+  }
+
+  @TearDown
+  public void tearDown() {
+    reader.close();
+  }
+
+  @Benchmark
+  public String[] getPageLabels() {
+    return FixedPdfPageLabels.getPageLabels(reader);
+  }
+
+  @Benchmark
+  public PageLabelIndex readIndex() {
+    return PageLabelIndex.read(reader);
+  }
+
+  @Benchmark
+  public void labelEveryPage(Blackhole blackhole) {
+    for (int pdfPageNumber = 1; pdfPageNumber <= pageCount; pdfPageNumber++) {
+      blackhole.consume(index.getLabel(pdfPageNumber));
+    }
+  }
+
+  @Benchmark
+  public void findEveryPage(Blackhole blackhole) {
+    for (String label : labels) {
+      blackhole.consume(index.findPdfPageNumber(label));
+    }
+  }
+}
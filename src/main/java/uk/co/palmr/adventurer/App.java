@@ -1,109 +1,389 @@
 package uk.co.palmr.adventurer;
 
-import com.itextpdf.text.pdf.PdfArray;
-import com.itextpdf.text.pdf.PdfDictionary;
-import com.itextpdf.text.pdf.PdfIndirectReference;
-import com.itextpdf.text.pdf.PdfName;
-import com.itextpdf.text.pdf.PdfObject;
 import com.itextpdf.text.pdf.PdfReader;
-import com.itextpdf.text.pdf.parser.PdfReaderContentParser;
-import com.itextpdf.text.pdf.parser.SimpleTextExtractionStrategy;
-import com.itextpdf.text.pdf.parser.TextExtractionStrategy;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
-import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.Result;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
-import uk.co.palmr.adventurer.itextbug.FixedPdfPageLabels;
+import org.neo4j.graphdb.schema.ConstraintDefinition;
+import org.neo4j.graphdb.schema.ConstraintType;
+import org.neo4j.graphdb.schema.IndexDefinition;
 
-import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public class App {
   private static final Logger LOGGER = LogManager.getLogger(App.class);
 
-  /**
-   * Pages can either continue onto the next page or be linked to another page via a choice
-   */
-  private enum RelationshipTypes implements RelationshipType {
-    Continues,
-    Choice
+  // Property names for data stored on nodes and relationships
+  static final String PDF_PAGE_NUMBER = "pdf_page_number";
+  static final String BOOK_PAGE_LABEL = "book_page_label";
+  static final String WORD_COUNT = "word_count";
+  static final String FINGERPRINT = "fingerprint";
+  static final String CHOICE_TEXT = "choice_text";
+  static final String ORDINAL = "ordinal";
+
+  // Puts the relationships out of a page back in the order they appear on it. Neo4j reuses relationship ids after
+  // deletes, so the id only breaks ties for graphs stored before relationships had an ordinal.
+  static final Comparator<Relationship> RELATIONSHIP_ORDER = Comparator
+    .<Relationship>comparingInt(relationship -> (Integer) relationship.getProperty(ORDINAL, Integer.MAX_VALUE))
+    .thenComparingLong(Relationship::getId);
+
+  // Route analysis stored on page nodes, see RouteAnalysis
+  static final String REACHABLE_ENDINGS = "reachable_endings";
+  static final String ENDING_INDEX = "ending_index";
+  static final String IMMEDIATE_DOMINATOR = "immediate_dominator";
+  static final String UNAVOIDABLE_PAGES = "unavoidable_pages";
+  static final String PAGE_RANK = "page_rank";
+  static final String ROUTE_TRAFFIC = "route_traffic";
+
+  // Pages of a corpus are namespaced by the book they're from, and identified by keys made from the book id
+  static final String BOOK_ID = "book_id";
+  static final String BOOK_PDF_PAGE_KEY = "book_pdf_page_key";
+  static final String BOOK_PAGE_KEY = "book_page_key";
+
+  // Page properties that identify a page, each gets a uniqueness constraint (and so an index) in the schema
+  static final String[] UNIQUE_PAGE_PROPERTIES = {PDF_PAGE_NUMBER, BOOK_PAGE_LABEL};
+
+  // In a corpus page numbers and labels only have to be unique within a book, so the keys are unique instead
+  static final String[] UNIQUE_CORPUS_PAGE_PROPERTIES = {BOOK_PDF_PAGE_KEY, BOOK_PAGE_KEY};
+
+  // Nodes deleted per transaction when clearing the database
+  private static final int CLEAR_BATCH_SIZE = 10000;
+
+  public static void main(String[] args) throws IOException {
+    IngestOptions options = IngestOptions.parse(args);
+
+    // Watch the run over JMX, and leave a report of where the time went once it's done
+    IngestMetrics.get().registerMBean();
+    try {
+      ingest(options);
+
+      // Tell anything caching query results that the graph has changed
+      bumpIngestGeneration();
+    }
+    finally {
+      writeIngestReport();
+    }
   }
 
   /**
-   * I categorised the main page types found in To Be Or Not To Be
+   * Ingest the book, or the corpus, into the database
+   *
+   * @param options Ingest options
+   * @throws IOException
    */
-  private enum PageTypes implements Label {
-    Page,
-    ImagePage,
-    EndPage,
-    SubBook,
-    Ignore
-  }
+  private static void ingest(IngestOptions options) throws IOException {
+    if (!options.isTextIndex()) {
+      // An index from an earlier run would no longer match the graph
+      Files.deleteIfExists(getTextIndexPath());
+    }
 
-  // Property names for data stored on nodes and relationships
-  private static final String PDF_PAGE_NUMBER = "pdf_page_number";
-  private static final String BOOK_PAGE_LABEL = "book_page_label";
-  private static final String WORD_COUNT = "word_count";
+    if (options.getCorpus() != null) {
+      // Neither a single book's page graph nor those of books dropped from the corpus would match the graph
+      Files.deleteIfExists(getPageGraphPath());
+      BulkGraphLoader.deleteRecursively(getPageGraphsPath());
+      ingestCorpus(options);
+      return;
+    }
 
-  public static void main(String[] args) throws IOException {
-    String pdfFilePath = System.getProperty("user.dir") + File.separator + "resources" + File.separator + "tbontb-regular.pdf";
+    // The books of an earlier corpus run are no longer in the graph
+    BulkGraphLoader.deleteRecursively(getPageGraphsPath());
 
-    // Set up the database
-    GraphDatabaseService graphDb = getDatabase();
+    Path pdfFilePath = Paths.get(System.getProperty("user.dir"), "resources", "tbontb-regular.pdf");
 
-    // Set up the PDF Reader
-    PdfReader reader = new PdfReader(pdfFilePath);
+    // Read the PDF once, the bytes are shared read-only with any extraction workers. In low memory mode the file is
+    // memory mapped instead and each reader only loads the page it's working on.
+    PdfSource pdfSource = options.isLowMemory() ? PdfSource.mapped(pdfFilePath) : PdfSource.inMemory(pdfFilePath);
 
-    // Set up a content parser for the PDF
-    PdfReaderContentParser contentParser = new PdfReaderContentParser(reader);
+    // Set up the PDF Reader
+    PdfReader reader = pdfSource.open();
 
     // Parse the page labels from the PDF
-    String[] pageLabels = FixedPdfPageLabels.getPageLabels(reader);
+    PageLabelIndex pageLabels = PageLabelIndex.read(reader);
 
-    LOGGER.info("Populating database");
-    try (Transaction tx = graphDb.beginTx()) {
-      // Create nodes in the database for all the pages in the PDF
-      Map<PdfObject, String> pdfPageToPageLabel = createPageNodes(reader, contentParser, pageLabels, graphDb);
+    // Resolve every link destination to a page once, up front
+    LinkDestinationIndex linkDestinations = LinkDestinationIndex.build(reader);
 
-      // Process each page, classifying it and updating the database
-      processPages(reader, contentParser, pdfPageToPageLabel, graphDb);
+    // Reuse what earlier runs over the same PDF found on each page rather than parsing it again
+    ExtractionCache extractionCache = options.isExtractionCache()
+      ? ExtractionCache.open(getExtractionCachePath(), pdfSource.digest(), reader.getNumberOfPages())
+      : null;
 
-      tx.success();
+    // Index the text of each page as it's extracted, so the text needn't be kept for the rest of the ingest
+    TextIndex.Builder textIndex = options.isTextIndex() ? new TextIndex.Builder() : null;
+
+    if (options.isIncremental()) {
+      // Only extract the pages that changed and only write what differs
+      GraphDatabaseService graphDb = getDatabase(false);
+      IncrementalGraphUpdater updater;
+      try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.LOAD_EXISTING_GRAPH)) {
+        updater = new IncrementalGraphUpdater(graphDb);
+      }
+      List<PageExtraction> pages = extractChangedPages(reader, pageLabels, linkDestinations, extractionCache, updater);
+      closeExtraction(reader, extractionCache);
+
+      BookGraph bookGraph = processPages(pages, pageLabels);
+      try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.APPLY_CHANGES)) {
+        updater.apply(bookGraph);
+      }
+
+      CompactPageGraph pageGraph = CompactPageGraph.from(bookGraph);
+      RouteAnalysis.compute(pageGraph).write(graphDb, null);
+
+      graphDb.shutdown();
+
+      exportPageGraph(pageGraph);
+      return;
     }
-    LOGGER.info("Finished populating database");
 
+    if (options.getBatchSize() > 0) {
+      // Commit a batch of pages at a time while the next batch is extracted, never holding the whole book
+      int pageCount = reader.getNumberOfPages();
+      GraphDatabaseService graphDb = getDatabase(false);
+      BatchedGraphWriter writer = new BatchedGraphWriter(graphDb, pageLabels, options.getBatchSize());
+      String pdfDigest = pdfSource.digest();
+      if (!(options.isResume() && writer.resume(pdfDigest))) {
+        clearGraphDB(graphDb);
+        writer.start(pdfDigest);
+      }
+
+      writer.write((firstPage, consumer) -> {
+        Consumer<PageExtraction> pages = textIndex == null ? consumer : page -> consumer.accept(indexText(textIndex, page));
+        if (options.getThreads() > 1) {
+          // Workers can run ahead of the writer by a batch, or far enough to keep every worker busy
+          int window = Math.max(options.getBatchSize(), ParallelPageExtractor.BLOCK_SIZE * options.getThreads() * 2);
+          new ParallelPageExtractor(pdfSource, pageLabels, linkDestinations, extractionCache, textIndex != null, options.getThreads())
+            .extractInOrder(firstPage, pageCount, window, pages);
+        }
+        else {
+          PageExtractor extractor = new PageExtractor(reader, pageLabels, linkDestinations, false, extractionCache, textIndex != null);
+          for (int pdfPageNumber = firstPage; pdfPageNumber <= pageCount; pdfPageNumber++) {
+            pages.accept(extractor.extract(pdfPageNumber));
+          }
+        }
+      });
+      closeExtraction(reader, extractionCache);
+      writeTextIndex(textIndex);
+
+      CompactPageGraph pageGraph = writer.getPageGraph();
+      RouteAnalysis.compute(pageGraph).write(graphDb, null);
 
-    reader.close();
-    graphDb.shutdown();
+      graphDb.shutdown();
+
+      exportPageGraph(pageGraph);
+      return;
+    }
+
+    // Parse every page exactly once
+    List<PageExtraction> pages;
+    if (options.getThreads() > 1) {
+      pages = extractPagesInParallel(pdfSource, pageLabels, linkDestinations, extractionCache, textIndex, reader.getNumberOfPages(),
+        options.getThreads());
+    }
+    else {
+      pages = extractPages(reader, pageLabels, linkDestinations, extractionCache, textIndex);
+    }
+
+    closeExtraction(reader, extractionCache);
+    writeTextIndex(textIndex);
+
+    // Classify each page and work out the links between them
+    BookGraph bookGraph = processPages(pages, pageLabels);
+
+    // Work out which endings each page can reach and which pages can't be avoided, to store alongside the pages
+    CompactPageGraph pageGraph = CompactPageGraph.from(bookGraph);
+    RouteAnalysis routeAnalysis = RouteAnalysis.compute(pageGraph);
+
+    if (options.isBulk()) {
+      // Write a brand new store without transactions and swap it in
+      try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.BULK_LOAD)) {
+        new BulkGraphLoader(getGraphDbPath()).load(bookGraph, routeAnalysis);
+      }
+    }
+    else {
+      // Set up the database
+      GraphDatabaseService graphDb = getDatabase(true);
+
+      populateDatabase(bookGraph, graphDb, null, routeAnalysis);
+
+      graphDb.shutdown();
+    }
+
+    // Export the page graph for tools that don't need the database
+    exportPageGraph(pageGraph);
 
     // Query e.g. MATCH r=(s:SubBook)-[*..20]->(e:SubBook :EndPage) RETURN r
   }
 
+  /**
+   * Ingest every PDF in the corpus directory into one database, each book's pages namespaced by its book id
+   *
+   * @param options Ingest options, threads being the number of books extracted at once
+   * @throws IOException If the corpus directory can't be listed
+   */
+  private static void ingestCorpus(IngestOptions options) throws IOException {
+    BulkGraphLoader.recoverInterruptedSwap(getGraphDbPath());
+    GraphDatabaseService graphDb = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(getGraphDbPath().toFile()).newGraphDatabase();
+    registerShutdownHook(graphDb);
+    clearGraphDB(graphDb);
+    createSchema(graphDb, UNIQUE_CORPUS_PAGE_PROPERTIES);
+
+    // The single writer stores each book's route analysis on its pages, in the same transaction
+    BiConsumer<String, BookGraph> bookWriter = (bookId, bookGraph) ->
+      populateDatabase(bookGraph, graphDb, bookId, RouteAnalysis.compute(CompactPageGraph.from(bookGraph)));
+    CorpusIngester ingester = new CorpusIngester(bookWriter, getPageGraphsPath(), options.getThreads(), options.isLowMemory());
+    CorpusIngester.Report report = ingester.ingest(options.getCorpus());
+
+    graphDb.shutdown();
+
+    LOGGER.info("Ingested " + report.getIngestedBooks().size() + " of " + report.getBookCount() + " books");
+    for (Map.Entry<String, Throwable> failure : report.getFailures().entrySet()) {
+      LOGGER.error("Failed to ingest " + failure.getKey() + ": " + failure.getValue());
+    }
+  }
+
   /**
    * Set up a GraphDatabaseService for Adventurer to fill with data
    *
+   * @param clear Whether to clear out the graph from the last run
    * @return Graph database handle
+   * @throws IOException If an interrupted bulk load's old store can't be put back
    */
-  private static GraphDatabaseService getDatabase() {
-    String graphDbPath = System.getProperty("user.dir") + File.separator + "graph-db";
-
-    GraphDatabaseService graphDb = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(new File(graphDbPath)).newGraphDatabase();
+  private static GraphDatabaseService getDatabase(boolean clear) throws IOException {
+    BulkGraphLoader.recoverInterruptedSwap(getGraphDbPath());
+    GraphDatabaseService graphDb = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(getGraphDbPath().toFile()).newGraphDatabase();
     registerShutdownHook(graphDb);
 
-    clearGraphDB(graphDb);
+    if (clear) {
+      clearGraphDB(graphDb);
+    }
+
+    createSchema(graphDb, UNIQUE_PAGE_PROPERTIES);
 
     return graphDb;
   }
 
+  /**
+   * @return Directory of the Neo4j store Adventurer fills
+   */
+  static Path getGraphDbPath() {
+    return Paths.get(System.getProperty("user.dir"), "graph-db");
+  }
+
+  /**
+   * @return File the page graph is exported to, see MappedPageGraph
+   */
+  static Path getPageGraphPath() {
+    return Paths.get(System.getProperty("user.dir"), "page-graph.bin");
+  }
+
+  /**
+   * @return Directory the page graph of each book in a corpus is exported to, as [book id].bin
+   */
+  static Path getPageGraphsPath() {
+    return Paths.get(System.getProperty("user.dir"), "page-graphs");
+  }
+
+  /**
+   * @param bookId Id of a book in a corpus
+   * @param value Page number or label of a page in the book
+   * @return Key identifying the page across the corpus. Book ids are file names so can't contain a '/'.
+   */
+  static String bookPageKey(String bookId, Object value) {
+    return bookId + "/" + value;
+  }
+
+  /**
+   * @return File the extraction cache is kept in, see ExtractionCache
+   */
+  static Path getExtractionCachePath() {
+    return Paths.get(System.getProperty("user.dir"), "extraction-cache.bin");
+  }
+
+  /**
+   * @return File the text of the book's pages is indexed in, see TextIndex
+   */
+  static Path getTextIndexPath() {
+    return Paths.get(System.getProperty("user.dir"), "text-index.bin");
+  }
+
+  /**
+   * @return File the JSON report of each run is written to, see IngestMetrics
+   */
+  static Path getIngestReportPath() {
+    return Paths.get(System.getProperty("user.dir"), "ingest-report.json");
+  }
+
+  /**
+   * @return File holding the ingest generation, see readIngestGeneration
+   */
+  static Path getIngestGenerationPath() {
+    return Paths.get(System.getProperty("user.dir"), "ingest-generation");
+  }
+
+  /**
+   * @return Number of ingests that have finished writing the graph, 0 before the first one. Anything caching results
+   * from the graph can compare it to tell whether they're still current.
+   */
+  static long readIngestGeneration() {
+    try {
+      return Long.parseLong(new String(Files.readAllBytes(getIngestGenerationPath()), StandardCharsets.US_ASCII).trim());
+    }
+    catch (NoSuchFileException e) {
+      return 0;
+    }
+    catch (IOException | NumberFormatException e) {
+      LOGGER.warn("Couldn't read the ingest generation", e);
+      return 0;
+    }
+  }
+
+  /**
+   * Move the ingest generation on, replacing the file atomically so readers never see it half written
+   *
+   * @throws IOException
+   */
+  private static void bumpIngestGeneration() throws IOException {
+    Path file = getIngestGenerationPath();
+    Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+    Files.write(tempFile, Long.toString(readIngestGeneration() + 1).getBytes(StandardCharsets.US_ASCII));
+    Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Write out the metrics of the run, without letting a failure to write them hide how the run itself went
+   */
+  private static void writeIngestReport() {
+    try {
+      IngestMetrics.get().writeReport(getIngestReportPath());
+      LOGGER.info("Wrote ingest report to " + getIngestReportPath());
+    }
+    catch (IOException e) {
+      LOGGER.warn("Couldn't write the ingest report", e);
+    }
+  }
+
   /**
    * Registers a shutdown hook for the Neo4j instance so that it shuts down nicely when the VM exits (even if you
    * "Ctrl-C" the running application)
@@ -126,166 +406,359 @@ public class App {
    */
   private static void clearGraphDB(GraphDatabaseService graphDb) {
     LOGGER.info("Attempting to clear database from last run");
-    try (Transaction tx = graphDb.beginTx();
-         Result result = graphDb.execute(
-           "MATCH (n)\n" +
-           "OPTIONAL MATCH (n)-[r]-()\n" +
-           "DELETE n, r")
-    ) {
-      // Output the result of the delete statement
-      LOGGER.trace(result.resultAsString());
+    try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.CLEAR_DATABASE)) {
+      // Delete a batch of nodes per transaction so clearing a large book doesn't build one huge transaction
+      long deleted;
+      do {
+        try (Transaction tx = graphDb.beginTx();
+             Result result = graphDb.execute(
+               "MATCH (n)\n" +
+               "WITH n LIMIT " + CLEAR_BATCH_SIZE + "\n" +
+               "DETACH DELETE n\n" +
+               "RETURN count(*) AS deleted")
+        ) {
+          deleted = (Long) result.next().get("deleted");
+          LOGGER.trace("Deleted " + deleted + " nodes");
+
+          tx.success();
+        }
+      }
+      while (deleted > 0);
+    }
+  }
+
+  /**
+   * Create the uniqueness constraints (and their backing indexes) used to look up pages, if they don't exist already,
+   * dropping any left over from the other layout (a single book or a corpus)
+   *
+   * @param graphDb Database to add the schema to
+   * @param uniqueProperties Page properties that must be unique, UNIQUE_PAGE_PROPERTIES or UNIQUE_CORPUS_PAGE_PROPERTIES
+   */
+  static void createSchema(GraphDatabaseService graphDb, String[] uniqueProperties) {
+    LOGGER.info("Creating schema constraints and indexes");
+    try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.CREATE_SCHEMA)) {
+      createConstraints(graphDb, uniqueProperties);
+    }
+  }
+
+  private static void createConstraints(GraphDatabaseService graphDb, String[] uniqueProperties) {
+    try (Transaction tx = graphDb.beginTx()) {
+      Set<String> wantedProperties = new HashSet<>(Arrays.asList(uniqueProperties));
+      Set<String> constrainedProperties = new HashSet<>();
+      for (ConstraintDefinition constraint : graphDb.schema().getConstraints(PageTypes.Page)) {
+        if (constraint.isConstraintType(ConstraintType.UNIQUENESS)) {
+          for (String property : constraint.getPropertyKeys()) {
+            if (wantedProperties.contains(property)) {
+              constrainedProperties.add(property);
+            }
+            else {
+              constraint.drop();
+            }
+          }
+        }
+      }
+
+      for (String property : uniqueProperties) {
+        if (!constrainedProperties.contains(property)) {
+          graphDb.schema().constraintFor(PageTypes.Page).assertPropertyIsUnique(property).create();
+        }
+      }
+
+      // Look up a book's pages by its id
+      if (wantedProperties.contains(BOOK_PAGE_KEY)) {
+        boolean indexed = false;
+        for (IndexDefinition index : graphDb.schema().getIndexes(PageTypes.Page)) {
+          indexed |= !index.isConstraintIndex() && index.getPropertyKeys().iterator().next().equals(BOOK_ID);
+        }
+        if (!indexed) {
+          graphDb.schema().indexFor(PageTypes.Page).on(BOOK_ID).create();
+        }
+      }
 
       tx.success();
     }
+
+    try (Transaction tx = graphDb.beginTx()) {
+      graphDb.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+      tx.success();
+    }
   }
 
   /**
-   * First pass of the PDF pages to create unconnected nodes in the database and generate a map of pages to page labels.
+   * Close the PDF, and the extraction cache if there is one, once every page has been extracted
    *
-   * @param reader PdfReader to get PDF information from
-   * @param contentParser PdfReaderContentParser to extract text with
-   * @param pageLabels Array of page labels
-   * @param graphDb Database
-   * @return Map of PdfObjects representing pages to page labels
+   * @param reader PdfReader of the PDF
+   * @param extractionCache Cache of the PDF's extracted pages, or null
+   * @throws IOException
    */
-  private static Map<PdfObject, String> createPageNodes(PdfReader reader, PdfReaderContentParser contentParser, String[] pageLabels, GraphDatabaseService graphDb) {
-    LOGGER.info("Creating page nodes");
-
-    Map<PdfObject, String> pdfPageToPageLabel = new HashMap<>(reader.getNumberOfPages());
+  private static void closeExtraction(PdfReader reader, ExtractionCache extractionCache) throws IOException {
+    if (extractionCache != null) {
+      LOGGER.info(IngestMetrics.get().getCount(IngestMetrics.Counter.PAGES_FROM_CACHE) + " pages read from the extraction cache, "
+        + extractionCache.getCachedCount() + " of " + reader.getNumberOfPages() + " pages now cached");
+      extractionCache.close();
+    }
+    reader.close();
+  }
 
-    TextExtractionStrategy strategy;
+  /**
+   * Add a page's text to the text index
+   *
+   * @param textIndex Text index being built
+   * @param page Extraction of the page with its text kept
+   * @return The page without its text, which isn't needed again
+   */
+  private static PageExtraction indexText(TextIndex.Builder textIndex, PageExtraction page) {
+    textIndex.add(page.getPdfPageNumber(), page.getText());
+    return page.withoutText();
+  }
 
-    for (int pdfPageNumber = 1; pdfPageNumber <= reader.getNumberOfPages(); pdfPageNumber++) {
-      Node pageNode = graphDb.createNode(PageTypes.Page);
-      pageNode.setProperty(PDF_PAGE_NUMBER, pdfPageNumber);
-      pageNode.setProperty(BOOK_PAGE_LABEL, pageLabels[pdfPageNumber - 1]);
+  /**
+   * Write the text index once every page has been added to it
+   *
+   * @param textIndex Text index being built, or null if the text isn't being indexed
+   * @throws IOException
+   */
+  private static void writeTextIndex(TextIndex.Builder textIndex) throws IOException {
+    if (textIndex != null) {
+      textIndex.write(getTextIndexPath());
+      LOGGER.info("Indexed " + textIndex.getTermCount() + " terms of page text");
+    }
+  }
 
-      try {
-        strategy = contentParser.processContent(pdfPageNumber, new SimpleTextExtractionStrategy());
-        String[] words = strategy.getResultantText().split("\\s+");
-        pageNode.setProperty(WORD_COUNT, words.length);
-      }
-      catch (IOException e) {
-        LOGGER.error("Failed to parse simple text content from page to get word count", e);
+  /**
+   * Single pass over the PDF pages, parsing each page's content stream and link annotations once
+   *
+   * @param reader PdfReader to get PDF information from
+   * @param pageLabels Page labels of the PDF
+   * @param linkDestinations Named destinations of the PDF
+   * @param extractionCache Cache of the PDF's extracted pages, or null to parse every page
+   * @param textIndex Text index to add each page's text to, or null
+   * @return Extraction results for every page, ordered by PDF page number
+   * @throws IOException
+   */
+  private static List<PageExtraction> extractPages(PdfReader reader, PageLabelIndex pageLabels, LinkDestinationIndex linkDestinations,
+                                                   ExtractionCache extractionCache, TextIndex.Builder textIndex) throws IOException {
+    LOGGER.info("Extracting pages");
+
+    PageExtractor extractor = new PageExtractor(reader, pageLabels, linkDestinations, false, extractionCache, textIndex != null);
+    List<PageExtraction> pages = new ArrayList<>(reader.getNumberOfPages());
+    try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.EXTRACT_PAGES)) {
+      for (int pdfPageNumber = 1; pdfPageNumber <= reader.getNumberOfPages(); pdfPageNumber++) {
+        PageExtraction page = extractor.extract(pdfPageNumber);
+        pages.add(textIndex == null ? page : indexText(textIndex, page));
       }
+    }
 
-      pdfPageToPageLabel.put(reader.getPageN(pdfPageNumber), pageLabels[pdfPageNumber - 1]);
+    LOGGER.info("Finished extracting pages");
+
+    return pages;
+  }
+
+  /**
+   * Parallel version of extractPages, splitting the pages between worker threads that each have their own PdfReader
+   *
+   * @param pdfSource The PDF, each worker opens its own reader over it
+   * @param pageLabels Page labels of the PDF
+   * @param linkDestinations Named destinations of the PDF, shared between the workers
+   * @param extractionCache Cache of the PDF's extracted pages shared between the workers, or null to parse every page
+   * @param textIndex Text index to add each page's text to as the pages come back in order, or null
+   * @param pageCount Number of pages in the PDF
+   * @param threads Number of worker threads
+   * @return Extraction results for every page, ordered by PDF page number
+   * @throws IOException
+   */
+  private static List<PageExtraction> extractPagesInParallel(PdfSource pdfSource, PageLabelIndex pageLabels, LinkDestinationIndex linkDestinations,
+                                                             ExtractionCache extractionCache, TextIndex.Builder textIndex, int pageCount,
+                                                             int threads) throws IOException {
+    LOGGER.info("Extracting pages on " + threads + " threads");
+
+    List<PageExtraction> pages = new ArrayList<>(pageCount);
+    try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.EXTRACT_PAGES)) {
+      new ParallelPageExtractor(pdfSource, pageLabels, linkDestinations, extractionCache, textIndex != null, threads)
+        .extractInOrder(1, pageCount, pageCount, page -> pages.add(textIndex == null ? page : indexText(textIndex, page)));
     }
 
-    LOGGER.info("Finished creating page nodes");
+    LOGGER.info("Finished extracting pages");
 
-    return pdfPageToPageLabel;
+    return pages;
   }
 
   /**
-   * Process each page in the PdfReader looking for features that can be noted in the database (e.g. image page, end
-   * page, relationships)
+   * Incremental version of extractPages, only parsing pages whose fingerprint differs from the one in the graph
    *
    * @param reader PdfReader to get PDF information from
-   * @param contentParser PdfReaderContentParser to extract text with
-   * @param pdfPageToPageLabel Map of PdfObjects representing pages to page labels
-   * @param graphDb Database
+   * @param pageLabels Page labels of the PDF
+   * @param linkDestinations Named destinations of the PDF
+   * @param extractionCache Cache of the PDF's extracted pages, or null to parse every changed page
+   * @param updater Incremental updater holding the pages from the last run
+   * @return Extraction results for every page, ordered by PDF page number
    * @throws IOException
    */
-  private static void processPages(PdfReader reader, PdfReaderContentParser contentParser, Map<PdfObject, String> pdfPageToPageLabel, GraphDatabaseService graphDb) throws IOException {
+  private static List<PageExtraction> extractChangedPages(PdfReader reader, PageLabelIndex pageLabels, LinkDestinationIndex linkDestinations,
+                                                          ExtractionCache extractionCache, IncrementalGraphUpdater updater) throws IOException {
+    LOGGER.info("Extracting changed pages");
+
+    PageExtractor extractor = new PageExtractor(reader, pageLabels, linkDestinations, false, extractionCache);
+    List<PageExtraction> pages = new ArrayList<>(reader.getNumberOfPages());
+    int changedPages = 0;
+    try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.EXTRACT_PAGES)) {
+      for (int pdfPageNumber = 1; pdfPageNumber <= reader.getNumberOfPages(); pdfPageNumber++) {
+        PageExtraction page = updater.reuse(pdfPageNumber, extractor.fingerprint(pdfPageNumber));
+        if (page == null) {
+          page = extractor.extract(pdfPageNumber);
+          changedPages++;
+        }
+        pages.add(page);
+      }
+    }
+    IngestMetrics.count(IngestMetrics.Counter.PAGES_REUSED, reader.getNumberOfPages() - changedPages);
+
+    LOGGER.info("Finished extracting changed pages, " + changedPages + " of " + reader.getNumberOfPages() + " pages changed");
+
+    return pages;
+  }
+
+  /**
+   * Classify each extracted page and work out the relationships between pages
+   *
+   * @param pages Extraction results for every page
+   * @param pageLabels Page labels of the PDF
+   * @return Graph of the book, ready to be written to the database
+   */
+  private static BookGraph processPages(List<PageExtraction> pages, PageLabelIndex pageLabels) {
     LOGGER.info("Processing all pages");
 
-    // Get a map of all link names to PdfObjects representing pages for the book
-    Map<String, PdfObject> linkDestinations = reader.getNamedDestinationFromStrings();
+    BookGraph bookGraph;
+    try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.PROCESS_PAGES)) {
+      bookGraph = BookGraph.build(pages, pageLabels);
+    }
+
+    LOGGER.info("Finished processing all pages");
+
+    return bookGraph;
+  }
 
-    FontGroupingTextExtractionStrategy strategy;
+  /**
+   * Write the page graph to a compact binary file that route tooling can map without starting Neo4j
+   *
+   * @param pageGraph Graph of the book's pages
+   * @throws IOException
+   */
+  private static void exportPageGraph(CompactPageGraph pageGraph) throws IOException {
+    LOGGER.info("Exporting page graph");
 
-    // Go through each page again but this time classify them and create links
-    for (int pdfPageNumber = 1; pdfPageNumber <= reader.getNumberOfPages(); pdfPageNumber++) {
-      LOGGER.trace("PDF Page " + pdfPageNumber);
+    try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.EXPORT_PAGE_GRAPH)) {
+      MappedPageGraph.write(pageGraph, getPageGraphPath());
+    }
 
-      // Get the pre-existing node from the database for this page
-      Node thisPage = graphDb.findNode(PageTypes.Page, PDF_PAGE_NUMBER, pdfPageNumber);
-      if (thisPage == null) {
-        throw new RuntimeException("Couldn't find a node for PDF page: " + pdfPageNumber);
-      }
+    LOGGER.info("Finished exporting page graph");
+  }
 
-      // Get the page label for this page
-      String thisBookPageLabel = (String)thisPage.getProperty(BOOK_PAGE_LABEL);
+  /**
+   * Write the book graph to an empty database in a single transaction
+   *
+   * @param bookGraph Graph of the book
+   * @param graphDb Database, with its schema already created
+   */
+  static void populateDatabase(BookGraph bookGraph, GraphDatabaseService graphDb) {
+    populateDatabase(bookGraph, graphDb, null, null);
+  }
 
-      // Start classifying the page based on the label
-      if (thisBookPageLabel.startsWith("G")) {
-        // All of the sub book (The Murder of Gonzago) page labels start with G
-        thisPage.addLabel(PageTypes.SubBook);
-      }
-      if (!thisBookPageLabel.matches(".*\\d+.*")) {
-        // If there's no digits in the label, ignore the page (roman numeral pages)
-        thisPage.addLabel(PageTypes.Ignore);
+  /**
+   * Write the book graph to the database in a single transaction
+   *
+   * @param bookGraph Graph of the book
+   * @param graphDb Database, with its schema already created
+   * @param bookId Id of the book within a corpus to namespace its pages by, or null when the database holds one book
+   * @param routeAnalysis Route analysis of the book to store on its pages, or null to leave it out
+   */
+  static void populateDatabase(BookGraph bookGraph, GraphDatabaseService graphDb, String bookId, RouteAnalysis routeAnalysis) {
+    LOGGER.info("Populating database" + (bookId != null ? " with " + bookId : ""));
+    Transaction tx = graphDb.beginTx();
+    try {
+      // Create nodes in the database for all the pages in the PDF
+      long[] pageNodeIds = createPageNodes(bookGraph, graphDb, bookId, routeAnalysis);
+
+      // Link the page nodes together
+      createRelationships(bookGraph, pageNodeIds, graphDb);
+
+      tx.success();
+    }
+    finally {
+      // Closing the transaction commits it, timed on its own to see what the commit costs next to the writes
+      try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.COMMIT)) {
+        tx.close();
       }
+    }
+    LOGGER.info("Finished populating database");
+  }
 
-      // Check for inter-page-links
-      PdfDictionary pageDict = reader.getPageN(pdfPageNumber);
-      PdfArray annotationArray = pageDict.getAsArray(PdfName.ANNOTS);
-      boolean linksOut = false;
-      if (annotationArray != null) {
-        for (int i = 0; i < annotationArray.size(); i++) {
-          PdfDictionary annotationDictionary = annotationArray.getAsDict(i);
-          if (PdfName.LINK == annotationDictionary.get(PdfName.SUBTYPE)) {
-            if (annotationDictionary.contains(PdfName.A)) {
-              String lDestination = ((PdfDictionary) PdfReader.getPdfObject(annotationDictionary.getAsIndirectObject(PdfName.A))).getAsString(PdfName.D).toString();
-              if (linkDestinations.containsKey(lDestination)) {
-                PdfArray destinationInfoArray = (PdfArray) linkDestinations.get(lDestination);
-                PdfIndirectReference destinationReference = destinationInfoArray.getAsIndirectObject(0); // TODO, this could actually be an integer for the case of Remote Destinations
-                PdfObject targetPdfPage = PdfReader.getPdfObject(destinationReference);
-
-                // Create link if it hasn't already been made between these pages (Split-line links mean two annotations with the same dest)
-                Node targetPage = graphDb.findNode(PageTypes.Page, BOOK_PAGE_LABEL, pdfPageToPageLabel.get(targetPdfPage));
-                boolean existingRelationship = false;
-                for (Relationship r : thisPage.getRelationships(Direction.BOTH, RelationshipTypes.Choice)) {
-                  existingRelationship |= r.getEndNode().getId() == targetPage.getId();
-                }
-                if (!existingRelationship) {
-                  Relationship pageLink = thisPage.createRelationshipTo(targetPage, RelationshipTypes.Choice);
-                  pageLink.setProperty(WORD_COUNT, targetPage.getProperty(WORD_COUNT, 0));
-                  linksOut = true;
-                }
-              }
-              else {
-                LOGGER.warn("Found link to unknown: " + lDestination);
-              }
-            }
-            else {
-              LOGGER.warn("Adventurer only handles Anchor Links currently");
-            }
+  /**
+   * Create a node in the database for every page, with its page types as labels
+   *
+   * @param bookGraph Graph of the book
+   * @param graphDb Database
+   * @param bookId Id of the book within a corpus, or null
+   * @param routeAnalysis Route analysis of the book, or null
+   * @return Node ids of the pages, indexed by PDF page number
+   */
+  private static long[] createPageNodes(BookGraph bookGraph, GraphDatabaseService graphDb, String bookId, RouteAnalysis routeAnalysis) {
+    LOGGER.info("Creating page nodes");
+
+    long[] pageNodeIds = new long[bookGraph.getPageCount() + 1];
+    try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.CREATE_PAGE_NODES)) {
+      for (int pdfPageNumber = 1; pdfPageNumber <= bookGraph.getPageCount(); pdfPageNumber++) {
+        Set<PageTypes> pageTypes = bookGraph.getPageTypes(pdfPageNumber);
+        Node pageNode = graphDb.createNode(pageTypes.toArray(new Label[pageTypes.size()]));
+        pageNode.setProperty(PDF_PAGE_NUMBER, pdfPageNumber);
+        pageNode.setProperty(BOOK_PAGE_LABEL, bookGraph.getBookPageLabel(pdfPageNumber));
+        pageNode.setProperty(WORD_COUNT, bookGraph.getWordCount(pdfPageNumber));
+        pageNode.setProperty(FINGERPRINT, bookGraph.getFingerprint(pdfPageNumber));
+        if (bookId != null) {
+          pageNode.setProperty(BOOK_ID, bookId);
+          pageNode.setProperty(BOOK_PDF_PAGE_KEY, bookPageKey(bookId, pdfPageNumber));
+          pageNode.setProperty(BOOK_PAGE_KEY, bookPageKey(bookId, bookGraph.getBookPageLabel(pdfPageNumber)));
+        }
+        if (routeAnalysis != null) {
+          for (Map.Entry<String, Object> property : routeAnalysis.getProperties(pdfPageNumber - 1).entrySet()) {
+            pageNode.setProperty(property.getKey(), property.getValue());
           }
         }
+        pageNodeIds[pdfPageNumber] = pageNode.getId();
       }
+    }
 
+    IngestMetrics.count(IngestMetrics.Counter.NODES_WRITTEN, bookGraph.getPageCount());
+    LOGGER.info("Finished creating page nodes");
 
-      // Do some context scanning to find page types
-      strategy = contentParser.processContent(pdfPageNumber, new FontGroupingTextExtractionStrategy(false));
-      if (strategy.getImageCount() > 0
-          && (strategy.getTextValues().size() == 0
-              || (strategy.getTextValues().size() == 1
-                  && thisBookPageLabel.equals(strategy.getTextValues().get(0).toString())
-                  )
-              )
-          ) {
-        // If the page is nothing but an image, label it as an image page (Typically an ending comic)
-        thisPage.addLabel(PageTypes.ImagePage);
-      }
-      else {
-        // If not an image page perhaps there's text to parse looking for an end page
-        strategy.getTextValues().stream()
-          .filter(textBlock -> textBlock.toString().matches("THE END(!!)?"))
-          .forEach(textBlock -> thisPage.addLabel(PageTypes.EndPage));
-      }
+    return pageNodeIds;
+  }
 
-      // Link to next page if no other relationships from this node
-      if (!linksOut && !thisPage.hasLabel(PageTypes.EndPage)) {
-        Node nextPage = graphDb.findNode(PageTypes.Page, PDF_PAGE_NUMBER, pdfPageNumber+1);
-        if (nextPage != null) {
-          Relationship pageLink = thisPage.createRelationshipTo(nextPage, RelationshipTypes.Continues);
-          pageLink.setProperty(WORD_COUNT, nextPage.getProperty(WORD_COUNT, 0));
+  /**
+   * Create the Continues and Choice relationships between page nodes
+   *
+   * @param bookGraph Graph of the book
+   * @param pageNodeIds Node ids of the pages, indexed by PDF page number, so pages never have to be looked up by property
+   * @param graphDb Database
+   */
+  private static void createRelationships(BookGraph bookGraph, long[] pageNodeIds, GraphDatabaseService graphDb) {
+    LOGGER.info("Creating relationships");
+
+    try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.CREATE_RELATIONSHIPS)) {
+      for (int r = 0; r < bookGraph.getRelationshipCount(); r++) {
+        int end = bookGraph.getRelationshipEnd(r);
+        Node startPage = graphDb.getNodeById(pageNodeIds[bookGraph.getRelationshipStart(r)]);
+        Node endPage = graphDb.getNodeById(pageNodeIds[end]);
+        Relationship pageLink = startPage.createRelationshipTo(endPage, bookGraph.getRelationshipType(r));
+        pageLink.setProperty(ORDINAL, bookGraph.getRelationshipOrdinal(r));
+        pageLink.setProperty(WORD_COUNT, bookGraph.getWordCount(end));
+        if (bookGraph.getChoiceText(r) != null) {
+          pageLink.setProperty(CHOICE_TEXT, bookGraph.getChoiceText(r));
         }
       }
     }
 
-    LOGGER.info("Finished processing all pages");
+    IngestMetrics.count(IngestMetrics.Counter.RELATIONSHIPS_WRITTEN, bookGraph.getRelationshipCount());
+    LOGGER.info("Finished creating relationships");
   }
 }
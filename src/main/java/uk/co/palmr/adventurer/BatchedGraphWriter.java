@@ -0,0 +1,407 @@
+package uk.co.palmr.adventurer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Writes the graph a batch of pages at a time, each batch in its own transaction, so the transaction state never holds
+ * more than one batch however large the book. Pages are extracted on a thread of their own and handed over a batch at
+ * a time through a queue with room for one batch, so the next batch is being extracted while the last one commits.
+ *
+ * A page's relationships are created with the page, so a link to a page that hasn't been written yet creates the node
+ * of that page early with just its page number and label. The rest of its properties and labels are filled in when its
+ * batch comes round, along with the word count of every relationship already leading to it. Relationships are still
+ * created in the same order as a single transaction would create them, so choices keep the order they have on the page.
+ *
+ * Every batch also records the last page it wrote on a checkpoint node, in the same transaction. If a run fails the
+ * next run can resume after the last committed batch rather than starting the book again. The checkpoint is removed
+ * with the last batch.
+ */
+public class BatchedGraphWriter {
+  private static final Logger LOGGER = LogManager.getLogger(BatchedGraphWriter.class);
+
+  // The checkpoint node and its properties
+  static final Label CHECKPOINT = DynamicLabel.label("IngestCheckpoint");
+  static final String PDF_DIGEST = "pdf_digest";
+  static final String CLASSIFIER_VERSION = "classifier_version";
+  static final String COMMITTED_PAGES = "committed_pages";
+
+  private static final long NO_NODE = -1;
+  private static final int UNKNOWN_WORD_COUNT = -1;
+
+  private final GraphDatabaseService graphDb;
+  private final PageLabelIndex pageLabels;
+  private final int batchSize;
+  // Node ids and word counts of the pages written so far, by PDF page number
+  private final long[] nodeIds;
+  private final int[] wordCounts;
+  // The page graph is exported from what was written rather than loaded back from the store
+  private final CompactPageGraph.Builder pageGraph;
+  private long checkpointNodeId = NO_NODE;
+  private int committedPages = 0;
+
+  /**
+   * Source of the extracted pages, called on the extraction thread
+   */
+  public interface PageProducer {
+    /**
+     * @param firstPage PDF page number of the first page to extract
+     * @param pages Takes every page from the first page to the end of the book, in PDF page order
+     * @throws IOException
+     */
+    void produce(int firstPage, Consumer<PageExtraction> pages) throws IOException;
+  }
+
+  /**
+   * @param graphDb Database, with its schema already created
+   * @param pageLabels Page labels of the PDF
+   * @param batchSize Number of pages to write in each transaction
+   */
+  public BatchedGraphWriter(GraphDatabaseService graphDb, PageLabelIndex pageLabels, int batchSize) {
+    this.graphDb = graphDb;
+    this.pageLabels = pageLabels;
+    this.batchSize = batchSize;
+    this.nodeIds = new long[pageLabels.getPageCount() + 1];
+    this.wordCounts = new int[pageLabels.getPageCount() + 1];
+    Arrays.fill(nodeIds, NO_NODE);
+    Arrays.fill(wordCounts, UNKNOWN_WORD_COUNT);
+    this.pageGraph = new CompactPageGraph.Builder(pageLabels);
+  }
+
+  /**
+   * Pick up from the checkpoint an earlier run over the same PDF left behind
+   *
+   * @param pdfDigest Digest of the PDF, see PdfSource.digest
+   * @return Whether there was a checkpoint to resume from, if not the database should be cleared and the book started
+   * with start
+   */
+  public boolean resume(String pdfDigest) {
+    try (Transaction tx = graphDb.beginTx();
+         ResourceIterator<Node> checkpoints = graphDb.findNodes(CHECKPOINT)) {
+      if (!checkpoints.hasNext()) {
+        LOGGER.info("No checkpoint to resume from");
+        return false;
+      }
+      Node checkpoint = checkpoints.next();
+      if (!pdfDigest.equals(checkpoint.getProperty(PDF_DIGEST, null))
+        || !Integer.valueOf(PageClassifier.VERSION).equals(checkpoint.getProperty(CLASSIFIER_VERSION, null))) {
+        LOGGER.info("The checkpoint is from a run over a different PDF or classifier, not resuming from it");
+        return false;
+      }
+
+      checkpointNodeId = checkpoint.getId();
+      committedPages = (Integer) checkpoint.getProperty(COMMITTED_PAGES);
+      try (ResourceIterator<Node> pageNodes = graphDb.findNodes(PageTypes.Page)) {
+        while (pageNodes.hasNext()) {
+          Node pageNode = pageNodes.next();
+          int pdfPageNumber = (Integer) pageNode.getProperty(App.PDF_PAGE_NUMBER);
+          nodeIds[pdfPageNumber] = pageNode.getId();
+          // Pages after the checkpoint only have nodes because earlier pages link to them
+          if (pdfPageNumber <= committedPages) {
+            wordCounts[pdfPageNumber] = (Integer) pageNode.getProperty(App.WORD_COUNT);
+          }
+        }
+      }
+      loadCommittedPages();
+      tx.success();
+    }
+
+    LOGGER.info("Resuming after page " + committedPages + " of " + pageLabels.getPageCount());
+    return true;
+  }
+
+  /**
+   * Add the pages written before the checkpoint to the page graph, their relationships put back in order by ordinal
+   */
+  private void loadCommittedPages() {
+    for (int pdfPageNumber = 1; pdfPageNumber <= committedPages; pdfPageNumber++) {
+      Node pageNode = graphDb.getNodeById(nodeIds[pdfPageNumber]);
+      int mask = 0;
+      for (PageTypes pageType : PageTypes.values()) {
+        if (pageNode.hasLabel(pageType)) {
+          mask |= PageClassifier.bit(pageType);
+        }
+      }
+      pageGraph.setPage(pdfPageNumber, wordCounts[pdfPageNumber], mask);
+
+      List<Relationship> relationships = new ArrayList<>();
+      pageNode.getRelationships(Direction.OUTGOING, RelationshipTypes.Continues, RelationshipTypes.Choice).forEach(relationships::add);
+      relationships.sort(App.RELATIONSHIP_ORDER);
+      for (Relationship relationship : relationships) {
+        int end = (Integer) relationship.getEndNode().getProperty(App.PDF_PAGE_NUMBER);
+        pageGraph.addRelationship(pdfPageNumber, end,
+          relationship.isType(RelationshipTypes.Continues) ? RelationshipTypes.Continues : RelationshipTypes.Choice);
+      }
+    }
+  }
+
+  /**
+   * Start writing the book from its first page into an empty database
+   *
+   * @param pdfDigest Digest of the PDF, see PdfSource.digest
+   */
+  public void start(String pdfDigest) {
+    try (Transaction tx = graphDb.beginTx()) {
+      Node checkpoint = graphDb.createNode(CHECKPOINT);
+      checkpoint.setProperty(PDF_DIGEST, pdfDigest);
+      checkpoint.setProperty(CLASSIFIER_VERSION, PageClassifier.VERSION);
+      checkpoint.setProperty(COMMITTED_PAGES, 0);
+      checkpointNodeId = checkpoint.getId();
+      tx.success();
+    }
+    committedPages = 0;
+  }
+
+  /**
+   * @return Number of pages committed so far, from the first page
+   */
+  public int getCommittedPages() {
+    return committedPages;
+  }
+
+  /**
+   * @return Graph of the pages written, once every page has been
+   */
+  public CompactPageGraph getPageGraph() {
+    return pageGraph.build();
+  }
+
+  /**
+   * Extract and write every page after the last committed one. If a batch fails to write, extraction is stopped and
+   * the exception thrown, leaving the checkpoint at the last batch that committed.
+   *
+   * @param producer Extracts the pages, on a thread of its own
+   * @throws IOException If the pages can't be extracted
+   */
+  public void write(PageProducer producer) throws IOException {
+    int pageCount = pageLabels.getPageCount();
+    LOGGER.info("Populating database in batches of " + batchSize + " pages");
+
+    // Room for one batch, so extraction runs at most a batch ahead of the batch being written
+    BlockingQueue<Batch> batches = new ArrayBlockingQueue<>(1);
+    ExecutorService extraction = Executors.newSingleThreadExecutor();
+    try {
+      int firstPage = committedPages + 1;
+      extraction.execute(() -> produceBatches(producer, firstPage, batches));
+
+      while (committedPages < pageCount) {
+        Batch batch = batches.take();
+        if (batch.failure != null) {
+          if (batch.failure instanceof IOException) {
+            throw (IOException) batch.failure;
+          }
+          throw new RuntimeException("Failed to extract pages", batch.failure);
+        }
+        writeBatch(batch.pages);
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while populating database", e);
+    }
+    finally {
+      extraction.shutdownNow();
+    }
+
+    LOGGER.info("Finished populating database");
+  }
+
+  /**
+   * Runs on the extraction thread, cutting the pages into batches
+   */
+  private void produceBatches(PageProducer producer, int firstPage, BlockingQueue<Batch> batches) {
+    try {
+      try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.EXTRACT_PAGES)) {
+        producer.produce(firstPage, new Batcher(batches));
+      }
+    }
+    catch (CancellationException e) {
+      // The writer has stopped and won't take any more batches
+    }
+    catch (Throwable e) {
+      try {
+        batches.put(new Batch(null, e));
+      }
+      catch (InterruptedException interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Write a batch of pages and their relationships, moving the checkpoint on, in one transaction
+   *
+   * @param pages Consecutive pages, following on from the last committed page
+   */
+  private void writeBatch(List<PageExtraction> pages) {
+    int lastPage = pages.get(pages.size() - 1).getPdfPageNumber();
+    int relationshipCount = 0;
+
+    Transaction tx = graphDb.beginTx();
+    try {
+      try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.CREATE_PAGE_NODES)) {
+        for (PageExtraction page : pages) {
+          writePageNode(page);
+        }
+      }
+
+      try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.CREATE_RELATIONSHIPS)) {
+        for (PageExtraction page : pages) {
+          relationshipCount += writeRelationships(page);
+        }
+      }
+
+      Node checkpoint = graphDb.getNodeById(checkpointNodeId);
+      if (lastPage == pageLabels.getPageCount()) {
+        checkpoint.delete();
+      }
+      else {
+        checkpoint.setProperty(COMMITTED_PAGES, lastPage);
+      }
+
+      tx.success();
+    }
+    finally {
+      try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.COMMIT)) {
+        tx.close();
+      }
+    }
+
+    committedPages = lastPage;
+    IngestMetrics.count(IngestMetrics.Counter.NODES_WRITTEN, pages.size());
+    IngestMetrics.count(IngestMetrics.Counter.RELATIONSHIPS_WRITTEN, relationshipCount);
+    LOGGER.debug("Committed pages up to " + lastPage);
+  }
+
+  /**
+   * Fill in a page's node, creating it if nothing has linked to the page yet
+   */
+  private void writePageNode(PageExtraction page) {
+    int pdfPageNumber = page.getPdfPageNumber();
+    boolean createdEarly = nodeIds[pdfPageNumber] != NO_NODE;
+    Node pageNode = createdEarly ? graphDb.getNodeById(nodeIds[pdfPageNumber]) : createPageNode(pdfPageNumber);
+
+    int mask = BookGraph.pageTypeMask(page, pageLabels.getLabel(pdfPageNumber));
+    for (PageTypes pageType : PageTypes.values()) {
+      if ((mask & PageClassifier.bit(pageType)) != 0) {
+        pageNode.addLabel(pageType);
+      }
+    }
+    pageNode.setProperty(App.WORD_COUNT, page.getWordCount());
+    pageNode.setProperty(App.FINGERPRINT, page.getFingerprint());
+    wordCounts[pdfPageNumber] = page.getWordCount();
+    pageGraph.setPage(pdfPageNumber, page.getWordCount(), mask);
+
+    if (createdEarly) {
+      // Relationships created before the page was written didn't know its word count
+      for (Relationship relationship : pageNode.getRelationships(Direction.INCOMING)) {
+        relationship.setProperty(App.WORD_COUNT, page.getWordCount());
+      }
+    }
+  }
+
+  /**
+   * Create the node of a page with the properties that are known before it's extracted
+   */
+  private Node createPageNode(int pdfPageNumber) {
+    Node pageNode = graphDb.createNode(PageTypes.Page);
+    pageNode.setProperty(App.PDF_PAGE_NUMBER, pdfPageNumber);
+    pageNode.setProperty(App.BOOK_PAGE_LABEL, pageLabels.getLabel(pdfPageNumber));
+    nodeIds[pdfPageNumber] = pageNode.getId();
+    return pageNode;
+  }
+
+  /**
+   * Create the Choice or Continues relationships out of a page, the same ones BookGraph would
+   *
+   * @return Number of relationships created
+   */
+  private int writeRelationships(PageExtraction page) {
+    int pdfPageNumber = page.getPdfPageNumber();
+    Node startPage = graphDb.getNodeById(nodeIds[pdfPageNumber]);
+
+    int[] linkTargets = page.getLinkTargets();
+    String[] choiceTexts = page.getChoiceTexts();
+    for (int i = 0; i < linkTargets.length; i++) {
+      Relationship choice = createRelationship(startPage, pdfPageNumber, linkTargets[i], RelationshipTypes.Choice, i);
+      choice.setProperty(App.CHOICE_TEXT, choiceTexts[i]);
+    }
+
+    int mask = BookGraph.pageTypeMask(page, pageLabels.getLabel(pdfPageNumber));
+    if (BookGraph.continuesToNextPage(page, mask, pageLabels.getPageCount())) {
+      createRelationship(startPage, pdfPageNumber, pdfPageNumber + 1, RelationshipTypes.Continues, linkTargets.length);
+      return 1;
+    }
+    return linkTargets.length;
+  }
+
+  private Relationship createRelationship(Node startPage, int start, int end, RelationshipTypes type, int ordinal) {
+    pageGraph.addRelationship(start, end, type);
+    Node endPage = nodeIds[end] != NO_NODE ? graphDb.getNodeById(nodeIds[end]) : createPageNode(end);
+    Relationship relationship = startPage.createRelationshipTo(endPage, type);
+    relationship.setProperty(App.ORDINAL, ordinal);
+    if (wordCounts[end] != UNKNOWN_WORD_COUNT) {
+      relationship.setProperty(App.WORD_COUNT, wordCounts[end]);
+    }
+    return relationship;
+  }
+
+  /**
+   * Collects pages into batches, putting each one on the queue once it's full or holds the last page
+   */
+  private final class Batcher implements Consumer<PageExtraction> {
+    private final BlockingQueue<Batch> batches;
+    private List<PageExtraction> pages = new ArrayList<>(batchSize);
+
+    private Batcher(BlockingQueue<Batch> batches) {
+      this.batches = batches;
+    }
+
+    @Override
+    public void accept(PageExtraction page) {
+      pages.add(page);
+      if (pages.size() == batchSize || page.getPdfPageNumber() == pageLabels.getPageCount()) {
+        try {
+          batches.put(new Batch(pages, null));
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new CancellationException("Stopped writing");
+        }
+        pages = new ArrayList<>(batchSize);
+      }
+    }
+  }
+
+  /**
+   * A batch of pages handed from the extraction thread to the writer, or why extraction failed
+   */
+  private static final class Batch {
+    private final List<PageExtraction> pages;
+    private final Throwable failure;
+
+    private Batch(List<PageExtraction> pages, Throwable failure) {
+      this.pages = pages;
+      this.failure = failure;
+    }
+  }
+}
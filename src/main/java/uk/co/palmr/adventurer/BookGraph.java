@@ -0,0 +1,226 @@
+package uk.co.palmr.adventurer;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The page graph Adventurer derives from a book: every page with its classification and word count, plus the
+ * Continues and Choice links between pages, with the text of each choice. This is worked out once from the extracted
+ * pages so the database writers (transactional or bulk) only have to copy it into Neo4j.
+ *
+ * Pages are addressed by PDF page number, starting at 1.
+ */
+public final class BookGraph {
+  private final PageLabelIndex bookPageLabels;
+  private final String[] fingerprints;
+  private final int[] wordCounts;
+  private final int[] pageTypeMasks;
+
+  private final int[] relationshipStarts;
+  private final int[] relationshipEnds;
+  private final RelationshipTypes[] relationshipTypes;
+  private final String[] choiceTexts;
+  private final int relationshipCount;
+
+  private BookGraph(PageLabelIndex bookPageLabels, String[] fingerprints, int[] wordCounts, int[] pageTypeMasks,
+                    int[] relationshipStarts, int[] relationshipEnds, RelationshipTypes[] relationshipTypes, String[] choiceTexts,
+                    int relationshipCount) {
+    this.bookPageLabels = bookPageLabels;
+    this.fingerprints = fingerprints;
+    this.wordCounts = wordCounts;
+    this.pageTypeMasks = pageTypeMasks;
+    this.relationshipStarts = relationshipStarts;
+    this.relationshipEnds = relationshipEnds;
+    this.relationshipTypes = relationshipTypes;
+    this.choiceTexts = choiceTexts;
+    this.relationshipCount = relationshipCount;
+  }
+
+  /**
+   * Classify every page and work out the links between them
+   *
+   * @param pages Extraction results for every page, ordered by PDF page number
+   * @param pageLabels Page labels of the PDF
+   * @return Graph of the book
+   */
+  public static BookGraph build(List<PageExtraction> pages, PageLabelIndex pageLabels) {
+    int pageCount = pages.size();
+    String[] fingerprints = new String[pageCount];
+    int[] wordCounts = new int[pageCount];
+    int[] pageTypeMasks = new int[pageCount];
+
+    for (PageExtraction page : pages) {
+      int i = page.getPdfPageNumber() - 1;
+      fingerprints[i] = page.getFingerprint();
+      wordCounts[i] = page.getWordCount();
+    }
+
+    RelationshipList relationships = new RelationshipList(pageCount);
+
+    for (PageExtraction page : pages) {
+      int pdfPageNumber = page.getPdfPageNumber();
+      int mask = pageTypeMask(page, pageLabels.getLabel(pdfPageNumber));
+      pageTypeMasks[pdfPageNumber - 1] = mask;
+
+      // Link targets are already distinct, split-line duplicates are dropped during extraction
+      int[] linkTargets = page.getLinkTargets();
+      String[] choiceTexts = page.getChoiceTexts();
+      for (int i = 0; i < linkTargets.length; i++) {
+        relationships.add(pdfPageNumber, linkTargets[i], RelationshipTypes.Choice, choiceTexts[i]);
+      }
+
+      // Link to next page if no other relationships from this page
+      if (continuesToNextPage(page, mask, pageCount)) {
+        relationships.add(pdfPageNumber, pdfPageNumber + 1, RelationshipTypes.Continues, null);
+      }
+    }
+
+    return new BookGraph(pageLabels, fingerprints, wordCounts, pageTypeMasks, relationships.starts, relationships.ends, relationships.types,
+      relationships.choiceTexts, relationships.count);
+  }
+
+  /**
+   * Classify every page and work out the links between them
+   *
+   * @param pages Extraction results for every page, ordered by PDF page number
+   * @param pageLabels Page label of every page, by PDF page number - 1
+   * @return Graph of the book
+   */
+  public static BookGraph build(List<PageExtraction> pages, String[] pageLabels) {
+    return build(pages, PageLabelIndex.of(pageLabels));
+  }
+
+  /**
+   * @param page Extraction result of a page
+   * @param bookPageLabel Page label of the page
+   * @return Bit mask of the page's types, from its label and its content
+   */
+  static int pageTypeMask(PageExtraction page, String bookPageLabel) {
+    return PageClassifier.classifyLabel(bookPageLabel) | page.getContentTypeMask();
+  }
+
+  /**
+   * @param page Extraction result of a page
+   * @param pageTypeMask Bit mask of the page's types
+   * @param pageCount Number of pages in the book
+   * @return Whether the page Continues to the next page, which it does when it has no choices and isn't an ending
+   */
+  static boolean continuesToNextPage(PageExtraction page, int pageTypeMask, int pageCount) {
+    return page.getLinkTargets().length == 0 && (pageTypeMask & PageClassifier.bit(PageTypes.EndPage)) == 0
+      && page.getPdfPageNumber() < pageCount;
+  }
+
+  public int getPageCount() {
+    return wordCounts.length;
+  }
+
+  public String getBookPageLabel(int pdfPageNumber) {
+    return bookPageLabels.getLabel(pdfPageNumber);
+  }
+
+  public String getFingerprint(int pdfPageNumber) {
+    return fingerprints[pdfPageNumber - 1];
+  }
+
+  public int getWordCount(int pdfPageNumber) {
+    return wordCounts[pdfPageNumber - 1];
+  }
+
+  public boolean hasPageType(int pdfPageNumber, PageTypes pageType) {
+    return (pageTypeMasks[pdfPageNumber - 1] & PageClassifier.bit(pageType)) != 0;
+  }
+
+  /**
+   * @return Bit mask of the page's types, bit n set for the PageTypes with ordinal n
+   */
+  public int getPageTypeMask(int pdfPageNumber) {
+    return pageTypeMasks[pdfPageNumber - 1];
+  }
+
+  public Set<PageTypes> getPageTypes(int pdfPageNumber) {
+    Set<PageTypes> pageTypes = EnumSet.noneOf(PageTypes.class);
+    for (PageTypes pageType : PageTypes.values()) {
+      if (hasPageType(pdfPageNumber, pageType)) {
+        pageTypes.add(pageType);
+      }
+    }
+    return pageTypes;
+  }
+
+  /**
+   * @return Number of relationships, relationships are indexed from 0 in the order they should be created
+   */
+  public int getRelationshipCount() {
+    return relationshipCount;
+  }
+
+  /**
+   * @return PDF page number the relationship starts from
+   */
+  public int getRelationshipStart(int relationship) {
+    return relationshipStarts[relationship];
+  }
+
+  /**
+   * @return PDF page number the relationship leads to
+   */
+  public int getRelationshipEnd(int relationship) {
+    return relationshipEnds[relationship];
+  }
+
+  public RelationshipTypes getRelationshipType(int relationship) {
+    return relationshipTypes[relationship];
+  }
+
+  /**
+   * @return Position of the relationship among those out of its start page, in the order they appear on the page
+   */
+  public int getRelationshipOrdinal(int relationship) {
+    int first = relationship;
+    while (first > 0 && relationshipStarts[first - 1] == relationshipStarts[relationship]) {
+      first--;
+    }
+    return relationship - first;
+  }
+
+  /**
+   * @return Text of the choice the relationship was made from, null for Continues relationships
+   */
+  public String getChoiceText(int relationship) {
+    return choiceTexts[relationship];
+  }
+
+  /**
+   * Growable parallel arrays of relationships used while building the graph
+   */
+  private static final class RelationshipList {
+    private int[] starts;
+    private int[] ends;
+    private RelationshipTypes[] types;
+    private String[] choiceTexts;
+    private int count = 0;
+
+    RelationshipList(int initialCapacity) {
+      starts = new int[Math.max(initialCapacity, 1)];
+      ends = new int[starts.length];
+      types = new RelationshipTypes[starts.length];
+      choiceTexts = new String[starts.length];
+    }
+
+    void add(int start, int end, RelationshipTypes type, String choiceText) {
+      if (count == starts.length) {
+        starts = Arrays.copyOf(starts, count * 2);
+        ends = Arrays.copyOf(ends, count * 2);
+        types = Arrays.copyOf(types, count * 2);
+        choiceTexts = Arrays.copyOf(choiceTexts, count * 2);
+      }
+      starts[count] = start;
+      ends[count] = end;
+      types[count] = type;
+      choiceTexts[count] = choiceText;
+      count++;
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package uk.co.palmr.adventurer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.neo4j.graphdb.Label;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes a BookGraph into a brand new Neo4j store using the batch insertion API, skipping transactions entirely, then
+ * swaps the new store in place of the old one. Much faster than clearing and refilling an existing database.
+ */
+public class BulkGraphLoader {
+  private static final Logger LOGGER = LogManager.getLogger(BulkGraphLoader.class);
+
+  private final Path graphDbPath;
+
+  /**
+   * @param graphDbPath Store directory that will be replaced with the bulk loaded store
+   */
+  public BulkGraphLoader(Path graphDbPath) {
+    this.graphDbPath = graphDbPath;
+  }
+
+  /**
+   * Bulk load the graph into a fresh store and swap it in
+   *
+   * @param bookGraph Graph of the book
+   * @throws IOException
+   */
+  public void load(BookGraph bookGraph) throws IOException {
+    load(bookGraph, null);
+  }
+
+  /**
+   * Bulk load the graph into a fresh store and swap it in
+   *
+   * @param bookGraph Graph of the book
+   * @param routeAnalysis Route analysis of the book to store on its pages, or null to leave it out
+   * @throws IOException
+   */
+  public void load(BookGraph bookGraph, RouteAnalysis routeAnalysis) throws IOException {
+    recoverInterruptedSwap(graphDbPath);
+    Path newStorePath = graphDbPath.resolveSibling(graphDbPath.getFileName() + ".bulk");
+    Path oldStorePath = getOldStorePath(graphDbPath);
+    deleteRecursively(newStorePath);
+    deleteRecursively(oldStorePath);
+
+    LOGGER.info("Bulk loading into new store " + newStorePath);
+    BatchInserter inserter = BatchInserters.inserter(newStorePath.toFile());
+    try {
+      insert(bookGraph, routeAnalysis, inserter);
+    }
+    finally {
+      inserter.shutdown();
+    }
+    LOGGER.info("Finished bulk loading");
+
+    // Swap the new store in. Each rename is atomic, but between the two there's no store directory at all; if that's
+    // interrupted the old store is left beside it and recoverInterruptedSwap puts it back
+    if (Files.exists(graphDbPath)) {
+      Files.move(graphDbPath, oldStorePath, StandardCopyOption.ATOMIC_MOVE);
+    }
+    Files.move(newStorePath, graphDbPath, StandardCopyOption.ATOMIC_MOVE);
+    deleteRecursively(oldStorePath);
+    LOGGER.info("Swapped bulk loaded store into " + graphDbPath);
+  }
+
+  /**
+   * Put the old store back if a swap was interrupted after moving it aside but before the new store was moved in, so
+   * the database isn't silently opened as a new empty store. Call before opening the store directory.
+   *
+   * @param graphDbPath Store directory
+   * @throws IOException If the old store can't be moved back
+   */
+  public static void recoverInterruptedSwap(Path graphDbPath) throws IOException {
+    Path oldStorePath = getOldStorePath(graphDbPath);
+    if (!Files.exists(graphDbPath) && Files.exists(oldStorePath)) {
+      LOGGER.warn("Restoring " + graphDbPath + " from " + oldStorePath + " left by an interrupted bulk load");
+      Files.move(oldStorePath, graphDbPath, StandardCopyOption.ATOMIC_MOVE);
+    }
+  }
+
+  private static Path getOldStorePath(Path graphDbPath) {
+    return graphDbPath.resolveSibling(graphDbPath.getFileName() + ".old");
+  }
+
+  /**
+   * Create every node and relationship of the graph through the batch inserter
+   *
+   * @param bookGraph Graph of the book
+   * @param routeAnalysis Route analysis of the book, or null
+   * @param inserter Batch inserter for the new store
+   */
+  private static void insert(BookGraph bookGraph, RouteAnalysis routeAnalysis, BatchInserter inserter) {
+    // Constraints are created when the inserter shuts down, after all the data is in
+    for (String property : App.UNIQUE_PAGE_PROPERTIES) {
+      inserter.createDeferredConstraint(PageTypes.Page).assertPropertyIsUnique(property).create();
+    }
+
+    long[] nodeIds = new long[bookGraph.getPageCount() + 1];
+
+    for (int pdfPageNumber = 1; pdfPageNumber <= bookGraph.getPageCount(); pdfPageNumber++) {
+      Map<String, Object> properties = new HashMap<>(4);
+      properties.put(App.PDF_PAGE_NUMBER, pdfPageNumber);
+      properties.put(App.BOOK_PAGE_LABEL, bookGraph.getBookPageLabel(pdfPageNumber));
+      properties.put(App.WORD_COUNT, bookGraph.getWordCount(pdfPageNumber));
+      properties.put(App.FINGERPRINT, bookGraph.getFingerprint(pdfPageNumber));
+      if (routeAnalysis != null) {
+        properties.putAll(routeAnalysis.getProperties(pdfPageNumber - 1));
+      }
+
+      Set<PageTypes> pageTypes = bookGraph.getPageTypes(pdfPageNumber);
+      nodeIds[pdfPageNumber] = inserter.createNode(properties, pageTypes.toArray(new Label[pageTypes.size()]));
+    }
+
+    for (int r = 0; r < bookGraph.getRelationshipCount(); r++) {
+      int end = bookGraph.getRelationshipEnd(r);
+      Map<String, Object> properties = new HashMap<>(4);
+      properties.put(App.ORDINAL, bookGraph.getRelationshipOrdinal(r));
+      properties.put(App.WORD_COUNT, bookGraph.getWordCount(end));
+      if (bookGraph.getChoiceText(r) != null) {
+        properties.put(App.CHOICE_TEXT, bookGraph.getChoiceText(r));
+      }
+      inserter.createRelationship(nodeIds[bookGraph.getRelationshipStart(r)], nodeIds[end], bookGraph.getRelationshipType(r), properties);
+    }
+
+    IngestMetrics.count(IngestMetrics.Counter.NODES_WRITTEN, bookGraph.getPageCount());
+    IngestMetrics.count(IngestMetrics.Counter.RELATIONSHIPS_WRITTEN, bookGraph.getRelationshipCount());
+  }
+
+  /**
+   * Delete a file or a directory and everything in it, if it's there
+   */
+  static void deleteRecursively(Path path) throws IOException {
+    if (!Files.exists(path)) {
+      return;
+    }
+    Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
@@ -0,0 +1,237 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.awt.geom.Rectangle2D;
+import com.itextpdf.text.pdf.parser.ImageRenderInfo;
+import com.itextpdf.text.pdf.parser.LineSegment;
+import com.itextpdf.text.pdf.parser.RenderListener;
+import com.itextpdf.text.pdf.parser.TextRenderInfo;
+import com.itextpdf.text.pdf.parser.Vector;
+
+import java.util.Arrays;
+
+/**
+ * Collects the positioned chunks of text on a page as it's parsed, so the text under every link on the page can be
+ * found from that one parse.
+ *
+ * Chunks are bucketed into a uniform grid over the page, the text under a link rectangle then only has to look at the
+ * chunks in the cells the rectangle covers. A chunk counts as under a rectangle when its baseline crosses it, the same
+ * rule as RegionTextRenderFilter, and the chunks are put back in reading order (top line first, then left to right).
+ */
+final class ChoiceTextIndex implements RenderListener {
+  // Chunks of text, as parallel arrays of their baseline and text
+  private float[] startX = new float[64];
+  private float[] startY = new float[64];
+  private float[] endX = new float[64];
+  private float[] endY = new float[64];
+  private float[] spaceWidths = new float[64];
+  private String[] texts = new String[64];
+  private int chunkCount = 0;
+
+  // Grid of chunk indexes, cells in rows from the bottom of the page
+  private boolean gridBuilt = false;
+  private float minX;
+  private float minY;
+  private float cellWidth;
+  private float cellHeight;
+  private int columns;
+  private int rows;
+  private int[] cellStarts = new int[0];
+  private int[] cellChunks = new int[0];
+
+  // Stamped with the query that last looked at a chunk, as a chunk can be in more than one cell
+  private int[] seen = new int[64];
+  private int queryStamp = 0;
+  private int[] matches = new int[16];
+
+  /**
+   * Forget the last page's text, ready to parse another page
+   */
+  void reset() {
+    Arrays.fill(texts, 0, chunkCount, null);
+    chunkCount = 0;
+    gridBuilt = false;
+  }
+
+  @Override
+  public void beginTextBlock() {
+  }
+
+  @Override
+  public void renderText(TextRenderInfo renderInfo) {
+    String text = renderInfo.getText();
+    if (text.isEmpty()) {
+      return;
+    }
+    if (chunkCount == texts.length) {
+      int capacity = chunkCount * 2;
+      startX = Arrays.copyOf(startX, capacity);
+      startY = Arrays.copyOf(startY, capacity);
+      endX = Arrays.copyOf(endX, capacity);
+      endY = Arrays.copyOf(endY, capacity);
+      spaceWidths = Arrays.copyOf(spaceWidths, capacity);
+      texts = Arrays.copyOf(texts, capacity);
+      seen = Arrays.copyOf(seen, capacity);
+    }
+
+    LineSegment baseline = renderInfo.getBaseline();
+    Vector start = baseline.getStartPoint();
+    Vector end = baseline.getEndPoint();
+    startX[chunkCount] = start.get(Vector.I1);
+    startY[chunkCount] = start.get(Vector.I2);
+    endX[chunkCount] = end.get(Vector.I1);
+    endY[chunkCount] = end.get(Vector.I2);
+    spaceWidths[chunkCount] = renderInfo.getSingleSpaceWidth();
+    texts[chunkCount] = text;
+    chunkCount++;
+  }
+
+  @Override
+  public void endTextBlock() {
+  }
+
+  @Override
+  public void renderImage(ImageRenderInfo renderInfo) {
+  }
+
+  /**
+   * Bucket the chunks into a grid of roughly one chunk per cell, counting them into each cell first so the cells are
+   * packed into a single array
+   */
+  private void buildGrid() {
+    gridBuilt = true;
+    if (chunkCount == 0) {
+      return;
+    }
+
+    float maxX = minX = Math.min(startX[0], endX[0]);
+    float maxY = minY = Math.min(startY[0], endY[0]);
+    for (int chunk = 0; chunk < chunkCount; chunk++) {
+      minX = Math.min(minX, Math.min(startX[chunk], endX[chunk]));
+      minY = Math.min(minY, Math.min(startY[chunk], endY[chunk]));
+      maxX = Math.max(maxX, Math.max(startX[chunk], endX[chunk]));
+      maxY = Math.max(maxY, Math.max(startY[chunk], endY[chunk]));
+    }
+
+    columns = rows = (int) Math.ceil(Math.sqrt(chunkCount));
+    // Nudged up so the chunks on the far edges still land inside the grid
+    cellWidth = Math.max((maxX - minX) / columns, 1f) * 1.001f;
+    cellHeight = Math.max((maxY - minY) / rows, 1f) * 1.001f;
+
+    int cellCount = columns * rows;
+    if (cellStarts.length < cellCount + 1) {
+      cellStarts = new int[cellCount + 1];
+    }
+    Arrays.fill(cellStarts, 0, cellCount + 1, 0);
+
+    // Count the chunks in each cell, then turn the counts into starting offsets
+    for (int chunk = 0; chunk < chunkCount; chunk++) {
+      for (int row = row(Math.min(startY[chunk], endY[chunk])); row <= row(Math.max(startY[chunk], endY[chunk])); row++) {
+        for (int column = column(Math.min(startX[chunk], endX[chunk])); column <= column(Math.max(startX[chunk], endX[chunk])); column++) {
+          cellStarts[row * columns + column + 1]++;
+        }
+      }
+    }
+    for (int cell = 0; cell < cellCount; cell++) {
+      cellStarts[cell + 1] += cellStarts[cell];
+    }
+
+    if (cellChunks.length < cellStarts[cellCount]) {
+      cellChunks = new int[cellStarts[cellCount]];
+    }
+    int[] next = Arrays.copyOf(cellStarts, cellCount);
+    for (int chunk = 0; chunk < chunkCount; chunk++) {
+      for (int row = row(Math.min(startY[chunk], endY[chunk])); row <= row(Math.max(startY[chunk], endY[chunk])); row++) {
+        for (int column = column(Math.min(startX[chunk], endX[chunk])); column <= column(Math.max(startX[chunk], endX[chunk])); column++) {
+          cellChunks[next[row * columns + column]++] = chunk;
+        }
+      }
+    }
+  }
+
+  private int column(float x) {
+    return Math.max(0, Math.min(columns - 1, (int) ((x - minX) / cellWidth)));
+  }
+
+  private int row(float y) {
+    return Math.max(0, Math.min(rows - 1, (int) ((y - minY) / cellHeight)));
+  }
+
+  /**
+   * Text of the chunks whose baselines cross a rectangle
+   *
+   * @param llx Lower left x of the rectangle
+   * @param lly Lower left y of the rectangle
+   * @param urx Upper right x of the rectangle
+   * @param ury Upper right y of the rectangle
+   * @return Text under the rectangle in reading order, with runs of whitespace collapsed to single spaces
+   */
+  String textIn(float llx, float lly, float urx, float ury) {
+    if (!gridBuilt) {
+      buildGrid();
+    }
+    if (chunkCount == 0 || urx < minX || ury < minY) {
+      return "";
+    }
+
+    queryStamp++;
+    int matchCount = 0;
+    Rectangle2D.Float region = new Rectangle2D.Float(llx, lly, urx - llx, ury - lly);
+    for (int row = row(lly); row <= row(ury); row++) {
+      for (int column = column(llx); column <= column(urx); column++) {
+        int cell = row * columns + column;
+        for (int i = cellStarts[cell]; i < cellStarts[cell + 1]; i++) {
+          int chunk = cellChunks[i];
+          if (seen[chunk] != queryStamp) {
+            seen[chunk] = queryStamp;
+            if (region.intersectsLine(startX[chunk], startY[chunk], endX[chunk], endY[chunk])) {
+              if (matchCount == matches.length) {
+                matches = Arrays.copyOf(matches, matchCount * 2);
+              }
+              matches[matchCount++] = chunk;
+            }
+          }
+        }
+      }
+    }
+
+    sortByReadingOrder(matchCount);
+
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < matchCount; i++) {
+      int chunk = matches[i];
+      if (i > 0) {
+        int last = matches[i - 1];
+        // A new line, or far enough along from the last chunk to be a gap between words
+        if (Math.round(startY[chunk]) != Math.round(startY[last]) || startX[chunk] - endX[last] > spaceWidths[chunk] / 2f) {
+          text.append(' ');
+        }
+      }
+      text.append(texts[chunk]);
+    }
+    return text.toString().trim().replaceAll("\\s+", " ");
+  }
+
+  /**
+   * Insertion sort of the matched chunks, there are only ever a handful under a link
+   */
+  private void sortByReadingOrder(int matchCount) {
+    for (int i = 1; i < matchCount; i++) {
+      int chunk = matches[i];
+      int j = i - 1;
+      while (j >= 0 && isBefore(chunk, matches[j])) {
+        matches[j + 1] = matches[j];
+        j--;
+      }
+      matches[j + 1] = chunk;
+    }
+  }
+
+  private boolean isBefore(int chunk, int other) {
+    int line = Math.round(startY[chunk]);
+    int otherLine = Math.round(startY[other]);
+    if (line != otherLine) {
+      return line > otherLine;
+    }
+    return startX[chunk] < startX[other];
+  }
+}
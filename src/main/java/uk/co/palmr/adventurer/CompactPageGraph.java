@@ -0,0 +1,455 @@
+package uk.co.palmr.adventurer;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * An in-process copy of the page graph for route questions that would be slow as variable-length Cypher paths.
+ *
+ * Pages are dense int ids from 0, in PDF page order. Continues and Choice relationships are kept as compressed sparse
+ * row arrays (an offsets array indexed by page into a targets array), along with a reversed copy of both for walking
+ * backwards. Word counts are an int[] and each PageTypes label is a bitset over the page ids. Traversals work on
+ * primitive arrays only, nothing is allocated per relationship.
+ */
+public final class CompactPageGraph implements PageGraph {
+  private final int pageCount;
+  private final int[] pdfPageNumbers;
+  private final String[] bookPageLabels;
+  private final int[] wordCounts;
+  private final long[][] pageTypeBits;
+
+  private final int[] continuesOffsets;
+  private final int[] continuesTargets;
+  private final int[] choiceOffsets;
+  private final int[] choiceTargets;
+  private final int[] incomingOffsets;
+  private final int[] incomingSources;
+
+  // Built up front so the graph is immutable and safe to share between threads
+  private final Map<String, Integer> pagesByLabel;
+
+  private CompactPageGraph(int[] pdfPageNumbers, String[] bookPageLabels, int[] wordCounts, int[] pageTypeMasks,
+                           int[] relationshipStarts, int[] relationshipEnds, RelationshipTypes[] relationshipTypes, int relationshipCount) {
+    this.pageCount = pdfPageNumbers.length;
+    this.pdfPageNumbers = pdfPageNumbers;
+    this.bookPageLabels = bookPageLabels;
+    this.wordCounts = wordCounts;
+
+    // Where a label is repeated the first page with it wins
+    this.pagesByLabel = new HashMap<>(pageCount * 2);
+    for (int page = pageCount - 1; page >= 0; page--) {
+      pagesByLabel.put(bookPageLabels[page], page);
+    }
+
+    this.pageTypeBits = new long[PageTypes.values().length][(pageCount + 63) >>> 6];
+    for (int page = 0; page < pageCount; page++) {
+      for (PageTypes pageType : PageTypes.values()) {
+        if ((pageTypeMasks[page] & PageClassifier.bit(pageType)) != 0) {
+          pageTypeBits[pageType.ordinal()][page >>> 6] |= 1L << page;
+        }
+      }
+    }
+
+    int[] continuesCounts = new int[pageCount + 1];
+    int[] choiceCounts = new int[pageCount + 1];
+    int[] incomingCounts = new int[pageCount + 1];
+    for (int r = 0; r < relationshipCount; r++) {
+      if (relationshipTypes[r] == RelationshipTypes.Continues) {
+        continuesCounts[relationshipStarts[r] + 1]++;
+      }
+      else {
+        choiceCounts[relationshipStarts[r] + 1]++;
+      }
+      incomingCounts[relationshipEnds[r] + 1]++;
+    }
+    this.continuesOffsets = prefixSum(continuesCounts);
+    this.choiceOffsets = prefixSum(choiceCounts);
+    this.incomingOffsets = prefixSum(incomingCounts);
+
+    this.continuesTargets = new int[continuesOffsets[pageCount]];
+    this.choiceTargets = new int[choiceOffsets[pageCount]];
+    this.incomingSources = new int[incomingOffsets[pageCount]];
+    int[] continuesFill = Arrays.copyOf(continuesOffsets, pageCount);
+    int[] choiceFill = Arrays.copyOf(choiceOffsets, pageCount);
+    int[] incomingFill = Arrays.copyOf(incomingOffsets, pageCount);
+    for (int r = 0; r < relationshipCount; r++) {
+      if (relationshipTypes[r] == RelationshipTypes.Continues) {
+        continuesTargets[continuesFill[relationshipStarts[r]]++] = relationshipEnds[r];
+      }
+      else {
+        choiceTargets[choiceFill[relationshipStarts[r]]++] = relationshipEnds[r];
+      }
+      incomingSources[incomingFill[relationshipEnds[r]]++] = relationshipStarts[r];
+    }
+  }
+
+  private static int[] prefixSum(int[] counts) {
+    for (int i = 1; i < counts.length; i++) {
+      counts[i] += counts[i - 1];
+    }
+    return counts;
+  }
+
+  /**
+   * Build the compact graph from the graph derived during ingest
+   *
+   * @param bookGraph Graph of the book
+   * @return Compact graph, page id n being PDF page n + 1
+   */
+  public static CompactPageGraph from(BookGraph bookGraph) {
+    int pageCount = bookGraph.getPageCount();
+    int[] pdfPageNumbers = new int[pageCount];
+    String[] bookPageLabels = new String[pageCount];
+    int[] wordCounts = new int[pageCount];
+    int[] pageTypeMasks = new int[pageCount];
+    for (int page = 0; page < pageCount; page++) {
+      pdfPageNumbers[page] = page + 1;
+      bookPageLabels[page] = bookGraph.getBookPageLabel(page + 1);
+      wordCounts[page] = bookGraph.getWordCount(page + 1);
+      pageTypeMasks[page] = bookGraph.getPageTypeMask(page + 1);
+    }
+
+    int relationshipCount = bookGraph.getRelationshipCount();
+    int[] relationshipStarts = new int[relationshipCount];
+    int[] relationshipEnds = new int[relationshipCount];
+    RelationshipTypes[] relationshipTypes = new RelationshipTypes[relationshipCount];
+    for (int r = 0; r < relationshipCount; r++) {
+      relationshipStarts[r] = bookGraph.getRelationshipStart(r) - 1;
+      relationshipEnds[r] = bookGraph.getRelationshipEnd(r) - 1;
+      relationshipTypes[r] = bookGraph.getRelationshipType(r);
+    }
+
+    return new CompactPageGraph(pdfPageNumbers, bookPageLabels, wordCounts, pageTypeMasks, relationshipStarts, relationshipEnds, relationshipTypes, relationshipCount);
+  }
+
+  /**
+   * Builds the compact graph of a whole book a page at a time, for writers that never hold the whole BookGraph
+   */
+  static final class Builder {
+    private final PageLabelIndex bookPageLabels;
+    private final int[] wordCounts;
+    private final int[] pageTypeMasks;
+    private int[] relationshipStarts = new int[16];
+    private int[] relationshipEnds = new int[16];
+    private RelationshipTypes[] relationshipTypes = new RelationshipTypes[16];
+    private int relationshipCount = 0;
+
+    /**
+     * @param bookPageLabels Page labels of the book
+     */
+    Builder(PageLabelIndex bookPageLabels) {
+      this.bookPageLabels = bookPageLabels;
+      this.wordCounts = new int[bookPageLabels.getPageCount()];
+      this.pageTypeMasks = new int[bookPageLabels.getPageCount()];
+    }
+
+    void setPage(int pdfPageNumber, int wordCount, int pageTypeMask) {
+      wordCounts[pdfPageNumber - 1] = wordCount;
+      pageTypeMasks[pdfPageNumber - 1] = pageTypeMask;
+    }
+
+    /**
+     * Add a relationship between two pages, relationships out of a page have to be added in the order they were created
+     */
+    void addRelationship(int startPdfPageNumber, int endPdfPageNumber, RelationshipTypes type) {
+      if (relationshipCount == relationshipStarts.length) {
+        relationshipStarts = Arrays.copyOf(relationshipStarts, relationshipCount * 2);
+        relationshipEnds = Arrays.copyOf(relationshipEnds, relationshipCount * 2);
+        relationshipTypes = Arrays.copyOf(relationshipTypes, relationshipCount * 2);
+      }
+      relationshipStarts[relationshipCount] = startPdfPageNumber - 1;
+      relationshipEnds[relationshipCount] = endPdfPageNumber - 1;
+      relationshipTypes[relationshipCount] = type;
+      relationshipCount++;
+    }
+
+    /**
+     * @return Compact graph, page id n being PDF page n + 1
+     */
+    CompactPageGraph build() {
+      int[] pdfPageNumbers = new int[wordCounts.length];
+      for (int page = 0; page < pdfPageNumbers.length; page++) {
+        pdfPageNumbers[page] = page + 1;
+      }
+      return new CompactPageGraph(pdfPageNumbers, bookPageLabels.toArray(), wordCounts, pageTypeMasks, relationshipStarts, relationshipEnds, relationshipTypes, relationshipCount);
+    }
+  }
+
+  /**
+   * Build the compact graph from a populated database, for tools that run after ingest
+   *
+   * @param graphDb Database
+   * @return Compact graph, page ids in PDF page order
+   */
+  public static CompactPageGraph load(GraphDatabaseService graphDb) {
+    try (Transaction tx = graphDb.beginTx();
+         ResourceIterator<Node> pageNodes = graphDb.findNodes(PageTypes.Page)) {
+      List<Node> nodes = new ArrayList<>();
+      pageNodes.forEachRemaining(nodes::add);
+      nodes.sort((a, b) -> Integer.compare((Integer) a.getProperty(App.PDF_PAGE_NUMBER), (Integer) b.getProperty(App.PDF_PAGE_NUMBER)));
+
+      int pageCount = nodes.size();
+      int[] pdfPageNumbers = new int[pageCount];
+      String[] bookPageLabels = new String[pageCount];
+      int[] wordCounts = new int[pageCount];
+      int[] pageTypeMasks = new int[pageCount];
+      Map<Long, Integer> pageIds = new HashMap<>(pageCount * 2);
+      for (int page = 0; page < pageCount; page++) {
+        Node node = nodes.get(page);
+        pageIds.put(node.getId(), page);
+        pdfPageNumbers[page] = (Integer) node.getProperty(App.PDF_PAGE_NUMBER);
+        bookPageLabels[page] = (String) node.getProperty(App.BOOK_PAGE_LABEL, "");
+        wordCounts[page] = (Integer) node.getProperty(App.WORD_COUNT, 0);
+        for (PageTypes pageType : PageTypes.values()) {
+          if (node.hasLabel(pageType)) {
+            pageTypeMasks[page] |= PageClassifier.bit(pageType);
+          }
+        }
+      }
+
+      int[] relationshipStarts = new int[pageCount];
+      int[] relationshipEnds = new int[pageCount];
+      RelationshipTypes[] relationshipTypes = new RelationshipTypes[pageCount];
+      int relationshipCount = 0;
+      for (int page = 0; page < pageCount; page++) {
+        List<Relationship> relationships = new ArrayList<>();
+        nodes.get(page).getRelationships(Direction.OUTGOING, RelationshipTypes.Continues, RelationshipTypes.Choice).forEach(relationships::add);
+        relationships.sort(App.RELATIONSHIP_ORDER);
+        for (Relationship relationship : relationships) {
+          Integer end = pageIds.get(relationship.getEndNode().getId());
+          if (end == null) {
+            continue;
+          }
+          if (relationshipCount == relationshipStarts.length) {
+            relationshipStarts = Arrays.copyOf(relationshipStarts, relationshipCount * 2 + 1);
+            relationshipEnds = Arrays.copyOf(relationshipEnds, relationshipCount * 2 + 1);
+            relationshipTypes = Arrays.copyOf(relationshipTypes, relationshipCount * 2 + 1);
+          }
+          relationshipStarts[relationshipCount] = page;
+          relationshipEnds[relationshipCount] = end;
+          relationshipTypes[relationshipCount] = relationship.isType(RelationshipTypes.Continues) ? RelationshipTypes.Continues : RelationshipTypes.Choice;
+          relationshipCount++;
+        }
+      }
+
+      tx.success();
+      return new CompactPageGraph(pdfPageNumbers, bookPageLabels, wordCounts, pageTypeMasks, relationshipStarts, relationshipEnds, relationshipTypes, relationshipCount);
+    }
+  }
+
+  @Override
+  public int getPageCount() {
+    return pageCount;
+  }
+
+  @Override
+  public int getPdfPageNumber(int page) {
+    return pdfPageNumbers[page];
+  }
+
+  @Override
+  public String getBookPageLabel(int page) {
+    return bookPageLabels[page];
+  }
+
+  @Override
+  public int findPage(String bookPageLabel) {
+    Integer page = pagesByLabel.get(bookPageLabel);
+    return page == null ? -1 : page;
+  }
+
+  @Override
+  public int getWordCount(int page) {
+    return wordCounts[page];
+  }
+
+  @Override
+  public boolean hasPageType(int page, PageTypes pageType) {
+    return (pageTypeBits[pageType.ordinal()][page >>> 6] & (1L << page)) != 0;
+  }
+
+  /**
+   * @return Copy of the bitset of pages with a page type, bit n set for page id n
+   */
+  public long[] getPageTypeBits(PageTypes pageType) {
+    return pageTypeBits[pageType.ordinal()].clone();
+  }
+
+  @Override
+  public int getContinuesCount(int page) {
+    return continuesOffsets[page + 1] - continuesOffsets[page];
+  }
+
+  @Override
+  public int getContinuesTarget(int page, int i) {
+    return continuesTargets[continuesOffsets[page] + i];
+  }
+
+  @Override
+  public int getChoiceCount(int page) {
+    return choiceOffsets[page + 1] - choiceOffsets[page];
+  }
+
+  @Override
+  public int getChoiceTarget(int page, int i) {
+    return choiceTargets[choiceOffsets[page] + i];
+  }
+
+  @Override
+  public int getOutDegree(int page) {
+    return getContinuesCount(page) + getChoiceCount(page);
+  }
+
+  @Override
+  public int getNeighbour(int page, int i) {
+    int continuesCount = getContinuesCount(page);
+    return i < continuesCount ? continuesTargets[continuesOffsets[page] + i] : choiceTargets[choiceOffsets[page] + i - continuesCount];
+  }
+
+  @Override
+  public int getInDegree(int page) {
+    return incomingOffsets[page + 1] - incomingOffsets[page];
+  }
+
+  @Override
+  public int getIncomingNeighbour(int page, int i) {
+    return incomingSources[incomingOffsets[page] + i];
+  }
+
+  @Override
+  public int getRelationshipCount() {
+    return continuesTargets.length + choiceTargets.length;
+  }
+
+  /**
+   * Call the consumer with the target of every relationship out of a page
+   */
+  public void forEachNeighbour(int page, IntConsumer consumer) {
+    for (int i = continuesOffsets[page]; i < continuesOffsets[page + 1]; i++) {
+      consumer.accept(continuesTargets[i]);
+    }
+    for (int i = choiceOffsets[page]; i < choiceOffsets[page + 1]; i++) {
+      consumer.accept(choiceTargets[i]);
+    }
+  }
+
+  /**
+   * Breadth first search from a page
+   *
+   * @param start Page id to start from
+   * @return Number of relationships on the shortest route from start to each page, -1 where unreachable
+   */
+  public int[] distancesFrom(int start) {
+    int[] distances = new int[pageCount];
+    Arrays.fill(distances, -1);
+    int[] queue = new int[pageCount];
+    int head = 0;
+    int tail = 0;
+    distances[start] = 0;
+    queue[tail++] = start;
+    while (head < tail) {
+      int page = queue[head++];
+      int degree = getOutDegree(page);
+      for (int i = 0; i < degree; i++) {
+        int next = getNeighbour(page, i);
+        if (distances[next] < 0) {
+          distances[next] = distances[page] + 1;
+          queue[tail++] = next;
+        }
+      }
+    }
+    return distances;
+  }
+
+  /**
+   * Depth first search from a page
+   *
+   * @param start Page id to start from
+   * @return Page ids in depth first pre-order, following relationships in getNeighbour order
+   */
+  public int[] depthFirstOrder(int start) {
+    long[] visited = new long[(pageCount + 63) >>> 6];
+    int[] order = new int[pageCount];
+    int visitedCount = 0;
+    int[] pageStack = new int[pageCount];
+    int[] edgeStack = new int[pageCount];
+    int depth = 0;
+
+    visited[start >>> 6] |= 1L << start;
+    order[visitedCount++] = start;
+    pageStack[0] = start;
+    edgeStack[0] = 0;
+    while (depth >= 0) {
+      int page = pageStack[depth];
+      if (edgeStack[depth] < getOutDegree(page)) {
+        int next = getNeighbour(page, edgeStack[depth]++);
+        if ((visited[next >>> 6] & (1L << next)) == 0) {
+          visited[next >>> 6] |= 1L << next;
+          order[visitedCount++] = next;
+          depth++;
+          pageStack[depth] = next;
+          edgeStack[depth] = 0;
+        }
+      }
+      else {
+        depth--;
+      }
+    }
+    return Arrays.copyOf(order, visitedCount);
+  }
+
+  /**
+   * @param start Page id to start from
+   * @return Bitset of every page reachable from start (including start), bit n set for page id n
+   */
+  public long[] reachableFrom(int start) {
+    return reach(start, false);
+  }
+
+  /**
+   * @param end Page id to finish at
+   * @return Bitset of every page that can reach end (including end), bit n set for page id n
+   */
+  public long[] reachableTo(int end) {
+    return reach(end, true);
+  }
+
+  private long[] reach(int from, boolean backwards) {
+    long[] visited = new long[(pageCount + 63) >>> 6];
+    int[] queue = new int[pageCount];
+    int head = 0;
+    int tail = 0;
+    visited[from >>> 6] |= 1L << from;
+    queue[tail++] = from;
+    while (head < tail) {
+      int page = queue[head++];
+      int degree = backwards ? getInDegree(page) : getOutDegree(page);
+      for (int i = 0; i < degree; i++) {
+        int next = backwards ? getIncomingNeighbour(page, i) : getNeighbour(page, i);
+        if ((visited[next >>> 6] & (1L << next)) == 0) {
+          visited[next >>> 6] |= 1L << next;
+          queue[tail++] = next;
+        }
+      }
+    }
+    return visited;
+  }
+
+  /**
+   * @return Whether there's a route from one page to another
+   */
+  public boolean isReachable(int from, int to) {
+    return from == to || distancesFrom(from)[to] >= 0;
+  }
+}
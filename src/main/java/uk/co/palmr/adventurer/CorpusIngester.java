@@ -0,0 +1,251 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.text.pdf.PdfReader;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+
+/**
+ * Ingests a directory of PDFs into one database. Books are extracted concurrently on a fixed pool of N workers, one
+ * book per worker, and handed to a single writer through a queue of N books: a worker that finishes a book while the
+ * queue is full waits for the writer. So however large the corpus, at most 2N + 1 books are held in memory, N on the
+ * queue, N finished by workers waiting for room and the one being written.
+ *
+ * Each book's pages are namespaced by its book id, the PDF file name without the extension. A book that can't be
+ * extracted or written is reported and skipped, its transaction rolled back, and the rest of the corpus carries on.
+ * Anything worse than a broken book, like running out of memory, stops the ingest.
+ */
+public class CorpusIngester {
+  private static final Logger LOGGER = LogManager.getLogger(CorpusIngester.class);
+
+  private final BiConsumer<String, BookGraph> bookWriter;
+  private final Path pageGraphsPath;
+  private final int threads;
+  private final boolean lowMemory;
+
+  /**
+   * @param bookWriter Writes a book's graph to the database given its book id in a single transaction, throwing to
+   * fail the book with nothing written. Only ever called from the thread calling ingest.
+   * @param pageGraphsPath Directory to export each book's page graph to
+   * @param threads Number of books to extract at once
+   * @param lowMemory Whether to memory map each PDF and read it a page at a time
+   */
+  public CorpusIngester(BiConsumer<String, BookGraph> bookWriter, Path pageGraphsPath, int threads, boolean lowMemory) {
+    this.bookWriter = bookWriter;
+    this.pageGraphsPath = pageGraphsPath;
+    this.threads = threads;
+    this.lowMemory = lowMemory;
+  }
+
+  /**
+   * Ingest every PDF in a directory
+   *
+   * @param corpusDirectory Directory of PDFs, subdirectories aren't searched
+   * @return Which books were ingested and which failed
+   * @throws IOException If the directory can't be listed
+   */
+  public Report ingest(Path corpusDirectory) throws IOException {
+    List<Path> pdfFiles = listPdfFiles(corpusDirectory);
+    LOGGER.info("Ingesting " + pdfFiles.size() + " books from " + corpusDirectory + " on " + threads + " threads");
+    Files.createDirectories(pageGraphsPath);
+
+    Report report = new Report(pdfFiles.size());
+    BlockingQueue<ExtractedBook> extractedBooks = new ArrayBlockingQueue<>(threads);
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, pdfFiles.size())));
+    try {
+      for (Path pdfFile : pdfFiles) {
+        executor.execute(() -> extract(pdfFile, extractedBooks));
+      }
+
+      // Every book puts exactly one result on the queue, extracted or failed
+      for (int i = 0; i < pdfFiles.size(); i++) {
+        write(extractedBooks.take(), report);
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while ingesting the corpus", e);
+    }
+    finally {
+      executor.shutdownNow();
+    }
+
+    LOGGER.info("Finished ingesting corpus");
+
+    return report;
+  }
+
+  private static List<Path> listPdfFiles(Path corpusDirectory) throws IOException {
+    List<Path> pdfFiles = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(corpusDirectory)) {
+      for (Path file : files) {
+        if (Files.isRegularFile(file) && file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".pdf")) {
+          pdfFiles.add(file);
+        }
+      }
+    }
+    Collections.sort(pdfFiles);
+    return pdfFiles;
+  }
+
+  /**
+   * @param pdfFile PDF in the corpus
+   * @return Id of the book, its file name without the .pdf extension
+   */
+  static String bookId(Path pdfFile) {
+    String fileName = pdfFile.getFileName().toString();
+    return fileName.substring(0, fileName.length() - ".pdf".length());
+  }
+
+  /**
+   * Extract a book on a worker thread and queue it for the writer, blocking while the writer is behind
+   */
+  private void extract(Path pdfFile, BlockingQueue<ExtractedBook> extractedBooks) {
+    String bookId = bookId(pdfFile);
+    ExtractedBook extractedBook;
+    try {
+      extractedBook = new ExtractedBook(bookId, extractBook(pdfFile, bookId), null);
+    }
+    catch (Exception e) {
+      // A broken PDF can fail in all sorts of ways deep inside the parser, none of them should stop the other books
+      extractedBook = new ExtractedBook(bookId, null, e);
+    }
+    catch (Error e) {
+      // Still hand it on so the writer isn't left waiting for this book, it stops the ingest from there
+      extractedBook = new ExtractedBook(bookId, null, e);
+    }
+
+    try {
+      extractedBooks.put(extractedBook);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private BookGraph extractBook(Path pdfFile, String bookId) throws IOException {
+    LOGGER.info("Extracting " + bookId);
+
+    PdfReader reader = (lowMemory ? PdfSource.mapped(pdfFile) : PdfSource.inMemory(pdfFile)).open();
+    try {
+      // A PDF without page labels has its pages labelled by their page number, the way a PDF viewer would
+      PageLabelIndex pageLabels = PageLabelIndex.read(reader);
+
+      PageExtractor extractor = new PageExtractor(reader, pageLabels, LinkDestinationIndex.build(reader), false);
+      List<PageExtraction> pages = new ArrayList<>(reader.getNumberOfPages());
+      try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.EXTRACT_PAGES)) {
+        for (int pdfPageNumber = 1; pdfPageNumber <= reader.getNumberOfPages(); pdfPageNumber++) {
+          pages.add(extractor.extract(pdfPageNumber));
+        }
+      }
+
+      try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.PROCESS_PAGES)) {
+        return BookGraph.build(pages, pageLabels);
+      }
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Export an extracted book's page graph and write it in its own transaction, recording a failure instead if either
+   * it couldn't be extracted or the export or write fails. The page graph is exported first and deleted if the write
+   * fails, so a failed book leaves nothing behind.
+   */
+  private void write(ExtractedBook extractedBook, Report report) {
+    Throwable failure = extractedBook.failure;
+    if (failure instanceof Error) {
+      throw (Error) failure;
+    }
+    if (failure == null) {
+      Path pageGraphPath = pageGraphsPath.resolve(extractedBook.bookId + ".bin");
+      try {
+        try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.EXPORT_PAGE_GRAPH)) {
+          MappedPageGraph.write(CompactPageGraph.from(extractedBook.bookGraph), pageGraphPath);
+        }
+        try {
+          bookWriter.accept(extractedBook.bookId, extractedBook.bookGraph);
+        }
+        catch (RuntimeException e) {
+          Files.deleteIfExists(pageGraphPath);
+          throw e;
+        }
+        report.ingestedBooks.add(extractedBook.bookId);
+        IngestMetrics.count(IngestMetrics.Counter.BOOKS_INGESTED, 1);
+        return;
+      }
+      catch (RuntimeException | IOException e) {
+        failure = e;
+      }
+    }
+
+    LOGGER.error("Failed to ingest " + extractedBook.bookId, failure);
+    report.failures.put(extractedBook.bookId, failure);
+    IngestMetrics.count(IngestMetrics.Counter.BOOKS_FAILED, 1);
+  }
+
+  /**
+   * A book handed from a worker to the writer, either its graph or why it couldn't be extracted
+   */
+  private static final class ExtractedBook {
+    private final String bookId;
+    private final BookGraph bookGraph;
+    private final Throwable failure;
+
+    private ExtractedBook(String bookId, BookGraph bookGraph, Throwable failure) {
+      this.bookId = bookId;
+      this.bookGraph = bookGraph;
+      this.failure = failure;
+    }
+  }
+
+  /**
+   * Outcome of ingesting a corpus
+   */
+  public static final class Report {
+    private final int bookCount;
+    private final List<String> ingestedBooks = new ArrayList<>();
+    private final Map<String, Throwable> failures = new LinkedHashMap<>();
+
+    private Report(int bookCount) {
+      this.bookCount = bookCount;
+    }
+
+    /**
+     * @return Number of PDFs found in the corpus
+     */
+    public int getBookCount() {
+      return bookCount;
+    }
+
+    /**
+     * @return Ids of the books written to the database, in the order they were written
+     */
+    public List<String> getIngestedBooks() {
+      return ingestedBooks;
+    }
+
+    /**
+     * @return Why each book that wasn't ingested failed, by book id
+     */
+    public Map<String, Throwable> getFailures() {
+      return failures;
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package uk.co.palmr.adventurer;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hex encoded SHA-256 digests, used to fingerprint pages and to identify the PDF a run was over
+ */
+final class Digests {
+  private Digests() {
+  }
+
+  /**
+   * @return A new SHA-256 digest
+   */
+  static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException e) {
+      // Every Java platform has to provide SHA-256
+      throw new IllegalStateException("SHA-256 is always available", e);
+    }
+  }
+
+  /**
+   * Finish a digest
+   *
+   * @param digest Digest of everything that's been added to it
+   * @return The digest in lower case hex
+   */
+  static String hex(MessageDigest digest) {
+    StringBuilder hex = new StringBuilder(2 * digest.getDigestLength());
+    for (byte b : digest.digest()) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+}
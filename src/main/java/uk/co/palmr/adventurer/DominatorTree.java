@@ -0,0 +1,170 @@
+package uk.co.palmr.adventurer;
+
+import java.util.Arrays;
+
+/**
+ * The pages that can't be avoided on the way from the start of the book to each page. Page a dominates page b if every
+ * route from the start to b reads a, and the immediate dominator of b is the closest of those to b, so following
+ * immediate dominators from a page back to the start lists every page it can't be reached without.
+ *
+ * Found with the iterative algorithm from Cooper, Harvey and Kennedy's "A Simple, Fast Dominance Algorithm": pages are
+ * visited in reverse postorder and each one's immediate dominator is narrowed to the common dominator of its
+ * predecessors until nothing changes. Books are mostly forward links with a few loops back, so it settles in two or
+ * three passes.
+ */
+public final class DominatorTree {
+  private final int start;
+  private final int[] immediateDominators;
+  private final int[] depths;
+
+  /**
+   * @param graph Page graph
+   * @param start Page id the routes start from
+   */
+  public DominatorTree(PageGraph graph, int start) {
+    this.start = start;
+    int pageCount = graph.getPageCount();
+
+    // Postorder number of every page reachable from the start, -1 for the rest
+    int[] postorder = new int[pageCount];
+    Arrays.fill(postorder, -1);
+    int[] reversePostorder = new int[pageCount];
+    int reachableCount = depthFirstPostorder(graph, start, postorder, reversePostorder);
+
+    immediateDominators = new int[pageCount];
+    Arrays.fill(immediateDominators, -1);
+    immediateDominators[start] = start;
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = 1; i < reachableCount; i++) {
+        int page = reversePostorder[i];
+        int newDominator = -1;
+        for (int p = 0; p < graph.getInDegree(page); p++) {
+          int predecessor = graph.getIncomingNeighbour(page, p);
+          if (immediateDominators[predecessor] < 0) {
+            // Unreachable, or not processed yet on the first pass
+            continue;
+          }
+          newDominator = newDominator < 0 ? predecessor : intersect(predecessor, newDominator, postorder);
+        }
+        if (immediateDominators[page] != newDominator) {
+          immediateDominators[page] = newDominator;
+          changed = true;
+        }
+      }
+    }
+
+    // Dominators come before the pages they dominate in reverse postorder
+    depths = new int[pageCount];
+    Arrays.fill(depths, -1);
+    depths[start] = 0;
+    for (int i = 1; i < reachableCount; i++) {
+      int page = reversePostorder[i];
+      depths[page] = depths[immediateDominators[page]] + 1;
+    }
+  }
+
+  /**
+   * Number the pages reachable from the start in postorder, without recursion so long routes can't overflow the stack
+   *
+   * @return Number of reachable pages, the first ones in reversePostorder
+   */
+  private static int depthFirstPostorder(PageGraph graph, int start, int[] postorder, int[] reversePostorder) {
+    int pageCount = graph.getPageCount();
+    boolean[] visited = new boolean[pageCount];
+    int[] pageStack = new int[pageCount];
+    int[] edgeStack = new int[pageCount];
+    int[] order = new int[pageCount];
+    int finished = 0;
+    int depth = 0;
+
+    visited[start] = true;
+    pageStack[0] = start;
+    edgeStack[0] = 0;
+    while (depth >= 0) {
+      int page = pageStack[depth];
+      if (edgeStack[depth] < graph.getOutDegree(page)) {
+        int next = graph.getNeighbour(page, edgeStack[depth]++);
+        if (!visited[next]) {
+          visited[next] = true;
+          depth++;
+          pageStack[depth] = next;
+          edgeStack[depth] = 0;
+        }
+      }
+      else {
+        postorder[page] = finished;
+        order[finished++] = page;
+        depth--;
+      }
+    }
+
+    for (int i = 0; i < finished; i++) {
+      reversePostorder[i] = order[finished - 1 - i];
+    }
+    return finished;
+  }
+
+  /**
+   * Walk two pages up the tree built so far until they meet at their common dominator
+   */
+  private int intersect(int a, int b, int[] postorder) {
+    while (a != b) {
+      while (postorder[a] < postorder[b]) {
+        a = immediateDominators[a];
+      }
+      while (postorder[b] < postorder[a]) {
+        b = immediateDominators[b];
+      }
+    }
+    return a;
+  }
+
+  public int getStart() {
+    return start;
+  }
+
+  /**
+   * @return Whether the page can be reached from the start
+   */
+  public boolean isReachable(int page) {
+    return depths[page] >= 0;
+  }
+
+  /**
+   * @return Page id of the closest page every route from the start to this page reads, or -1 for the start itself and
+   * pages that can't be reached
+   */
+  public int getImmediateDominator(int page) {
+    return page == start || !isReachable(page) ? -1 : immediateDominators[page];
+  }
+
+  /**
+   * @return Every page a route from the start has to read before reaching this page, in the order they're read, starting
+   * with the start. Empty for the start itself and pages that can't be reached.
+   */
+  public int[] getDominators(int page) {
+    if (!isReachable(page)) {
+      return new int[0];
+    }
+    int[] dominators = new int[depths[page]];
+    for (int i = dominators.length - 1, dominator = immediateDominators[page]; i >= 0; i--, dominator = immediateDominators[dominator]) {
+      dominators[i] = dominator;
+    }
+    return dominators;
+  }
+
+  /**
+   * @return Whether every route from the start to page b reads page a, a page dominating itself
+   */
+  public boolean dominates(int a, int b) {
+    if (!isReachable(a) || !isReachable(b)) {
+      return false;
+    }
+    while (depths[b] > depths[a]) {
+      b = immediateDominators[b];
+    }
+    return a == b;
+  }
+}
@@ -0,0 +1,130 @@
+package uk.co.palmr.adventurer;
+
+import java.util.Arrays;
+
+/**
+ * Which endings (EndPage or ImagePage) can still be reached from each page, as a bitset over the endings numbered in
+ * page order.
+ *
+ * Every page of a loop reaches the same endings, so the sets are worked out once per strongly connected component.
+ * Components are numbered in topological order, so going through them from the last to the first each component's set
+ * is its own endings plus the sets of its successors, which are already done. A component with no endings of its own
+ * and a single successor (most pages in a book, which only lead on to the next choice) shares its successor's set
+ * rather than copying it.
+ */
+public final class EndingReachability {
+  private final int[] endings;
+  private final int[] endingIndexes;
+  private final long[][] componentEndings;
+  private final StronglyConnectedComponents components;
+
+  /**
+   * @param graph Page graph
+   * @param components Strongly connected components of the graph
+   */
+  public EndingReachability(PageGraph graph, StronglyConnectedComponents components) {
+    this.components = components;
+
+    int pageCount = graph.getPageCount();
+    endingIndexes = new int[pageCount];
+    Arrays.fill(endingIndexes, -1);
+    int endingCount = 0;
+    for (int page = 0; page < pageCount; page++) {
+      if (graph.isEnding(page)) {
+        endingIndexes[page] = endingCount++;
+      }
+    }
+    endings = new int[endingCount];
+    for (int page = 0; page < pageCount; page++) {
+      if (endingIndexes[page] >= 0) {
+        endings[endingIndexes[page]] = page;
+      }
+    }
+
+    int words = (endingCount + 63) >>> 6;
+    componentEndings = new long[components.getComponentCount()][];
+    for (int component = components.getComponentCount() - 1; component >= 0; component--) {
+      boolean hasEnding = false;
+      for (int i = 0; i < components.getComponentSize(component); i++) {
+        hasEnding |= endingIndexes[components.getComponentPage(component, i)] >= 0;
+      }
+
+      if (!hasEnding && components.getSuccessorCount(component) == 1) {
+        componentEndings[component] = componentEndings[components.getSuccessor(component, 0)];
+        continue;
+      }
+
+      long[] reachable = new long[words];
+      for (int i = 0; i < components.getComponentSize(component); i++) {
+        int ending = endingIndexes[components.getComponentPage(component, i)];
+        if (ending >= 0) {
+          reachable[ending >>> 6] |= 1L << ending;
+        }
+      }
+      for (int i = 0; i < components.getSuccessorCount(component); i++) {
+        long[] successorEndings = componentEndings[components.getSuccessor(component, i)];
+        for (int w = 0; w < words; w++) {
+          reachable[w] |= successorEndings[w];
+        }
+      }
+      componentEndings[component] = reachable;
+    }
+  }
+
+  public int getEndingCount() {
+    return endings.length;
+  }
+
+  /**
+   * @return Page id of the ending with the given index
+   */
+  public int getEnding(int endingIndex) {
+    return endings[endingIndex];
+  }
+
+  /**
+   * @return Index of the ending's bit in the reachable endings, or -1 if the page isn't an ending
+   */
+  public int getEndingIndex(int page) {
+    return endingIndexes[page];
+  }
+
+  /**
+   * @return Bitset of the endings reachable from a page, bit n for the ending with index n, including the page itself if
+   * it's an ending. Shared between pages so it mustn't be modified.
+   */
+  public long[] getReachableEndings(int page) {
+    return componentEndings[components.getComponent(page)];
+  }
+
+  /**
+   * @return Whether the ending can be reached from the page
+   */
+  public boolean canReach(int page, int ending) {
+    int endingIndex = endingIndexes[ending];
+    return endingIndex >= 0 && (getReachableEndings(page)[endingIndex >>> 6] & (1L << endingIndex)) != 0;
+  }
+
+  /**
+   * @return Whether any ending can be reached from a page
+   */
+  public boolean canReachAny(int page) {
+    for (long word : getReachableEndings(page)) {
+      if (word != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return Number of endings reachable from a page
+   */
+  public int getReachableCount(int page) {
+    int count = 0;
+    for (long word : getReachableEndings(page)) {
+      count += Long.bitCount(word);
+    }
+    return count;
+  }
+}
@@ -0,0 +1,349 @@
+package uk.co.palmr.adventurer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * What parsing each page of a PDF found, kept on disk so later runs over the same PDF can skip iText's content stream
+ * parsing. A page's record holds the facts the classifier rules work from rather than the classification itself (its
+ * blocks of text grouped by font, image count, word count, link targets and choice texts) so rule changes still apply
+ * to cached pages. The page's text laid out for reading is kept too, for the TextIndex.
+ *
+ * The file is append-only: a header, then one record per page as it's extracted, a later record for a page replacing
+ * an earlier one. Every record carries a CRC32 of its contents. Opening the file reads through every record to index
+ * them by PDF page number; a header for another PDF (or another version of this format) starts a new file, and the
+ * file is cut off at the first record that's truncated or fails its CRC, so a run that died mid-write or a damaged file
+ * only costs re-extracting those pages. Records are looked up with a positional read, so any number of extraction
+ * threads can share one cache.
+ *
+ * File layout, every number little-endian:
+ *
+ * - Header: MAGIC, VERSION and page count as ints, then the 64 hex characters of the PDF's SHA-256 digest
+ * - Records: payload length and CRC32 of the payload as ints, then the payload: PDF page number, page object number and
+ *   the classifier version the fingerprint was made with as ints, then the fingerprint, word count, image count, link
+ *   targets with their choice texts, the blocks of text and the page text. Counts and lengths in the payload are
+ *   varints and strings are UTF-8 bytes after their length.
+ */
+public final class ExtractionCache implements Closeable {
+  private static final Logger LOGGER = LogManager.getLogger(ExtractionCache.class);
+
+  static final int MAGIC = 0x58564441; // "ADVX"
+  // Bump when extraction changes what it finds on a page, so older caches are rebuilt
+  static final int VERSION = 2;
+  private static final int DIGEST_LENGTH = 64;
+  private static final int HEADER_LENGTH = 12 + DIGEST_LENGTH;
+  private static final int RECORD_HEADER_LENGTH = 8;
+
+  private final FileChannel channel;
+  private final int pageCount;
+  // Guarded by this: file position of each page's latest record by PDF page number, -1 for pages not cached
+  private final long[] recordPositions;
+  private long end;
+
+  private ExtractionCache(FileChannel channel, int pageCount, long[] recordPositions, long end) {
+    this.channel = channel;
+    this.pageCount = pageCount;
+    this.recordPositions = recordPositions;
+    this.end = end;
+  }
+
+  /**
+   * Open the cache of a PDF, starting a new one if the file is missing or belongs to another PDF and dropping any
+   * damaged records
+   *
+   * @param file Cache file
+   * @param pdfDigest Hex SHA-256 digest of the PDF, see PdfSource.digest
+   * @param pageCount Number of pages in the PDF
+   * @return Open cache, which has to be closed
+   * @throws IOException
+   */
+  public static ExtractionCache open(Path file, String pdfDigest, int pageCount) throws IOException {
+    try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.OPEN_EXTRACTION_CACHE)) {
+      FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      try {
+        long[] recordPositions = new long[pageCount + 1];
+        Arrays.fill(recordPositions, -1);
+
+        byte[] digest = pdfDigest.getBytes(StandardCharsets.US_ASCII);
+        if (digest.length != DIGEST_LENGTH) {
+          throw new IllegalArgumentException("Expected a hex SHA-256 digest: " + pdfDigest);
+        }
+        if (!hasHeader(channel, digest, pageCount)) {
+          if (channel.size() > 0) {
+            LOGGER.info("Extraction cache is for another PDF or version, starting a new one");
+          }
+          channel.truncate(0);
+          ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+          header.putInt(MAGIC).putInt(VERSION).putInt(pageCount).put(digest);
+          ((Buffer) header).flip();
+          writeFully(channel, header, 0);
+          return new ExtractionCache(channel, pageCount, recordPositions, HEADER_LENGTH);
+        }
+
+        long end = indexRecords(channel, recordPositions);
+        if (end < channel.size()) {
+          LOGGER.warn("Extraction cache is damaged after " + end + " of " + channel.size() + " bytes, dropping the rest");
+          channel.truncate(end);
+        }
+        return new ExtractionCache(channel, pageCount, recordPositions, end);
+      }
+      catch (IOException | RuntimeException e) {
+        channel.close();
+        throw e;
+      }
+    }
+  }
+
+  private static boolean hasHeader(FileChannel channel, byte[] digest, int pageCount) throws IOException {
+    if (channel.size() < HEADER_LENGTH) {
+      return false;
+    }
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, header, 0);
+    byte[] fileDigest = new byte[DIGEST_LENGTH];
+    ((ByteBuffer) ((Buffer) header).position(12)).get(fileDigest);
+    return header.getInt(0) == MAGIC && header.getInt(4) == VERSION && header.getInt(8) == pageCount
+      && Arrays.equals(fileDigest, digest);
+  }
+
+  /**
+   * Read through the records, checking each one's CRC
+   *
+   * @return File position after the last good record
+   */
+  private static long indexRecords(FileChannel channel, long[] recordPositions) throws IOException {
+    long size = channel.size();
+    long position = HEADER_LENGTH;
+    ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    while (position + RECORD_HEADER_LENGTH <= size) {
+      ((Buffer) recordHeader).clear();
+      readFully(channel, recordHeader, position);
+      int length = recordHeader.getInt(0);
+      if (length < 12 || position + RECORD_HEADER_LENGTH + length > size) {
+        break;
+      }
+      ByteBuffer payload = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(channel, payload, position + RECORD_HEADER_LENGTH);
+      int pdfPageNumber = payload.getInt(0);
+      if (crc(payload) != recordHeader.getInt(4) || pdfPageNumber < 1 || pdfPageNumber >= recordPositions.length) {
+        break;
+      }
+      recordPositions[pdfPageNumber] = position;
+      position += RECORD_HEADER_LENGTH + length;
+    }
+    return position;
+  }
+
+  /**
+   * @param pdfPageNumber PDF page number
+   * @param pageObjectNumber Object number of the page's dictionary, which the record has to match
+   * @return What extracting the page found, or null if it isn't cached
+   * @throws IOException
+   */
+  CachedPage get(int pdfPageNumber, int pageObjectNumber) throws IOException {
+    long position;
+    synchronized (this) {
+      position = recordPositions[pdfPageNumber];
+    }
+    if (position < 0) {
+      return null;
+    }
+
+    ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, recordHeader, position);
+    ByteBuffer payload = ByteBuffer.allocate(recordHeader.getInt(0)).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, payload, position + RECORD_HEADER_LENGTH);
+    if (crc(payload) != recordHeader.getInt(4)) {
+      LOGGER.warn("Cached extraction of page " + pdfPageNumber + " is damaged, extracting it again");
+      return null;
+    }
+
+    ((Buffer) payload).position(4);
+    if (payload.getInt() != pageObjectNumber) {
+      return null;
+    }
+    int classifierVersion = payload.getInt();
+    String fingerprint = readString(payload);
+    int wordCount = readVarInt(payload);
+    int imageCount = readVarInt(payload);
+    int[] linkTargets = new int[readVarInt(payload)];
+    String[] choiceTexts = new String[linkTargets.length];
+    for (int i = 0; i < linkTargets.length; i++) {
+      linkTargets[i] = readVarInt(payload);
+      choiceTexts[i] = readString(payload);
+    }
+    int blockCount = readVarInt(payload);
+    List<String> textValues = new ArrayList<>(blockCount);
+    for (int i = 0; i < blockCount; i++) {
+      textValues.add(readString(payload));
+    }
+    String text = readString(payload);
+    return new CachedPage(classifierVersion, fingerprint, wordCount, imageCount, textValues, linkTargets, choiceTexts, text);
+  }
+
+  /**
+   * Append what extracting a page found, replacing any earlier record of the page
+   *
+   * @param page Extraction of the page, with its blocks of text and page text captured
+   * @param pageObjectNumber Object number of the page's dictionary
+   * @param classifierVersion Classifier version the page's fingerprint was made with
+   * @throws IOException
+   */
+  void put(PageExtraction page, int pageObjectNumber, int classifierVersion) throws IOException {
+    RecordWriter writer = new RecordWriter();
+    writer.writeInt(page.getPdfPageNumber());
+    writer.writeInt(pageObjectNumber);
+    writer.writeInt(classifierVersion);
+    writer.writeString(page.getFingerprint());
+    writer.writeVarInt(page.getWordCount());
+    writer.writeVarInt(page.getImageCount());
+    int[] linkTargets = page.getLinkTargets();
+    String[] choiceTexts = page.getChoiceTexts();
+    writer.writeVarInt(linkTargets.length);
+    for (int i = 0; i < linkTargets.length; i++) {
+      writer.writeVarInt(linkTargets[i]);
+      writer.writeString(choiceTexts[i]);
+    }
+    writer.writeVarInt(page.getTextValues().size());
+    for (String textValue : page.getTextValues()) {
+      writer.writeString(textValue);
+    }
+    writer.writeString(page.getText());
+
+    ByteBuffer payload = ByteBuffer.wrap(writer.toByteArray());
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + payload.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+    record.putInt(payload.capacity()).putInt(crc(payload)).put(payload);
+    ((Buffer) record).flip();
+
+    synchronized (this) {
+      writeFully(channel, record, end);
+      recordPositions[page.getPdfPageNumber()] = end;
+      end += record.capacity();
+    }
+  }
+
+  /**
+   * @return Number of pages with a record
+   */
+  public synchronized int getCachedCount() {
+    int cached = 0;
+    for (int pdfPageNumber = 1; pdfPageNumber <= pageCount; pdfPageNumber++) {
+      if (recordPositions[pdfPageNumber] >= 0) {
+        cached++;
+      }
+    }
+    return cached;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private static int crc(ByteBuffer payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload.array(), payload.arrayOffset(), payload.capacity());
+    return (int) crc.getValue();
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of extraction cache at " + (position + buffer.position()));
+      }
+    }
+    ((Buffer) buffer).flip();
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, position + buffer.position());
+    }
+  }
+
+  private static int readVarInt(ByteBuffer buffer) {
+    int value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = buffer.get();
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+    return value;
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = readVarInt(buffer);
+    String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+    ((Buffer) buffer).position(buffer.position() + length);
+    return value;
+  }
+
+  /**
+   * Builds a record's payload
+   */
+  private static final class RecordWriter extends ByteArrayOutputStream {
+    void writeInt(int value) {
+      write(value);
+      write(value >>> 8);
+      write(value >>> 16);
+      write(value >>> 24);
+    }
+
+    void writeVarInt(int value) {
+      while ((value & ~0x7F) != 0) {
+        write((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      write(value);
+    }
+
+    void writeString(String value) {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeVarInt(bytes.length);
+      write(bytes, 0, bytes.length);
+    }
+  }
+
+  /**
+   * A page's record, from which PageExtractor rebuilds its PageExtraction with the current classifier rules
+   */
+  static final class CachedPage {
+    final int classifierVersion;
+    final String fingerprint;
+    final int wordCount;
+    final int imageCount;
+    final List<String> textValues;
+    final int[] linkTargets;
+    final String[] choiceTexts;
+    final String text;
+
+    private CachedPage(int classifierVersion, String fingerprint, int wordCount, int imageCount, List<String> textValues,
+                       int[] linkTargets, String[] choiceTexts, String text) {
+      this.classifierVersion = classifierVersion;
+      this.fingerprint = fingerprint;
+      this.wordCount = wordCount;
+      this.imageCount = imageCount;
+      this.textValues = textValues;
+      this.linkTargets = linkTargets;
+      this.choiceTexts = choiceTexts;
+      this.text = text;
+    }
+  }
+}
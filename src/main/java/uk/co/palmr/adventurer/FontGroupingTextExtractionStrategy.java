@@ -1,8 +1,10 @@
 package uk.co.palmr.adventurer;
 
 import com.itextpdf.text.pdf.parser.ImageRenderInfo;
+import com.itextpdf.text.pdf.parser.LineSegment;
 import com.itextpdf.text.pdf.parser.TextExtractionStrategy;
 import com.itextpdf.text.pdf.parser.TextRenderInfo;
+import com.itextpdf.text.pdf.parser.Vector;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -11,6 +13,12 @@ import java.util.List;
 
 /**
  * Grouping blocks of text by font name and size helps split pages up into chunks of related text
+ *
+ * In streaming mode the blocks aren't kept. Instead the page is classified and its words counted as the text arrives:
+ * fonts are compared by interned id, each block is matched against the end marker and the page label a chunk at a
+ * time, and the word count follows the spacing SimpleTextExtractionStrategy would lay the text out with. Once the page
+ * is known to be an end page only the word count carries on. The text can also be kept as it's counted, laid out the
+ * same way, without keeping the blocks.
  */
 public class FontGroupingTextExtractionStrategy implements TextExtractionStrategy {
   private final boolean mDebug;
@@ -18,10 +26,60 @@ public class FontGroupingTextExtractionStrategy implements TextExtractionStrateg
   private int mLastTextSpaceWidth = -1;
   private final List<StringBuilder> mTextValues = new ArrayList<>();
   private int mImageCount = 0;
+  private int mChunkCount = 0;
+
+  // Streaming mode
+  private final FontIds mFontIds;
+  private int mLastTextFontId = -1;
+  private int mBlockCount = 0;
+  private final TextBlockMatcher mEndMarkerMatcher;
+  private final TextBlockMatcher mLabelMatcher;
+  private boolean mHasEndMarker = false;
+
+  // Streaming word count
+  private boolean mHasText = false;
+  private boolean mLastCharIsSpace = false;
+  private boolean mStartsWithWhitespace = false;
+  private boolean mInWord = false;
+  private int mWordRuns = 0;
+  private Vector mLastStart;
+  private Vector mLastEnd;
+  // Page text laid out as SimpleTextExtractionStrategy would, null unless it's being kept
+  private final StringBuilder mText;
 
   public FontGroupingTextExtractionStrategy(boolean debug) {
     super();
     mDebug = debug;
+    mFontIds = null;
+    mEndMarkerMatcher = null;
+    mLabelMatcher = null;
+    mText = null;
+  }
+
+  /**
+   * Streaming mode, which classifies the page and counts its words without keeping any text
+   *
+   * @param fontIds Font ids shared between the pages of a book
+   * @param bookPageLabel Page label of the page being parsed
+   */
+  public FontGroupingTextExtractionStrategy(FontIds fontIds, String bookPageLabel) {
+    this(fontIds, bookPageLabel, false);
+  }
+
+  /**
+   * Streaming mode, which classifies the page and counts its words without keeping any blocks of text
+   *
+   * @param fontIds Font ids shared between the pages of a book
+   * @param bookPageLabel Page label of the page being parsed
+   * @param keepText Whether to keep the page's text as it's counted, see getText
+   */
+  public FontGroupingTextExtractionStrategy(FontIds fontIds, String bookPageLabel, boolean keepText) {
+    super();
+    mDebug = false;
+    mFontIds = fontIds;
+    mEndMarkerMatcher = new TextBlockMatcher(PageClassifier.END_MARKER);
+    mLabelMatcher = new TextBlockMatcher(bookPageLabel);
+    mText = keepText ? new StringBuilder() : null;
   }
 
   @Override
@@ -31,6 +89,7 @@ public class FontGroupingTextExtractionStrategy implements TextExtractionStrateg
     }
     mLastTextFontName = null;
     mLastTextSpaceWidth = -1;
+    mLastTextFontId = -1;
   }
 
   @Override
@@ -40,10 +99,17 @@ public class FontGroupingTextExtractionStrategy implements TextExtractionStrateg
     }
     mLastTextFontName = null;
     mLastTextSpaceWidth = -1;
+    mLastTextFontId = -1;
   }
 
   @Override
   public void renderText(TextRenderInfo pTextRenderInfo) {
+    mChunkCount++;
+    if (mFontIds != null) {
+      streamText(pTextRenderInfo);
+      return;
+    }
+
     if (mDebug) {
       System.out.println("\tRendering Text");
       System.out.println("\t\tText: " + pTextRenderInfo.getText());
@@ -62,6 +128,93 @@ public class FontGroupingTextExtractionStrategy implements TextExtractionStrateg
     }
   }
 
+  /**
+   * Streaming mode version of renderText
+   */
+  private void streamText(TextRenderInfo pTextRenderInfo) {
+    String lText = pTextRenderInfo.getText();
+    // Only worked out up front if the grouping needs it
+    float lSingleSpaceWidth = mHasEndMarker ? Float.NaN : pTextRenderInfo.getSingleSpaceWidth();
+    countWords(pTextRenderInfo, lText, lSingleSpaceWidth);
+
+    if (mHasEndMarker) {
+      // Already an end page, and with more than one block it can't be an image page
+      return;
+    }
+
+    int lFontId = mFontIds.idOf(pTextRenderInfo.getFont());
+    int lSpaceWidth = (int) lSingleSpaceWidth;
+    if (mLastTextFontId == -1 || mLastTextFontId != lFontId || mLastTextSpaceWidth == -1 || mLastTextSpaceWidth != lSpaceWidth) {
+      // The last block is finished, so it can be checked for the end marker
+      mBlockCount++;
+      if (mBlockCount > 1 && PageClassifier.isEndMarker(mEndMarkerMatcher)) {
+        mHasEndMarker = true;
+        return;
+      }
+      mEndMarkerMatcher.reset();
+      mLastTextFontId = lFontId;
+      mLastTextSpaceWidth = lSpaceWidth;
+    }
+
+    mEndMarkerMatcher.append(lText);
+    if (mBlockCount == 1) {
+      mLabelMatcher.append(lText);
+    }
+  }
+
+  /**
+   * Count words the way splitting SimpleTextExtractionStrategy's text on whitespace would, following the same rules
+   * for where it adds a line break or a space between chunks
+   *
+   * @param pSingleSpaceWidth Width of a space in the chunk's font, or NaN to work it out only if it's needed
+   */
+  private void countWords(TextRenderInfo pTextRenderInfo, String pText, float pSingleSpaceWidth) {
+    LineSegment lBaseline = pTextRenderInfo.getBaseline();
+    Vector lStart = lBaseline.getStartPoint();
+    Vector lEnd = lBaseline.getEndPoint();
+
+    if (mHasText) {
+      Vector lLastLine = mLastEnd.subtract(mLastStart);
+      float lDistanceFromLastLine = lLastLine.cross(mLastStart.subtract(lStart)).lengthSquared() / lLastLine.lengthSquared();
+      if (lDistanceFromLastLine > 1f) {
+        countWordChar('\n');
+      }
+      else if (!mLastCharIsSpace && pText.length() > 0 && pText.charAt(0) != ' ') {
+        float lSingleSpaceWidth = Float.isNaN(pSingleSpaceWidth) ? pTextRenderInfo.getSingleSpaceWidth() : pSingleSpaceWidth;
+        if (mLastEnd.subtract(lStart).length() > lSingleSpaceWidth / 2f) {
+          countWordChar(' ');
+        }
+      }
+    }
+
+    for (int i = 0; i < pText.length(); i++) {
+      countWordChar(pText.charAt(i));
+    }
+
+    mLastStart = lStart;
+    mLastEnd = lEnd;
+  }
+
+  private void countWordChar(char pChar) {
+    if (mText != null) {
+      mText.append(pChar);
+    }
+    // The characters \s matches
+    boolean lWhitespace = pChar == ' ' || pChar == '\t' || pChar == '\n' || pChar == '\u000B' || pChar == '\f' || pChar == '\r';
+    if (!mHasText) {
+      mHasText = true;
+      mStartsWithWhitespace = lWhitespace;
+    }
+    if (lWhitespace) {
+      mInWord = false;
+    }
+    else if (!mInWord) {
+      mInWord = true;
+      mWordRuns++;
+    }
+    mLastCharIsSpace = pChar == ' ';
+  }
+
   @Override
   public void renderImage(ImageRenderInfo pImageRenderInfo) {
     if (mDebug) {
@@ -82,6 +235,9 @@ public class FontGroupingTextExtractionStrategy implements TextExtractionStrateg
     return lPageContent.toString();
   }
 
+  /**
+   * @return Blocks of text grouped by font, always empty in streaming mode
+   */
   public List<StringBuilder> getTextValues() {
     return Collections.unmodifiableList(mTextValues);
   }
@@ -89,4 +245,52 @@ public class FontGroupingTextExtractionStrategy implements TextExtractionStrateg
   public int getImageCount() {
     return mImageCount;
   }
-}
\ No newline at end of file
+
+  /**
+   * @return Number of chunks of text rendered on the page
+   */
+  public int getChunkCount() {
+    return mChunkCount;
+  }
+
+  /**
+   * @return Number of blocks of text in one font the page was split into. Streaming mode stops grouping once it finds
+   * the end marker, so only counts the blocks up to there.
+   */
+  public int getBlockCount() {
+    return mFontIds != null ? mBlockCount : mTextValues.size();
+  }
+
+  /**
+   * @return Number of whitespace separated words on the page, the same as PageExtractionStrategy.getWordCount (streaming
+   * mode only)
+   */
+  public int getWordCount() {
+    if (!mHasText) {
+      // Splitting an empty string gives one empty word
+      return 1;
+    }
+    if (mWordRuns == 0) {
+      return 0;
+    }
+    // Leading whitespace gives an empty first word, trailing whitespace doesn't
+    return mWordRuns + (mStartsWithWhitespace ? 1 : 0);
+  }
+
+  /**
+   * @return Text of the page, the same as SimpleTextExtractionStrategy.getResultantText (streaming mode keeping text
+   * only, otherwise empty)
+   */
+  public String getText() {
+    return mText == null ? "" : mText.toString();
+  }
+
+  /**
+   * @return Bit mask of the PageTypes found from the page's content, see PageClassifier.classifyContent (streaming mode
+   * only)
+   */
+  public int getContentTypeMask() {
+    boolean lHasEndMarker = mHasEndMarker || (mBlockCount > 0 && PageClassifier.isEndMarker(mEndMarkerMatcher));
+    return PageClassifier.classifyContent(mImageCount, mBlockCount, mBlockCount == 1 && mLabelMatcher.isFullMatch(), lHasEndMarker);
+  }
+}
@@ -0,0 +1,32 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.text.pdf.DocumentFont;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interns fonts to small int ids by PostScript name, so grouping text by font is an int comparison. One instance is
+ * shared by every page a PageExtractor parses; it isn't thread safe, each extraction worker has its own.
+ */
+public final class FontIds {
+  private final Map<String, Integer> ids = new HashMap<>();
+
+  // iText hands out the same DocumentFont for every chunk in a font while parsing a page, so remember the last one
+  private DocumentFont lastFont = null;
+  private int lastId = -1;
+
+  public int idOf(DocumentFont font) {
+    if (font != lastFont) {
+      String fontName = font.getPostscriptFontName();
+      Integer id = ids.get(fontName);
+      if (id == null) {
+        id = ids.size();
+        ids.put(fontName, id);
+      }
+      lastFont = font;
+      lastId = id;
+    }
+    return lastId;
+  }
+}
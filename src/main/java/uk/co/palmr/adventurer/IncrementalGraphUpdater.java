@@ -0,0 +1,281 @@
+package uk.co.palmr.adventurer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Brings an already populated graph up to date with a book without rebuilding it. Pages whose fingerprint matches the
+ * one stored on their node are reused from the graph rather than parsed again, then only the properties, labels and
+ * relationships that differ from the freshly derived BookGraph are written.
+ */
+public class IncrementalGraphUpdater {
+  private static final Logger LOGGER = LogManager.getLogger(IncrementalGraphUpdater.class);
+
+  private static final int CONTENT_TYPE_MASK = PageClassifier.bit(PageTypes.ImagePage) | PageClassifier.bit(PageTypes.EndPage);
+
+  private final GraphDatabaseService graphDb;
+  private final Map<Integer, StoredPage> storedPages = new HashMap<>();
+
+  /**
+   * @param graphDb Database holding the graph from a previous run
+   */
+  public IncrementalGraphUpdater(GraphDatabaseService graphDb) {
+    this.graphDb = graphDb;
+    loadStoredPages();
+  }
+
+  /**
+   * Read what the graph already knows about each page
+   */
+  private void loadStoredPages() {
+    try (Transaction tx = graphDb.beginTx();
+         ResourceIterator<Node> pageNodes = graphDb.findNodes(PageTypes.Page)) {
+      while (pageNodes.hasNext()) {
+        Node pageNode = pageNodes.next();
+
+        List<Relationship> choices = new ArrayList<>();
+        pageNode.getRelationships(Direction.OUTGOING, RelationshipTypes.Choice).forEach(choices::add);
+        choices.sort(App.RELATIONSHIP_ORDER);
+        int[] choiceTargets = new int[choices.size()];
+        String[] choiceTexts = new String[choices.size()];
+        for (int i = 0; i < choiceTargets.length; i++) {
+          choiceTargets[i] = (Integer) choices.get(i).getEndNode().getProperty(App.PDF_PAGE_NUMBER);
+          choiceTexts[i] = (String) choices.get(i).getProperty(App.CHOICE_TEXT, "");
+        }
+
+        int pageTypeMask = 0;
+        for (Label label : pageNode.getLabels()) {
+          for (PageTypes pageType : PageTypes.values()) {
+            if (pageType.name().equals(label.name())) {
+              pageTypeMask |= PageClassifier.bit(pageType);
+            }
+          }
+        }
+
+        int pdfPageNumber = (Integer) pageNode.getProperty(App.PDF_PAGE_NUMBER);
+        storedPages.put(pdfPageNumber, new StoredPage(
+          pageNode.getId(),
+          (String) pageNode.getProperty(App.FINGERPRINT, null),
+          (Integer) pageNode.getProperty(App.WORD_COUNT, 0),
+          pageTypeMask,
+          choiceTargets,
+          choiceTexts));
+      }
+      tx.success();
+    }
+    LOGGER.info("Loaded " + storedPages.size() + " pages from the existing graph");
+  }
+
+  /**
+   * Reuse a page from the graph if its fingerprint hasn't changed since it was stored. The graph doesn't hold the
+   * page's text or image count, so those are left empty; the page types they were used to find come from the node's
+   * labels instead.
+   *
+   * @param pdfPageNumber PDF page number
+   * @param fingerprint Current fingerprint of the page
+   * @return Extraction result rebuilt from the graph, or null if the page has to be extracted again
+   */
+  public PageExtraction reuse(int pdfPageNumber, String fingerprint) {
+    StoredPage storedPage = storedPages.get(pdfPageNumber);
+    if (storedPage == null || !fingerprint.equals(storedPage.fingerprint)) {
+      return null;
+    }
+    return new PageExtraction(pdfPageNumber, fingerprint, storedPage.wordCount, Collections.<String>emptyList(), 0,
+      storedPage.pageTypeMask & CONTENT_TYPE_MASK, storedPage.choiceTargets, storedPage.choiceTexts);
+  }
+
+  /**
+   * Write the differences between the graph and the freshly derived BookGraph
+   *
+   * @param bookGraph Graph of the book as it is now
+   */
+  public void apply(BookGraph bookGraph) {
+    LOGGER.info("Applying changes to the graph");
+    int nodesChanged = 0;
+    int relationshipsChanged = 0;
+
+    try (Transaction tx = graphDb.beginTx()) {
+      // Remove pages that are no longer in the book
+      for (Map.Entry<Integer, StoredPage> storedPage : storedPages.entrySet()) {
+        if (storedPage.getKey() > bookGraph.getPageCount()) {
+          Node pageNode = graphDb.getNodeById(storedPage.getValue().nodeId);
+          for (Relationship r : pageNode.getRelationships()) {
+            r.delete();
+            relationshipsChanged++;
+          }
+          pageNode.delete();
+          nodesChanged++;
+        }
+      }
+
+      // Clear labels that are moving first, so they can't collide with the uniqueness constraint part way through
+      Node[] pageNodes = new Node[bookGraph.getPageCount() + 1];
+      for (int pdfPageNumber = 1; pdfPageNumber <= bookGraph.getPageCount(); pdfPageNumber++) {
+        StoredPage storedPage = storedPages.get(pdfPageNumber);
+        if (storedPage != null) {
+          pageNodes[pdfPageNumber] = graphDb.getNodeById(storedPage.nodeId);
+          if (!bookGraph.getBookPageLabel(pdfPageNumber).equals(pageNodes[pdfPageNumber].getProperty(App.BOOK_PAGE_LABEL, null))) {
+            pageNodes[pdfPageNumber].removeProperty(App.BOOK_PAGE_LABEL);
+          }
+        }
+        else {
+          pageNodes[pdfPageNumber] = graphDb.createNode(PageTypes.Page);
+          pageNodes[pdfPageNumber].setProperty(App.PDF_PAGE_NUMBER, pdfPageNumber);
+        }
+      }
+
+      for (int pdfPageNumber = 1; pdfPageNumber <= bookGraph.getPageCount(); pdfPageNumber++) {
+        if (updatePage(pageNodes[pdfPageNumber], pdfPageNumber, bookGraph)) {
+          nodesChanged++;
+        }
+      }
+
+      // Relationships are grouped by start page in the BookGraph
+      int r = 0;
+      for (int pdfPageNumber = 1; pdfPageNumber <= bookGraph.getPageCount(); pdfPageNumber++) {
+        int firstRelationship = r;
+        while (r < bookGraph.getRelationshipCount() && bookGraph.getRelationshipStart(r) == pdfPageNumber) {
+          r++;
+        }
+        relationshipsChanged += updateRelationships(pageNodes, pdfPageNumber, bookGraph, firstRelationship, r);
+      }
+
+      tx.success();
+    }
+
+    IngestMetrics.count(IngestMetrics.Counter.NODES_WRITTEN, nodesChanged);
+    IngestMetrics.count(IngestMetrics.Counter.RELATIONSHIPS_WRITTEN, relationshipsChanged);
+    LOGGER.info("Finished applying changes, " + nodesChanged + " pages and " + relationshipsChanged + " relationships changed");
+  }
+
+  /**
+   * Bring a page node's properties and labels up to date
+   *
+   * @return Whether anything changed
+   */
+  private static boolean updatePage(Node pageNode, int pdfPageNumber, BookGraph bookGraph) {
+    boolean changed = setIfDifferent(pageNode, App.BOOK_PAGE_LABEL, bookGraph.getBookPageLabel(pdfPageNumber));
+    changed |= setIfDifferent(pageNode, App.WORD_COUNT, bookGraph.getWordCount(pdfPageNumber));
+    changed |= setIfDifferent(pageNode, App.FINGERPRINT, bookGraph.getFingerprint(pdfPageNumber));
+
+    for (PageTypes pageType : PageTypes.values()) {
+      boolean wanted = bookGraph.hasPageType(pdfPageNumber, pageType);
+      if (wanted != pageNode.hasLabel(pageType)) {
+        if (wanted) {
+          pageNode.addLabel(pageType);
+        }
+        else {
+          pageNode.removeLabel(pageType);
+        }
+        changed = true;
+      }
+    }
+
+    return changed;
+  }
+
+  private static boolean setIfDifferent(Node pageNode, String property, Object value) {
+    if (value.equals(pageNode.getProperty(property, null))) {
+      return false;
+    }
+    pageNode.setProperty(property, value);
+    return true;
+  }
+
+  /**
+   * Bring the relationships out of a page up to date with the BookGraph relationships [from, to)
+   *
+   * @return Number of relationships created, deleted or updated
+   */
+  private static int updateRelationships(Node[] pageNodes, int pdfPageNumber, BookGraph bookGraph, int from, int to) {
+    int changed = 0;
+    boolean[] existing = new boolean[to - from];
+
+    for (Relationship relationship : pageNodes[pdfPageNumber].getRelationships(Direction.OUTGOING, RelationshipTypes.Continues, RelationshipTypes.Choice)) {
+      int end = (Integer) relationship.getEndNode().getProperty(App.PDF_PAGE_NUMBER);
+      int match = -1;
+      for (int r = from; r < to && match < 0; r++) {
+        if (!existing[r - from] && bookGraph.getRelationshipEnd(r) == end && relationship.isType(bookGraph.getRelationshipType(r))) {
+          match = r;
+        }
+      }
+
+      if (match < 0) {
+        relationship.delete();
+        changed++;
+      }
+      else {
+        existing[match - from] = true;
+        boolean relationshipChanged = false;
+        Integer ordinal = match - from;
+        if (!ordinal.equals(relationship.getProperty(App.ORDINAL, null))) {
+          relationship.setProperty(App.ORDINAL, ordinal);
+          relationshipChanged = true;
+        }
+        Integer wordCount = bookGraph.getWordCount(end);
+        if (!wordCount.equals(relationship.getProperty(App.WORD_COUNT, null))) {
+          relationship.setProperty(App.WORD_COUNT, wordCount);
+          relationshipChanged = true;
+        }
+        String choiceText = bookGraph.getChoiceText(match);
+        if (choiceText != null && !choiceText.equals(relationship.getProperty(App.CHOICE_TEXT, null))) {
+          relationship.setProperty(App.CHOICE_TEXT, choiceText);
+          relationshipChanged = true;
+        }
+        if (relationshipChanged) {
+          changed++;
+        }
+      }
+    }
+
+    for (int r = from; r < to; r++) {
+      if (!existing[r - from]) {
+        int end = bookGraph.getRelationshipEnd(r);
+        Relationship pageLink = pageNodes[pdfPageNumber].createRelationshipTo(pageNodes[end], bookGraph.getRelationshipType(r));
+        pageLink.setProperty(App.ORDINAL, r - from);
+        pageLink.setProperty(App.WORD_COUNT, bookGraph.getWordCount(end));
+        if (bookGraph.getChoiceText(r) != null) {
+          pageLink.setProperty(App.CHOICE_TEXT, bookGraph.getChoiceText(r));
+        }
+        changed++;
+      }
+    }
+
+    return changed;
+  }
+
+  /**
+   * What the graph held for a page before this run
+   */
+  private static final class StoredPage {
+    private final long nodeId;
+    private final String fingerprint;
+    private final int wordCount;
+    private final int pageTypeMask;
+    private final int[] choiceTargets;
+    private final String[] choiceTexts;
+
+    StoredPage(long nodeId, String fingerprint, int wordCount, int pageTypeMask, int[] choiceTargets, String[] choiceTexts) {
+      this.nodeId = nodeId;
+      this.fingerprint = fingerprint;
+      this.wordCount = wordCount;
+      this.pageTypeMask = pageTypeMask;
+      this.choiceTargets = Arrays.copyOf(choiceTargets, choiceTargets.length);
+      this.choiceTexts = Arrays.copyOf(choiceTexts, choiceTexts.length);
+    }
+  }
+}
@@ -0,0 +1,278 @@
+package uk.co.palmr.adventurer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings and counts for an ingest run, shared by every class taking part in it like a logger is.
+ *
+ * Stages are timed with try-with-resources around the work, counters are added to as things are found, and the time
+ * taken to extract each page goes into a histogram. All of it is thread-safe and cheap enough to leave on: a stage or
+ * page costs two System.nanoTime calls and a few LongAdder updates. While App runs the metrics are exposed over JMX,
+ * and at the end of the run they're written out as a JSON report.
+ */
+public final class IngestMetrics implements IngestMetricsMXBean {
+  private static final Logger LOGGER = LogManager.getLogger(IngestMetrics.class);
+
+  private static final IngestMetrics METRICS = new IngestMetrics();
+
+  static final String OBJECT_NAME = "uk.co.palmr.adventurer:type=IngestMetrics";
+
+  /**
+   * Stages of an ingest, in roughly the order they run
+   */
+  public enum Stage {
+    READ_PAGE_LABELS,
+    INDEX_LINK_DESTINATIONS,
+    OPEN_EXTRACTION_CACHE,
+    CLEAR_DATABASE,
+    CREATE_SCHEMA,
+    LOAD_EXISTING_GRAPH,
+    EXTRACT_PAGES,
+    // Per page, summed over every extraction thread
+    RESOLVE_ANNOTATIONS,
+    PARSE_CONTENT,
+    READ_EXTRACTION_CACHE,
+    INDEX_TEXT,
+    PROCESS_PAGES,
+    ANALYSE_ROUTES,
+    RANK_PAGES,
+    CREATE_PAGE_NODES,
+    CREATE_RELATIONSHIPS,
+    COMMIT,
+    APPLY_CHANGES,
+    BULK_LOAD,
+    WRITE_ROUTE_ANALYSIS,
+    EXPORT_PAGE_GRAPH,
+    WRITE_TEXT_INDEX
+  }
+
+  /**
+   * Things counted during an ingest
+   */
+  public enum Counter {
+    PAGES_EXTRACTED,
+    PAGES_REUSED,
+    PAGES_FROM_CACHE,
+    LINKS,
+    DUPLICATE_LINKS_SKIPPED,
+    UNKNOWN_DESTINATIONS,
+    TEXT_CHUNKS,
+    FONT_BLOCKS,
+    NODES_WRITTEN,
+    RELATIONSHIPS_WRITTEN,
+    BOOKS_INGESTED,
+    BOOKS_FAILED
+  }
+
+  private final Instant started = Instant.now();
+  private final long startedNanos = System.nanoTime();
+  private final LongAdder[] stageNanos = adders(Stage.values().length);
+  private final LongAdder[] stageCounts = adders(Stage.values().length);
+  private final LongAdder[] counters = adders(Counter.values().length);
+  private final LatencyHistogram pageParseNanos = new LatencyHistogram();
+
+  private IngestMetrics() {
+  }
+
+  private static LongAdder[] adders(int count) {
+    LongAdder[] adders = new LongAdder[count];
+    for (int i = 0; i < count; i++) {
+      adders[i] = new LongAdder();
+    }
+    return adders;
+  }
+
+  /**
+   * @return Metrics of this run
+   */
+  public static IngestMetrics get() {
+    return METRICS;
+  }
+
+  /**
+   * Start timing a stage, stopped when the timer is closed
+   *
+   * @param stage Stage to time
+   * @return Running timer
+   */
+  public static Timer time(Stage stage) {
+    return new Timer(stage);
+  }
+
+  /**
+   * @param counter Counter to add to
+   * @param amount Amount to add
+   */
+  public static void count(Counter counter, long amount) {
+    METRICS.counters[counter.ordinal()].add(amount);
+  }
+
+  /**
+   * @param nanos Time taken to extract a page
+   */
+  public static void recordPageParse(long nanos) {
+    METRICS.pageParseNanos.record(nanos);
+  }
+
+  /**
+   * A stage being timed, use with try-with-resources
+   */
+  public static final class Timer implements AutoCloseable {
+    private final Stage stage;
+    private final long start = System.nanoTime();
+
+    private Timer(Stage stage) {
+      this.stage = stage;
+    }
+
+    /**
+     * Stop the timer and add its time to the stage
+     */
+    @Override
+    public void close() {
+      METRICS.stageNanos[stage.ordinal()].add(System.nanoTime() - start);
+      METRICS.stageCounts[stage.ordinal()].increment();
+    }
+  }
+
+  /**
+   * @param counter Counter to read
+   * @return Its value so far
+   */
+  public long getCount(Counter counter) {
+    return counters[counter.ordinal()].sum();
+  }
+
+  /**
+   * @param stage Stage to read
+   * @return Time spent in it so far, in nanoseconds
+   */
+  public long getStageNanos(Stage stage) {
+    return stageNanos[stage.ordinal()].sum();
+  }
+
+  /**
+   * Expose the metrics over JMX, does nothing if they already are
+   */
+  public void registerMBean() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+    catch (InstanceAlreadyExistsException e) {
+      // Already registered, by an earlier run in the same JVM
+    }
+    catch (JMException e) {
+      LOGGER.warn("Couldn't register ingest metrics with JMX", e);
+    }
+  }
+
+  @Override
+  public Map<String, Double> getStageMillis() {
+    Map<String, Double> stageMillis = new LinkedHashMap<>();
+    for (Stage stage : Stage.values()) {
+      stageMillis.put(name(stage), stageNanos[stage.ordinal()].sum() / 1e6);
+    }
+    return stageMillis;
+  }
+
+  @Override
+  public Map<String, Long> getStageCounts() {
+    Map<String, Long> counts = new LinkedHashMap<>();
+    for (Stage stage : Stage.values()) {
+      counts.put(name(stage), stageCounts[stage.ordinal()].sum());
+    }
+    return counts;
+  }
+
+  @Override
+  public Map<String, Long> getCounters() {
+    Map<String, Long> values = new LinkedHashMap<>();
+    for (Counter counter : Counter.values()) {
+      values.put(name(counter), counters[counter.ordinal()].sum());
+    }
+    return values;
+  }
+
+  @Override
+  public Map<String, Double> getPageParseMicros() {
+    Map<String, Double> summary = new LinkedHashMap<>();
+    summary.put("count", (double) pageParseNanos.getCount());
+    summary.put("mean", pageParseNanos.getMean() / 1e3);
+    summary.put("p50", pageParseNanos.getValueAtQuantile(0.5) / 1e3);
+    summary.put("p90", pageParseNanos.getValueAtQuantile(0.9) / 1e3);
+    summary.put("p99", pageParseNanos.getValueAtQuantile(0.99) / 1e3);
+    summary.put("max", pageParseNanos.getMax() / 1e3);
+    return summary;
+  }
+
+  private static String name(Enum<?> value) {
+    return value.name().toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Write the metrics so far as a JSON report, replacing any report from an earlier run
+   *
+   * @param file File to write the report to
+   * @throws IOException
+   */
+  public void writeReport(Path file) throws IOException {
+    StringBuilder json = new StringBuilder();
+    json.append("{\n");
+    json.append("  \"started\": \"").append(started).append("\",\n");
+    json.append("  \"wall_millis\": ").append(number((System.nanoTime() - startedNanos) / 1e6)).append(",\n");
+
+    json.append("  \"stages\": {");
+    Map<String, Long> counts = getStageCounts();
+    String separator = "\n";
+    for (Map.Entry<String, Double> stage : getStageMillis().entrySet()) {
+      json.append(separator).append("    \"").append(stage.getKey()).append("\": {\"count\": ").append(counts.get(stage.getKey()))
+        .append(", \"millis\": ").append(number(stage.getValue())).append('}');
+      separator = ",\n";
+    }
+    json.append("\n  },\n");
+
+    json.append("  \"counters\": {");
+    separator = "\n";
+    for (Map.Entry<String, Long> counter : getCounters().entrySet()) {
+      json.append(separator).append("    \"").append(counter.getKey()).append("\": ").append(counter.getValue());
+      separator = ",\n";
+    }
+    json.append("\n  },\n");
+
+    json.append("  \"page_parse_micros\": {");
+    separator = "";
+    for (Map.Entry<String, Double> value : getPageParseMicros().entrySet()) {
+      json.append(separator).append('"').append(value.getKey()).append("\": ").append(number(value.getValue()));
+      separator = ", ";
+    }
+    json.append("}\n");
+    json.append("}\n");
+
+    Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+    try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+      writer.write(json.toString());
+    }
+    Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static String number(double value) {
+    return String.format(Locale.ROOT, "%.3f", value);
+  }
+}
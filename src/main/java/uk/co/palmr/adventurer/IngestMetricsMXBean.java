@@ -0,0 +1,30 @@
+package uk.co.palmr.adventurer;
+
+import java.util.Map;
+
+/**
+ * Live view of IngestMetrics over JMX, registered as uk.co.palmr.adventurer:type=IngestMetrics while App runs
+ */
+public interface IngestMetricsMXBean {
+
+  /**
+   * @return Wall time of each stage in milliseconds, summed over every time it ran. Stages running on several threads
+   * at once (per page or per book) can add up to more than the run took.
+   */
+  Map<String, Double> getStageMillis();
+
+  /**
+   * @return Number of times each stage ran
+   */
+  Map<String, Long> getStageCounts();
+
+  /**
+   * @return Value of every counter
+   */
+  Map<String, Long> getCounters();
+
+  /**
+   * @return Count, mean, p50, p90, p99 and max of the time taken to extract each page, in microseconds
+   */
+  Map<String, Double> getPageParseMicros();
+}
@@ -0,0 +1,161 @@
+package uk.co.palmr.adventurer;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Command line options controlling how Adventurer ingests a book
+ */
+public final class IngestOptions {
+  private int threads = 1;
+  private boolean bulk = false;
+  private boolean incremental = false;
+  private boolean lowMemory = false;
+  private Path corpus = null;
+  private int batchSize = 0;
+  private boolean resume = false;
+  private boolean extractionCache = false;
+  private boolean textIndex = false;
+
+  private IngestOptions() {
+  }
+
+  /**
+   * Parse the command line arguments given to App
+   *
+   * @param args Arguments of the form --name or --name=value
+   * @return Parsed options
+   */
+  public static IngestOptions parse(String[] args) {
+    IngestOptions options = new IngestOptions();
+    for (String arg : args) {
+      if (arg.startsWith("--threads=")) {
+        options.threads = parsePositiveInt(arg, "--threads=".length());
+      }
+      else if (arg.equals("--bulk")) {
+        options.bulk = true;
+      }
+      else if (arg.equals("--incremental")) {
+        options.incremental = true;
+      }
+      else if (arg.equals("--low-memory")) {
+        options.lowMemory = true;
+      }
+      else if (arg.startsWith("--corpus=")) {
+        options.corpus = Paths.get(arg.substring("--corpus=".length()));
+      }
+      else if (arg.startsWith("--batch-size=")) {
+        options.batchSize = parsePositiveInt(arg, "--batch-size=".length());
+      }
+      else if (arg.equals("--resume")) {
+        options.resume = true;
+      }
+      else if (arg.equals("--extraction-cache")) {
+        options.extractionCache = true;
+      }
+      else if (arg.equals("--text-index")) {
+        options.textIndex = true;
+      }
+      else {
+        throw new IllegalArgumentException("Unknown argument: " + arg);
+      }
+    }
+    if (options.bulk && options.incremental) {
+      throw new IllegalArgumentException("--bulk always builds a new store so can't be combined with --incremental");
+    }
+    if (options.corpus != null && (options.bulk || options.incremental)) {
+      throw new IllegalArgumentException("--corpus writes through a single transactional writer so can't be combined with --bulk or --incremental");
+    }
+    if (options.batchSize > 0 && (options.bulk || options.incremental || options.corpus != null)) {
+      throw new IllegalArgumentException("--batch-size only applies to a full transactional ingest of a single book so can't be combined with --bulk, --incremental or --corpus");
+    }
+    if (options.resume && options.batchSize == 0) {
+      throw new IllegalArgumentException("--resume picks up from the last committed batch so needs --batch-size");
+    }
+    if (options.extractionCache && options.corpus != null) {
+      throw new IllegalArgumentException("--extraction-cache keeps the pages of a single book so can't be combined with --corpus");
+    }
+    if (options.textIndex && (options.incremental || options.resume || options.corpus != null)) {
+      throw new IllegalArgumentException("--text-index indexes every page of a single book as it's extracted so can't be combined with --incremental, --resume or --corpus");
+    }
+    return options;
+  }
+
+  private static int parsePositiveInt(String arg, int valueStart) {
+    try {
+      int value = Integer.parseInt(arg.substring(valueStart));
+      if (value > 0) {
+        return value;
+      }
+    }
+    catch (NumberFormatException e) {
+      // Fall through to the exception below
+    }
+    throw new IllegalArgumentException("Expected a positive number: " + arg);
+  }
+
+  /**
+   * @return Number of worker threads to extract pages with, 1 meaning sequential extraction. With a corpus it's the
+   * number of books extracted at once instead.
+   */
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * @return Whether to bulk load a brand new store rather than clearing and refilling the existing database
+   */
+  public boolean isBulk() {
+    return bulk;
+  }
+
+  /**
+   * @return Whether to update the existing graph in place, only re-extracting pages whose fingerprint changed
+   */
+  public boolean isIncremental() {
+    return incremental;
+  }
+
+  /**
+   * @return Whether to memory map the PDF and read it a page at a time, rather than holding the whole document in memory
+   */
+  public boolean isLowMemory() {
+    return lowMemory;
+  }
+
+  /**
+   * @return Directory of PDFs to ingest as a corpus, or null to ingest the single book in resources
+   */
+  public Path getCorpus() {
+    return corpus;
+  }
+
+  /**
+   * @return Number of pages to commit in each transaction, 0 meaning the whole book in one transaction
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * @return Whether to resume from the checkpoint an interrupted batched run left behind, rather than starting again
+   */
+  public boolean isResume() {
+    return resume;
+  }
+
+  /**
+   * @return Whether to read pages from the extraction cache, and add the pages that weren't there, rather than parsing
+   * every page
+   */
+  public boolean isExtractionCache() {
+    return extractionCache;
+  }
+
+  /**
+   * @return Whether to build a full text index of the pages' text alongside the graph
+   */
+  public boolean isTextIndex() {
+    return textIndex;
+  }
+}
@@ -0,0 +1,93 @@
+package uk.co.palmr.adventurer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe histogram of latencies in nanoseconds, for percentiles over every page of a run without keeping every
+ * sample.
+ *
+ * Buckets are log-linear: each power of two is split into 16 equal buckets, so a recorded value is only ever off by
+ * under 1/16th (about 6%) of itself, and the whole range of a long fits in 1024 counters.
+ */
+final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  /**
+   * @param nanos Latency to record, negative values are counted as 0
+   */
+  void record(long nanos) {
+    long value = Math.max(nanos, 0);
+    buckets.incrementAndGet(bucketOf(value));
+    count.increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  private static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    // Power of two the value is in, then which of its 16 slices, from the 4 bits below the top bit
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * @return Largest value that lands in a bucket
+   */
+  private static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long subBucket = bucket % SUB_BUCKETS;
+    long lowerBound = (1L << exponent) + (subBucket << (exponent - SUB_BUCKET_BITS));
+    return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+  }
+
+  long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * @return Mean of the recorded values, 0 if there are none
+   */
+  double getMean() {
+    long n = count.sum();
+    return n == 0 ? 0 : (double) sum.sum() / n;
+  }
+
+  long getMax() {
+    return max.get();
+  }
+
+  /**
+   * @param quantile Quantile between 0 and 1, e.g. 0.99
+   * @return Upper bound of the bucket holding the value at that quantile (never more than the max recorded), 0 if
+   * nothing has been recorded
+   */
+  long getValueAtQuantile(double quantile) {
+    long n = count.sum();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(quantile * n));
+    long seen = 0;
+    for (int bucket = 0; bucket < buckets.length(); bucket++) {
+      seen += buckets.get(bucket);
+      if (seen >= rank) {
+        return Math.min(upperBoundOf(bucket), getMax());
+      }
+    }
+    return getMax();
+  }
+}
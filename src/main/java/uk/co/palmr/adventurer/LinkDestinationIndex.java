@@ -0,0 +1,112 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.text.pdf.PRIndirectReference;
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfIndirectReference;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfReader;
+
+import java.util.Map;
+
+/**
+ * Every named destination in a PDF resolved up front to the PDF page number it points at, so resolving a link is a
+ * single lookup of its destination name.
+ *
+ * Pages are matched by the object number of their page dictionary rather than by hashing PdfObjects, and names are
+ * held in an open addressing table of primitive page numbers. Object numbers are the same for every PdfReader over the
+ * same bytes and the index is never modified, so one index is shared by all the extraction workers.
+ */
+public final class LinkDestinationIndex {
+  /**
+   * Returned for a destination name the PDF doesn't define
+   */
+  public static final int UNKNOWN = -1;
+  /**
+   * Returned for a destination that doesn't point at a page in the PDF's page tree
+   */
+  public static final int OUTSIDE_PAGE_TREE = 0;
+
+  private final String[] names;
+  private final int[] pdfPageNumbers;
+  private final int mask;
+
+  private LinkDestinationIndex(int capacity) {
+    names = new String[capacity];
+    pdfPageNumbers = new int[capacity];
+    mask = capacity - 1;
+  }
+
+  /**
+   * Resolve every named destination in a PDF
+   *
+   * @param reader PdfReader to get PDF information from
+   * @return Index of destination names to PDF page numbers
+   */
+  public static LinkDestinationIndex build(PdfReader reader) {
+    try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.INDEX_LINK_DESTINATIONS)) {
+      return resolveDestinations(reader);
+    }
+  }
+
+  private static LinkDestinationIndex resolveDestinations(PdfReader reader) {
+    // PDF page number of each page dictionary's object number
+    int[] pageOfObject = new int[reader.getXrefSize()];
+    for (int pdfPageNumber = 1; pdfPageNumber <= reader.getNumberOfPages(); pdfPageNumber++) {
+      PRIndirectReference pageReference = reader.getPageOrigRef(pdfPageNumber);
+      if (pageReference != null && pageReference.getNumber() < pageOfObject.length) {
+        pageOfObject[pageReference.getNumber()] = pdfPageNumber;
+      }
+      // A partially read PdfReader has to load the page to find its reference, only the object number is kept
+      reader.releasePage(pdfPageNumber);
+    }
+
+    Map<String, PdfObject> destinations = reader.getNamedDestinationFromStrings();
+    // At most half full so probe sequences stay short
+    int capacity = Integer.highestOneBit(Math.max(2, destinations.size()) * 2 - 1) << 1;
+    LinkDestinationIndex index = new LinkDestinationIndex(capacity);
+
+    for (Map.Entry<String, PdfObject> destination : destinations.entrySet()) {
+      int pdfPageNumber = OUTSIDE_PAGE_TREE;
+      if (destination.getValue() instanceof PdfArray) {
+        // TODO, the page could actually be an integer for the case of Remote Destinations
+        PdfIndirectReference pageReference = ((PdfArray) destination.getValue()).getAsIndirectObject(0);
+        if (pageReference != null && pageReference.getNumber() < pageOfObject.length) {
+          pdfPageNumber = pageOfObject[pageReference.getNumber()];
+        }
+      }
+      index.put(destination.getKey(), pdfPageNumber);
+    }
+
+    return index;
+  }
+
+  private void put(String name, int pdfPageNumber) {
+    int slot = slot(name);
+    while (names[slot] != null && !names[slot].equals(name)) {
+      slot = (slot + 1) & mask;
+    }
+    names[slot] = name;
+    pdfPageNumbers[slot] = pdfPageNumber;
+  }
+
+  /**
+   * @param name Destination name from a link's GoTo action
+   * @return PDF page number the destination points at, or UNKNOWN or OUTSIDE_PAGE_TREE
+   */
+  public int getPdfPageNumber(String name) {
+    int slot = slot(name);
+    while (names[slot] != null) {
+      if (names[slot].equals(name)) {
+        return pdfPageNumbers[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    return UNKNOWN;
+  }
+
+  private int slot(String name) {
+    int hash = name.hashCode();
+    // Mix in the high bits, the table only uses the low ones
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+}
@@ -0,0 +1,60 @@
+package uk.co.palmr.adventurer;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reading the little-endian files the MappedPageGraph and TextIndex are mapped from, and ordering the strings in them
+ */
+final class MappedFiles {
+  private MappedFiles() {
+  }
+
+  /**
+   * Map a whole file read only
+   *
+   * @param file File to map
+   * @param description What the file is, for the error when it's too large
+   * @return Mapping of the file
+   * @throws IOException If the file can't be read or is too large to map
+   */
+  static MappedByteBuffer map(Path file, String description) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(description + " is too large to map: " + channel.size() + " bytes");
+      }
+      // The mapping stays valid after the channel is closed
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+  }
+
+  /**
+   * @return Little-endian view of length bytes of the buffer from offset
+   */
+  static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+    ByteBuffer view = buffer.duplicate();
+    // Through Buffer, so the class still runs on Java 8 when it's compiled by a newer JDK
+    ((Buffer) view).position(offset).limit(offset + length);
+    return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Compare UTF-8 bytes as unsigned values, which orders strings by code point
+   */
+  static int compareBytes(byte[] a, byte[] b) {
+    int length = Math.min(a.length, b.length);
+    for (int i = 0; i < length; i++) {
+      int difference = (a[i] & 0xFF) - (b[i] & 0xFF);
+      if (difference != 0) {
+        return difference;
+      }
+    }
+    return a.length - b.length;
+  }
+}
@@ -0,0 +1,359 @@
+package uk.co.palmr.adventurer;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The page graph exported to a compact binary file, queried straight from a read-only memory mapping of the file. Opening
+ * one is a header check and a few buffer views, nothing is copied onto the heap, so tools start in milliseconds without
+ * Neo4j. The mapping is read-only and the file is only ever replaced whole, so any number of processes can share it.
+ *
+ * File layout, every number little-endian:
+ *
+ * - Header of 16 ints: MAGIC, VERSION, page count, page type count, Continues count, Choice count, incoming count,
+ *   string count, string bytes, then reserved zeros
+ * - Page type bitsets, a long[] of (page count + 63) / 64 words for each PageTypes ordinal
+ * - PDF page numbers, word counts and book page label string ids, an int[page count] each
+ * - Continues, Choice and incoming relationships, each as compressed sparse row arrays: int[page count + 1] offsets
+ *   then the int[] targets (or sources for incoming)
+ * - String table of the distinct book page labels sorted by their UTF-8 bytes: the first page id with each label,
+ *   int[string count + 1] byte offsets, then the UTF-8 bytes
+ */
+public final class MappedPageGraph implements PageGraph {
+  static final int MAGIC = 0x47564441; // "ADVG"
+  static final int VERSION = 1;
+  private static final int HEADER_INTS = 16;
+
+  private final int pageCount;
+  private final LongBuffer pageTypeBits;
+  private final int pageTypeWords;
+  private final IntBuffer pdfPageNumbers;
+  private final IntBuffer wordCounts;
+  private final IntBuffer labelIds;
+  private final IntBuffer continuesOffsets;
+  private final IntBuffer continuesTargets;
+  private final IntBuffer choiceOffsets;
+  private final IntBuffer choiceTargets;
+  private final IntBuffer incomingOffsets;
+  private final IntBuffer incomingSources;
+  private final int stringCount;
+  private final IntBuffer stringFirstPages;
+  private final IntBuffer stringOffsets;
+  private final ByteBuffer stringBytes;
+
+  private MappedPageGraph(ByteBuffer buffer) throws IOException {
+    if (buffer.capacity() < 4 * HEADER_INTS) {
+      throw new IOException("Not a page graph file");
+    }
+    IntBuffer header = MappedFiles.slice(buffer, 0, 4 * HEADER_INTS).asIntBuffer();
+    if (header.get(0) != MAGIC) {
+      throw new IOException("Not a page graph file");
+    }
+    if (header.get(1) != VERSION) {
+      throw new IOException("Page graph file is version " + header.get(1) + ", expected " + VERSION);
+    }
+    if (header.get(3) != PageTypes.values().length) {
+      throw new IOException("Page graph file has " + header.get(3) + " page types, expected " + PageTypes.values().length);
+    }
+
+    pageCount = header.get(2);
+    int continuesCount = header.get(4);
+    int choiceCount = header.get(5);
+    int incomingCount = header.get(6);
+    stringCount = header.get(7);
+    int stringByteCount = header.get(8);
+    pageTypeWords = (pageCount + 63) >>> 6;
+
+    long expectedSize = fileSize(pageCount, continuesCount, choiceCount, incomingCount, stringCount, stringByteCount);
+    if (buffer.capacity() != expectedSize) {
+      throw new IOException("Page graph file is " + buffer.capacity() + " bytes, expected " + expectedSize);
+    }
+
+    int offset = 4 * HEADER_INTS;
+    pageTypeBits = MappedFiles.slice(buffer, offset, 8 * PageTypes.values().length * pageTypeWords).asLongBuffer();
+    offset += 8 * PageTypes.values().length * pageTypeWords;
+    pdfPageNumbers = MappedFiles.slice(buffer, offset, 4 * pageCount).asIntBuffer();
+    offset += 4 * pageCount;
+    wordCounts = MappedFiles.slice(buffer, offset, 4 * pageCount).asIntBuffer();
+    offset += 4 * pageCount;
+    labelIds = MappedFiles.slice(buffer, offset, 4 * pageCount).asIntBuffer();
+    offset += 4 * pageCount;
+    continuesOffsets = MappedFiles.slice(buffer, offset, 4 * (pageCount + 1)).asIntBuffer();
+    offset += 4 * (pageCount + 1);
+    continuesTargets = MappedFiles.slice(buffer, offset, 4 * continuesCount).asIntBuffer();
+    offset += 4 * continuesCount;
+    choiceOffsets = MappedFiles.slice(buffer, offset, 4 * (pageCount + 1)).asIntBuffer();
+    offset += 4 * (pageCount + 1);
+    choiceTargets = MappedFiles.slice(buffer, offset, 4 * choiceCount).asIntBuffer();
+    offset += 4 * choiceCount;
+    incomingOffsets = MappedFiles.slice(buffer, offset, 4 * (pageCount + 1)).asIntBuffer();
+    offset += 4 * (pageCount + 1);
+    incomingSources = MappedFiles.slice(buffer, offset, 4 * incomingCount).asIntBuffer();
+    offset += 4 * incomingCount;
+    stringFirstPages = MappedFiles.slice(buffer, offset, 4 * stringCount).asIntBuffer();
+    offset += 4 * stringCount;
+    stringOffsets = MappedFiles.slice(buffer, offset, 4 * (stringCount + 1)).asIntBuffer();
+    offset += 4 * (stringCount + 1);
+    stringBytes = MappedFiles.slice(buffer, offset, stringByteCount);
+  }
+
+  private static long fileSize(int pageCount, int continuesCount, int choiceCount, int incomingCount, int stringCount, int stringByteCount) {
+    return 4L * HEADER_INTS
+      + 8L * PageTypes.values().length * ((pageCount + 63) >>> 6)
+      + 4L * 3 * pageCount
+      + 4L * 3 * (pageCount + 1) + 4L * continuesCount + 4L * choiceCount + 4L * incomingCount
+      + 4L * stringCount + 4L * (stringCount + 1) + stringByteCount;
+  }
+
+  /**
+   * Map a page graph file
+   *
+   * @param file File written by write
+   * @return Graph reading from the mapping
+   * @throws IOException If the file can't be read or isn't a page graph file of this version
+   */
+  public static MappedPageGraph open(Path file) throws IOException {
+    return new MappedPageGraph(MappedFiles.map(file, "Page graph file"));
+  }
+
+  /**
+   * Export a page graph. The file is written next to its final name and moved into place, so a process reading the old
+   * file keeps its consistent copy.
+   *
+   * @param graph Graph to export
+   * @param file File to write
+   * @throws IOException
+   */
+  public static void write(PageGraph graph, Path file) throws IOException {
+    int pageCount = graph.getPageCount();
+
+    // Intern the labels, sorted by their bytes so findPage can binary search them
+    byte[][] labels = new byte[pageCount][];
+    for (int page = 0; page < pageCount; page++) {
+      labels[page] = graph.getBookPageLabel(page).getBytes(StandardCharsets.UTF_8);
+    }
+    Integer[] pagesByLabel = new Integer[pageCount];
+    for (int page = 0; page < pageCount; page++) {
+      pagesByLabel[page] = page;
+    }
+    // Stable, so the first page with each label comes first
+    Arrays.sort(pagesByLabel, (a, b) -> MappedFiles.compareBytes(labels[a], labels[b]));
+    int[] labelIds = new int[pageCount];
+    int[] stringFirstPages = new int[pageCount];
+    int[] stringOffsets = new int[pageCount + 1];
+    int stringCount = 0;
+    for (int i = 0; i < pageCount; i++) {
+      int page = pagesByLabel[i];
+      if (stringCount == 0 || MappedFiles.compareBytes(labels[stringFirstPages[stringCount - 1]], labels[page]) != 0) {
+        stringFirstPages[stringCount] = page;
+        stringOffsets[stringCount + 1] = stringOffsets[stringCount] + labels[page].length;
+        stringCount++;
+      }
+      labelIds[page] = stringCount - 1;
+    }
+
+    int continuesCount = 0;
+    int choiceCount = 0;
+    int incomingCount = 0;
+    for (int page = 0; page < pageCount; page++) {
+      continuesCount += graph.getContinuesCount(page);
+      choiceCount += graph.getChoiceCount(page);
+      incomingCount += graph.getInDegree(page);
+    }
+
+    long size = fileSize(pageCount, continuesCount, choiceCount, incomingCount, stringCount, stringOffsets[stringCount]);
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("Page graph is too large to export: " + size + " bytes");
+    }
+    ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+
+    buffer.putInt(MAGIC).putInt(VERSION).putInt(pageCount).putInt(PageTypes.values().length)
+      .putInt(continuesCount).putInt(choiceCount).putInt(incomingCount).putInt(stringCount).putInt(stringOffsets[stringCount]);
+    ((Buffer) buffer).position(4 * HEADER_INTS);
+
+    for (PageTypes pageType : PageTypes.values()) {
+      long[] bits = new long[(pageCount + 63) >>> 6];
+      for (int page = 0; page < pageCount; page++) {
+        if (graph.hasPageType(page, pageType)) {
+          bits[page >>> 6] |= 1L << page;
+        }
+      }
+      for (long word : bits) {
+        buffer.putLong(word);
+      }
+    }
+    for (int page = 0; page < pageCount; page++) {
+      buffer.putInt(graph.getPdfPageNumber(page));
+    }
+    for (int page = 0; page < pageCount; page++) {
+      buffer.putInt(graph.getWordCount(page));
+    }
+    for (int page = 0; page < pageCount; page++) {
+      buffer.putInt(labelIds[page]);
+    }
+
+    // Continues, then Choice, then incoming relationships
+    for (int relationships = 0; relationships < 3; relationships++) {
+      int offset = 0;
+      buffer.putInt(offset);
+      for (int page = 0; page < pageCount; page++) {
+        offset += relationships == 0 ? graph.getContinuesCount(page) : relationships == 1 ? graph.getChoiceCount(page) : graph.getInDegree(page);
+        buffer.putInt(offset);
+      }
+      for (int page = 0; page < pageCount; page++) {
+        if (relationships == 0) {
+          for (int i = 0; i < graph.getContinuesCount(page); i++) {
+            buffer.putInt(graph.getContinuesTarget(page, i));
+          }
+        }
+        else if (relationships == 1) {
+          for (int i = 0; i < graph.getChoiceCount(page); i++) {
+            buffer.putInt(graph.getChoiceTarget(page, i));
+          }
+        }
+        else {
+          for (int i = 0; i < graph.getInDegree(page); i++) {
+            buffer.putInt(graph.getIncomingNeighbour(page, i));
+          }
+        }
+      }
+    }
+
+    for (int i = 0; i < stringCount; i++) {
+      buffer.putInt(stringFirstPages[i]);
+    }
+    for (int i = 0; i <= stringCount; i++) {
+      buffer.putInt(stringOffsets[i]);
+    }
+    for (int i = 0; i < stringCount; i++) {
+      buffer.put(labels[stringFirstPages[i]]);
+    }
+    ((Buffer) buffer).flip();
+
+    Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(false);
+    }
+    Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  @Override
+  public int getPageCount() {
+    return pageCount;
+  }
+
+  @Override
+  public int getPdfPageNumber(int page) {
+    return pdfPageNumbers.get(page);
+  }
+
+  @Override
+  public String getBookPageLabel(int page) {
+    return string(labelIds.get(page));
+  }
+
+  private String string(int id) {
+    int start = stringOffsets.get(id);
+    byte[] bytes = new byte[stringOffsets.get(id + 1) - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = stringBytes.get(start + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Binary search of the string table, comparing bytes in place
+   */
+  @Override
+  public int findPage(String bookPageLabel) {
+    byte[] label = bookPageLabel.getBytes(StandardCharsets.UTF_8);
+    int low = 0;
+    int high = stringCount - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int comparison = compareString(middle, label);
+      if (comparison < 0) {
+        low = middle + 1;
+      }
+      else if (comparison > 0) {
+        high = middle - 1;
+      }
+      else {
+        return stringFirstPages.get(middle);
+      }
+    }
+    return -1;
+  }
+
+  private int compareString(int id, byte[] label) {
+    int start = stringOffsets.get(id);
+    int length = stringOffsets.get(id + 1) - start;
+    int common = Math.min(length, label.length);
+    for (int i = 0; i < common; i++) {
+      int difference = (stringBytes.get(start + i) & 0xFF) - (label[i] & 0xFF);
+      if (difference != 0) {
+        return difference;
+      }
+    }
+    return length - label.length;
+  }
+
+  @Override
+  public int getWordCount(int page) {
+    return wordCounts.get(page);
+  }
+
+  @Override
+  public boolean hasPageType(int page, PageTypes pageType) {
+    return (pageTypeBits.get(pageType.ordinal() * pageTypeWords + (page >>> 6)) & (1L << page)) != 0;
+  }
+
+  @Override
+  public int getContinuesCount(int page) {
+    return continuesOffsets.get(page + 1) - continuesOffsets.get(page);
+  }
+
+  @Override
+  public int getContinuesTarget(int page, int i) {
+    return continuesTargets.get(continuesOffsets.get(page) + i);
+  }
+
+  @Override
+  public int getChoiceCount(int page) {
+    return choiceOffsets.get(page + 1) - choiceOffsets.get(page);
+  }
+
+  @Override
+  public int getChoiceTarget(int page, int i) {
+    return choiceTargets.get(choiceOffsets.get(page) + i);
+  }
+
+  @Override
+  public int getInDegree(int page) {
+    return incomingOffsets.get(page + 1) - incomingOffsets.get(page);
+  }
+
+  @Override
+  public int getIncomingNeighbour(int page, int i) {
+    return incomingSources.get(incomingOffsets.get(page) + i);
+  }
+
+  @Override
+  public int getRelationshipCount() {
+    return continuesTargets.capacity() + choiceTargets.capacity();
+  }
+}
@@ -0,0 +1,103 @@
+package uk.co.palmr.adventurer;
+
+import java.util.List;
+
+/**
+ * The rules used to work out a page's PageTypes. Label rules only need the page label, content rules need the result
+ * of parsing the page.
+ *
+ * Bump VERSION whenever a rule changes so incremental runs know to re-derive every page.
+ */
+public final class PageClassifier {
+  public static final int VERSION = 1;
+
+  // The longest end marker, the short one is the same without the "!!"
+  static final String END_MARKER = "THE END!!";
+
+  private PageClassifier() {
+  }
+
+  /**
+   * @return Bit for a page type in a page type mask
+   */
+  public static int bit(PageTypes pageType) {
+    return 1 << pageType.ordinal();
+  }
+
+  /**
+   * Classify a page based on its label
+   *
+   * @param bookPageLabel Page label of the page
+   * @return Bit mask of PageTypes
+   */
+  public static int classifyLabel(String bookPageLabel) {
+    int mask = bit(PageTypes.Page);
+
+    if (bookPageLabel.startsWith("G")) {
+      // All of the sub book (The Murder of Gonzago) page labels start with G
+      mask |= bit(PageTypes.SubBook);
+    }
+    if (!bookPageLabel.matches(".*\\d+.*")) {
+      // If there's no digits in the label, ignore the page (roman numeral pages)
+      mask |= bit(PageTypes.Ignore);
+    }
+
+    return mask;
+  }
+
+  /**
+   * Classify a page based on its content
+   *
+   * @param imageCount Number of images on the page
+   * @param textValues Blocks of text on the page grouped by font
+   * @param bookPageLabel Page label of the page
+   * @return Bit mask of PageTypes
+   */
+  public static int classifyContent(int imageCount, List<String> textValues, String bookPageLabel) {
+    boolean hasEndMarker = false;
+    for (String textBlock : textValues) {
+      if (textBlock.matches("THE END(!!)?")) {
+        hasEndMarker = true;
+      }
+    }
+
+    return classifyContent(imageCount, textValues.size(),
+      textValues.size() == 1 && bookPageLabel.equals(textValues.get(0)),
+      hasEndMarker);
+  }
+
+  /**
+   * Classify a page based on facts about its content, for when they were gathered while parsing rather than from the
+   * page's text
+   *
+   * @param imageCount Number of images on the page
+   * @param textBlockCount Number of blocks of text on the page grouped by font
+   * @param onlyBlockIsLabel Whether there's a single block of text and it's the page label
+   * @param hasEndMarker Whether any block of text is an end marker, see END_MARKER
+   * @return Bit mask of PageTypes
+   */
+  public static int classifyContent(int imageCount, int textBlockCount, boolean onlyBlockIsLabel, boolean hasEndMarker) {
+    int mask = 0;
+
+    if (imageCount > 0 && (textBlockCount == 0 || onlyBlockIsLabel)) {
+      // If the page is nothing but an image, label it as an image page (Typically an ending comic)
+      mask |= bit(PageTypes.ImagePage);
+    }
+    else if (hasEndMarker) {
+      // If not an image page perhaps there's text to parse looking for an end page
+      mask |= bit(PageTypes.EndPage);
+    }
+
+    return mask;
+  }
+
+  /**
+   * End pages have a block of text that's exactly "THE END" or "THE END!!"
+   *
+   * @param endMarkerMatcher Matcher for END_MARKER that's been fed a whole block of text
+   * @return Whether the block is an end marker
+   */
+  static boolean isEndMarker(TextBlockMatcher endMarkerMatcher) {
+    return endMarkerMatcher.isFullMatch() || endMarkerMatcher.getMatchedLength() == END_MARKER.length() - 2;
+  }
+}
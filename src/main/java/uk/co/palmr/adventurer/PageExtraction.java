@@ -0,0 +1,127 @@
+package uk.co.palmr.adventurer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything Adventurer needs to know about a single PDF page, gathered from one pass over its content stream and
+ * annotations
+ */
+public final class PageExtraction {
+  private final int pdfPageNumber;
+  private final String fingerprint;
+  private final int wordCount;
+  private final List<String> textValues;
+  private final int imageCount;
+  private final int contentTypeMask;
+  private final int[] linkTargets;
+  private final String[] choiceTexts;
+  private final String text;
+
+  /**
+   * Page with no text found for its choices
+   */
+  public PageExtraction(int pdfPageNumber, String fingerprint, int wordCount, List<String> textValues, int imageCount, int contentTypeMask, int[] linkTargets) {
+    this(pdfPageNumber, fingerprint, wordCount, textValues, imageCount, contentTypeMask, linkTargets, emptyTexts(linkTargets.length));
+  }
+
+  public PageExtraction(int pdfPageNumber, String fingerprint, int wordCount, List<String> textValues, int imageCount, int contentTypeMask, int[] linkTargets, String[] choiceTexts) {
+    this(pdfPageNumber, fingerprint, wordCount, textValues, imageCount, contentTypeMask, linkTargets, choiceTexts, "");
+  }
+
+  public PageExtraction(int pdfPageNumber, String fingerprint, int wordCount, List<String> textValues, int imageCount, int contentTypeMask, int[] linkTargets, String[] choiceTexts,
+                        String text) {
+    if (choiceTexts.length != linkTargets.length) {
+      throw new IllegalArgumentException("Expected a choice text for each of the " + linkTargets.length + " link targets, got " + choiceTexts.length);
+    }
+    this.pdfPageNumber = pdfPageNumber;
+    this.fingerprint = fingerprint;
+    this.wordCount = wordCount;
+    this.textValues = Collections.unmodifiableList(textValues);
+    this.imageCount = imageCount;
+    this.contentTypeMask = contentTypeMask;
+    this.linkTargets = linkTargets.clone();
+    this.choiceTexts = choiceTexts.clone();
+    this.text = text;
+  }
+
+  private static String[] emptyTexts(int count) {
+    String[] texts = new String[count];
+    Arrays.fill(texts, "");
+    return texts;
+  }
+
+  public int getPdfPageNumber() {
+    return pdfPageNumber;
+  }
+
+  /**
+   * @return Fingerprint of the page's content stream, annotations, label and the classifier rules, see
+   * PageExtractor.fingerprint
+   */
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  public int getWordCount() {
+    return wordCount;
+  }
+
+  /**
+   * @return Blocks of text on the page, grouped by font. Only kept when the PageExtractor was capturing text, otherwise
+   * empty
+   */
+  public List<String> getTextValues() {
+    return textValues;
+  }
+
+  public int getImageCount() {
+    return imageCount;
+  }
+
+  /**
+   * @return Bit mask of the PageTypes found from the page's content (ImagePage or EndPage)
+   */
+  public int getContentTypeMask() {
+    return contentTypeMask;
+  }
+
+  /**
+   * @return Distinct PDF page numbers the page's link annotations resolve to, in annotation order
+   */
+  public int[] getLinkTargets() {
+    return linkTargets.clone();
+  }
+
+  /**
+   * @return Text under the links to each link target, in the same order as getLinkTargets. Empty where no text was
+   * found under the link
+   */
+  public String[] getChoiceTexts() {
+    return choiceTexts.clone();
+  }
+
+  /**
+   * @return Text of the page laid out the way SimpleTextExtractionStrategy lays it out, for the TextIndex. Only kept
+   * when the PageExtractor was keeping page text, otherwise empty
+   */
+  public String getText() {
+    return text;
+  }
+
+  /**
+   * @return The same page without its blocks of text or page text, for holding on to once they've been used
+   */
+  public PageExtraction withoutText() {
+    return new PageExtraction(pdfPageNumber, fingerprint, wordCount, Collections.<String>emptyList(), imageCount, contentTypeMask, linkTargets,
+      choiceTexts);
+  }
+
+  @Override
+  public String toString() {
+    return "PageExtraction{pdfPageNumber=" + pdfPageNumber + ", wordCount=" + wordCount + ", textValues=" + textValues
+      + ", imageCount=" + imageCount + ", contentTypeMask=" + contentTypeMask + ", linkTargets=" + Arrays.toString(linkTargets)
+      + ", choiceTexts=" + Arrays.toString(choiceTexts) + "}";
+  }
+}
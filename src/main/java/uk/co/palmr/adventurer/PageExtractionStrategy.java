@@ -0,0 +1,72 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.text.pdf.parser.ImageRenderInfo;
+import com.itextpdf.text.pdf.parser.SimpleTextExtractionStrategy;
+import com.itextpdf.text.pdf.parser.TextExtractionStrategy;
+import com.itextpdf.text.pdf.parser.TextRenderInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Feeds a single traversal of a page's content stream to both a SimpleTextExtractionStrategy (for the word count) and
+ * a FontGroupingTextExtractionStrategy (for classification), so each page only has to be parsed once
+ */
+public class PageExtractionStrategy implements TextExtractionStrategy {
+  private final SimpleTextExtractionStrategy mSimpleStrategy = new SimpleTextExtractionStrategy();
+  private final FontGroupingTextExtractionStrategy mFontGroupingStrategy;
+
+  public PageExtractionStrategy(boolean debug) {
+    super();
+    mFontGroupingStrategy = new FontGroupingTextExtractionStrategy(debug);
+  }
+
+  @Override
+  public void beginTextBlock() {
+    mSimpleStrategy.beginTextBlock();
+    mFontGroupingStrategy.beginTextBlock();
+  }
+
+  @Override
+  public void endTextBlock() {
+    mSimpleStrategy.endTextBlock();
+    mFontGroupingStrategy.endTextBlock();
+  }
+
+  @Override
+  public void renderText(TextRenderInfo pTextRenderInfo) {
+    mSimpleStrategy.renderText(pTextRenderInfo);
+    mFontGroupingStrategy.renderText(pTextRenderInfo);
+  }
+
+  @Override
+  public void renderImage(ImageRenderInfo pImageRenderInfo) {
+    mSimpleStrategy.renderImage(pImageRenderInfo);
+    mFontGroupingStrategy.renderImage(pImageRenderInfo);
+  }
+
+  @Override
+  public String getResultantText() {
+    return mSimpleStrategy.getResultantText();
+  }
+
+  /**
+   * @return Number of whitespace separated words on the page, as laid out by the SimpleTextExtractionStrategy
+   */
+  public int getWordCount() {
+    return mSimpleStrategy.getResultantText().split("\\s+").length;
+  }
+
+  /**
+   * @return Blocks of text on the page grouped by font, as Strings
+   */
+  public List<String> getTextValues() {
+    List<String> textValues = new ArrayList<>(mFontGroupingStrategy.getTextValues().size());
+    mFontGroupingStrategy.getTextValues().forEach(textBlock -> textValues.add(textBlock.toString()));
+    return textValues;
+  }
+
+  public int getImageCount() {
+    return mFontGroupingStrategy.getImageCount();
+  }
+}
@@ -0,0 +1,443 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.PRIndirectReference;
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfString;
+import com.itextpdf.text.pdf.parser.ContentByteUtils;
+import com.itextpdf.text.pdf.parser.ImageRenderInfo;
+import com.itextpdf.text.pdf.parser.PdfContentStreamProcessor;
+import com.itextpdf.text.pdf.parser.RenderListener;
+import com.itextpdf.text.pdf.parser.TextRenderInfo;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pulls everything Adventurer needs out of a page in a single pass: one content stream parse plus a walk of the page's
+ * link annotations. The parse normally uses a streaming FontGroupingTextExtractionStrategy that classifies the page
+ * without keeping its text; with text capture on it uses a PageExtractionStrategy and keeps the blocks of text. If the
+ * page has links the same parse also fills a ChoiceTextIndex, which finds the text under every link.
+ *
+ * With an ExtractionCache, pages found in the cache aren't parsed at all. Their PageExtraction is rebuilt from the
+ * cached text, and their content types are classified again with the current rules. Pages that aren't in the cache
+ * are parsed with text capture, so their blocks of text can be cached.
+ *
+ * Keeping page text keeps each page's text laid out for reading, for the TextIndex, without keeping its blocks.
+ */
+public class PageExtractor {
+  private static final Logger LOGGER = LogManager.getLogger(PageExtractor.class);
+
+  private final PdfReader reader;
+  private final PageLabelIndex pageLabels;
+  private final boolean captureText;
+  private final boolean keepText;
+  private final FontIds fontIds = new FontIds();
+  private final StrategySwitch strategySwitch = new StrategySwitch();
+  // One processor for every page, so its cache of parsed fonts is shared between pages rather than rebuilt for each
+  private final PdfContentStreamProcessor contentProcessor = new PdfContentStreamProcessor(strategySwitch);
+  private final LinkDestinationIndex linkDestinations;
+  private final ExtractionCache cache;
+  // Stamped with the extraction a page was last linked to from, so duplicate links are dropped without a search
+  private final int[] linkedFrom;
+  // Which of the page's link targets each linked to page is
+  private final int[] linkTargetIndex;
+  private int linkStamp = 0;
+  private final ChoiceTextIndex choiceTextIndex = new ChoiceTextIndex();
+  // Rectangles of the last page's links (llx, lly, urx, ury) and the link target each one leads to
+  private float[] linkRects = new float[4 * 8];
+  private int[] linkRectTargets = new int[8];
+  private int linkRectCount = 0;
+  // Links on the last page that were dropped, for the ingest metrics
+  private int duplicateLinks = 0;
+  private int unknownDestinations = 0;
+
+  /**
+   * @param reader PdfReader to get PDF information from
+   * @param pageLabels Page labels of the PDF
+   */
+  public PageExtractor(PdfReader reader, PageLabelIndex pageLabels) {
+    this(reader, pageLabels, LinkDestinationIndex.build(reader), false);
+  }
+
+  /**
+   * @param reader PdfReader to get PDF information from
+   * @param pageLabels Page labels of the PDF
+   * @param captureText Whether to keep each page's blocks of text in its PageExtraction
+   */
+  public PageExtractor(PdfReader reader, PageLabelIndex pageLabels, boolean captureText) {
+    this(reader, pageLabels, LinkDestinationIndex.build(reader), captureText);
+  }
+
+  /**
+   * @param reader PdfReader to get PDF information from
+   * @param pageLabels Page labels of the PDF
+   * @param linkDestinations Named destinations of the PDF, which can be shared with other extractors over the same PDF
+   * @param captureText Whether to keep each page's blocks of text in its PageExtraction
+   */
+  public PageExtractor(PdfReader reader, PageLabelIndex pageLabels, LinkDestinationIndex linkDestinations, boolean captureText) {
+    this(reader, pageLabels, linkDestinations, captureText, null);
+  }
+
+  /**
+   * @param reader PdfReader to get PDF information from
+   * @param pageLabels Page labels of the PDF
+   * @param linkDestinations Named destinations of the PDF, which can be shared with other extractors over the same PDF
+   * @param captureText Whether to keep each page's blocks of text in its PageExtraction
+   * @param cache Cache of the PDF's extracted pages to read from and add to, which can be shared with other extractors
+   * over the same PDF, or null to parse every page
+   */
+  public PageExtractor(PdfReader reader, PageLabelIndex pageLabels, LinkDestinationIndex linkDestinations, boolean captureText,
+                       ExtractionCache cache) {
+    this(reader, pageLabels, linkDestinations, captureText, cache, false);
+  }
+
+  /**
+   * @param reader PdfReader to get PDF information from
+   * @param pageLabels Page labels of the PDF
+   * @param linkDestinations Named destinations of the PDF, which can be shared with other extractors over the same PDF
+   * @param captureText Whether to keep each page's blocks of text in its PageExtraction
+   * @param cache Cache of the PDF's extracted pages to read from and add to, which can be shared with other extractors
+   * over the same PDF, or null to parse every page
+   * @param keepText Whether to keep each page's text in its PageExtraction, see PageExtraction.getText
+   */
+  public PageExtractor(PdfReader reader, PageLabelIndex pageLabels, LinkDestinationIndex linkDestinations, boolean captureText,
+                       ExtractionCache cache, boolean keepText) {
+    this.reader = reader;
+    this.captureText = captureText;
+    this.keepText = keepText;
+    this.pageLabels = pageLabels;
+    this.linkDestinations = linkDestinations;
+    this.cache = cache;
+    this.linkedFrom = new int[reader.getNumberOfPages() + 1];
+    this.linkTargetIndex = new int[reader.getNumberOfPages() + 1];
+  }
+
+  /**
+   * Parse a page's content and annotations, then release the page so a partially read PdfReader can drop it
+   *
+   * @param pdfPageNumber PDF page number to extract
+   * @return Everything found on the page
+   * @throws IOException
+   */
+  public PageExtraction extract(int pdfPageNumber) throws IOException {
+    long start = System.nanoTime();
+    try {
+      return extractPage(pdfPageNumber);
+    }
+    finally {
+      reader.releasePage(pdfPageNumber);
+      IngestMetrics.recordPageParse(System.nanoTime() - start);
+    }
+  }
+
+  private PageExtraction extractPage(int pdfPageNumber) throws IOException {
+    int pageObjectNumber = 0;
+    if (cache != null) {
+      pageObjectNumber = pageObjectNumber(pdfPageNumber);
+      PageExtraction cached = extractFromCache(pdfPageNumber, pageObjectNumber);
+      if (cached != null) {
+        return cached;
+      }
+    }
+
+    int[] linkTargets;
+    try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.RESOLVE_ANNOTATIONS)) {
+      linkTargets = extractLinkTargets(pdfPageNumber);
+    }
+    IngestMetrics.count(IngestMetrics.Counter.PAGES_EXTRACTED, 1);
+    IngestMetrics.count(IngestMetrics.Counter.LINKS, linkTargets.length);
+    IngestMetrics.count(IngestMetrics.Counter.DUPLICATE_LINKS_SKIPPED, duplicateLinks);
+    IngestMetrics.count(IngestMetrics.Counter.UNKNOWN_DESTINATIONS, unknownDestinations);
+
+    String fingerprint = fingerprint(pdfPageNumber, linkTargets);
+
+    String bookPageLabel = pageLabels.getLabel(pdfPageNumber);
+    if (captureText || cache != null) {
+      PageExtractionStrategy strategy = new PageExtractionStrategy(false);
+      processContent(pdfPageNumber, strategy, linkTargets.length > 0);
+      List<String> textValues = strategy.getTextValues();
+      int contentTypeMask = PageClassifier.classifyContent(strategy.getImageCount(), textValues, bookPageLabel);
+
+      PageExtraction page = new PageExtraction(pdfPageNumber, fingerprint, strategy.getWordCount(), textValues, strategy.getImageCount(),
+        contentTypeMask, linkTargets, choiceTexts(linkTargets.length), strategy.getResultantText());
+      if (cache != null) {
+        cache.put(page, pageObjectNumber, PageClassifier.VERSION);
+      }
+      return keepOnly(page);
+    }
+
+    FontGroupingTextExtractionStrategy strategy = new FontGroupingTextExtractionStrategy(fontIds, bookPageLabel, keepText);
+    processContent(pdfPageNumber, strategy, linkTargets.length > 0);
+    IngestMetrics.count(IngestMetrics.Counter.TEXT_CHUNKS, strategy.getChunkCount());
+    IngestMetrics.count(IngestMetrics.Counter.FONT_BLOCKS, strategy.getBlockCount());
+    return new PageExtraction(pdfPageNumber, fingerprint, strategy.getWordCount(), Collections.<String>emptyList(),
+      strategy.getImageCount(), strategy.getContentTypeMask(), linkTargets, choiceTexts(linkTargets.length), strategy.getText());
+  }
+
+  /**
+   * Rebuild a page's extraction from its cached record, classifying its content with the current rules
+   *
+   * @return Extraction of the page, or null if it isn't cached
+   */
+  private PageExtraction extractFromCache(int pdfPageNumber, int pageObjectNumber) throws IOException {
+    ExtractionCache.CachedPage cached;
+    try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.READ_EXTRACTION_CACHE)) {
+      cached = cache.get(pdfPageNumber, pageObjectNumber);
+    }
+    if (cached == null) {
+      return null;
+    }
+
+    String fingerprint = cached.fingerprint;
+    if (cached.classifierVersion != PageClassifier.VERSION) {
+      // The fingerprint covers the classifier version, making it again only needs the annotations and content stream
+      try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.RESOLVE_ANNOTATIONS)) {
+        fingerprint = fingerprint(pdfPageNumber, extractLinkTargets(pdfPageNumber));
+      }
+    }
+    int contentTypeMask = PageClassifier.classifyContent(cached.imageCount, cached.textValues, pageLabels.getLabel(pdfPageNumber));
+    PageExtraction page = new PageExtraction(pdfPageNumber, fingerprint, cached.wordCount, cached.textValues, cached.imageCount,
+      contentTypeMask, cached.linkTargets, cached.choiceTexts, cached.text);
+    if (cached.classifierVersion != PageClassifier.VERSION) {
+      cache.put(page, pageObjectNumber, PageClassifier.VERSION);
+    }
+
+    IngestMetrics.count(IngestMetrics.Counter.PAGES_EXTRACTED, 1);
+    IngestMetrics.count(IngestMetrics.Counter.PAGES_FROM_CACHE, 1);
+    IngestMetrics.count(IngestMetrics.Counter.LINKS, cached.linkTargets.length);
+    return keepOnly(page);
+  }
+
+  /**
+   * @return The page with only the text this extractor was asked to keep
+   */
+  private PageExtraction keepOnly(PageExtraction page) {
+    return new PageExtraction(page.getPdfPageNumber(), page.getFingerprint(), page.getWordCount(),
+      captureText ? page.getTextValues() : Collections.<String>emptyList(), page.getImageCount(), page.getContentTypeMask(),
+      page.getLinkTargets(), page.getChoiceTexts(), keepText ? page.getText() : "");
+  }
+
+  /**
+   * @return Object number of the page's dictionary, which is the same for every PdfReader over the same bytes
+   */
+  private int pageObjectNumber(int pdfPageNumber) {
+    PRIndirectReference pageReference = reader.getPageOrigRef(pdfPageNumber);
+    return pageReference == null ? 0 : pageReference.getNumber();
+  }
+
+  /**
+   * Parse a page's content stream once, passing it to the strategy and, for pages with links, the choice text index
+   */
+  private void processContent(int pdfPageNumber, RenderListener strategy, boolean findChoiceText) throws IOException {
+    strategySwitch.strategy = strategy;
+    strategySwitch.choiceText = findChoiceText ? choiceTextIndex : null;
+    choiceTextIndex.reset();
+    contentProcessor.reset();
+    try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.PARSE_CONTENT)) {
+      contentProcessor.processContent(ContentByteUtils.getContentBytesForPage(reader, pdfPageNumber),
+        reader.getPageN(pdfPageNumber).getAsDict(PdfName.RESOURCES));
+    }
+  }
+
+  /**
+   * Look up the text under each of the last page's links. A choice split over two lines has a link on each line, so
+   * its text is joined up from all of them.
+   *
+   * @param linkTargetCount Number of link targets on the page
+   * @return Text of each choice, in the same order as the link targets, empty where there's no text under the link
+   */
+  private String[] choiceTexts(int linkTargetCount) {
+    StringBuilder[] choiceTexts = new StringBuilder[linkTargetCount];
+    for (int i = 0; i < linkRectCount; i++) {
+      String text = choiceTextIndex.textIn(linkRects[4 * i], linkRects[4 * i + 1], linkRects[4 * i + 2], linkRects[4 * i + 3]);
+      int linkTarget = linkRectTargets[i];
+      if (choiceTexts[linkTarget] == null) {
+        choiceTexts[linkTarget] = new StringBuilder(text);
+      }
+      else if (!text.isEmpty()) {
+        if (choiceTexts[linkTarget].length() > 0) {
+          choiceTexts[linkTarget].append(' ');
+        }
+        choiceTexts[linkTarget].append(text);
+      }
+    }
+
+    String[] texts = new String[linkTargetCount];
+    for (int i = 0; i < linkTargetCount; i++) {
+      texts[i] = choiceTexts[i] == null ? "" : choiceTexts[i].toString();
+    }
+    return texts;
+  }
+
+  /**
+   * Fingerprint a page without parsing its content stream, so incremental runs can tell which pages need extracting
+   * again. Covers everything that feeds into the page's part of the graph: the raw content stream, where its links
+   * lead and where they sit (for their choice text), its label and the version of the classifier rules.
+   *
+   * @param pdfPageNumber PDF page number to fingerprint
+   * @return Hex encoded SHA-256 fingerprint
+   * @throws IOException
+   */
+  public String fingerprint(int pdfPageNumber) throws IOException {
+    try {
+      return fingerprint(pdfPageNumber, extractLinkTargets(pdfPageNumber));
+    }
+    finally {
+      reader.releasePage(pdfPageNumber);
+    }
+  }
+
+  private String fingerprint(int pdfPageNumber, int[] linkTargets) throws IOException {
+    MessageDigest digest = Digests.sha256();
+
+    // Link rectangles are from the extractLinkTargets call that found linkTargets
+    ByteBuffer header = ByteBuffer.allocate(4 * (3 + linkTargets.length + 5 * linkRectCount));
+    header.putInt(PageClassifier.VERSION);
+    header.putInt(linkTargets.length);
+    for (int linkTarget : linkTargets) {
+      header.putInt(linkTarget);
+    }
+    header.putInt(linkRectCount);
+    for (int i = 0; i < linkRectCount; i++) {
+      header.putFloat(linkRects[4 * i]).putFloat(linkRects[4 * i + 1]).putFloat(linkRects[4 * i + 2]).putFloat(linkRects[4 * i + 3]);
+      header.putInt(linkRectTargets[i]);
+    }
+    digest.update(header.array());
+    digest.update(pageLabels.getLabel(pdfPageNumber).getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+    digest.update(reader.getPageContent(pdfPageNumber));
+
+    return Digests.hex(digest);
+  }
+
+  /**
+   * Resolve the inter-page-link annotations on a page to the PDF page numbers they point at, keeping each link's
+   * rectangle for finding its choice text
+   *
+   * @param pdfPageNumber PDF page number to look for links on
+   * @return Distinct PDF page numbers of the link targets, in annotation order (Split-line links mean two annotations
+   * with the same dest, only the first is kept)
+   */
+  int[] extractLinkTargets(int pdfPageNumber) {
+    PdfDictionary pageDict = reader.getPageN(pdfPageNumber);
+    // Objects are read with getPdfObjectRelease so a partially read PdfReader doesn't keep them after this page
+    PdfArray annotationArray = asArray(PdfReader.getPdfObjectRelease(pageDict.get(PdfName.ANNOTS)));
+    linkRectCount = 0;
+    duplicateLinks = 0;
+    unknownDestinations = 0;
+    if (annotationArray == null) {
+      return new int[0];
+    }
+
+    linkStamp++;
+    int[] linkTargets = new int[annotationArray.size()];
+    int linkCount = 0;
+    for (int i = 0; i < annotationArray.size(); i++) {
+      PdfDictionary annotationDictionary = asDictionary(PdfReader.getPdfObjectRelease(annotationArray.getPdfObject(i)));
+      if (annotationDictionary == null) {
+        continue;
+      }
+      if (PdfName.LINK == annotationDictionary.get(PdfName.SUBTYPE)) {
+        PdfDictionary action = asDictionary(PdfReader.getPdfObjectRelease(annotationDictionary.get(PdfName.A)));
+        PdfString destination = action == null ? null : action.getAsString(PdfName.D);
+        if (destination != null) {
+          String lDestination = destination.toString();
+          int targetPageNumber = linkDestinations.getPdfPageNumber(lDestination);
+          if (targetPageNumber == LinkDestinationIndex.UNKNOWN) {
+            LOGGER.warn("Found link to unknown: " + lDestination);
+            unknownDestinations++;
+          }
+          else if (targetPageNumber == LinkDestinationIndex.OUTSIDE_PAGE_TREE) {
+            LOGGER.warn("Found link to a destination outside the page tree: " + lDestination);
+            unknownDestinations++;
+          }
+          else {
+            if (linkedFrom[targetPageNumber] != linkStamp) {
+              linkedFrom[targetPageNumber] = linkStamp;
+              linkTargetIndex[targetPageNumber] = linkCount;
+              linkTargets[linkCount++] = targetPageNumber;
+            }
+            else {
+              duplicateLinks++;
+            }
+            addLinkRect(annotationDictionary.getAsArray(PdfName.RECT), linkTargetIndex[targetPageNumber]);
+          }
+        }
+        else {
+          LOGGER.warn("Adventurer only handles Anchor Links currently");
+        }
+      }
+    }
+
+    return Arrays.copyOf(linkTargets, linkCount);
+  }
+
+  private static PdfArray asArray(PdfObject object) {
+    return object != null && object.isArray() ? (PdfArray) object : null;
+  }
+
+  private static PdfDictionary asDictionary(PdfObject object) {
+    return object != null && object.isDictionary() ? (PdfDictionary) object : null;
+  }
+
+  private void addLinkRect(PdfArray rectArray, int linkTarget) {
+    if (rectArray == null || rectArray.size() < 4) {
+      return;
+    }
+    if (linkRectCount == linkRectTargets.length) {
+      linkRects = Arrays.copyOf(linkRects, 8 * linkRectCount);
+      linkRectTargets = Arrays.copyOf(linkRectTargets, 2 * linkRectCount);
+    }
+    Rectangle rect = PdfReader.getNormalizedRectangle(rectArray);
+    linkRects[4 * linkRectCount] = rect.getLeft();
+    linkRects[4 * linkRectCount + 1] = rect.getBottom();
+    linkRects[4 * linkRectCount + 2] = rect.getRight();
+    linkRects[4 * linkRectCount + 3] = rect.getTop();
+    linkRectTargets[linkRectCount] = linkTarget;
+    linkRectCount++;
+  }
+
+  /**
+   * Passes rendering events on to the strategy for the page currently being parsed, and text to the choice text index
+   * when the page has links
+   */
+  private static final class StrategySwitch implements RenderListener {
+    private RenderListener strategy;
+    private RenderListener choiceText;
+
+    @Override
+    public void beginTextBlock() {
+      strategy.beginTextBlock();
+    }
+
+    @Override
+    public void renderText(TextRenderInfo renderInfo) {
+      strategy.renderText(renderInfo);
+      if (choiceText != null) {
+        choiceText.renderText(renderInfo);
+      }
+    }
+
+    @Override
+    public void endTextBlock() {
+      strategy.endTextBlock();
+    }
+
+    @Override
+    public void renderImage(ImageRenderInfo renderInfo) {
+      strategy.renderImage(renderInfo);
+    }
+  }
+}
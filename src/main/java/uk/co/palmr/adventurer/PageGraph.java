@@ -0,0 +1,65 @@
+package uk.co.palmr.adventurer;
+
+/**
+ * Read-only view of the page graph used by the route tooling. Pages are dense int ids from 0, in PDF page order, and
+ * each page's Continues relationships come before its Choice relationships.
+ *
+ * CompactPageGraph holds the graph in heap arrays, MappedPageGraph reads the same arrays straight out of an exported
+ * file.
+ */
+public interface PageGraph {
+
+  int getPageCount();
+
+  int getPdfPageNumber(int page);
+
+  String getBookPageLabel(int page);
+
+  /**
+   * @return Page id with the given book page label, or -1 if there isn't one
+   */
+  int findPage(String bookPageLabel);
+
+  int getWordCount(int page);
+
+  boolean hasPageType(int page, PageTypes pageType);
+
+  /**
+   * @return Whether the page is an ending, an EndPage or ImagePage
+   */
+  default boolean isEnding(int page) {
+    return hasPageType(page, PageTypes.EndPage) || hasPageType(page, PageTypes.ImagePage);
+  }
+
+  int getContinuesCount(int page);
+
+  int getContinuesTarget(int page, int i);
+
+  int getChoiceCount(int page);
+
+  int getChoiceTarget(int page, int i);
+
+  /**
+   * @return Number of Continues and Choice relationships out of a page
+   */
+  default int getOutDegree(int page) {
+    return getContinuesCount(page) + getChoiceCount(page);
+  }
+
+  /**
+   * @return Target of the i'th relationship out of a page, Continues relationships first then Choices
+   */
+  default int getNeighbour(int page, int i) {
+    int continuesCount = getContinuesCount(page);
+    return i < continuesCount ? getContinuesTarget(page, i) : getChoiceTarget(page, i - continuesCount);
+  }
+
+  int getInDegree(int page);
+
+  /**
+   * @return Source of the i'th relationship into a page
+   */
+  int getIncomingNeighbour(int page, int i);
+
+  int getRelationshipCount();
+}
@@ -0,0 +1,238 @@
+package uk.co.palmr.adventurer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * How much each page gets read, two ways:
+ *
+ * - PageRank, the share of time a reader who keeps following relationships (and now and then, or at an ending, jumps
+ *   to any page at all) spends on each page. The ranks of a book add up to 1.
+ * - Route traffic, the number of times a reader starting at the start of the book reads each page on average, picking
+ *   uniformly between the relationships out of every page. Readers stop at a page with nothing out of it, or at one
+ *   that can't reach an ending, as they'd only go round a loop forever. Pages a reader can't get to have no traffic.
+ *
+ * PageRank is found by iterating until the ranks stop changing, each pass reading the last pass's ranks of a page's
+ * incoming neighbours, so pages are ranked in parallel in fixed chunks without sharing anything they write. Route
+ * traffic only flows forward between strongly connected components, so it's worked out a wavefront of components at a
+ * time like RouteStatistics, with only the pages of a loop iterated. Sums are always added up in the same order, so the
+ * scores are the same to the last bit whatever the number of threads, and an incremental run that changed nothing
+ * doesn't see them change.
+ */
+public final class PageImportance {
+  private static final Logger LOGGER = LogManager.getLogger(PageImportance.class);
+
+  // Chance of following a relationship rather than jumping to any page
+  static final double DAMPING = 0.85;
+
+  // Iteration stops once the scores change by less than this much in total, relative to their sum
+  private static final double TOLERANCE = 1e-10;
+  private static final int MAX_ITERATIONS = 1000;
+
+  // Pages ranked per task
+  private static final int CHUNK_SIZE = 4096;
+  // Wavefronts smaller than this aren't worth splitting between threads
+  private static final int PARALLEL_THRESHOLD = 512;
+
+  private final int pageCount;
+  // Incoming relationships of each page, sources of page p at incomingOffsets[p] until incomingOffsets[p + 1]
+  private final int[] incomingOffsets;
+  private final int[] incomingSources;
+  private final double[] pageRanks;
+  private final double[] routeTraffic;
+
+  /**
+   * @param graph Page graph
+   * @param components Strongly connected components of the graph
+   * @param endings Endings reachable from each page
+   * @param start Page id readers start from, or -1 for a book without a start
+   */
+  public PageImportance(PageGraph graph, StronglyConnectedComponents components, EndingReachability endings, int start) {
+    try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.RANK_PAGES)) {
+      pageCount = graph.getPageCount();
+      incomingOffsets = new int[pageCount + 1];
+      for (int page = 0; page < pageCount; page++) {
+        incomingOffsets[page + 1] = incomingOffsets[page] + graph.getInDegree(page);
+      }
+      incomingSources = new int[incomingOffsets[pageCount]];
+      for (int page = 0; page < pageCount; page++) {
+        for (int i = 0; i < graph.getInDegree(page); i++) {
+          incomingSources[incomingOffsets[page] + i] = graph.getIncomingNeighbour(page, i);
+        }
+      }
+
+      // Share of a page's score passed along each relationship out of it, 0 where nothing is passed on
+      double[] rankShares = new double[pageCount];
+      double[] trafficShares = new double[pageCount];
+      for (int page = 0; page < pageCount; page++) {
+        int outDegree = graph.getOutDegree(page);
+        if (outDegree > 0) {
+          rankShares[page] = 1.0 / outDegree;
+          if (endings.canReachAny(page)) {
+            trafficShares[page] = 1.0 / outDegree;
+          }
+        }
+      }
+
+      pageRanks = rank(rankShares);
+      routeTraffic = new double[pageCount];
+      if (start >= 0) {
+        traffic(components, trafficShares, start);
+      }
+    }
+  }
+
+  /**
+   * @param shares Share of each page's rank passed along each relationship out of it, 0 for a page with none
+   * @return PageRank of every page
+   */
+  private double[] rank(double[] shares) {
+    double[] ranks = new double[pageCount];
+    if (pageCount == 0) {
+      return ranks;
+    }
+    Arrays.fill(ranks, 1.0 / pageCount);
+
+    // What each page passes along each of its relationships, and the rank of pages with nothing to pass it along
+    double[] passed = new double[pageCount];
+    double danglingRank = 0;
+    for (int page = 0; page < pageCount; page++) {
+      passed[page] = ranks[page] * shares[page];
+      danglingRank += shares[page] == 0 ? ranks[page] : 0;
+    }
+
+    double[] nextRanks = new double[pageCount];
+    double[] nextPassed = new double[pageCount];
+    int chunkCount = (pageCount + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    double[] chunkChanges = new double[chunkCount];
+    double[] chunkDanglingRanks = new double[chunkCount];
+    int iteration = 0;
+    double change = Double.MAX_VALUE;
+    while (change > TOLERANCE && iteration < MAX_ITERATIONS) {
+      // Dangling pages and the damping both spread their rank evenly over every page
+      double base = ((1 - DAMPING) + DAMPING * danglingRank) / pageCount;
+      double[] current = ranks;
+      double[] currentPassed = passed;
+      double[] updated = nextRanks;
+      double[] updatedPassed = nextPassed;
+      IntStream.range(0, chunkCount).parallel().forEach(chunk -> {
+        double chunkChange = 0;
+        double chunkDanglingRank = 0;
+        for (int page = chunk * CHUNK_SIZE; page < Math.min((chunk + 1) * CHUNK_SIZE, pageCount); page++) {
+          double rank = base + DAMPING * incoming(page, currentPassed);
+          chunkChange += Math.abs(rank - current[page]);
+          chunkDanglingRank += shares[page] == 0 ? rank : 0;
+          updated[page] = rank;
+          updatedPassed[page] = rank * shares[page];
+        }
+        chunkChanges[chunk] = chunkChange;
+        chunkDanglingRanks[chunk] = chunkDanglingRank;
+      });
+
+      change = sum(chunkChanges);
+      danglingRank = sum(chunkDanglingRanks);
+      nextRanks = ranks;
+      nextPassed = passed;
+      ranks = updated;
+      passed = updatedPassed;
+      iteration++;
+    }
+
+    if (change > TOLERANCE) {
+      LOGGER.warn("PageRank hadn't settled after " + iteration + " iterations, still changing by " + change);
+    }
+    else {
+      LOGGER.debug("PageRank settled after " + iteration + " iterations");
+    }
+    return ranks;
+  }
+
+  /**
+   * Fill in the route traffic of every page reachable from the start, components in a wavefront at once
+   *
+   * @param components Strongly connected components of the graph
+   * @param shares Share of each page's traffic passed along each relationship out of it, 0 where readers stop
+   * @param start Page id readers start from
+   */
+  private void traffic(StronglyConnectedComponents components, double[] shares, int start) {
+    // Traffic passed along each relationship out of each page, filled in once the page is done
+    double[] passed = new double[pageCount];
+    int[][] wavefronts = components.getWavefronts(components.getComponent(start));
+    for (int[] levelComponents : wavefronts) {
+      IntStream wavefront = IntStream.range(0, levelComponents.length);
+      if (levelComponents.length >= PARALLEL_THRESHOLD) {
+        wavefront = wavefront.parallel();
+      }
+      // Each component only reads traffic passed from its own pages and earlier wavefronts
+      wavefront.forEach(i -> componentTraffic(components, levelComponents[i], shares, passed, start));
+    }
+  }
+
+  /**
+   * Work out the traffic of a component's pages, once all the traffic into it from earlier components is known. A
+   * single page takes one pass, the pages of a loop are passed over until their traffic stops changing.
+   */
+  private void componentTraffic(StronglyConnectedComponents components, int component, double[] shares, double[] passed, int start) {
+    int size = components.getComponentSize(component);
+    int iteration = 0;
+    double change;
+    do {
+      change = 0;
+      double total = 0;
+      for (int i = 0; i < size; i++) {
+        int page = components.getComponentPage(component, i);
+        double visits = (page == start ? 1 : 0) + incoming(page, passed);
+        change += Math.abs(visits - routeTraffic[page]);
+        total += visits;
+        routeTraffic[page] = visits;
+        passed[page] = visits * shares[page];
+      }
+      change = total > 0 ? change / total : 0;
+      iteration++;
+    }
+    while (size > 1 && change > TOLERANCE && iteration < MAX_ITERATIONS);
+
+    if (size > 1 && change > TOLERANCE) {
+      LOGGER.warn("Route traffic of the " + size + " page loop from page id " + components.getComponentPage(component, 0)
+        + " hadn't settled after " + iteration + " iterations, still changing by " + change);
+    }
+  }
+
+  /**
+   * @return Score passed to a page by its incoming neighbours, always added up in the same order
+   */
+  private double incoming(int page, double[] passed) {
+    double score = 0;
+    for (int i = incomingOffsets[page]; i < incomingOffsets[page + 1]; i++) {
+      score += passed[incomingSources[i]];
+    }
+    return score;
+  }
+
+  private static double sum(double[] values) {
+    double sum = 0;
+    for (double value : values) {
+      sum += value;
+    }
+    return sum;
+  }
+
+  /**
+   * @param page Page id
+   * @return PageRank of the page
+   */
+  public double getPageRank(int page) {
+    return pageRanks[page];
+  }
+
+  /**
+   * @param page Page id
+   * @return Average number of times a reader from the start of the book reads the page
+   */
+  public double getRouteTraffic(int page) {
+    return routeTraffic[page];
+  }
+}
@@ -0,0 +1,408 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.text.factories.RomanAlphabetFactory;
+import com.itextpdf.text.factories.RomanNumberFactory;
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfString;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The page labels of a PDF kept as the ranges of its /PageLabels number tree rather than a string per page. A range
+ * starts at a page and numbers the pages from there in one style (decimal, upper or lower case roman numerals or
+ * letters, or no number at all) after a prefix, so the label of any page is worked out from the range it falls in,
+ * found with a binary search over the ranges' first pages.
+ *
+ * Labels are looked up the other way by trying each prefix of the label: a binary search over the ranges sorted by
+ * prefix finds the ranges with that prefix, the rest of the label is parsed in each of their styles, and a binary
+ * search over their start values finds the range holding that number. "G12" finds the G prefixed decimal range of the
+ * sub book and then the page numbered 12 within it.
+ */
+public final class PageLabelIndex {
+  private static final char DECIMAL = 'D';
+  private static final char UPPER_ROMAN = 'R';
+  private static final char LOWER_ROMAN = 'r';
+  private static final char UPPER_LETTERS = 'A';
+  private static final char LOWER_LETTERS = 'a';
+  private static final char NO_NUMBER = 'e';
+
+  private final int pageCount;
+  // Ranges ordered by their first page, pages are counted from 0 here
+  private final int[] startPages;
+  private final char[] styles;
+  private final String[] prefixes;
+  private final int[] startValues;
+  // Range indexes ordered by prefix, style then start value, for looking labels up
+  private final int[] byPrefix;
+  // Distinct lengths of the prefixes, longest first
+  private final int[] prefixLengths;
+  // Highest value after the last page of any range up to this one in byPrefix with the same prefix and style
+  private final long[] valueReach;
+
+  private PageLabelIndex(int pageCount, int[] startPages, char[] styles, String[] prefixes, int[] startValues) {
+    this.pageCount = pageCount;
+    this.startPages = startPages;
+    this.styles = styles;
+    this.prefixes = prefixes;
+    this.startValues = startValues;
+
+    Integer[] order = new Integer[startPages.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, Comparator.<Integer, String>comparing(range -> prefixes[range])
+      .thenComparingInt(range -> styles[range])
+      .thenComparingInt(range -> styles[range] == NO_NUMBER ? 0 : startValues[range])
+      .thenComparingInt(range -> startPages[range]));
+    byPrefix = new int[order.length];
+    valueReach = new long[order.length];
+    for (int i = 0; i < order.length; i++) {
+      int range = order[i];
+      byPrefix[i] = range;
+      long reach = (long) startValues[range] + rangeLength(range);
+      boolean sameGroup = i > 0 && styles[byPrefix[i - 1]] == styles[range] && prefixes[byPrefix[i - 1]].equals(prefixes[range]);
+      valueReach[i] = sameGroup ? Math.max(valueReach[i - 1], reach) : reach;
+    }
+
+    prefixLengths = Arrays.stream(prefixes).mapToInt(String::length).distinct()
+      .map(length -> -length).sorted().map(length -> -length).toArray();
+  }
+
+  /**
+   * Read the page label ranges of a PDF
+   *
+   * @param reader PdfReader to get PDF information from
+   * @return Index of the PDF's page labels, or of its page numbers if it has no page labels, the way a PDF viewer
+   * would label them
+   */
+  public static PageLabelIndex read(PdfReader reader) {
+    try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.READ_PAGE_LABELS)) {
+      return readRanges(reader);
+    }
+  }
+
+  private static PageLabelIndex readRanges(PdfReader reader) {
+    int pageCount = reader.getNumberOfPages();
+    Ranges ranges = new Ranges();
+    PdfObject labels = PdfReader.getPdfObjectRelease(reader.getCatalog().get(PdfName.PAGELABELS));
+    if (labels instanceof PdfDictionary) {
+      readNumberTree((PdfDictionary) labels, pageCount, ranges);
+    }
+    return ranges.build(pageCount);
+  }
+
+  /**
+   * Walk a number tree node and its kids, adding a range for every entry on a page of the PDF
+   */
+  private static void readNumberTree(PdfDictionary node, int pageCount, Ranges ranges) {
+    PdfObject nums = PdfReader.getPdfObjectRelease(node.get(PdfName.NUMS));
+    if (nums instanceof PdfArray) {
+      PdfArray entries = (PdfArray) nums;
+      for (int i = 0; i + 1 < entries.size(); i += 2) {
+        PdfObject key = PdfReader.getPdfObjectRelease(entries.getPdfObject(i));
+        PdfObject value = PdfReader.getPdfObjectRelease(entries.getPdfObject(i + 1));
+        if (key instanceof PdfNumber && value instanceof PdfDictionary
+          && ((PdfNumber) key).intValue() >= 0 && ((PdfNumber) key).intValue() < pageCount) {
+          ranges.add(((PdfNumber) key).intValue(), (PdfDictionary) value);
+        }
+      }
+    }
+
+    PdfObject kids = PdfReader.getPdfObjectRelease(node.get(PdfName.KIDS));
+    if (kids instanceof PdfArray) {
+      for (int i = 0; i < ((PdfArray) kids).size(); i++) {
+        PdfObject kid = PdfReader.getPdfObjectRelease(((PdfArray) kids).getPdfObject(i));
+        if (kid instanceof PdfDictionary) {
+          readNumberTree((PdfDictionary) kid, pageCount, ranges);
+        }
+      }
+    }
+  }
+
+  /**
+   * Index an explicit label for every page, for graphs that weren't read from a PDF
+   *
+   * @param pageLabels Page label of every page, by PDF page number - 1
+   * @return Index with an unnumbered range for each page
+   */
+  public static PageLabelIndex of(String[] pageLabels) {
+    Ranges ranges = new Ranges();
+    for (int page = 0; page < pageLabels.length; page++) {
+      ranges.add(page, NO_NUMBER, pageLabels[page], 1);
+    }
+    return ranges.build(pageLabels.length);
+  }
+
+  public int getPageCount() {
+    return pageCount;
+  }
+
+  public int getRangeCount() {
+    return startPages.length;
+  }
+
+  /**
+   * @param pdfPageNumber PDF page number, starting at 1
+   * @return Page label of the page
+   */
+  public String getLabel(int pdfPageNumber) {
+    if (pdfPageNumber < 1 || pdfPageNumber > pageCount) {
+      throw new IndexOutOfBoundsException("No page " + pdfPageNumber + " in " + pageCount + " pages");
+    }
+    int page = pdfPageNumber - 1;
+    int range = Arrays.binarySearch(startPages, page);
+    if (range < 0) {
+      // The range before the insertion point, there's always a range starting at page 0
+      range = -range - 2;
+    }
+    return prefixes[range] + format(styles[range], startValues[range] + page - startPages[range]);
+  }
+
+  /**
+   * @return Page label of every page, by PDF page number - 1
+   */
+  public String[] toArray() {
+    String[] labels = new String[pageCount];
+    for (int page = 0; page < pageCount; page++) {
+      labels[page] = getLabel(page + 1);
+    }
+    return labels;
+  }
+
+  /**
+   * @param label Page label to look for
+   * @return PDF page number of a page with the label, or -1 if there isn't one. A label more than one page has, which
+   * only happens when ranges repeat their numbering, finds one of them.
+   */
+  public int findPdfPageNumber(String label) {
+    for (int prefixLength : prefixLengths) {
+      if (prefixLength > label.length()) {
+        continue;
+      }
+      String prefix = label.substring(0, prefixLength);
+      String number = label.substring(prefixLength);
+      int group = firstOf(prefix, Character.MIN_VALUE);
+      // There are only a few styles, each one's ranges are found with a binary search
+      while (group < byPrefix.length && prefixes[byPrefix[group]].equals(prefix)) {
+        char style = styles[byPrefix[group]];
+        int end = firstOf(prefix, style + 1);
+        int pdfPageNumber = findInStyle(group, end, style, number);
+        if (pdfPageNumber > 0) {
+          return pdfPageNumber;
+        }
+        group = end;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return Position in byPrefix of the first range with the prefix and a style at least the one given, or where it
+   * would be
+   */
+  private int firstOf(String prefix, int style) {
+    int low = 0;
+    int high = byPrefix.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      int comparison = prefixes[byPrefix[middle]].compareTo(prefix);
+      if (comparison < 0 || comparison == 0 && styles[byPrefix[middle]] < style) {
+        low = middle + 1;
+      }
+      else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @param from First position in byPrefix of the ranges to search, all with the same prefix and style
+   * @param to Position after the last
+   * @return PDF page number of the page numbered number, or -1 if none of the ranges have it
+   */
+  private int findInStyle(int from, int to, char style, String number) {
+    if (style == NO_NUMBER) {
+      return number.isEmpty() ? startPages[byPrefix[from]] + 1 : -1;
+    }
+    int value = parse(style, number);
+    if (value < 1) {
+      return -1;
+    }
+
+    // The last range starting at or before the value, then earlier ones only while one of them reaches past the value,
+    // which only happens when ranges repeat their numbering
+    int low = from;
+    int high = to;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (startValues[byPrefix[middle]] <= value) {
+        low = middle + 1;
+      }
+      else {
+        high = middle;
+      }
+    }
+    for (int i = low - 1; i >= from && valueReach[i] > value; i--) {
+      int range = byPrefix[i];
+      if (value - startValues[range] < rangeLength(range)) {
+        return startPages[range] + value - startValues[range] + 1;
+      }
+    }
+    return -1;
+  }
+
+  private int rangeLength(int range) {
+    return (range + 1 < startPages.length ? startPages[range + 1] : pageCount) - startPages[range];
+  }
+
+  private static String format(char style, int value) {
+    switch (style) {
+      case UPPER_ROMAN:
+        return RomanNumberFactory.getUpperCaseString(value);
+      case LOWER_ROMAN:
+        return RomanNumberFactory.getLowerCaseString(value);
+      case UPPER_LETTERS:
+        return RomanAlphabetFactory.getUpperCaseString(value);
+      case LOWER_LETTERS:
+        return RomanAlphabetFactory.getLowerCaseString(value);
+      case NO_NUMBER:
+        return "";
+      default:
+        return String.valueOf(value);
+    }
+  }
+
+  /**
+   * @return Value of a number written in a style, or -1 if it isn't exactly how that style writes a number
+   */
+  private static int parse(char style, String number) {
+    // Longer numbers than these would overflow an int
+    if (number.isEmpty() || number.length() > 9) {
+      return -1;
+    }
+    int value;
+    switch (style) {
+      case UPPER_ROMAN:
+      case LOWER_ROMAN:
+        value = parseRoman(number);
+        break;
+      case UPPER_LETTERS:
+      case LOWER_LETTERS:
+        value = number.length() > 6 ? -1 : parseLetters(number);
+        break;
+      default:
+        value = 0;
+        for (int i = 0; i < number.length(); i++) {
+          char c = number.charAt(i);
+          if (c < '0' || c > '9') {
+            return -1;
+          }
+          value = value * 10 + c - '0';
+        }
+    }
+    // Only the way the style writes the value, so "012", "IIII" or "b" for upper case letters don't match
+    return value > 0 && format(style, value).equals(number) ? value : -1;
+  }
+
+  private static int parseRoman(String number) {
+    int value = 0;
+    int previous = 0;
+    for (int i = number.length() - 1; i >= 0; i--) {
+      int digit;
+      switch (Character.toUpperCase(number.charAt(i))) {
+        case 'I': digit = 1; break;
+        case 'V': digit = 5; break;
+        case 'X': digit = 10; break;
+        case 'L': digit = 50; break;
+        case 'C': digit = 100; break;
+        case 'D': digit = 500; break;
+        case 'M': digit = 1000; break;
+        default: return -1;
+      }
+      value += digit < previous ? -digit : digit;
+      previous = Math.max(previous, digit);
+    }
+    return value;
+  }
+
+  /**
+   * Letters count a, b ... z, aa, ab ... az, ba and so on
+   */
+  private static int parseLetters(String number) {
+    int value = 0;
+    for (int i = 0; i < number.length(); i++) {
+      char c = Character.toLowerCase(number.charAt(i));
+      if (c < 'a' || c > 'z') {
+        return -1;
+      }
+      value = value * 26 + c - 'a' + 1;
+    }
+    return value;
+  }
+
+  /**
+   * Ranges collected in the order they're read, duplicates of a page replacing the earlier one
+   */
+  private static final class Ranges {
+    private int[] startPages = new int[8];
+    private char[] styles = new char[8];
+    private String[] prefixes = new String[8];
+    private int[] startValues = new int[8];
+    private int count = 0;
+
+    private void add(int startPage, PdfDictionary range) {
+      PdfObject style = PdfReader.getPdfObjectRelease(range.get(PdfName.S));
+      PdfObject prefix = PdfReader.getPdfObjectRelease(range.get(PdfName.P));
+      PdfObject startValue = PdfReader.getPdfObjectRelease(range.get(PdfName.ST));
+      add(startPage,
+        style instanceof PdfName ? style.toString().charAt(1) : NO_NUMBER,
+        prefix instanceof PdfString ? ((PdfString) prefix).toUnicodeString() : "",
+        startValue instanceof PdfNumber ? ((PdfNumber) startValue).intValue() : 1);
+    }
+
+    private void add(int startPage, char style, String prefix, int startValue) {
+      if (count == startPages.length) {
+        startPages = Arrays.copyOf(startPages, count * 2);
+        styles = Arrays.copyOf(styles, count * 2);
+        prefixes = Arrays.copyOf(prefixes, count * 2);
+        startValues = Arrays.copyOf(startValues, count * 2);
+      }
+      startPages[count] = startPage;
+      styles[count] = style;
+      prefixes[count] = prefix;
+      startValues[count] = startValue;
+      count++;
+    }
+
+    private PageLabelIndex build(int pageCount) {
+      // Sorted by first page, a stable sort so the last of several entries for a page is the one kept
+      Integer[] order = new Integer[count];
+      for (int i = 0; i < count; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, Comparator.comparingInt(i -> startPages[i]));
+
+      Ranges sorted = new Ranges();
+      // Pages before the first range are numbered from 1
+      if (count == 0 || startPages[order[0]] > 0) {
+        sorted.add(0, DECIMAL, "", 1);
+      }
+      for (int i = 0; i < count; i++) {
+        int range = order[i];
+        if (i + 1 < count && startPages[order[i + 1]] == startPages[range]) {
+          continue;
+        }
+        sorted.add(startPages[range], styles[range], prefixes[range], startValues[range]);
+      }
+      return new PageLabelIndex(pageCount, Arrays.copyOf(sorted.startPages, sorted.count), Arrays.copyOf(sorted.styles, sorted.count),
+        Arrays.copyOf(sorted.prefixes, sorted.count), Arrays.copyOf(sorted.startValues, sorted.count));
+    }
+  }
+}
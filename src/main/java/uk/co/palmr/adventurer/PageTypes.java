@@ -0,0 +1,14 @@
+package uk.co.palmr.adventurer;
+
+import org.neo4j.graphdb.Label;
+
+/**
+ * I categorised the main page types found in To Be Or Not To Be
+ */
+public enum PageTypes implements Label {
+  Page,
+  ImagePage,
+  EndPage,
+  SubBook,
+  Ignore
+}
@@ -0,0 +1,246 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.text.pdf.PdfReader;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Extracts pages on a pool of worker threads. PdfReader isn't thread-safe, so every worker opens its own reader over
+ * the same PdfSource (read-only bytes, or a memory mapped file in low memory mode) and claims small blocks of pages
+ * until the book is done. Results are slotted in by PDF page number so the single graph writer sees exactly what a
+ * sequential run would produce.
+ *
+ * Pages are handed on in order as soon as they and every page before them are done. Workers can only claim a block
+ * while fewer than a window's worth of pages are waiting to be handed on, so a slow consumer holds the workers back
+ * rather than letting extracted pages pile up.
+ */
+public class ParallelPageExtractor {
+  private static final Logger LOGGER = LogManager.getLogger(ParallelPageExtractor.class);
+
+  // Pages claimed by a worker at a time, small enough to balance uneven pages but large enough to avoid contention
+  static final int BLOCK_SIZE = 16;
+
+  private final PdfSource pdfSource;
+  private final PageLabelIndex pageLabels;
+  private final LinkDestinationIndex linkDestinations;
+  private final ExtractionCache cache;
+  private final boolean keepText;
+  private final int threads;
+
+  /**
+   * @param pdfSource The PDF, shared between workers
+   * @param pageLabels Page labels of the PDF
+   * @param linkDestinations Named destinations of the PDF, resolved once and shared between workers
+   * @param threads Number of worker threads
+   */
+  public ParallelPageExtractor(PdfSource pdfSource, PageLabelIndex pageLabels, LinkDestinationIndex linkDestinations, int threads) {
+    this(pdfSource, pageLabels, linkDestinations, null, threads);
+  }
+
+  /**
+   * @param pdfSource The PDF, shared between workers
+   * @param pageLabels Page labels of the PDF
+   * @param linkDestinations Named destinations of the PDF, resolved once and shared between workers
+   * @param cache Cache of the PDF's extracted pages shared between workers, or null to parse every page
+   * @param threads Number of worker threads
+   */
+  public ParallelPageExtractor(PdfSource pdfSource, PageLabelIndex pageLabels, LinkDestinationIndex linkDestinations, ExtractionCache cache,
+                               int threads) {
+    this(pdfSource, pageLabels, linkDestinations, cache, false, threads);
+  }
+
+  /**
+   * @param pdfSource The PDF, shared between workers
+   * @param pageLabels Page labels of the PDF
+   * @param linkDestinations Named destinations of the PDF, resolved once and shared between workers
+   * @param cache Cache of the PDF's extracted pages shared between workers, or null to parse every page
+   * @param keepText Whether to keep each page's text, see PageExtraction.getText
+   * @param threads Number of worker threads
+   */
+  public ParallelPageExtractor(PdfSource pdfSource, PageLabelIndex pageLabels, LinkDestinationIndex linkDestinations, ExtractionCache cache,
+                               boolean keepText, int threads) {
+    this.pdfSource = pdfSource;
+    this.pageLabels = pageLabels;
+    this.linkDestinations = linkDestinations;
+    this.cache = cache;
+    this.keepText = keepText;
+    this.threads = threads;
+  }
+
+  /**
+   * Extract every page of the PDF
+   *
+   * @param pageCount Number of pages in the PDF
+   * @return Extraction results for every page, ordered by PDF page number
+   * @throws IOException
+   */
+  public List<PageExtraction> extractAll(int pageCount) throws IOException {
+    List<PageExtraction> pages = new ArrayList<>(pageCount);
+    extractInOrder(1, pageCount, pageCount, pages::add);
+    return pages;
+  }
+
+  /**
+   * Extract a run of pages, handing each one to the consumer on the calling thread in PDF page order
+   *
+   * @param firstPage PDF page number of the first page to extract
+   * @param lastPage PDF page number of the last page to extract
+   * @param window Most pages the workers can get ahead of the consumer, rounded up to a whole block
+   * @param consumer Takes each extracted page
+   * @throws IOException
+   */
+  public void extractInOrder(int firstPage, int lastPage, int window, Consumer<PageExtraction> consumer) throws IOException {
+    if (lastPage < firstPage) {
+      return;
+    }
+    int blockCount = (lastPage - firstPage) / BLOCK_SIZE + 1;
+    int windowBlocks = Math.max(1, Math.min(blockCount, (window + BLOCK_SIZE - 1) / BLOCK_SIZE));
+    Pipeline pipeline = new Pipeline(firstPage, lastPage, windowBlocks);
+
+    int workerCount = Math.min(threads, blockCount);
+    ExecutorService executor = Executors.newFixedThreadPool(workerCount);
+    try {
+      for (int i = 0; i < workerCount; i++) {
+        executor.submit(new Worker(pipeline));
+      }
+
+      for (int pdfPageNumber = firstPage; pdfPageNumber <= lastPage; pdfPageNumber++) {
+        consumer.accept(pipeline.take(pdfPageNumber));
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while extracting pages", e);
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Pages on their way from the workers to the consumer. Slots are a ring of the window's blocks: a worker can only
+   * claim a block once the block a window before it has been taken, so it never overwrites a page still waiting.
+   */
+  private static final class Pipeline {
+    private final int firstPage;
+    private final int lastPage;
+    private final AtomicInteger nextBlock = new AtomicInteger(0);
+    // One permit per block of the window that's free to be claimed
+    private final Semaphore freeBlocks;
+    private final AtomicReferenceArray<PageExtraction> slots;
+    private final Object lock = new Object();
+    private volatile Throwable failure;
+
+    Pipeline(int firstPage, int lastPage, int windowBlocks) {
+      this.firstPage = firstPage;
+      this.lastPage = lastPage;
+      this.freeBlocks = new Semaphore(windowBlocks);
+      this.slots = new AtomicReferenceArray<>(windowBlocks * BLOCK_SIZE);
+    }
+
+    /**
+     * @return PDF page number of the first page of the next block, or past the last page once they're all claimed
+     * @throws InterruptedException If interrupted waiting for the consumer to free a block
+     */
+    int claimBlock() throws InterruptedException {
+      freeBlocks.acquire();
+      int blockStart = firstPage + nextBlock.getAndIncrement() * BLOCK_SIZE;
+      if (blockStart > lastPage) {
+        freeBlocks.release();
+      }
+      return blockStart;
+    }
+
+    void put(int pdfPageNumber, PageExtraction page) {
+      slots.set((pdfPageNumber - firstPage) % slots.length(), page);
+      synchronized (lock) {
+        lock.notifyAll();
+      }
+    }
+
+    void fail(Throwable e) {
+      failure = e;
+      synchronized (lock) {
+        lock.notifyAll();
+      }
+    }
+
+    /**
+     * Wait for a page, freeing its block once it's the block's last page
+     */
+    PageExtraction take(int pdfPageNumber) throws IOException, InterruptedException {
+      int slot = (pdfPageNumber - firstPage) % slots.length();
+      PageExtraction page;
+      synchronized (lock) {
+        while ((page = slots.get(slot)) == null) {
+          if (failure != null) {
+            if (failure instanceof IOException) {
+              throw (IOException) failure;
+            }
+            throw new RuntimeException("Failed to extract pages", failure);
+          }
+          lock.wait();
+        }
+      }
+      slots.set(slot, null);
+
+      if ((pdfPageNumber - firstPage) % BLOCK_SIZE == BLOCK_SIZE - 1 || pdfPageNumber == lastPage) {
+        freeBlocks.release();
+      }
+      return page;
+    }
+  }
+
+  /**
+   * Claims blocks of pages and extracts them with a reader of its own
+   */
+  private class Worker implements Callable<Integer> {
+    private final Pipeline pipeline;
+
+    Worker(Pipeline pipeline) {
+      this.pipeline = pipeline;
+    }
+
+    @Override
+    public Integer call() {
+      int extracted = 0;
+      try {
+        PdfReader reader = pdfSource.open();
+        try {
+          PageExtractor extractor = new PageExtractor(reader, pageLabels, linkDestinations, false, cache, keepText);
+          int blockStart;
+          while ((blockStart = pipeline.claimBlock()) <= pipeline.lastPage) {
+            int blockEnd = Math.min(blockStart + BLOCK_SIZE - 1, pipeline.lastPage);
+            for (int pdfPageNumber = blockStart; pdfPageNumber <= blockEnd; pdfPageNumber++) {
+              pipeline.put(pdfPageNumber, extractor.extract(pdfPageNumber));
+              extracted++;
+            }
+          }
+        }
+        finally {
+          reader.close();
+        }
+      }
+      catch (InterruptedException e) {
+        // The consumer has stopped, there's nobody left to extract pages for
+        Thread.currentThread().interrupt();
+      }
+      catch (Throwable e) {
+        pipeline.fail(e);
+      }
+      LOGGER.debug("Worker extracted " + extracted + " pages");
+      return extracted;
+    }
+  }
+}
@@ -29,7 +29,8 @@ public class PdfParseTest {
   private static final int SUB_BOOK_TITLE = 433;
 
   public static void main(String[] args) throws IOException {
-    PdfReader reader = new PdfReader(System.getProperty("user.dir") + File.separator + "resources" + File.separator + "tbontb-regular.pdf");
+    String pdfFile = args.length > 0 ? args[0] : System.getProperty("user.dir") + File.separator + "resources" + File.separator + "tbontb-regular.pdf";
+    PdfReader reader = new PdfReader(pdfFile);
     try {
       int page = SUB_BOOK_TITLE;
 
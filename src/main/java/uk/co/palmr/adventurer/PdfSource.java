@@ -0,0 +1,80 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.text.pdf.PdfReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+
+/**
+ * Where the PDF is read from, so each extraction worker can open a reader of its own over it.
+ *
+ * An in memory source reads the whole file into the heap once and every reader parses the complete document from those
+ * bytes. A mapped source memory maps the file and opens readers in partial mode instead: objects are only read from the
+ * file when they're asked for, so once a page has been released (PdfReader.releasePage) nothing of it stays on the
+ * heap and the heap doesn't have to grow with the size of the book.
+ */
+public final class PdfSource {
+  private final byte[] pdfBytes;
+  private final Path pdfPath;
+
+  private PdfSource(byte[] pdfBytes, Path pdfPath) {
+    this.pdfBytes = pdfBytes;
+    this.pdfPath = pdfPath;
+  }
+
+  /**
+   * @param pdfPath PDF file to read into memory
+   * @return Source over the bytes of the file
+   * @throws IOException
+   */
+  public static PdfSource inMemory(Path pdfPath) throws IOException {
+    return new PdfSource(Files.readAllBytes(pdfPath), null);
+  }
+
+  /**
+   * @param pdfPath PDF file to memory map
+   * @return Source that reads the file a page at a time
+   */
+  public static PdfSource mapped(Path pdfPath) {
+    return new PdfSource(null, pdfPath);
+  }
+
+  /**
+   * Open a new reader over the PDF, each thread needs its own as PdfReader isn't thread-safe
+   *
+   * @return Reader, to be closed by the caller
+   * @throws IOException
+   */
+  public PdfReader open() throws IOException {
+    if (pdfBytes != null) {
+      return new PdfReader(pdfBytes);
+    }
+    return new PdfReader(pdfPath.toString(), null, true);
+  }
+
+  /**
+   * @return Hex encoded SHA-256 of the PDF, identifying exactly which file a run was over
+   * @throws IOException
+   */
+  public String digest() throws IOException {
+    MessageDigest digest = Digests.sha256();
+
+    if (pdfBytes != null) {
+      digest.update(pdfBytes);
+    }
+    else {
+      try (InputStream in = Files.newInputStream(pdfPath)) {
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+          digest.update(buffer, 0, read);
+        }
+      }
+    }
+
+    return Digests.hex(digest);
+  }
+}
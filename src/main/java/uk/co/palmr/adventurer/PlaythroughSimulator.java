@@ -0,0 +1,447 @@
+package uk.co.palmr.adventurer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Estimates how often readers reach each ending, and how much they read on the way, by playing the book through at
+ * random millions of times. Counting routes exactly (see RouteStatistics) treats a loop as a single stop, this follows
+ * readers round loops as many times as their choices take them.
+ *
+ * A playthrough starts on a page and reads on: along the Continues relationship if the page has one, otherwise along
+ * one of its Choices picked by the reader's Policy. It stops at an ending, at a dead end (a page with nothing out of it
+ * that isn't an ending) or in a loop, either on reaching a page that can't reach an ending any more or after reading
+ * MAX_PAGES pages.
+ *
+ * The graph is copied into flat arrays up front so each step is a few array reads. Playthroughs are run in fixed
+ * chunks spread over every core, each chunk with its own SplittableRandom split off the seed in chunk order and its own
+ * tally, and the tallies are only added up once every chunk is done. Nothing is shared while the playthroughs run, and
+ * a seed gives the same results whatever the number of threads.
+ */
+public final class PlaythroughSimulator {
+  // Playthroughs still reading after this many pages are counted as stuck in a loop
+  static final int MAX_PAGES = 100000;
+  // z for 95% confidence intervals
+  static final double Z = 1.959963984540054;
+
+  // Playthroughs per task
+  private static final int CHUNK_SIZE = 1 << 14;
+
+  // What happens on arriving at a page
+  private static final byte READ_ON = 0;
+  private static final byte ENDING = 1;
+  private static final byte DEAD_END = 2;
+  private static final byte LOOP = 3;
+
+  /**
+   * How a reader picks between the choices on a page
+   */
+  public enum Policy {
+    /**
+     * Every choice is as likely as the others
+     */
+    UNIFORM,
+    /**
+     * Picks uniformly between the choices leading to pages not read yet in this playthrough, or between them all when
+     * every page has been read
+     */
+    UNVISITED,
+    /**
+     * Picks uniformly between the choices that can still reach an ending, as if the reader could see which choices
+     * lead into a loop with no way out
+     */
+    CAUTIOUS
+  }
+
+  private final EndingReachability endings;
+  private final int pageCount;
+  private final byte[] arrivals;
+  // Target of the page's Continues relationship, or -1 to make a choice
+  private final int[] continues;
+  // Choices of page p at choiceOffsets[p] until choiceOffsets[p + 1]
+  private final int[] choiceOffsets;
+  private final int[] choiceTargets;
+  private final int[] wordCounts;
+
+  /**
+   * @param graph Page graph
+   * @param components Strongly connected components of the graph
+   */
+  public PlaythroughSimulator(PageGraph graph, StronglyConnectedComponents components) {
+    endings = new EndingReachability(graph, components);
+    pageCount = graph.getPageCount();
+    arrivals = new byte[pageCount];
+    continues = new int[pageCount];
+    choiceOffsets = new int[pageCount + 1];
+    wordCounts = new int[pageCount];
+    for (int page = 0; page < pageCount; page++) {
+      choiceOffsets[page + 1] = choiceOffsets[page] + graph.getChoiceCount(page);
+    }
+    choiceTargets = new int[choiceOffsets[pageCount]];
+    for (int page = 0; page < pageCount; page++) {
+      continues[page] = graph.getContinuesCount(page) > 0 ? graph.getContinuesTarget(page, 0) : -1;
+      for (int i = 0; i < graph.getChoiceCount(page); i++) {
+        choiceTargets[choiceOffsets[page] + i] = graph.getChoiceTarget(page, i);
+      }
+      wordCounts[page] = graph.getWordCount(page);
+      if (graph.isEnding(page)) {
+        arrivals[page] = ENDING;
+      }
+      else if (graph.getOutDegree(page) == 0) {
+        arrivals[page] = DEAD_END;
+      }
+      else if (!endings.canReachAny(page)) {
+        arrivals[page] = LOOP;
+      }
+      else {
+        arrivals[page] = READ_ON;
+      }
+    }
+  }
+
+  /**
+   * Play the book through from a page
+   *
+   * @param start Page id to start from
+   * @param playthroughs Number of playthroughs
+   * @param policy How readers pick their choices
+   * @param seed Seed of the random choices, the same seed always gives the same results
+   * @return What the playthroughs reached and read
+   */
+  public Result simulate(int start, long playthroughs, Policy policy, long seed) {
+    if (playthroughs < 1) {
+      throw new IllegalArgumentException("Expected a positive number of playthroughs: " + playthroughs);
+    }
+
+    long startNanos = System.nanoTime();
+    int chunkCount = (int) ((playthroughs + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    SplittableRandom root = new SplittableRandom(seed);
+    SplittableRandom[] randoms = new SplittableRandom[chunkCount];
+    for (int chunk = 0; chunk < chunkCount; chunk++) {
+      randoms[chunk] = root.split();
+    }
+
+    Tally[] tallies = new Tally[chunkCount];
+    IntStream.range(0, chunkCount).parallel().forEach(chunk -> {
+      int chunkPlaythroughs = (int) Math.min(CHUNK_SIZE, playthroughs - (long) chunk * CHUNK_SIZE);
+      tallies[chunk] = play(start, chunkPlaythroughs, policy, randoms[chunk]);
+    });
+
+    // Added up in chunk order so the totals never depend on which chunks finished first
+    Tally total = new Tally(endings.getEndingCount());
+    for (Tally tally : tallies) {
+      total.add(tally);
+    }
+    return new Result(total, System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Run a chunk of playthroughs on one thread
+   */
+  private Tally play(int start, int playthroughs, Policy policy, SplittableRandom random) {
+    Tally tally = new Tally(endings.getEndingCount());
+    // Playthrough number each page was last read in, so the pages read don't need clearing between playthroughs
+    int[] readIn = policy == Policy.UNVISITED ? new int[pageCount] : null;
+
+    for (int playthrough = 1; playthrough <= playthroughs; playthrough++) {
+      int page = start;
+      long pages = 0;
+      long words = 0;
+      byte arrival;
+      while (true) {
+        pages++;
+        words += wordCounts[page];
+        arrival = arrivals[page];
+        if (arrival != READ_ON || pages >= MAX_PAGES) {
+          break;
+        }
+        if (readIn != null) {
+          readIn[page] = playthrough;
+        }
+        page = continues[page] >= 0 ? continues[page] : choose(page, policy, readIn, playthrough, random);
+      }
+
+      int outcome;
+      if (arrival == ENDING) {
+        outcome = endings.getEndingIndex(page);
+      }
+      else if (arrival == DEAD_END) {
+        outcome = tally.deadEndOutcome();
+      }
+      else {
+        outcome = tally.loopOutcome();
+      }
+      tally.record(outcome, pages, words);
+    }
+    return tally;
+  }
+
+  /**
+   * Pick a choice out of a page, the page has at least one
+   */
+  private int choose(int page, Policy policy, int[] readIn, int playthrough, SplittableRandom random) {
+    int from = choiceOffsets[page];
+    int count = choiceOffsets[page + 1] - from;
+    if (count == 1 || policy == Policy.UNIFORM) {
+      return choiceTargets[from + random.nextInt(count)];
+    }
+
+    // Count the choices the reader would rather take, then pick one of them
+    int preferred = 0;
+    for (int i = from; i < from + count; i++) {
+      if (isPreferred(choiceTargets[i], policy, readIn, playthrough)) {
+        preferred++;
+      }
+    }
+    if (preferred == 0 || preferred == count) {
+      return choiceTargets[from + random.nextInt(count)];
+    }
+    int pick = random.nextInt(preferred);
+    for (int i = from; ; i++) {
+      if (isPreferred(choiceTargets[i], policy, readIn, playthrough) && pick-- == 0) {
+        return choiceTargets[i];
+      }
+    }
+  }
+
+  private boolean isPreferred(int target, Policy policy, int[] readIn, int playthrough) {
+    return policy == Policy.UNVISITED ? readIn[target] != playthrough : arrivals[target] != LOOP && arrivals[target] != DEAD_END;
+  }
+
+  /**
+   * Counts, pages and words of each outcome: every ending by its ending index, then dead ends, then loops
+   */
+  private static final class Tally {
+    private final int endingCount;
+    private final long[] counts;
+    private final long[] pages;
+    private final long[] words;
+    // Over every playthrough, for the spread of pages and words read
+    private double pageSquares = 0;
+    private double wordSquares = 0;
+
+    private Tally(int endingCount) {
+      this.endingCount = endingCount;
+      counts = new long[endingCount + 2];
+      pages = new long[endingCount + 2];
+      words = new long[endingCount + 2];
+    }
+
+    private int deadEndOutcome() {
+      return endingCount;
+    }
+
+    private int loopOutcome() {
+      return endingCount + 1;
+    }
+
+    private void record(int outcome, long playthroughPages, long playthroughWords) {
+      counts[outcome]++;
+      pages[outcome] += playthroughPages;
+      words[outcome] += playthroughWords;
+      pageSquares += (double) playthroughPages * playthroughPages;
+      wordSquares += (double) playthroughWords * playthroughWords;
+    }
+
+    private void add(Tally other) {
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] += other.counts[i];
+        pages[i] += other.pages[i];
+        words[i] += other.words[i];
+      }
+      pageSquares += other.pageSquares;
+      wordSquares += other.wordSquares;
+    }
+  }
+
+  /**
+   * Wilson score interval of a proportion, which stays inside [0, 1] and is sound for endings that are rarely or never
+   * reached
+   *
+   * @param successes Number of playthroughs with the outcome
+   * @param trials Number of playthroughs
+   * @return Lower and upper bound of the 95% confidence interval
+   */
+  static double[] wilsonInterval(long successes, long trials) {
+    double p = (double) successes / trials;
+    double zSquaredOverN = Z * Z / trials;
+    double centre = (p + zSquaredOverN / 2) / (1 + zSquaredOverN);
+    double halfWidth = Z * Math.sqrt(p * (1 - p) / trials + zSquaredOverN / (4 * trials)) / (1 + zSquaredOverN);
+    return new double[]{Math.max(0, centre - halfWidth), Math.min(1, centre + halfWidth)};
+  }
+
+  /**
+   * What a number of playthroughs reached and read
+   */
+  public final class Result {
+    private final Tally tally;
+    private final long playthroughs;
+    private final long elapsedNanos;
+
+    private Result(Tally tally, long elapsedNanos) {
+      this.tally = tally;
+      this.elapsedNanos = elapsedNanos;
+      long total = 0;
+      for (long count : tally.counts) {
+        total += count;
+      }
+      playthroughs = total;
+    }
+
+    public long getPlaythroughs() {
+      return playthroughs;
+    }
+
+    /**
+     * @return Pages read over every playthrough, each page read being a step
+     */
+    public long getSteps() {
+      long steps = 0;
+      for (long pages : tally.pages) {
+        steps += pages;
+      }
+      return steps;
+    }
+
+    /**
+     * @return Time the playthroughs took, in nanoseconds
+     */
+    public long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    /**
+     * @return Every ending reached at least once, most likely first
+     */
+    public List<EndingEstimate> getEndings() {
+      List<EndingEstimate> estimates = new ArrayList<>();
+      for (int endingIndex = 0; endingIndex < tally.endingCount; endingIndex++) {
+        if (tally.counts[endingIndex] > 0) {
+          estimates.add(new EndingEstimate(endings.getEnding(endingIndex), endingIndex));
+        }
+      }
+      Collections.sort(estimates, (a, b) -> Long.compare(tally.counts[b.outcome], tally.counts[a.outcome]));
+      return estimates;
+    }
+
+    /**
+     * @return Share of playthroughs that ended on a page with nothing out of it that isn't an ending
+     */
+    public Estimate getDeadEnds() {
+      return new Estimate(tally.deadEndOutcome());
+    }
+
+    /**
+     * @return Share of playthroughs stuck in a loop, on pages that can't reach an ending or still reading after
+     * MAX_PAGES pages
+     */
+    public Estimate getLoops() {
+      return new Estimate(tally.loopOutcome());
+    }
+
+    /**
+     * @return Mean pages read per playthrough
+     */
+    public double getMeanPages() {
+      return (double) getSteps() / playthroughs;
+    }
+
+    /**
+     * @return Half the width of the 95% confidence interval of the mean pages read
+     */
+    public double getMeanPagesMargin() {
+      return margin(getMeanPages(), tally.pageSquares);
+    }
+
+    /**
+     * @return Mean words read per playthrough
+     */
+    public double getMeanWords() {
+      long words = 0;
+      for (long outcomeWords : tally.words) {
+        words += outcomeWords;
+      }
+      return (double) words / playthroughs;
+    }
+
+    /**
+     * @return Half the width of the 95% confidence interval of the mean words read
+     */
+    public double getMeanWordsMargin() {
+      return margin(getMeanWords(), tally.wordSquares);
+    }
+
+    private double margin(double mean, double squares) {
+      if (playthroughs < 2) {
+        return Double.NaN;
+      }
+      double variance = Math.max(0, (squares - playthroughs * mean * mean) / (playthroughs - 1));
+      return Z * Math.sqrt(variance / playthroughs);
+    }
+
+    /**
+     * Estimate of how likely one outcome is, and how much is read on the way to it
+     */
+    public class Estimate {
+      final int outcome;
+
+      private Estimate(int outcome) {
+        this.outcome = outcome;
+      }
+
+      /**
+       * @return Number of playthroughs with this outcome
+       */
+      public long getCount() {
+        return tally.counts[outcome];
+      }
+
+      public double getProbability() {
+        return (double) tally.counts[outcome] / playthroughs;
+      }
+
+      /**
+       * @return Lower and upper bound of the 95% confidence interval of the probability
+       */
+      public double[] getConfidenceInterval() {
+        return wilsonInterval(tally.counts[outcome], playthroughs);
+      }
+
+      /**
+       * @return Mean pages read by the playthroughs with this outcome, or 0 if there weren't any
+       */
+      public double getMeanPages() {
+        return tally.counts[outcome] == 0 ? 0 : (double) tally.pages[outcome] / tally.counts[outcome];
+      }
+
+      /**
+       * @return Mean words read by the playthroughs with this outcome, or 0 if there weren't any
+       */
+      public double getMeanWords() {
+        return tally.counts[outcome] == 0 ? 0 : (double) tally.words[outcome] / tally.counts[outcome];
+      }
+    }
+
+    /**
+     * Estimate for one ending
+     */
+    public final class EndingEstimate extends Estimate {
+      private final int page;
+
+      private EndingEstimate(int page, int endingIndex) {
+        super(endingIndex);
+        this.page = page;
+      }
+
+      /**
+       * @return Page id of the ending
+       */
+      public int getPage() {
+        return page;
+      }
+    }
+  }
+}
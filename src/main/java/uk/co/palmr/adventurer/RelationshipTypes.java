@@ -0,0 +1,11 @@
+package uk.co.palmr.adventurer;
+
+import org.neo4j.graphdb.RelationshipType;
+
+/**
+ * Pages can either continue onto the next page or be linked to another page via a choice
+ */
+public enum RelationshipTypes implements RelationshipType {
+  Continues,
+  Choice
+}
@@ -0,0 +1,164 @@
+package uk.co.palmr.adventurer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Answers to the route questions people keep asking, worked out once after ingest and stored on every page node so
+ * they're a property read rather than a variable length traversal:
+ *
+ * - reachable_endings on every page, the endings that can still be reached from it as a bitset (a long[], bit n of
+ *   word n / 64 set for the ending whose ending_index is n). Every ending has an ending_index, numbered in page order.
+ * - immediate_dominator on every page reachable from the start of the book except the start, the PDF page number of
+ *   the closest page every route to it reads.
+ * - unavoidable_pages on every ending reachable from the start, the PDF page numbers of every page a route to it has to
+ *   read, in the order they're read.
+ * - page_rank and route_traffic on every page, how much the page gets read by a reader wandering the book and by one
+ *   reading from the start.
+ *
+ * See EndingReachability, DominatorTree and PageImportance for how they're worked out.
+ */
+public final class RouteAnalysis {
+  private static final Logger LOGGER = LogManager.getLogger(RouteAnalysis.class);
+
+  // Pages updated per transaction
+  private static final int WRITE_BATCH_SIZE = 10000;
+
+  // Every property the analysis writes, so a property a page no longer needs can be removed
+  private static final String[] PROPERTIES = {App.REACHABLE_ENDINGS, App.ENDING_INDEX, App.IMMEDIATE_DOMINATOR, App.UNAVOIDABLE_PAGES,
+    App.PAGE_RANK, App.ROUTE_TRAFFIC};
+
+  private final PageGraph graph;
+  private final EndingReachability endings;
+  private final DominatorTree dominators;
+  private final PageImportance importance;
+
+  private RouteAnalysis(PageGraph graph, EndingReachability endings, DominatorTree dominators, PageImportance importance) {
+    this.graph = graph;
+    this.endings = endings;
+    this.dominators = dominators;
+    this.importance = importance;
+  }
+
+  /**
+   * Work out the endings reachable from every page, the dominator tree from the start of the book and how much each
+   * page gets read
+   *
+   * @param graph Page graph
+   * @return Analysis of the graph
+   */
+  public static RouteAnalysis compute(PageGraph graph) {
+    StronglyConnectedComponents components;
+    EndingReachability endings;
+    DominatorTree dominators = null;
+    int start = -1;
+    try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.ANALYSE_ROUTES)) {
+      components = new StronglyConnectedComponents(graph);
+      endings = new EndingReachability(graph, components);
+
+      // The start of the book is the first page that isn't ignored, a book of nothing but ignored pages has no routes
+      for (int page = 0; page < graph.getPageCount() && start < 0; page++) {
+        if (!graph.hasPageType(page, PageTypes.Ignore)) {
+          start = page;
+          dominators = new DominatorTree(graph, start);
+        }
+      }
+    }
+    return new RouteAnalysis(graph, endings, dominators, new PageImportance(graph, components, endings, start));
+  }
+
+  public EndingReachability getEndings() {
+    return endings;
+  }
+
+  /**
+   * @return Dominator tree from the start of the book, or null if every page is ignored
+   */
+  public DominatorTree getDominators() {
+    return dominators;
+  }
+
+  public PageImportance getImportance() {
+    return importance;
+  }
+
+  /**
+   * @param page Page id
+   * @return The analysis properties a page's node should have, any others it has are out of date
+   */
+  public Map<String, Object> getProperties(int page) {
+    Map<String, Object> properties = new HashMap<>(8);
+    properties.put(App.REACHABLE_ENDINGS, endings.getReachableEndings(page).clone());
+    properties.put(App.PAGE_RANK, importance.getPageRank(page));
+    properties.put(App.ROUTE_TRAFFIC, importance.getRouteTraffic(page));
+    if (endings.getEndingIndex(page) >= 0) {
+      properties.put(App.ENDING_INDEX, endings.getEndingIndex(page));
+    }
+    if (dominators != null && dominators.getImmediateDominator(page) >= 0) {
+      properties.put(App.IMMEDIATE_DOMINATOR, graph.getPdfPageNumber(dominators.getImmediateDominator(page)));
+      if (graph.isEnding(page)) {
+        int[] unavoidablePages = dominators.getDominators(page);
+        for (int i = 0; i < unavoidablePages.length; i++) {
+          unavoidablePages[i] = graph.getPdfPageNumber(unavoidablePages[i]);
+        }
+        properties.put(App.UNAVOIDABLE_PAGES, unavoidablePages);
+      }
+    }
+    return properties;
+  }
+
+  /**
+   * Store the analysis on the page nodes of a populated database, only writing the properties that changed so an
+   * incremental run that changed nothing writes nothing
+   *
+   * @param graphDb Database holding the book's pages
+   * @param bookId Id of the book within a corpus, or null when the database holds one book
+   */
+  public void write(GraphDatabaseService graphDb, String bookId) {
+    LOGGER.info("Writing route analysis" + (bookId != null ? " of " + bookId : ""));
+
+    int changedPages = 0;
+    try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.WRITE_ROUTE_ANALYSIS)) {
+      for (int batchStart = 0; batchStart < graph.getPageCount(); batchStart += WRITE_BATCH_SIZE) {
+        try (Transaction tx = graphDb.beginTx()) {
+          for (int page = batchStart; page < Math.min(batchStart + WRITE_BATCH_SIZE, graph.getPageCount()); page++) {
+            Node pageNode = bookId == null
+              ? graphDb.findNode(PageTypes.Page, App.PDF_PAGE_NUMBER, graph.getPdfPageNumber(page))
+              : graphDb.findNode(PageTypes.Page, App.BOOK_PDF_PAGE_KEY, App.bookPageKey(bookId, graph.getPdfPageNumber(page)));
+            if (pageNode != null && update(pageNode, getProperties(page))) {
+              changedPages++;
+            }
+          }
+          tx.success();
+        }
+      }
+    }
+
+    LOGGER.info("Finished writing route analysis, " + changedPages + " of " + graph.getPageCount() + " pages changed");
+  }
+
+  /**
+   * @return Whether anything on the node changed
+   */
+  private static boolean update(Node pageNode, Map<String, Object> properties) {
+    boolean changed = false;
+    for (String property : PROPERTIES) {
+      Object value = properties.get(property);
+      if (value == null) {
+        changed |= pageNode.removeProperty(property) != null;
+      }
+      else if (!Objects.deepEquals(value, pageNode.getProperty(property, null))) {
+        pageNode.setProperty(property, value);
+        changed = true;
+      }
+    }
+    return changed;
+  }
+}
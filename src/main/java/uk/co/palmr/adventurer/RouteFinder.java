@@ -0,0 +1,382 @@
+package uk.co.palmr.adventurer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Finds the quickest and the longest reads between two pages, weighting each route by the words on its pages (the
+ * same word counts stored on the Continues and Choice relationships).
+ *
+ * The minimum-words route uses Dijkstra's algorithm over a primitive binary heap. The maximum-words route has to be a
+ * simple route (no page read twice), which is NP-hard in general, so it's an exact depth first search pruned by an
+ * upper bound from the strongly connected component condensation: the most words any route could still pick up from a
+ * component, taking every page of each loop it passes through. On loop-free parts of the graph the bound is exact and
+ * the search goes straight to the answer.
+ */
+public final class RouteFinder {
+  private final PageGraph graph;
+  private final StronglyConnectedComponents components;
+
+  public RouteFinder(PageGraph graph) {
+    this.graph = graph;
+    this.components = new StronglyConnectedComponents(graph);
+  }
+
+  /**
+   * A route through the book
+   */
+  public static final class Route {
+    private final int[] pages;
+    private final long words;
+
+    Route(int[] pages, long words) {
+      this.pages = pages;
+      this.words = words;
+    }
+
+    /**
+     * @return Page ids along the route, from the start page to the end page
+     */
+    public int[] getPages() {
+      return pages.clone();
+    }
+
+    /**
+     * @return Words on every page of the route, including the start and end pages
+     */
+    public long getWords() {
+      return words;
+    }
+  }
+
+  /**
+   * Minimum-words route from one page to another
+   *
+   * @param start Page id to start from
+   * @param end Page id to finish at
+   * @return Quickest route, or null if end can't be reached from start
+   */
+  public Route shortest(int start, int end) {
+    int[] previous = new int[graph.getPageCount()];
+    long[] words = shortestWords(start, previous);
+    return quickestRoute(start, end, previous, words);
+  }
+
+  private static Route quickestRoute(int start, int end, int[] previous, long[] words) {
+    if (words[end] == Long.MAX_VALUE) {
+      return null;
+    }
+
+    int length = 1;
+    for (int page = end; page != start; page = previous[page]) {
+      length++;
+    }
+    int[] pages = new int[length];
+    for (int page = end, i = length - 1; i >= 0; page = previous[page], i--) {
+      pages[i] = page;
+    }
+    return new Route(pages, words[end]);
+  }
+
+  /**
+   * Dijkstra's algorithm from a page to every other page
+   *
+   * @param start Page id to start from
+   * @param previous Filled with the page before each page on its quickest route, may be null
+   * @return Words on the quickest route to each page (including the start page), Long.MAX_VALUE where unreachable
+   */
+  public long[] shortestWords(int start, int[] previous) {
+    int pageCount = graph.getPageCount();
+    long[] words = new long[pageCount];
+    Arrays.fill(words, Long.MAX_VALUE);
+    words[start] = graph.getWordCount(start);
+
+    PageHeap heap = new PageHeap(pageCount);
+    heap.insertOrDecrease(start, words[start]);
+    while (!heap.isEmpty()) {
+      int page = heap.removeMin();
+      int degree = graph.getOutDegree(page);
+      for (int i = 0; i < degree; i++) {
+        int next = graph.getNeighbour(page, i);
+        long nextWords = words[page] + graph.getWordCount(next);
+        if (nextWords < words[next]) {
+          words[next] = nextWords;
+          if (previous != null) {
+            previous[next] = page;
+          }
+          heap.insertOrDecrease(next, nextWords);
+        }
+      }
+    }
+    return words;
+  }
+
+  /**
+   * Maximum-words simple route from one page to another
+   *
+   * @param start Page id to start from
+   * @param end Page id to finish at
+   * @return Longest read, or null if end can't be reached from start
+   */
+  public Route longest(int start, int end) {
+    int pageCount = graph.getPageCount();
+    long[] bound = longestBounds(end);
+    if (bound[components.getComponent(start)] < 0) {
+      return null;
+    }
+
+    // Explore the most promising relationships first so a good route is found early and prunes the rest. The useful
+    // neighbours are kept as compressed sparse rows like the graph's own, each page's run sorted by bound in place.
+    int[] neighbourOffsets = new int[pageCount + 1];
+    int[] neighbours = new int[graph.getRelationshipCount()];
+    int neighbourCount = 0;
+    for (int page = 0; page < pageCount; page++) {
+      neighbourOffsets[page] = neighbourCount;
+      int degree = graph.getOutDegree(page);
+      for (int i = 0; i < degree; i++) {
+        int next = graph.getNeighbour(page, i);
+        long nextBound = bound[components.getComponent(next)];
+        if (nextBound >= 0) {
+          // Insertion sort, out degrees are small and equal bounds keep the graph's order
+          int j = neighbourCount++;
+          while (j > neighbourOffsets[page] && bound[components.getComponent(neighbours[j - 1])] < nextBound) {
+            neighbours[j] = neighbours[j - 1];
+            j--;
+          }
+          neighbours[j] = next;
+        }
+      }
+    }
+    neighbourOffsets[pageCount] = neighbourCount;
+
+    boolean[] onRoute = new boolean[pageCount];
+    int[] routePages = new int[pageCount];
+    int[] routeEdges = new int[pageCount];
+    long[] routeWords = new long[pageCount];
+    int[] bestRoute = null;
+    long bestWords = -1;
+
+    int depth = 0;
+    routePages[0] = start;
+    routeEdges[0] = neighbourOffsets[start];
+    routeWords[0] = graph.getWordCount(start);
+    onRoute[start] = true;
+    while (depth >= 0) {
+      int page = routePages[depth];
+      if (page == end) {
+        if (routeWords[depth] > bestWords) {
+          bestWords = routeWords[depth];
+          bestRoute = Arrays.copyOf(routePages, depth + 1);
+        }
+        onRoute[page] = false;
+        depth--;
+        continue;
+      }
+
+      int neighbourEnd = neighbourOffsets[page + 1];
+      boolean descended = false;
+      while (routeEdges[depth] < neighbourEnd && !descended) {
+        int next = neighbours[routeEdges[depth]++];
+        // Words so far plus the most the rest of the route could possibly add
+        long possibleWords = routeWords[depth] + bound[components.getComponent(next)];
+        if (!onRoute[next] && possibleWords > bestWords) {
+          depth++;
+          routePages[depth] = next;
+          routeEdges[depth] = neighbourOffsets[next];
+          routeWords[depth] = routeWords[depth - 1] + graph.getWordCount(next);
+          onRoute[next] = true;
+          descended = true;
+        }
+      }
+      if (!descended) {
+        onRoute[page] = false;
+        depth--;
+      }
+    }
+
+    return bestRoute == null ? null : new Route(bestRoute, bestWords);
+  }
+
+  /**
+   * Upper bound on the words a simple route can pick up from each component until it reaches end, taking every page
+   * of each loop along the way
+   *
+   * @param end Page id routes finish at
+   * @return Bound per component, -1 for components that can't reach end
+   */
+  private long[] longestBounds(int end) {
+    int componentCount = components.getComponentCount();
+    long[] bound = new long[componentCount];
+    Arrays.fill(bound, -1);
+    int endComponent = components.getComponent(end);
+
+    // Routes stop at end, but any of the pages in its loop could have come before it
+    long endWords = 0;
+    for (int i = 0; i < components.getComponentSize(endComponent); i++) {
+      endWords += graph.getWordCount(components.getComponentPage(endComponent, i));
+    }
+    bound[endComponent] = endWords;
+
+    // Components are topologically ordered, so walk backwards from the end
+    for (int component = endComponent - 1; component >= 0; component--) {
+      long best = -1;
+      for (int i = 0; i < components.getSuccessorCount(component); i++) {
+        best = Math.max(best, bound[components.getSuccessor(component, i)]);
+      }
+      if (best >= 0) {
+        long words = 0;
+        for (int i = 0; i < components.getComponentSize(component); i++) {
+          words += graph.getWordCount(components.getComponentPage(component, i));
+        }
+        bound[component] = best + words;
+      }
+    }
+    return bound;
+  }
+
+  /**
+   * Quickest and longest reads for a pair of pages
+   */
+  public static final class PairResult {
+    private final int start;
+    private final int end;
+    private final Route shortest;
+    private final Route longest;
+
+    PairResult(int start, int end, Route shortest, Route longest) {
+      this.start = start;
+      this.end = end;
+      this.shortest = shortest;
+      this.longest = longest;
+    }
+
+    public int getStart() {
+      return start;
+    }
+
+    public int getEnd() {
+      return end;
+    }
+
+    public Route getShortest() {
+      return shortest;
+    }
+
+    public Route getLongest() {
+      return longest;
+    }
+  }
+
+  /**
+   * Quickest and longest reads from each start page to every reachable ending, spread across all cores
+   *
+   * @param starts Page ids to start from
+   * @return Results for every reachable (start, ending) pair, ordered by start then ending
+   */
+  public List<PairResult> allPairs(int[] starts) {
+    int[] endings = IntStream.range(0, graph.getPageCount()).filter(graph::isEnding).toArray();
+
+    // The parallel stream still collects in start order
+    List<List<PairResult>> resultsByStart = Arrays.stream(starts).parallel().mapToObj(start -> {
+      int[] previous = new int[graph.getPageCount()];
+      long[] words = shortestWords(start, previous);
+      List<PairResult> results = new ArrayList<>();
+      for (int end : endings) {
+        if (words[end] != Long.MAX_VALUE) {
+          results.add(new PairResult(start, end, quickestRoute(start, end, previous, words), longest(start, end)));
+        }
+      }
+      return results;
+    }).collect(Collectors.toList());
+
+    List<PairResult> results = new ArrayList<>();
+    for (List<PairResult> startResults : resultsByStart) {
+      results.addAll(startResults);
+    }
+    return Collections.unmodifiableList(results);
+  }
+
+  /**
+   * Binary min-heap of page ids keyed by words, with decrease-key through a position index
+   */
+  private static final class PageHeap {
+    private final int[] heap;
+    private final long[] keys;
+    private final int[] positions;
+    private int size = 0;
+
+    PageHeap(int pageCount) {
+      heap = new int[pageCount];
+      keys = new long[pageCount];
+      positions = new int[pageCount];
+      Arrays.fill(positions, -1);
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    void insertOrDecrease(int page, long key) {
+      keys[page] = key;
+      int i = positions[page];
+      if (i < 0) {
+        i = size++;
+        heap[i] = page;
+        positions[page] = i;
+      }
+      siftUp(i);
+    }
+
+    int removeMin() {
+      int min = heap[0];
+      positions[min] = -2;
+      size--;
+      if (size > 0) {
+        heap[0] = heap[size];
+        positions[heap[0]] = 0;
+        siftDown(0);
+      }
+      return min;
+    }
+
+    private void siftUp(int i) {
+      int page = heap[i];
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (keys[heap[parent]] <= keys[page]) {
+          break;
+        }
+        heap[i] = heap[parent];
+        positions[heap[i]] = i;
+        i = parent;
+      }
+      heap[i] = page;
+      positions[page] = i;
+    }
+
+    private void siftDown(int i) {
+      int page = heap[i];
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && keys[heap[child + 1]] < keys[heap[child]]) {
+          child++;
+        }
+        if (keys[heap[child]] >= keys[page]) {
+          break;
+        }
+        heap[i] = heap[child];
+        positions[heap[i]] = i;
+        i = child;
+      }
+      heap[i] = page;
+      positions[page] = i;
+    }
+  }
+}
@@ -0,0 +1,551 @@
+package uk.co.palmr.adventurer;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.graphdb.factory.GraphDatabaseSettings;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * The route queries people keep running against the populated graph, by name, with their results cached.
+ *
+ * Each query is a fixed piece of Cypher taking parameters, so Neo4j plans it once and only the parameters change.
+ * Results are copied out of the transaction into plain lists and maps and kept in an LRU cache keyed by the query and
+ * its parameters, so a repeated lookup never touches the database. Every ingest bumps the ingest generation, and the
+ * first lookup after it changes empties the cache. Any number of threads can look up at once: the cache is only locked
+ * to find or store a result, and queries that miss run in parallel, each in its own read transaction. Run from main,
+ * the database is reopened when the generation changes too, so a --bulk ingest swapping in a new store is picked up
+ * without a restart.
+ *
+ * Queries about what pages say look the words up in the TextIndex first, then hand the PDF page numbers it found to
+ * the Cypher as a parameter, so the text never has to be stored in the graph.
+ *
+ * Usage:
+ *   RouteQueryService, then one query per line on standard input:
+ *     routes <start page label> <end page label> [max length]
+ *     endings <start page label> [max length]
+ *     subbook
+ *     mentions <words>
+ *     routes-mentioning <start page label> <end page label> <words>
+ */
+public class RouteQueryService {
+
+  // Longest route searched for unless asked otherwise, the same as the example queries in the Readme
+  static final int DEFAULT_MAX_LENGTH = 20;
+  // Most routes returned by a route query, there can be millions of routes through a book
+  static final int ROUTE_LIMIT = 1000;
+
+  /**
+   * The named queries, each returning plain values so results can outlive their transaction
+   */
+  enum Query {
+    /**
+     * Every route from one page to another, as the page labels along it and the words read, parameters start and end
+     */
+    ROUTES(
+      "MATCH r=(s:Page {book_page_label: {start}})-[*..%d]->(e:Page {book_page_label: {end}})\n" +
+      "RETURN [p IN nodes(r) | p.book_page_label] AS pages, s.word_count + reduce(words = 0, l IN relationships(r) | words + l.word_count) AS words\n" +
+      "LIMIT {limit}"),
+    /**
+     * Every route from one page to another that passes a page in a list, with the pages along it in the list,
+     * parameters start, end and mentioning, a list of PDF page numbers
+     */
+    ROUTES_MENTIONING(
+      "MATCH r=(s:Page {book_page_label: {start}})-[*..%d]->(e:Page {book_page_label: {end}})\n" +
+      "WHERE any(p IN nodes(r) WHERE p.pdf_page_number IN {mentioning})\n" +
+      "RETURN [p IN nodes(r) | p.book_page_label] AS pages, [p IN nodes(r) WHERE p.pdf_page_number IN {mentioning} | p.book_page_label] AS mentions, s.word_count + reduce(words = 0, l IN relationships(r) | words + l.word_count) AS words\n" +
+      "LIMIT {limit}"),
+    /**
+     * Every route from a page to any ending (EndPage or ImagePage), parameter start
+     */
+    ROUTES_TO_ENDINGS(
+      "MATCH r=(s:Page {book_page_label: {start}})-[*..%d]->(e:Page)\n" +
+      "WHERE e:EndPage OR e:ImagePage\n" +
+      "RETURN e.book_page_label AS ending, [p IN nodes(r) | p.book_page_label] AS pages, s.word_count + reduce(words = 0, l IN relationships(r) | words + l.word_count) AS words\n" +
+      "LIMIT {limit}"),
+    /**
+     * The pages of the sub book (The Murder of Gonzago) with the sub book pages each one leads to, no parameters
+     */
+    SUB_BOOK(
+      "MATCH (s:SubBook)\n" +
+      "OPTIONAL MATCH (s)-->(e:SubBook)\n" +
+      "WITH s, collect(e.book_page_label) AS next\n" +
+      "ORDER BY s.pdf_page_number\n" +
+      "RETURN s.book_page_label AS page, next"),
+    /**
+     * The labels of all the pages in a list, in PDF order, parameter mentioning, a list of PDF page numbers. There's no
+     * more than one row per page so it isn't limited.
+     */
+    PAGES_MENTIONING(
+      "MATCH (p:Page)\n" +
+      "WHERE p.pdf_page_number IN {mentioning}\n" +
+      "RETURN p.book_page_label AS page\n" +
+      "ORDER BY p.pdf_page_number");
+
+    private final String cypher;
+
+    Query(String cypher) {
+      this.cypher = cypher;
+    }
+
+    /**
+     * @param maxLength Longest route to search for, variable length bounds can't be parameters so it's part of the text
+     * @return Cypher of the query
+     */
+    String cypher(int maxLength) {
+      return String.format(cypher, maxLength);
+    }
+
+    /**
+     * @return Whether the query follows routes, so its results depend on the max length
+     */
+    boolean followsRoutes() {
+      return cypher.contains("%d");
+    }
+  }
+
+  /**
+   * Runs a query, returning its rows copied out of the database
+   */
+  interface QueryRunner {
+    List<Map<String, Object>> run(String cypher, Map<String, Object> parameters);
+  }
+
+  private final QueryRunner runner;
+  private final LongSupplier generation;
+  private final Supplier<TextIndex> textIndex;
+  private final int cacheSize;
+
+  // Guarded by itself, in access order so the eldest entry is the least recently used
+  private final LinkedHashMap<CacheKey, List<Map<String, Object>>> cache;
+  private long cacheGeneration;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * @param graphDb Populated database
+   * @param cacheSize Most results to keep
+   * @param generation Current ingest generation, see App.readIngestGeneration
+   */
+  public RouteQueryService(GraphDatabaseService graphDb, int cacheSize, LongSupplier generation) {
+    this(graphDb, cacheSize, generation, () -> null);
+  }
+
+  /**
+   * @param graphDb Populated database
+   * @param cacheSize Most results to keep
+   * @param generation Current ingest generation, see App.readIngestGeneration
+   * @param textIndex Supplies the text index of the book the graph was ingested from, null when there isn't one
+   */
+  public RouteQueryService(GraphDatabaseService graphDb, int cacheSize, LongSupplier generation, Supplier<TextIndex> textIndex) {
+    this((cypher, parameters) -> run(graphDb, cypher, parameters), cacheSize, generation, textIndex);
+  }
+
+  RouteQueryService(QueryRunner runner, int cacheSize, LongSupplier generation) {
+    this(runner, cacheSize, generation, () -> null);
+  }
+
+  RouteQueryService(QueryRunner runner, int cacheSize, LongSupplier generation, Supplier<TextIndex> textIndex) {
+    this.runner = runner;
+    this.cacheSize = cacheSize;
+    this.generation = generation;
+    this.textIndex = textIndex;
+    this.cache = new LinkedHashMap<CacheKey, List<Map<String, Object>>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<CacheKey, List<Map<String, Object>>> eldest) {
+        return size() > RouteQueryService.this.cacheSize;
+      }
+    };
+    this.cacheGeneration = generation.getAsLong();
+  }
+
+  /**
+   * @param startLabel Label of the page to start from
+   * @param endLabel Label of the page to end on
+   * @param maxLength Most relationships along a route
+   * @return Up to ROUTE_LIMIT routes, each with its pages and words
+   */
+  public List<Map<String, Object>> routes(String startLabel, String endLabel, int maxLength) {
+    Map<String, Object> parameters = new HashMap<>();
+    parameters.put("start", startLabel);
+    parameters.put("end", endLabel);
+    return query(Query.ROUTES, maxLength, parameters);
+  }
+
+  /**
+   * @param startLabel Label of the page to start from
+   * @param maxLength Most relationships along a route
+   * @return Up to ROUTE_LIMIT routes, each with its ending, pages and words
+   */
+  public List<Map<String, Object>> routesToEndings(String startLabel, int maxLength) {
+    Map<String, Object> parameters = new HashMap<>();
+    parameters.put("start", startLabel);
+    return query(Query.ROUTES_TO_ENDINGS, maxLength, parameters);
+  }
+
+  /**
+   * @return Every sub book page in PDF order with the sub book pages it leads to
+   */
+  public List<Map<String, Object>> subBook() {
+    return query(Query.SUB_BOOK, DEFAULT_MAX_LENGTH, new HashMap<>());
+  }
+
+  /**
+   * @param phrase Word or phrase, see TextIndex.findPages
+   * @return Label of every page mentioning the phrase, in PDF order
+   */
+  public List<Map<String, Object>> mentions(String phrase) {
+    Map<String, Object> parameters = new HashMap<>();
+    parameters.put("mentioning", pagesMentioning(phrase));
+    return query(Query.PAGES_MENTIONING, DEFAULT_MAX_LENGTH, parameters);
+  }
+
+  /**
+   * @param startLabel Label of the page to start from
+   * @param endLabel Label of the page to end on
+   * @param phrase Word or phrase a page along the route has to mention, see TextIndex.findPages
+   * @param maxLength Most relationships along a route
+   * @return Up to ROUTE_LIMIT routes, each with its pages, the pages mentioning the phrase and words
+   */
+  public List<Map<String, Object>> routesMentioning(String startLabel, String endLabel, String phrase, int maxLength) {
+    Map<String, Object> parameters = new HashMap<>();
+    parameters.put("start", startLabel);
+    parameters.put("end", endLabel);
+    parameters.put("mentioning", pagesMentioning(phrase));
+    return query(Query.ROUTES_MENTIONING, maxLength, parameters);
+  }
+
+  /**
+   * @return PDF page numbers of the pages mentioning the phrase, as a list so cache keys compare them by value
+   */
+  private List<Integer> pagesMentioning(String phrase) {
+    TextIndex index = textIndex.get();
+    if (index == null) {
+      throw new IllegalStateException("There's no text index to look \"" + phrase + "\" up in, ingest with --text-index to build one");
+    }
+    List<Integer> pages = new ArrayList<>();
+    for (int pdfPageNumber : index.findPages(phrase)) {
+      pages.add(pdfPageNumber);
+    }
+    return pages;
+  }
+
+  /**
+   * Look a query up in the cache, running it on a miss
+   *
+   * @param query Named query
+   * @param maxLength Most relationships along a route, ignored by queries that don't follow routes
+   * @param parameters Parameters of the query
+   * @return Rows of the result, shared with other lookups so they can't be modified
+   */
+  List<Map<String, Object>> query(Query query, int maxLength, Map<String, Object> parameters) {
+    if (maxLength < 1) {
+      throw new IllegalArgumentException("Expected a positive max length: " + maxLength);
+    }
+    parameters.put("limit", ROUTE_LIMIT);
+    CacheKey key = new CacheKey(query, query.followsRoutes() ? maxLength : 0, parameters);
+
+    long currentGeneration = generation.getAsLong();
+    synchronized (cache) {
+      if (currentGeneration != cacheGeneration) {
+        // A new ingest has replaced the graph the cached results came from
+        cache.clear();
+        cacheGeneration = currentGeneration;
+      }
+      List<Map<String, Object>> rows = cache.get(key);
+      if (rows != null) {
+        hits.increment();
+        return rows;
+      }
+    }
+
+    misses.increment();
+    List<Map<String, Object>> rows = freeze(runner.run(query.cypher(maxLength), parameters));
+    synchronized (cache) {
+      // Don't keep a result from a graph an ingest has replaced since the query started
+      if (currentGeneration == cacheGeneration) {
+        cache.put(key, rows);
+      }
+    }
+    return rows;
+  }
+
+  private static List<Map<String, Object>> run(GraphDatabaseService graphDb, String cypher, Map<String, Object> parameters) {
+    List<Map<String, Object>> rows = new ArrayList<>();
+    try (Transaction tx = graphDb.beginTx();
+         Result result = graphDb.execute(cypher, parameters)) {
+      List<String> columns = result.columns();
+      while (result.hasNext()) {
+        // Keep the columns in the order the query returns them
+        Map<String, Object> row = result.next();
+        Map<String, Object> orderedRow = new LinkedHashMap<>();
+        for (String column : columns) {
+          orderedRow.put(column, row.get(column));
+        }
+        rows.add(orderedRow);
+      }
+      tx.success();
+    }
+    return rows;
+  }
+
+  /**
+   * Copy the rows so nothing holding a cached result can change it
+   */
+  private static List<Map<String, Object>> freeze(List<Map<String, Object>> rows) {
+    List<Map<String, Object>> frozen = new ArrayList<>(rows.size());
+    for (Map<String, Object> row : rows) {
+      Map<String, Object> frozenRow = new LinkedHashMap<>();
+      for (Map.Entry<String, Object> column : row.entrySet()) {
+        Object value = column.getValue();
+        frozenRow.put(column.getKey(), value instanceof List ? Collections.unmodifiableList(new ArrayList<>((List<?>) value)) : value);
+      }
+      frozen.add(Collections.unmodifiableMap(frozenRow));
+    }
+    return Collections.unmodifiableList(frozen);
+  }
+
+  /**
+   * @return Number of lookups answered from the cache
+   */
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  /**
+   * @return Number of lookups that had to run their query
+   */
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * @return Number of results in the cache
+   */
+  public int getCachedCount() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  /**
+   * A query and the parameters it was run with
+   */
+  private static final class CacheKey {
+    private final Query query;
+    private final int maxLength;
+    private final Map<String, Object> parameters;
+
+    private CacheKey(Query query, int maxLength, Map<String, Object> parameters) {
+      this.query = query;
+      this.maxLength = maxLength;
+      this.parameters = new HashMap<>(parameters);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof CacheKey)) {
+        return false;
+      }
+      CacheKey other = (CacheKey) o;
+      return query == other.query && maxLength == other.maxLength && parameters.equals(other.parameters);
+    }
+
+    @Override
+    public int hashCode() {
+      return (query.hashCode() * 31 + maxLength) * 31 + parameters.hashCode();
+    }
+  }
+
+  /**
+   * Opens the text index file whenever the ingest generation has moved on, so lookups always use the index written
+   * alongside the graph being queried
+   */
+  static final class TextIndexLoader implements Supplier<TextIndex> {
+    private final Path file;
+    private final LongSupplier generation;
+
+    // Guarded by this
+    private TextIndex textIndex;
+    private long loadedGeneration;
+    private boolean loaded = false;
+
+    /**
+     * @param file Text index file, see App.getTextIndexPath
+     * @param generation Current ingest generation, see App.readIngestGeneration
+     */
+    TextIndexLoader(Path file, LongSupplier generation) {
+      this.file = file;
+      this.generation = generation;
+    }
+
+    /**
+     * @return The text index, or null if the last ingest didn't write one
+     */
+    @Override
+    public synchronized TextIndex get() {
+      long currentGeneration = generation.getAsLong();
+      if (!loaded || currentGeneration != loadedGeneration) {
+        try {
+          textIndex = Files.exists(file) ? TextIndex.open(file) : null;
+        }
+        catch (IOException e) {
+          throw new UncheckedIOException("Couldn't open the text index " + file, e);
+        }
+        loadedGeneration = currentGeneration;
+        loaded = true;
+      }
+      return textIndex;
+    }
+  }
+
+  /**
+   * Runs queries against the read only database at a path, reopening it whenever the ingest generation has moved on.
+   * A --bulk ingest swaps a whole new store into the path, which a database opened before it would never see.
+   */
+  static final class ReopeningQueryRunner implements QueryRunner {
+    private final Path graphDbPath;
+    private final LongSupplier generation;
+    // Queries hold the read lock while they run, reopening the database takes the write lock
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Guarded by lock
+    private GraphDatabaseService graphDb;
+    private long openedGeneration;
+
+    /**
+     * @param graphDbPath Database directory, see App.getGraphDbPath
+     * @param generation Current ingest generation, see App.readIngestGeneration
+     */
+    ReopeningQueryRunner(Path graphDbPath, LongSupplier generation) {
+      this.graphDbPath = graphDbPath;
+      this.generation = generation;
+      open();
+    }
+
+    @Override
+    public List<Map<String, Object>> run(String cypher, Map<String, Object> parameters) {
+      long currentGeneration = generation.getAsLong();
+      lock.readLock().lock();
+      try {
+        if (currentGeneration != openedGeneration) {
+          lock.readLock().unlock();
+          lock.writeLock().lock();
+          try {
+            // Another query may have reopened it while this one waited
+            if (generation.getAsLong() != openedGeneration) {
+              graphDb.shutdown();
+              open();
+            }
+          }
+          finally {
+            lock.readLock().lock();
+            lock.writeLock().unlock();
+          }
+        }
+        return RouteQueryService.run(graphDb, cypher, parameters);
+      }
+      finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    /**
+     * Open the database, reading the generation first so a store swapped in while opening is reopened again later
+     * rather than missed
+     */
+    private void open() {
+      openedGeneration = generation.getAsLong();
+      try {
+        BulkGraphLoader.recoverInterruptedSwap(graphDbPath);
+      }
+      catch (IOException e) {
+        throw new UncheckedIOException("Couldn't recover the database " + graphDbPath, e);
+      }
+      graphDb = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(graphDbPath.toFile())
+        .setConfig(GraphDatabaseSettings.read_only, "true")
+        .newGraphDatabase();
+    }
+
+    void shutdown() {
+      lock.writeLock().lock();
+      try {
+        graphDb.shutdown();
+      }
+      finally {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    ReopeningQueryRunner runner = new ReopeningQueryRunner(App.getGraphDbPath(), App::readIngestGeneration);
+    try {
+      RouteQueryService service = new RouteQueryService(runner, 256, App::readIngestGeneration,
+        new TextIndexLoader(App.getTextIndexPath(), App::readIngestGeneration));
+      BufferedReader input = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+      String line;
+      while ((line = input.readLine()) != null) {
+        String[] words = line.trim().split("\\s+");
+        long start = System.nanoTime();
+        List<Map<String, Object>> rows;
+        try {
+          if (words[0].equals("routes") && (words.length == 3 || words.length == 4)) {
+            rows = service.routes(words[1], words[2], words.length == 4 ? Integer.parseInt(words[3]) : DEFAULT_MAX_LENGTH);
+          }
+          else if (words[0].equals("endings") && (words.length == 2 || words.length == 3)) {
+            rows = service.routesToEndings(words[1], words.length == 3 ? Integer.parseInt(words[2]) : DEFAULT_MAX_LENGTH);
+          }
+          else if (words[0].equals("subbook") && words.length == 1) {
+            rows = service.subBook();
+          }
+          else if (words[0].equals("mentions") && words.length >= 2) {
+            rows = service.mentions(String.join(" ", Arrays.asList(words).subList(1, words.length)));
+          }
+          else if (words[0].equals("routes-mentioning") && words.length >= 4) {
+            rows = service.routesMentioning(words[1], words[2], String.join(" ", Arrays.asList(words).subList(3, words.length)), DEFAULT_MAX_LENGTH);
+          }
+          else {
+            System.out.println("Expected one of: routes <start> <end> [max length], endings <start> [max length], subbook, mentions <words>, "
+              + "routes-mentioning <start> <end> <words>");
+            continue;
+          }
+        }
+        catch (IllegalArgumentException | IllegalStateException e) {
+          // A bad max length or a missing text index only fails the one query, NumberFormatException included
+          System.out.println("Couldn't run " + line.trim() + ": " + e.getMessage());
+          continue;
+        }
+
+        for (Map<String, Object> row : rows) {
+          System.out.println(row.values());
+        }
+        System.out.println(rows.size() + " rows in " + (System.nanoTime() - start) / 1000000 + "ms ("
+          + service.getHitCount() + " hits, " + service.getMissCount() + " misses)");
+      }
+    }
+    finally {
+      runner.shutdown();
+    }
+  }
+}
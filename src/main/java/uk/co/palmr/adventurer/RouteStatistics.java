@@ -0,0 +1,151 @@
+package uk.co.palmr.adventurer;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Counts every route from a start page to every ending (EndPage or ImagePage) without enumerating them, along with the
+ * shortest, longest and mean route length in pages.
+ *
+ * Loops are handled by condensing the graph into strongly connected components first. A loop is treated as a single
+ * stop on a route that visits each of its pages once, so it adds its page count to the route length and the number of
+ * routes stays finite. Routes are then counted with dynamic programming over the condensed graph in topological order,
+ * which visits each relationship once, so the whole thing is linear in the size of the graph. Components at the same
+ * distance from the start don't depend on each other, so each of those wavefronts is processed in parallel.
+ */
+public final class RouteStatistics {
+  // Wavefronts smaller than this aren't worth splitting between threads
+  private static final int PARALLEL_THRESHOLD = 512;
+
+  private RouteStatistics() {
+  }
+
+  /**
+   * Route statistics for one ending
+   */
+  public static final class EndingStatistics {
+    private final int page;
+    private final BigInteger routeCount;
+    private final long minLength;
+    private final long maxLength;
+    private final BigDecimal meanLength;
+
+    EndingStatistics(int page, BigInteger routeCount, long minLength, long maxLength, BigDecimal meanLength) {
+      this.page = page;
+      this.routeCount = routeCount;
+      this.minLength = minLength;
+      this.maxLength = maxLength;
+      this.meanLength = meanLength;
+    }
+
+    /**
+     * @return Page id of the ending
+     */
+    public int getPage() {
+      return page;
+    }
+
+    public BigInteger getRouteCount() {
+      return routeCount;
+    }
+
+    /**
+     * @return Pages on the shortest route, including the start and the ending, or 0 if the ending can't be reached
+     */
+    public long getMinLength() {
+      return minLength;
+    }
+
+    /**
+     * @return Pages on the longest route, including the start and the ending, or 0 if the ending can't be reached
+     */
+    public long getMaxLength() {
+      return maxLength;
+    }
+
+    /**
+     * @return Mean pages per route, or 0 if the ending can't be reached
+     */
+    public BigDecimal getMeanLength() {
+      return meanLength;
+    }
+  }
+
+  /**
+   * Work out route statistics for every ending reachable from a page
+   *
+   * @param graph Page graph
+   * @param components Strongly connected components of the graph
+   * @param start Page id routes start from
+   * @return Statistics for every ending in page order, with a route count of zero for unreachable endings
+   */
+  public static List<EndingStatistics> compute(PageGraph graph, StronglyConnectedComponents components, int start) {
+    int componentCount = components.getComponentCount();
+    int startComponent = components.getComponent(start);
+
+    // Split the components reachable from the start into wavefronts, by longest distance from the start
+    int[][] wavefronts = components.getWavefronts(startComponent);
+
+    BigInteger[] routeCounts = new BigInteger[componentCount];
+    BigInteger[] lengthSums = new BigInteger[componentCount];
+    long[] minLengths = new long[componentCount];
+    long[] maxLengths = new long[componentCount];
+
+    int startSize = components.getComponentSize(startComponent);
+    routeCounts[startComponent] = BigInteger.ONE;
+    lengthSums[startComponent] = BigInteger.valueOf(startSize);
+    minLengths[startComponent] = startSize;
+    maxLengths[startComponent] = startSize;
+
+    for (int l = 1; l < wavefronts.length; l++) {
+      int[] levelComponents = wavefronts[l];
+      IntStream wavefront = IntStream.range(0, levelComponents.length);
+      if (levelComponents.length >= PARALLEL_THRESHOLD) {
+        wavefront = wavefront.parallel();
+      }
+      // Each component only reads its predecessors, which are all in earlier wavefronts
+      wavefront.forEach(i -> {
+        int component = levelComponents[i];
+        long size = components.getComponentSize(component);
+        BigInteger routeCount = BigInteger.ZERO;
+        BigInteger lengthSum = BigInteger.ZERO;
+        long minLength = Long.MAX_VALUE;
+        long maxLength = 0;
+        for (int p = 0; p < components.getPredecessorCount(component); p++) {
+          int predecessor = components.getPredecessor(component, p);
+          if (routeCounts[predecessor] != null) {
+            routeCount = routeCount.add(routeCounts[predecessor]);
+            lengthSum = lengthSum.add(lengthSums[predecessor]).add(routeCounts[predecessor].multiply(BigInteger.valueOf(size)));
+            minLength = Math.min(minLength, minLengths[predecessor] + size);
+            maxLength = Math.max(maxLength, maxLengths[predecessor] + size);
+          }
+        }
+        routeCounts[component] = routeCount;
+        lengthSums[component] = lengthSum;
+        minLengths[component] = minLength;
+        maxLengths[component] = maxLength;
+      });
+    }
+
+    int[] endings = IntStream.range(0, graph.getPageCount()).filter(graph::isEnding).toArray();
+    EndingStatistics[] statistics = new EndingStatistics[endings.length];
+    IntStream.range(0, endings.length).parallel().forEach(i -> {
+      int component = components.getComponent(endings[i]);
+      if (routeCounts[component] == null) {
+        statistics[i] = new EndingStatistics(endings[i], BigInteger.ZERO, 0, 0, BigDecimal.ZERO);
+      }
+      else {
+        BigDecimal meanLength = new BigDecimal(lengthSums[component]).divide(new BigDecimal(routeCounts[component]), MathContext.DECIMAL64);
+        statistics[i] = new EndingStatistics(endings[i], routeCounts[component], minLengths[component], maxLengths[component], meanLength);
+      }
+    });
+
+    return Collections.unmodifiableList(new ArrayList<>(Arrays.asList(statistics)));
+  }
+}
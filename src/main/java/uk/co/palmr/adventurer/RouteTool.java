@@ -0,0 +1,218 @@
+package uk.co.palmr.adventurer;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.graphdb.factory.GraphDatabaseSettings;
+
+import java.io.IOException;
+import java.math.RoundingMode;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.IntStream;
+
+/**
+ * Command line route tooling over the page graph. The graph exported by the last ingest is mapped straight from
+ * page-graph.bin when it's there, otherwise graph-db is loaded into a CompactPageGraph once. Either way questions are
+ * answered in memory rather than with Cypher. After a corpus ingest --book picks a book's page graph out of
+ * page-graphs.
+ *
+ * Usage:
+ *   RouteTool [--book=id] stats [start page label]
+ *   RouteTool [--book=id] shortest <start page label> <end page label>
+ *   RouteTool [--book=id] longest <start page label> <end page label>
+ *   RouteTool [--book=id] batch [start page label...]
+ *   RouteTool [--book=id] simulate <playthroughs> [start page label] [uniform|unvisited|cautious] [seed]
+ */
+public class RouteTool {
+
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) {
+      usage();
+      return;
+    }
+
+    String bookId = null;
+    if (args[0].startsWith("--book=")) {
+      bookId = args[0].substring("--book=".length());
+      args = Arrays.copyOfRange(args, 1, args.length);
+      if (args.length == 0) {
+        usage();
+        return;
+      }
+    }
+
+    PageGraph graph = bookId != null ? MappedPageGraph.open(App.getPageGraphsPath().resolve(bookId + ".bin")) : loadGraph();
+
+    switch (args[0]) {
+      case "stats":
+        printStatistics(graph, startPage(graph, args.length > 1 ? args[1] : null));
+        break;
+      case "shortest":
+      case "longest":
+        if (args.length != 3) {
+          usage();
+          return;
+        }
+        RouteFinder routeFinder = new RouteFinder(graph);
+        int start = startPage(graph, args[1]);
+        int end = startPage(graph, args[2]);
+        printRoute(graph, "shortest".equals(args[0]) ? routeFinder.shortest(start, end) : routeFinder.longest(start, end));
+        break;
+      case "batch":
+        printBatch(graph, args);
+        break;
+      case "simulate":
+        if (args.length < 2 || args.length > 5) {
+          usage();
+          return;
+        }
+        printSimulation(graph, Long.parseLong(args[1]), startPage(graph, args.length > 2 ? args[2] : null),
+          args.length > 3 ? PlaythroughSimulator.Policy.valueOf(args[3].toUpperCase(Locale.ROOT)) : PlaythroughSimulator.Policy.UNIFORM,
+          args.length > 4 ? Long.parseLong(args[4]) : System.nanoTime());
+        break;
+      default:
+        usage();
+    }
+  }
+
+  private static void usage() {
+    System.out.println("Usage: RouteTool [--book=id] stats [start page label]");
+    System.out.println("       RouteTool [--book=id] shortest <start page label> <end page label>");
+    System.out.println("       RouteTool [--book=id] longest <start page label> <end page label>");
+    System.out.println("       RouteTool [--book=id] batch [start page label...]");
+    System.out.println("       RouteTool [--book=id] simulate <playthroughs> [start page label] [uniform|unvisited|cautious] [seed]");
+  }
+
+  /**
+   * Map the exported page graph, or load the page graph from graph-db without modifying the store if there's no export
+   *
+   * @return Page graph
+   * @throws IOException
+   */
+  private static PageGraph loadGraph() throws IOException {
+    if (Files.exists(App.getPageGraphPath())) {
+      return MappedPageGraph.open(App.getPageGraphPath());
+    }
+
+    BulkGraphLoader.recoverInterruptedSwap(App.getGraphDbPath());
+    GraphDatabaseService graphDb = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(App.getGraphDbPath().toFile())
+      .setConfig(GraphDatabaseSettings.read_only, "true")
+      .newGraphDatabase();
+    try {
+      return CompactPageGraph.load(graphDb);
+    }
+    finally {
+      graphDb.shutdown();
+    }
+  }
+
+  /**
+   * @param graph Page graph
+   * @param bookPageLabel Label of the start page, or null for the first page that isn't ignored (the start of the book)
+   * @return Page id of the start page
+   */
+  static int startPage(PageGraph graph, String bookPageLabel) {
+    if (bookPageLabel != null) {
+      int page = graph.findPage(bookPageLabel);
+      if (page < 0) {
+        throw new IllegalArgumentException("No page labelled " + bookPageLabel);
+      }
+      return page;
+    }
+    for (int page = 0; page < graph.getPageCount(); page++) {
+      if (!graph.hasPageType(page, PageTypes.Ignore)) {
+        return page;
+      }
+    }
+    throw new IllegalArgumentException("The book has no pages that aren't ignored");
+  }
+
+  /**
+   * Print the number of routes to each ending and their lengths
+   */
+  private static void printStatistics(PageGraph graph, int start) {
+    List<RouteStatistics.EndingStatistics> statistics = RouteStatistics.compute(graph, new StronglyConnectedComponents(graph), start);
+
+    System.out.println("Routes from page " + graph.getBookPageLabel(start));
+    System.out.println("Ending\tRoutes\tMin pages\tMax pages\tMean pages");
+    for (RouteStatistics.EndingStatistics ending : statistics) {
+      System.out.println(graph.getBookPageLabel(ending.getPage()) + "\t" + ending.getRouteCount() + "\t" + ending.getMinLength()
+        + "\t" + ending.getMaxLength() + "\t" + ending.getMeanLength().setScale(2, RoundingMode.HALF_UP).toPlainString());
+    }
+  }
+
+  /**
+   * Print a route as its page labels and word count
+   */
+  private static void printRoute(PageGraph graph, RouteFinder.Route route) {
+    if (route == null) {
+      System.out.println("No route");
+      return;
+    }
+    System.out.println(route.getWords() + " words: " + describePages(graph, route));
+  }
+
+  /**
+   * Print the quickest and longest read to every reachable ending from each start page, or from every page that isn't
+   * ignored when no start pages are given
+   */
+  private static void printBatch(PageGraph graph, String[] args) {
+    int[] starts;
+    if (args.length > 1) {
+      starts = new int[args.length - 1];
+      for (int i = 1; i < args.length; i++) {
+        starts[i - 1] = startPage(graph, args[i]);
+      }
+    }
+    else {
+      starts = IntStream.range(0, graph.getPageCount()).filter(page -> !graph.hasPageType(page, PageTypes.Ignore)).toArray();
+    }
+
+    System.out.println("Start\tEnding\tMin words\tMax words\tQuickest route\tLongest route");
+    for (RouteFinder.PairResult pair : new RouteFinder(graph).allPairs(starts)) {
+      System.out.println(graph.getBookPageLabel(pair.getStart()) + "\t" + graph.getBookPageLabel(pair.getEnd())
+        + "\t" + pair.getShortest().getWords() + "\t" + pair.getLongest().getWords()
+        + "\t" + describePages(graph, pair.getShortest()) + "\t" + describePages(graph, pair.getLongest()));
+    }
+  }
+
+  /**
+   * Print how likely each ending is from random playthroughs, with 95% confidence intervals, and how much is read
+   */
+  private static void printSimulation(PageGraph graph, long playthroughs, int start, PlaythroughSimulator.Policy policy, long seed) {
+    PlaythroughSimulator simulator = new PlaythroughSimulator(graph, new StronglyConnectedComponents(graph));
+    PlaythroughSimulator.Result result = simulator.simulate(start, playthroughs, policy, seed);
+
+    System.out.println(playthroughs + " playthroughs from page " + graph.getBookPageLabel(start) + ", " + policy.name().toLowerCase(Locale.ROOT)
+      + " reader, seed " + seed);
+    System.out.println("Ending\tProbability\t95% interval\tMean pages\tMean words");
+    for (PlaythroughSimulator.Result.EndingEstimate ending : result.getEndings()) {
+      printEstimate(graph.getBookPageLabel(ending.getPage()), ending);
+    }
+    printEstimate("Dead end", result.getDeadEnds());
+    printEstimate("Loop", result.getLoops());
+    System.out.println(String.format(Locale.ROOT, "Mean pages %.2f +/- %.2f, mean words %.0f +/- %.0f", result.getMeanPages(),
+      result.getMeanPagesMargin(), result.getMeanWords(), result.getMeanWordsMargin()));
+    System.out.println(String.format(Locale.ROOT, "%d pages read in %dms, %.1f million a second", result.getSteps(),
+      result.getElapsedNanos() / 1000000, result.getSteps() * 1000.0 / result.getElapsedNanos()));
+  }
+
+  private static void printEstimate(String outcome, PlaythroughSimulator.Result.Estimate estimate) {
+    double[] interval = estimate.getConfidenceInterval();
+    System.out.println(String.format(Locale.ROOT, "%s\t%.5f\t%.5f-%.5f\t%.1f\t%.0f", outcome, estimate.getProbability(), interval[0],
+      interval[1], estimate.getMeanPages(), estimate.getMeanWords()));
+  }
+
+  private static String describePages(PageGraph graph, RouteFinder.Route route) {
+    StringBuilder pages = new StringBuilder();
+    for (int page : route.getPages()) {
+      if (pages.length() > 0) {
+        pages.append(" > ");
+      }
+      pages.append(graph.getBookPageLabel(page));
+    }
+    return pages.toString();
+  }
+}
@@ -0,0 +1,221 @@
+package uk.co.palmr.adventurer;
+
+import java.util.Arrays;
+
+/**
+ * Strongly connected components of a PageGraph, found with an iterative version of Tarjan's algorithm, and the
+ * condensed graph where each component (a loop of pages, or a single page) becomes one node. The condensed graph has
+ * no cycles so routes through it can be counted and measured with dynamic programming.
+ *
+ * Components are numbered in topological order: every relationship between two components goes from a lower number to
+ * a higher one.
+ */
+public final class StronglyConnectedComponents {
+  private final int componentCount;
+  private final int[] componentOfPage;
+  private final int[] componentOffsets;
+  private final int[] componentPages;
+
+  private final int[] successorOffsets;
+  private final int[] successors;
+  private final int[] predecessorOffsets;
+  private final int[] predecessors;
+
+  public StronglyConnectedComponents(PageGraph graph) {
+    int pageCount = graph.getPageCount();
+    componentOfPage = new int[pageCount];
+
+    // Tarjan's algorithm with explicit stacks so long routes can't overflow the call stack
+    int[] index = new int[pageCount];
+    int[] lowLink = new int[pageCount];
+    Arrays.fill(index, -1);
+    boolean[] onStack = new boolean[pageCount];
+    int[] tarjanStack = new int[pageCount];
+    int tarjanDepth = 0;
+    int[] callPages = new int[pageCount];
+    int[] callEdges = new int[pageCount];
+    int nextIndex = 0;
+    int reverseComponents = 0;
+
+    for (int root = 0; root < pageCount; root++) {
+      if (index[root] >= 0) {
+        continue;
+      }
+      int callDepth = 0;
+      callPages[0] = root;
+      callEdges[0] = 0;
+      index[root] = lowLink[root] = nextIndex++;
+      tarjanStack[tarjanDepth++] = root;
+      onStack[root] = true;
+
+      while (callDepth >= 0) {
+        int page = callPages[callDepth];
+        if (callEdges[callDepth] < graph.getOutDegree(page)) {
+          int next = graph.getNeighbour(page, callEdges[callDepth]++);
+          if (index[next] < 0) {
+            index[next] = lowLink[next] = nextIndex++;
+            tarjanStack[tarjanDepth++] = next;
+            onStack[next] = true;
+            callDepth++;
+            callPages[callDepth] = next;
+            callEdges[callDepth] = 0;
+          }
+          else if (onStack[next]) {
+            lowLink[page] = Math.min(lowLink[page], index[next]);
+          }
+        }
+        else {
+          if (lowLink[page] == index[page]) {
+            // Tarjan finds components in reverse topological order, they're renumbered below
+            int member;
+            do {
+              member = tarjanStack[--tarjanDepth];
+              onStack[member] = false;
+              componentOfPage[member] = reverseComponents;
+            } while (member != page);
+            reverseComponents++;
+          }
+          callDepth--;
+          if (callDepth >= 0) {
+            int parent = callPages[callDepth];
+            lowLink[parent] = Math.min(lowLink[parent], lowLink[page]);
+          }
+        }
+      }
+    }
+
+    componentCount = reverseComponents;
+    int[] componentSizes = new int[componentCount + 1];
+    for (int page = 0; page < pageCount; page++) {
+      componentOfPage[page] = componentCount - 1 - componentOfPage[page];
+      componentSizes[componentOfPage[page] + 1]++;
+    }
+    componentOffsets = prefixSum(componentSizes);
+    componentPages = new int[pageCount];
+    int[] fill = Arrays.copyOf(componentOffsets, componentCount);
+    for (int page = 0; page < pageCount; page++) {
+      componentPages[fill[componentOfPage[page]]++] = page;
+    }
+
+    // Condensed graph, without self loops or duplicate relationships
+    int[] lastSeen = new int[componentCount];
+    Arrays.fill(lastSeen, -1);
+    int[] successorCounts = new int[componentCount + 1];
+    int[] predecessorCounts = new int[componentCount + 1];
+    for (int component = 0; component < componentCount; component++) {
+      for (int p = componentOffsets[component]; p < componentOffsets[component + 1]; p++) {
+        int page = componentPages[p];
+        for (int i = 0; i < graph.getOutDegree(page); i++) {
+          int target = componentOfPage[graph.getNeighbour(page, i)];
+          if (target != component && lastSeen[target] != component) {
+            lastSeen[target] = component;
+            successorCounts[component + 1]++;
+            predecessorCounts[target + 1]++;
+          }
+        }
+      }
+    }
+    successorOffsets = prefixSum(successorCounts);
+    predecessorOffsets = prefixSum(predecessorCounts);
+    successors = new int[successorOffsets[componentCount]];
+    predecessors = new int[predecessorOffsets[componentCount]];
+    int[] successorFill = Arrays.copyOf(successorOffsets, componentCount);
+    int[] predecessorFill = Arrays.copyOf(predecessorOffsets, componentCount);
+    Arrays.fill(lastSeen, -1);
+    for (int component = 0; component < componentCount; component++) {
+      for (int p = componentOffsets[component]; p < componentOffsets[component + 1]; p++) {
+        int page = componentPages[p];
+        for (int i = 0; i < graph.getOutDegree(page); i++) {
+          int target = componentOfPage[graph.getNeighbour(page, i)];
+          if (target != component && lastSeen[target] != component) {
+            lastSeen[target] = component;
+            successors[successorFill[component]++] = target;
+            predecessors[predecessorFill[target]++] = component;
+          }
+        }
+      }
+    }
+  }
+
+  private static int[] prefixSum(int[] counts) {
+    for (int i = 1; i < counts.length; i++) {
+      counts[i] += counts[i - 1];
+    }
+    return counts;
+  }
+
+  /**
+   * Split the components reachable from a component into wavefronts by their longest distance from it. A component
+   * only depends on components in earlier wavefronts, so the components of one wavefront can be processed in parallel.
+   *
+   * @param startComponent Component to start from, the only one in the first wavefront
+   * @return Components of each wavefront in turn, each in topological order
+   */
+  public int[][] getWavefronts(int startComponent) {
+    int[] level = new int[componentCount];
+    Arrays.fill(level, -1);
+    level[startComponent] = 0;
+    int levelCount = 1;
+    for (int component = startComponent; component < componentCount; component++) {
+      if (level[component] >= 0) {
+        for (int i = 0; i < getSuccessorCount(component); i++) {
+          int successor = getSuccessor(component, i);
+          level[successor] = Math.max(level[successor], level[component] + 1);
+          levelCount = Math.max(levelCount, level[successor] + 1);
+        }
+      }
+    }
+    int[] levelSizes = new int[levelCount];
+    for (int component = startComponent; component < componentCount; component++) {
+      if (level[component] >= 0) {
+        levelSizes[level[component]]++;
+      }
+    }
+    int[][] wavefronts = new int[levelCount][];
+    for (int l = 0; l < levelCount; l++) {
+      wavefronts[l] = new int[levelSizes[l]];
+      levelSizes[l] = 0;
+    }
+    for (int component = startComponent; component < componentCount; component++) {
+      if (level[component] >= 0) {
+        wavefronts[level[component]][levelSizes[level[component]]++] = component;
+      }
+    }
+    return wavefronts;
+  }
+
+  public int getComponentCount() {
+    return componentCount;
+  }
+
+  public int getComponent(int page) {
+    return componentOfPage[page];
+  }
+
+  public int getComponentSize(int component) {
+    return componentOffsets[component + 1] - componentOffsets[component];
+  }
+
+  /**
+   * @return The i'th page id in a component
+   */
+  public int getComponentPage(int component, int i) {
+    return componentPages[componentOffsets[component] + i];
+  }
+
+  public int getSuccessorCount(int component) {
+    return successorOffsets[component + 1] - successorOffsets[component];
+  }
+
+  public int getSuccessor(int component, int i) {
+    return successors[successorOffsets[component] + i];
+  }
+
+  public int getPredecessorCount(int component) {
+    return predecessorOffsets[component + 1] - predecessorOffsets[component];
+  }
+
+  public int getPredecessor(int component, int i) {
+    return predecessors[predecessorOffsets[component] + i];
+  }
+}
@@ -0,0 +1,258 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.text.Chunk;
+import com.itextpdf.text.Document;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Font;
+import com.itextpdf.text.Image;
+import com.itextpdf.text.PageSize;
+import com.itextpdf.text.Paragraph;
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.PdfAction;
+import com.itextpdf.text.pdf.PdfAnnotation;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfPageEventHelper;
+import com.itextpdf.text.pdf.PdfPageLabels;
+import com.itextpdf.text.pdf.PdfWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Generates choose your own adventure books of any size for load testing, laid out like the real book so every part of
+ * ingest gets exercised:
+ *
+ * - Roman numeral front matter, the main book and a G prefixed sub book, each split into a number of page label ranges
+ * - Choices as link annotations to named destinations, some long enough to wrap so they get a duplicate link per line
+ * - "THE END" pages, image only pages and pages that just continue onto the next
+ *
+ * Usage: SyntheticBookGenerator output.pdf pageCount [branchingFactor] [labelRanges] [seed]
+ */
+public class SyntheticBookGenerator {
+  private static final Font BODY_FONT = new Font(Font.FontFamily.TIMES_ROMAN, 11);
+  private static final Font END_FONT = new Font(Font.FontFamily.HELVETICA, 20, Font.BOLD);
+
+  private static final String[] WORDS = {
+    "the", "castle", "ghost", "you", "walk", "slowly", "along", "a", "dark", "corridor", "and", "hear", "footsteps",
+    "behind", "king", "queen", "sword", "poison", "whisper", "stage", "players", "bones", "skull", "door", "night"
+  };
+
+  private final int pageCount;
+  private final int branchingFactor;
+  private final int labelRanges;
+  private final long seed;
+
+  // Layout of the book, as 0 based page indexes
+  private final int mainStart;
+  private final int subBookStart;
+
+  /**
+   * @param pageCount Number of pages in the book
+   * @param branchingFactor Number of choices on each page that has choices
+   * @param labelRanges Number of page label ranges, at least 3 (front matter, main book and sub book)
+   * @param seed Random seed, the same arguments always generate the same book
+   */
+  public SyntheticBookGenerator(int pageCount, int branchingFactor, int labelRanges, long seed) {
+    if (pageCount < 20) {
+      throw new IllegalArgumentException("A book needs at least 20 pages");
+    }
+    if (branchingFactor < 1) {
+      throw new IllegalArgumentException("The branching factor must be at least 1");
+    }
+    if (labelRanges < 3) {
+      throw new IllegalArgumentException("A book needs at least 3 page label ranges");
+    }
+    this.pageCount = pageCount;
+    this.branchingFactor = branchingFactor;
+    this.labelRanges = labelRanges;
+    this.seed = seed;
+
+    mainStart = Math.max(2, Math.min(20, pageCount / 50));
+    subBookStart = pageCount - Math.max(2, pageCount / 10);
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.out.println("Usage: SyntheticBookGenerator output.pdf pageCount [branchingFactor] [labelRanges] [seed]");
+      return;
+    }
+
+    SyntheticBookGenerator generator = new SyntheticBookGenerator(
+      Integer.parseInt(args[1]),
+      args.length > 2 ? Integer.parseInt(args[2]) : 2,
+      args.length > 3 ? Integer.parseInt(args[3]) : 3,
+      args.length > 4 ? Long.parseLong(args[4]) : 42);
+    try (OutputStream out = new FileOutputStream(args[0])) {
+      generator.write(out);
+    }
+  }
+
+  /**
+   * @return Contents of the generated PDF
+   * @throws IOException
+   */
+  public byte[] generate() throws IOException {
+    ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+    write(pdf);
+    return pdf.toByteArray();
+  }
+
+  /**
+   * Write the generated PDF, streaming pages out as they're laid out so large books don't have to fit in memory
+   *
+   * @param out Stream to write the PDF to, left open
+   * @throws IOException
+   */
+  public void write(OutputStream out) throws IOException {
+    Document document = new Document(PageSize.A5);
+    try {
+      PdfWriter writer = PdfWriter.getInstance(document, out);
+      writer.setCloseStream(false);
+      writer.setPageEvent(new ChoiceLinks());
+      document.open();
+
+      Random random = new Random(seed);
+      // Every image page shares one image so it's only stored once
+      Image image = Image.getInstance(32, 32, 3, 8, new byte[32 * 32 * 3]);
+      int[] pdfPageNumbers = new int[pageCount];
+      for (int page = 0; page < pageCount; page++) {
+        pdfPageNumbers[page] = writer.getPageNumber();
+        addPage(document, page, image, random);
+        document.newPage();
+        if (writer.getPageNumber() != pdfPageNumbers[page] + 1) {
+          throw new IllegalStateException("Page " + page + " doesn't fit on one PDF page, try a smaller branching factor");
+        }
+      }
+
+      writer.setPageLabels(pageLabels(pdfPageNumbers));
+      document.close();
+    }
+    catch (DocumentException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private void addPage(Document document, int page, Image image, Random random) throws DocumentException {
+    if (page < mainStart) {
+      document.add(new Paragraph(words(random, 40 + random.nextInt(200)), BODY_FONT));
+      return;
+    }
+
+    boolean lastInSection = page == subBookStart - 1 || page == pageCount - 1;
+    int kind = random.nextInt(20);
+    if (!lastInSection && kind == 0) {
+      // Image only apart from the page number, which doubles as the link destination
+      document.add(image);
+      document.add(new Paragraph(anchor(page, label(page))));
+      return;
+    }
+
+    Paragraph story = new Paragraph(anchor(page, label(page) + " "));
+    story.add(new Chunk(words(random, 20 + random.nextInt(200)), BODY_FONT));
+    document.add(story);
+
+    if (lastInSection || kind < 3) {
+      document.add(new Paragraph("THE END", END_FONT));
+    }
+    else if (kind >= 5) {
+      // Anything else carries on over the page without a choice
+      for (int choice = 0; choice < branchingFactor; choice++) {
+        int target = choiceTarget(page, random);
+        String text = random.nextBoolean()
+          ? "Turn to " + label(target) + "."
+          : "If you " + words(random, 12) + " then you should turn to page " + label(target) + " and see what awaits you there.";
+        Chunk link = new Chunk(text, BODY_FONT);
+        link.setGenericTag(destination(target));
+        document.add(new Paragraph(link));
+      }
+    }
+  }
+
+  /**
+   * Mostly a page a little further on in the same section, sometimes anywhere in it so the book has loops
+   */
+  private int choiceTarget(int page, Random random) {
+    int sectionStart = page < subBookStart ? mainStart : subBookStart;
+    int sectionEnd = page < subBookStart ? subBookStart : pageCount;
+    int target;
+    if (random.nextInt(10) == 0) {
+      target = sectionStart + random.nextInt(sectionEnd - sectionStart);
+    }
+    else {
+      target = Math.min(sectionEnd - 1, page + 1 + random.nextInt(50));
+    }
+    return target == page ? sectionEnd - 1 : target;
+  }
+
+  private static Chunk anchor(int page, String text) {
+    Chunk anchor = new Chunk(text, BODY_FONT);
+    anchor.setLocalDestination(destination(page));
+    return anchor;
+  }
+
+  private static String destination(int page) {
+    return "page" + page;
+  }
+
+  private static String words(Random random, int count) {
+    StringBuilder words = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        words.append(' ');
+      }
+      words.append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return words.toString();
+  }
+
+  /**
+   * @return Book page label of a page in the main book or sub book
+   */
+  private String label(int page) {
+    return page < subBookStart ? String.valueOf(page - mainStart + 1) : "G" + (page - subBookStart + 1);
+  }
+
+  /**
+   * Front matter gets one roman numeral range, then the rest of the ranges are shared out between the main book and
+   * the sub book. Ranges within a section carry on the numbering so every label stays unique.
+   */
+  private PdfPageLabels pageLabels(int[] pdfPageNumbers) {
+    PdfPageLabels labels = new PdfPageLabels();
+    labels.addPageLabel(pdfPageNumbers[0], PdfPageLabels.LOWERCASE_ROMAN_NUMERALS);
+
+    int subBookRanges = Math.max(1, (labelRanges - 1) / 10);
+    addRanges(labels, pdfPageNumbers, mainStart, subBookStart, labelRanges - 1 - subBookRanges, null);
+    addRanges(labels, pdfPageNumbers, subBookStart, pageCount, subBookRanges, "G");
+    return labels;
+  }
+
+  private static void addRanges(PdfPageLabels labels, int[] pdfPageNumbers, int start, int end, int ranges, String prefix) {
+    ranges = Math.min(ranges, end - start);
+    for (int range = 0; range < ranges; range++) {
+      int rangeStart = start + (int) ((long) (end - start) * range / ranges);
+      labels.addPageLabel(pdfPageNumbers[rangeStart], PdfPageLabels.DECIMAL_ARABIC_NUMERALS, prefix, rangeStart - start + 1);
+    }
+  }
+
+  /**
+   * Adds a link annotation for every line a choice is laid out on, like the duplicate links in the real book. The
+   * GoTo action is written as an indirect object with the destination name as a string, also like the real book.
+   */
+  private static final class ChoiceLinks extends PdfPageEventHelper {
+    @Override
+    public void onGenericTag(PdfWriter writer, Document document, Rectangle rect, String text) {
+      try {
+        PdfAnnotation link = new PdfAnnotation(writer, rect);
+        link.put(PdfName.SUBTYPE, PdfName.LINK);
+        link.put(PdfName.A, writer.addToBody(PdfAction.gotoLocalPage(text, false)).getIndirectReference());
+        writer.addAnnotation(link);
+      }
+      catch (IOException e) {
+        throw new IllegalStateException("Couldn't write link to " + text, e);
+      }
+    }
+  }
+}
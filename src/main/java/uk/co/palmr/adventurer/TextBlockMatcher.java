@@ -0,0 +1,48 @@
+package uk.co.palmr.adventurer;
+
+/**
+ * Checks whether a block of text is a prefix of a target string as the block arrives a chunk at a time, so the block
+ * never has to be built up as a String
+ */
+final class TextBlockMatcher {
+  private final String target;
+  private int matchedLength = 0;
+
+  TextBlockMatcher(String target) {
+    this.target = target;
+  }
+
+  /**
+   * Start matching a new block
+   */
+  void reset() {
+    matchedLength = 0;
+  }
+
+  void append(String text) {
+    if (matchedLength < 0) {
+      return;
+    }
+    if (matchedLength + text.length() <= target.length() && target.regionMatches(matchedLength, text, 0, text.length())) {
+      matchedLength += text.length();
+    }
+    else {
+      matchedLength = -1;
+    }
+  }
+
+  /**
+   * @return Length of the target the block so far is equal to the start of, or -1 if the block has gone past the target
+   * or differs from it
+   */
+  int getMatchedLength() {
+    return matchedLength;
+  }
+
+  /**
+   * @return Whether the block so far is equal to the whole target
+   */
+  boolean isFullMatch() {
+    return matchedLength == target.length();
+  }
+}
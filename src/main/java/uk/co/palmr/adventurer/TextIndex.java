@@ -0,0 +1,452 @@
+package uk.co.palmr.adventurer;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Full text index of the pages of a book, for finding every page that mentions a word or a phrase without parsing the
+ * PDF again.
+ *
+ * Page text is split into terms, runs of letters and digits lower cased, so "Claudius's" is the terms "claudius" and
+ * "s". Each term has its postings: the PDF pages it's on in order, each with the positions of the term among the page's
+ * terms so phrases can be matched. Postings are written as varints, each PDF page number and position as the difference
+ * from the one before, so most take a single byte.
+ *
+ * The index is built with a Builder as pages are extracted and written to a file alongside the graph. Like
+ * MappedPageGraph it's queried straight from a read-only memory mapping of the file, only the postings of the terms
+ * being looked up are decoded.
+ *
+ * File layout, every number little-endian:
+ *
+ * - Header of 8 ints: MAGIC, VERSION, term count, page count, term bytes, posting bytes, then reserved zeros
+ * - Number of pages each term is on, an int[term count]
+ * - Terms sorted by their UTF-8 bytes: int[term count + 1] byte offsets, then the bytes
+ * - Postings: int[term count + 1] byte offsets, then each term's postings. For each page it's on: the PDF page number
+ *   less the last one, the number of positions, then each position less the last one.
+ */
+public final class TextIndex {
+  static final int MAGIC = 0x54564441; // "ADVT"
+  static final int VERSION = 1;
+  private static final int HEADER_INTS = 8;
+
+  private final int termCount;
+  private final int pageCount;
+  private final IntBuffer pageFrequencies;
+  private final IntBuffer termOffsets;
+  private final ByteBuffer termBytes;
+  private final IntBuffer postingOffsets;
+  private final ByteBuffer postingBytes;
+
+  private TextIndex(ByteBuffer buffer) throws IOException {
+    if (buffer.capacity() < 4 * HEADER_INTS) {
+      throw new IOException("Not a text index file");
+    }
+    IntBuffer header = MappedFiles.slice(buffer, 0, 4 * HEADER_INTS).asIntBuffer();
+    if (header.get(0) != MAGIC) {
+      throw new IOException("Not a text index file");
+    }
+    if (header.get(1) != VERSION) {
+      throw new IOException("Text index file is version " + header.get(1) + ", expected " + VERSION);
+    }
+
+    termCount = header.get(2);
+    pageCount = header.get(3);
+    int termByteCount = header.get(4);
+    int postingByteCount = header.get(5);
+    long expectedSize = fileSize(termCount, termByteCount, postingByteCount);
+    if (buffer.capacity() != expectedSize) {
+      throw new IOException("Text index file is " + buffer.capacity() + " bytes, expected " + expectedSize);
+    }
+
+    int offset = 4 * HEADER_INTS;
+    pageFrequencies = MappedFiles.slice(buffer, offset, 4 * termCount).asIntBuffer();
+    offset += 4 * termCount;
+    termOffsets = MappedFiles.slice(buffer, offset, 4 * (termCount + 1)).asIntBuffer();
+    offset += 4 * (termCount + 1);
+    termBytes = MappedFiles.slice(buffer, offset, termByteCount);
+    offset += termByteCount;
+    postingOffsets = MappedFiles.slice(buffer, offset, 4 * (termCount + 1)).asIntBuffer();
+    offset += 4 * (termCount + 1);
+    postingBytes = MappedFiles.slice(buffer, offset, postingByteCount);
+  }
+
+  private static long fileSize(int termCount, int termByteCount, int postingByteCount) {
+    return 4L * HEADER_INTS + 4L * termCount + 4L * (termCount + 1) + termByteCount + 4L * (termCount + 1) + postingByteCount;
+  }
+
+  /**
+   * Map a text index file
+   *
+   * @param file File written by Builder.write
+   * @return Index reading from the mapping
+   * @throws IOException If the file can't be read or isn't a text index file of this version
+   */
+  public static TextIndex open(Path file) throws IOException {
+    return new TextIndex(MappedFiles.map(file, "Text index file"));
+  }
+
+  /**
+   * Split text into terms, runs of letters and digits lower cased
+   *
+   * @param text Text to split
+   * @return Terms in the order they appear
+   */
+  static List<String> terms(String text) {
+    List<String> terms = new ArrayList<>();
+    StringBuilder term = new StringBuilder();
+    for (int i = 0; i < text.length(); ) {
+      int codePoint = text.codePointAt(i);
+      if (Character.isLetterOrDigit(codePoint)) {
+        term.appendCodePoint(Character.toLowerCase(codePoint));
+      }
+      else if (term.length() > 0) {
+        terms.add(term.toString());
+        term.setLength(0);
+      }
+      i += Character.charCount(codePoint);
+    }
+    if (term.length() > 0) {
+      terms.add(term.toString());
+    }
+    return terms;
+  }
+
+  /**
+   * @return Number of distinct terms in the index
+   */
+  public int getTermCount() {
+    return termCount;
+  }
+
+  /**
+   * @return Number of pages that were indexed
+   */
+  public int getPageCount() {
+    return pageCount;
+  }
+
+  /**
+   * Find the pages that mention a word or phrase. The query is split into terms the same way as the page text, so case
+   * and punctuation don't matter, and a query of several terms matches pages where they appear one after the other.
+   *
+   * @param query Word or phrase to look for
+   * @return PDF page numbers of the pages it's on, in order
+   */
+  public int[] findPages(String query) {
+    List<String> terms = terms(query);
+    if (terms.isEmpty()) {
+      return new int[0];
+    }
+
+    Postings[] postings = new Postings[terms.size()];
+    int rarest = 0;
+    for (int i = 0; i < postings.length; i++) {
+      int term = findTerm(terms.get(i).getBytes(StandardCharsets.UTF_8));
+      if (term < 0) {
+        return new int[0];
+      }
+      postings[i] = decode(term);
+      if (postings[i].pages.length < postings[rarest].pages.length) {
+        rarest = i;
+      }
+    }
+    if (postings.length == 1) {
+      return postings[0].pages;
+    }
+
+    // Only the pages of the rarest term can have the phrase on them
+    int[] pages = new int[postings[rarest].pages.length];
+    int pageCount = 0;
+    int[] pageIndexes = new int[postings.length];
+    for (int pdfPageNumber : postings[rarest].pages) {
+      boolean onPage = true;
+      for (int i = 0; i < postings.length && onPage; i++) {
+        pageIndexes[i] = Arrays.binarySearch(postings[i].pages, pdfPageNumber);
+        onPage = pageIndexes[i] >= 0;
+      }
+      if (onPage && hasPhrase(postings, pageIndexes)) {
+        pages[pageCount++] = pdfPageNumber;
+      }
+    }
+    return Arrays.copyOf(pages, pageCount);
+  }
+
+  /**
+   * @return Whether the terms appear one after the other on a page every term is on
+   */
+  private static boolean hasPhrase(Postings[] postings, int[] pageIndexes) {
+    Postings first = postings[0];
+    for (int p = first.positionOffsets[pageIndexes[0]]; p < first.positionOffsets[pageIndexes[0] + 1]; p++) {
+      int start = first.positions[p];
+      boolean matches = true;
+      for (int i = 1; i < postings.length && matches; i++) {
+        Postings next = postings[i];
+        int from = next.positionOffsets[pageIndexes[i]];
+        int to = next.positionOffsets[pageIndexes[i] + 1];
+        matches = Arrays.binarySearch(next.positions, from, to, start + i) >= 0;
+      }
+      if (matches) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return Term id of the term, or -1 if no page has it
+   */
+  private int findTerm(byte[] term) {
+    int low = 0;
+    int high = termCount - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int comparison = compareTerm(middle, term);
+      if (comparison < 0) {
+        low = middle + 1;
+      }
+      else if (comparison > 0) {
+        high = middle - 1;
+      }
+      else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  private int compareTerm(int id, byte[] term) {
+    int start = termOffsets.get(id);
+    int length = termOffsets.get(id + 1) - start;
+    int common = Math.min(length, term.length);
+    for (int i = 0; i < common; i++) {
+      int difference = (termBytes.get(start + i) & 0xFF) - (term[i] & 0xFF);
+      if (difference != 0) {
+        return difference;
+      }
+    }
+    return length - term.length;
+  }
+
+  /**
+   * Decode a term's postings out of the mapping
+   */
+  private Postings decode(int term) {
+    int pageFrequency = pageFrequencies.get(term);
+    int[] pages = new int[pageFrequency];
+    int[] positionOffsets = new int[pageFrequency + 1];
+    int[] positions = new int[16];
+    int positionCount = 0;
+
+    int[] offset = {postingOffsets.get(term)};
+    int pdfPageNumber = 0;
+    for (int i = 0; i < pageFrequency; i++) {
+      pdfPageNumber += readVarInt(postingBytes, offset);
+      pages[i] = pdfPageNumber;
+      int count = readVarInt(postingBytes, offset);
+      if (positionCount + count > positions.length) {
+        positions = Arrays.copyOf(positions, Math.max(positions.length * 2, positionCount + count));
+      }
+      int position = 0;
+      for (int p = 0; p < count; p++) {
+        position += readVarInt(postingBytes, offset);
+        positions[positionCount++] = position;
+      }
+      positionOffsets[i + 1] = positionCount;
+    }
+    return new Postings(pages, positionOffsets, positions);
+  }
+
+  private static int readVarInt(ByteBuffer buffer, int[] offset) {
+    int value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = buffer.get(offset[0]++);
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+    return value;
+  }
+
+  /**
+   * A term's decoded postings, the positions on the i'th page at positionOffsets[i] until positionOffsets[i + 1]
+   */
+  private static final class Postings {
+    private final int[] pages;
+    private final int[] positionOffsets;
+    private final int[] positions;
+
+    private Postings(int[] pages, int[] positionOffsets, int[] positions) {
+      this.pages = pages;
+      this.positionOffsets = positionOffsets;
+      this.positions = positions;
+    }
+  }
+
+  /**
+   * Builds a text index a page at a time, keeping only each term's compressed postings so the text of the pages can be
+   * dropped as soon as it's added
+   */
+  public static final class Builder {
+    private final Map<String, PostingWriter> postings = new HashMap<>();
+    private int pageCount = 0;
+    private int lastPdfPageNumber = 0;
+
+    /**
+     * @param pdfPageNumber PDF page number of the page, pages have to be added in order
+     * @param text Text of the page
+     */
+    public void add(int pdfPageNumber, String text) {
+      if (pdfPageNumber <= lastPdfPageNumber) {
+        throw new IllegalArgumentException("Pages have to be added in order, got page " + pdfPageNumber + " after " + lastPdfPageNumber);
+      }
+      try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.INDEX_TEXT)) {
+        // Positions of each term on the page, in the order the terms first appear
+        Map<String, int[]> pagePositions = new HashMap<>();
+        List<String> terms = terms(text);
+        for (int position = 0; position < terms.size(); position++) {
+          int[] positions = pagePositions.get(terms.get(position));
+          if (positions == null) {
+            positions = new int[4];
+          }
+          else if (positions[0] + 1 == positions.length) {
+            positions = Arrays.copyOf(positions, positions.length * 2);
+          }
+          // The count is kept in the first element
+          positions[++positions[0]] = position;
+          pagePositions.put(terms.get(position), positions);
+        }
+
+        for (Map.Entry<String, int[]> term : pagePositions.entrySet()) {
+          postings.computeIfAbsent(term.getKey(), key -> new PostingWriter()).add(pdfPageNumber, term.getValue());
+        }
+      }
+      pageCount++;
+      lastPdfPageNumber = pdfPageNumber;
+    }
+
+    /**
+     * @return Number of distinct terms added so far
+     */
+    public int getTermCount() {
+      return postings.size();
+    }
+
+    /**
+     * Write the index to a file, replacing it atomically so anything mapping the old file keeps a whole index
+     *
+     * @param file File to write
+     * @throws IOException
+     */
+    public void write(Path file) throws IOException {
+      try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.WRITE_TEXT_INDEX)) {
+        // Sorted by their bytes so findTerm can binary search them
+        byte[][] terms = new byte[postings.size()][];
+        PostingWriter[] termPostings = new PostingWriter[terms.length];
+        int termCount = 0;
+        for (String term : postings.keySet()) {
+          terms[termCount++] = term.getBytes(StandardCharsets.UTF_8);
+        }
+        Arrays.sort(terms, MappedFiles::compareBytes);
+
+        long termByteCount = 0;
+        long postingByteCount = 0;
+        for (int i = 0; i < termCount; i++) {
+          termPostings[i] = postings.get(new String(terms[i], StandardCharsets.UTF_8));
+          termByteCount += terms[i].length;
+          postingByteCount += termPostings[i].length;
+        }
+        long size = fileSize(termCount, 0, 0) + termByteCount + postingByteCount;
+        if (size > Integer.MAX_VALUE) {
+          throw new IOException("Text index is too large to write: " + size + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(termCount).putInt(pageCount).putInt((int) termByteCount).putInt((int) postingByteCount);
+        ((Buffer) buffer).position(4 * HEADER_INTS);
+
+        for (int i = 0; i < termCount; i++) {
+          buffer.putInt(termPostings[i].pageFrequency);
+        }
+        int offset = 0;
+        buffer.putInt(offset);
+        for (int i = 0; i < termCount; i++) {
+          offset += terms[i].length;
+          buffer.putInt(offset);
+        }
+        for (int i = 0; i < termCount; i++) {
+          buffer.put(terms[i]);
+        }
+        offset = 0;
+        buffer.putInt(offset);
+        for (int i = 0; i < termCount; i++) {
+          offset += termPostings[i].length;
+          buffer.putInt(offset);
+        }
+        for (int i = 0; i < termCount; i++) {
+          buffer.put(termPostings[i].bytes, 0, termPostings[i].length);
+        }
+        ((Buffer) buffer).flip();
+
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+          while (buffer.hasRemaining()) {
+            channel.write(buffer);
+          }
+          channel.force(false);
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+    }
+  }
+
+  /**
+   * One term's postings as they're built, already compressed
+   */
+  private static final class PostingWriter {
+    private byte[] bytes = new byte[8];
+    private int length = 0;
+    private int pageFrequency = 0;
+    private int lastPdfPageNumber = 0;
+
+    /**
+     * @param positions Number of positions followed by the positions, in order
+     */
+    void add(int pdfPageNumber, int[] positions) {
+      writeVarInt(pdfPageNumber - lastPdfPageNumber);
+      writeVarInt(positions[0]);
+      int lastPosition = 0;
+      for (int i = 1; i <= positions[0]; i++) {
+        writeVarInt(positions[i] - lastPosition);
+        lastPosition = positions[i];
+      }
+      pageFrequency++;
+      lastPdfPageNumber = pdfPageNumber;
+    }
+
+    private void writeVarInt(int value) {
+      if (length + 5 > bytes.length) {
+        bytes = Arrays.copyOf(bytes, bytes.length * 2);
+      }
+      while ((value & ~0x7F) != 0) {
+        bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      bytes[length++] = (byte) value;
+    }
+  }
+}
@@ -9,6 +9,7 @@ import com.itextpdf.text.pdf.PdfNumberTree;
 import com.itextpdf.text.pdf.PdfObject;
 import com.itextpdf.text.pdf.PdfReader;
 import com.itextpdf.text.pdf.PdfString;
+import uk.co.palmr.adventurer.IngestMetrics;
 
 import java.util.HashMap;
 
@@ -19,6 +20,12 @@ public class FixedPdfPageLabels {
      * @return a String array or <code>null</code> if no page labels are present
      */
     public static String[] getPageLabels(PdfReader reader) {
+        try (IngestMetrics.Timer timer = IngestMetrics.time(IngestMetrics.Stage.READ_PAGE_LABELS)) {
+            return readPageLabels(reader);
+        }
+    }
+
+    private static String[] readPageLabels(PdfReader reader) {
         int n = reader.getNumberOfPages();
         PdfDictionary dict = reader.getCatalog();
         PdfDictionary labels = (PdfDictionary)PdfReader.getPdfObjectRelease(dict.get(PdfName.PAGELABELS));
@@ -0,0 +1,238 @@
+package uk.co.palmr.adventurer;
+
+import junit.framework.TestCase;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * A book written a batch at a time has to match one written in a single transaction, links to pages in later batches
+ * included, and a run that fails partway has to resume from its checkpoint to the same graph
+ */
+public class BatchedGraphWriterTest extends TestCase {
+  private static final String PDF_DIGEST = "digest";
+  // Doesn't divide the 11 pages, so the last batch is short
+  private static final int BATCH_SIZE = 4;
+
+  private Path directory;
+
+  @Override
+  protected void setUp() throws IOException {
+    directory = Files.createTempDirectory("batched");
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /**
+   * Page 2 links forward from the first batch to page 9 in the third, page 7 links back, pages 3 and 6 continue to the
+   * next page and pages 8, 10 and 11 are endings
+   */
+  private static List<PageExtraction> pages() {
+    int[][] choices = {{2, 3}, {9, 5}, {}, {6}, {10, 7}, {}, {3, 11}, {}, {8}, {}, {}};
+    List<PageExtraction> pages = new ArrayList<>();
+    for (int i = 0; i < choices.length; i++) {
+      int pdfPageNumber = i + 1;
+      String[] choiceTexts = new String[choices[i].length];
+      for (int c = 0; c < choiceTexts.length; c++) {
+        choiceTexts[c] = "Turn to " + choices[i][c];
+      }
+      boolean ending = pdfPageNumber == 8 || pdfPageNumber == 10 || pdfPageNumber == 11;
+      pages.add(new PageExtraction(pdfPageNumber, "page " + pdfPageNumber, 100 * pdfPageNumber, Collections.<String>emptyList(), 0,
+        ending ? PageClassifier.bit(PageTypes.EndPage) : 0, choices[i], choiceTexts));
+    }
+    return pages;
+  }
+
+  private static PageLabelIndex pageLabels() {
+    String[] labels = new String[pages().size()];
+    for (int i = 0; i < labels.length; i++) {
+      labels[i] = String.valueOf(i + 1);
+    }
+    return PageLabelIndex.of(labels);
+  }
+
+  /**
+   * Hands over the pages from the first one asked for, failing instead of producing failAt if it's given
+   */
+  private static BatchedGraphWriter.PageProducer producer(int failAt) {
+    return (firstPage, consumer) -> {
+      for (PageExtraction page : pages().subList(firstPage - 1, pages().size())) {
+        if (page.getPdfPageNumber() == failAt) {
+          throw new IllegalStateException("Extraction failed at page " + failAt);
+        }
+        consumer.accept(page);
+      }
+    };
+  }
+
+  public void testBatchesMatchSingleTransaction() throws IOException {
+    GraphDatabaseService fullDb = fullIngest();
+    GraphDatabaseService graphDb = newDatabase(directory.resolve("graph-db"));
+    try {
+      BatchedGraphWriter writer = new BatchedGraphWriter(graphDb, pageLabels(), BATCH_SIZE);
+      writer.start(PDF_DIGEST);
+      writer.write(producer(0));
+
+      assertEquals(pages().size(), writer.getCommittedPages());
+      assertEquals(dump(fullDb), dump(graphDb));
+      assertSameGraph(CompactPageGraph.from(BookGraph.build(pages(), pageLabels())), writer.getPageGraph());
+      assertEquals(0, checkpointCount(graphDb));
+    }
+    finally {
+      graphDb.shutdown();
+      fullDb.shutdown();
+    }
+  }
+
+  public void testResumeAfterFailure() throws IOException {
+    Path graphDbPath = directory.resolve("graph-db");
+    GraphDatabaseService graphDb = newDatabase(graphDbPath);
+    try {
+      BatchedGraphWriter writer = new BatchedGraphWriter(graphDb, pageLabels(), BATCH_SIZE);
+      writer.start(PDF_DIGEST);
+      try {
+        // Fails in the second batch, after the first has left a node for page 9 behind
+        writer.write(producer(6));
+        fail("Expected the extraction failure");
+      }
+      catch (RuntimeException e) {
+        assertTrue(e.getCause() instanceof IllegalStateException);
+      }
+      assertEquals(BATCH_SIZE, writer.getCommittedPages());
+    }
+    finally {
+      graphDb.shutdown();
+    }
+
+    // A new run picks up after the checkpoint
+    graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(graphDbPath.toFile());
+    GraphDatabaseService fullDb = fullIngest();
+    try {
+      assertEquals(1, checkpointCount(graphDb));
+      BatchedGraphWriter writer = new BatchedGraphWriter(graphDb, pageLabels(), BATCH_SIZE);
+      assertFalse(writer.resume("another digest"));
+      assertTrue(writer.resume(PDF_DIGEST));
+      assertEquals(BATCH_SIZE, writer.getCommittedPages());
+      writer.write(producer(0));
+
+      assertEquals(dump(fullDb), dump(graphDb));
+      assertSameGraph(CompactPageGraph.from(BookGraph.build(pages(), pageLabels())), writer.getPageGraph());
+      assertEquals(0, checkpointCount(graphDb));
+    }
+    finally {
+      graphDb.shutdown();
+      fullDb.shutdown();
+    }
+  }
+
+  private GraphDatabaseService newDatabase(Path graphDbPath) {
+    GraphDatabaseService graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(graphDbPath.toFile());
+    App.createSchema(graphDb, App.UNIQUE_PAGE_PROPERTIES);
+    return graphDb;
+  }
+
+  /**
+   * @return Database with the book written in a single transaction
+   */
+  private GraphDatabaseService fullIngest() {
+    GraphDatabaseService fullDb = newDatabase(directory.resolve("full-db"));
+    App.populateDatabase(BookGraph.build(pages(), pageLabels()), fullDb);
+    return fullDb;
+  }
+
+  private static void assertSameGraph(CompactPageGraph expected, CompactPageGraph actual) {
+    assertEquals(expected.getPageCount(), actual.getPageCount());
+    assertEquals(expected.getRelationshipCount(), actual.getRelationshipCount());
+    for (int page = 0; page < expected.getPageCount(); page++) {
+      assertEquals(expected.getPdfPageNumber(page), actual.getPdfPageNumber(page));
+      assertEquals(expected.getWordCount(page), actual.getWordCount(page));
+      for (PageTypes pageType : PageTypes.values()) {
+        assertEquals(expected.hasPageType(page, pageType), actual.hasPageType(page, pageType));
+      }
+      assertEquals(expected.getContinuesCount(page), actual.getContinuesCount(page));
+      for (int i = 0; i < expected.getContinuesCount(page); i++) {
+        assertEquals(expected.getContinuesTarget(page, i), actual.getContinuesTarget(page, i));
+      }
+      assertEquals(expected.getChoiceCount(page), actual.getChoiceCount(page));
+      for (int i = 0; i < expected.getChoiceCount(page); i++) {
+        assertEquals(expected.getChoiceTarget(page, i), actual.getChoiceTarget(page, i));
+      }
+    }
+  }
+
+  private static long checkpointCount(GraphDatabaseService graphDb) {
+    try (Transaction tx = graphDb.beginTx()) {
+      long count = (Long) graphDb.execute("MATCH (c:IngestCheckpoint) RETURN count(c) AS count").next().get("count");
+      tx.success();
+      return count;
+    }
+  }
+
+  /**
+   * @return Every page with its properties and labels, and the relationships out of it in order
+   */
+  private static String dump(GraphDatabaseService graphDb) {
+    TreeMap<Integer, String> pages = new TreeMap<>();
+    try (Transaction tx = graphDb.beginTx();
+         ResourceIterator<Node> pageNodes = graphDb.findNodes(PageTypes.Page)) {
+      while (pageNodes.hasNext()) {
+        Node pageNode = pageNodes.next();
+        StringBuilder page = new StringBuilder();
+        page.append(pageNode.getProperty(App.BOOK_PAGE_LABEL))
+          .append(' ').append(pageNode.getProperty(App.WORD_COUNT))
+          .append(' ').append(pageNode.getProperty(App.FINGERPRINT));
+        List<String> labels = new ArrayList<>();
+        for (Label label : pageNode.getLabels()) {
+          labels.add(label.name());
+        }
+        Collections.sort(labels);
+        page.append(' ').append(labels);
+
+        List<Relationship> relationships = new ArrayList<>();
+        pageNode.getRelationships(Direction.OUTGOING).forEach(relationships::add);
+        relationships.sort(App.RELATIONSHIP_ORDER);
+        for (Relationship relationship : relationships) {
+          page.append("\n  ").append(relationship.getType().name())
+            .append(' ').append(relationship.getEndNode().getProperty(App.PDF_PAGE_NUMBER))
+            .append(' ').append(relationship.getProperty(App.ORDINAL))
+            .append(' ').append(relationship.getProperty(App.WORD_COUNT))
+            .append(' ').append(relationship.getProperty(App.CHOICE_TEXT, ""));
+        }
+        pages.put((Integer) pageNode.getProperty(App.PDF_PAGE_NUMBER), page.toString());
+      }
+      tx.success();
+    }
+    return pages.toString();
+  }
+}
@@ -0,0 +1,127 @@
+package uk.co.palmr.adventurer;
+
+import junit.framework.TestCase;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A bulk loaded store has to hold the same graph the transactional writer produces, and a swap interrupted between its
+ * two renames mustn't lose the old store
+ */
+public class BulkGraphLoaderTest extends TestCase {
+  private Path directory;
+
+  @Override
+  protected void setUp() throws IOException {
+    directory = Files.createTempDirectory("bulk");
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  static BookGraph book() {
+    int[][] choices = {{2, 3}, {4}, {4, 6}, {5}, {4, 6}, {}, {}};
+    List<PageExtraction> pages = new ArrayList<>();
+    String[] labels = new String[choices.length];
+    for (int i = 0; i < choices.length; i++) {
+      labels[i] = String.valueOf(i + 1);
+      String[] choiceTexts = new String[choices[i].length];
+      for (int c = 0; c < choiceTexts.length; c++) {
+        choiceTexts[c] = "Turn to " + choices[i][c];
+      }
+      int contentTypeMask = choices[i].length == 0 ? PageClassifier.bit(PageTypes.EndPage) : 0;
+      pages.add(new PageExtraction(i + 1, "page " + (i + 1), 100 * (i + 1), Collections.<String>emptyList(), 0, contentTypeMask,
+        choices[i], choiceTexts));
+    }
+    return BookGraph.build(pages, labels);
+  }
+
+  public void testBulkLoadMatchesTransactionalWriter() throws IOException {
+    BookGraph bookGraph = book();
+
+    Path bulkPath = directory.resolve("bulk-db");
+    new BulkGraphLoader(bulkPath).load(bookGraph);
+
+    GraphDatabaseService transactionalDb = new GraphDatabaseFactory().newEmbeddedDatabase(directory.resolve("transactional-db").toFile());
+    try {
+      App.createSchema(transactionalDb, App.UNIQUE_PAGE_PROPERTIES);
+      App.populateDatabase(bookGraph, transactionalDb);
+      List<Long> expected = counts(transactionalDb);
+
+      GraphDatabaseService bulkDb = new GraphDatabaseFactory().newEmbeddedDatabase(bulkPath.toFile());
+      try {
+        assertEquals(expected, counts(bulkDb));
+      }
+      finally {
+        bulkDb.shutdown();
+      }
+    }
+    finally {
+      transactionalDb.shutdown();
+    }
+  }
+
+  public void testInterruptedSwapKeepsOldStore() throws IOException {
+    Path graphDbPath = directory.resolve("graph-db");
+    new BulkGraphLoader(graphDbPath).load(book());
+
+    // Interrupted after the old store was moved aside and before the new one was moved in
+    Files.move(graphDbPath, graphDbPath.resolveSibling("graph-db.old"));
+    BulkGraphLoader.recoverInterruptedSwap(graphDbPath);
+
+    assertFalse(Files.exists(graphDbPath.resolveSibling("graph-db.old")));
+    GraphDatabaseService graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(graphDbPath.toFile());
+    try {
+      assertEquals(Long.valueOf(book().getPageCount()), counts(graphDb).get(0));
+    }
+    finally {
+      graphDb.shutdown();
+    }
+  }
+
+  /**
+   * @return Number of pages, end pages, Continues and Choice relationships, and Choice relationships with choice text
+   */
+  private static List<Long> counts(GraphDatabaseService graphDb) {
+    String[] queries = {
+      "MATCH (p:Page) RETURN count(p) AS count",
+      "MATCH (p:Page:EndPage) RETURN count(p) AS count",
+      "MATCH (:Page)-[r:Continues]->(:Page) RETURN count(r) AS count",
+      "MATCH (:Page)-[r:Choice]->(:Page) RETURN count(r) AS count",
+      "MATCH (:Page)-[r:Choice]->(:Page) WHERE has(r.choice_text) RETURN count(r) AS count"
+    };
+    List<Long> counts = new ArrayList<>();
+    try (Transaction tx = graphDb.beginTx()) {
+      for (String query : queries) {
+        counts.add((Long) graphDb.execute(query).next().get("count"));
+      }
+      tx.success();
+    }
+    return counts;
+  }
+}
@@ -0,0 +1,98 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.text.Chunk;
+import com.itextpdf.text.Document;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.PageSize;
+import com.itextpdf.text.Paragraph;
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.PdfAction;
+import com.itextpdf.text.pdf.PdfAnnotation;
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfPageEventHelper;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfWriter;
+import com.itextpdf.text.pdf.parser.FilteredTextRenderListener;
+import com.itextpdf.text.pdf.parser.LocationTextExtractionStrategy;
+import com.itextpdf.text.pdf.parser.PdfReaderContentParser;
+import com.itextpdf.text.pdf.parser.PdfTextExtractor;
+import com.itextpdf.text.pdf.parser.RegionTextRenderFilter;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The text under each link has to be what parsing the page through a RegionTextRenderFilter for that link alone would
+ * give, for a choice that wraps onto a second line and for several links sharing a line
+ */
+public class ChoiceTextIndexTest extends TestCase {
+  private static final String WRAPPED_CHOICE = "If you climb the crumbling stairs to the top of the lighthouse, turn to page 2 and see what awaits.";
+
+  /**
+   * A page with a choice long enough to wrap, then a line holding two short choices
+   */
+  private static byte[] choicesPdf() throws DocumentException {
+    ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+    Document document = new Document(PageSize.A5);
+    PdfWriter writer = PdfWriter.getInstance(document, pdf);
+    writer.setPageEvent(new PdfPageEventHelper() {
+      @Override
+      public void onGenericTag(PdfWriter writer, Document document, Rectangle rect, String text) {
+        PdfAnnotation link = new PdfAnnotation(writer, rect);
+        link.put(PdfName.SUBTYPE, PdfName.LINK);
+        link.put(PdfName.A, PdfAction.gotoLocalPage(text, false));
+        writer.addAnnotation(link);
+      }
+    });
+    document.open();
+
+    document.add(new Paragraph("You reach the foot of the lighthouse as the rain starts."));
+    document.add(new Paragraph(new Chunk(WRAPPED_CHOICE).setGenericTag("page2")));
+    Paragraph line = new Paragraph("Otherwise ");
+    line.add(new Chunk("turn to 3").setGenericTag("page3"));
+    // Spaced off so its text doesn't touch the links' rectangles, which are rounded when they're written
+    line.add(Chunk.createTabspace(6));
+    line.add(new Chunk("or"));
+    line.add(Chunk.createTabspace(6));
+    line.add(new Chunk("turn to 4.").setGenericTag("page4"));
+    document.add(line);
+    for (int page = 2; page <= 4; page++) {
+      document.newPage();
+      document.add(new Paragraph(new Chunk(page + " THE END").setLocalDestination("page" + page)));
+    }
+
+    document.close();
+    return pdf.toByteArray();
+  }
+
+  public void testMatchesRegionFilter() throws DocumentException, IOException {
+    PdfReader reader = new PdfReader(choicesPdf());
+    ChoiceTextIndex index = new ChoiceTextIndex();
+    new PdfReaderContentParser(reader).processContent(1, index);
+
+    PdfArray annotations = reader.getPageN(1).getAsArray(PdfName.ANNOTS);
+    // Two lines of the wrapped choice, then one link each for the two choices sharing a line
+    assertEquals(4, annotations.size());
+    for (int i = 0; i < annotations.size(); i++) {
+      Rectangle rect = PdfReader.getNormalizedRectangle(annotations.getAsDict(i).getAsArray(PdfName.RECT));
+      String expected = PdfTextExtractor.getTextFromPage(reader, 1,
+        new FilteredTextRenderListener(new LocationTextExtractionStrategy(), new RegionTextRenderFilter(rect)));
+      assertEquals(expected.trim().replaceAll("\\s+", " "), index.textIn(rect.getLeft(), rect.getBottom(), rect.getRight(), rect.getTop()));
+    }
+    reader.close();
+  }
+
+  public void testSplitAndSharedLines() throws DocumentException, IOException {
+    PdfReader reader = new PdfReader(choicesPdf());
+    PageExtractor extractor = new PageExtractor(reader, PageLabelIndex.read(reader), LinkDestinationIndex.build(reader), false);
+    PageExtraction page = extractor.extract(1);
+
+    assertTrue(Arrays.equals(new int[]{2, 3, 4}, page.getLinkTargets()));
+    // The wrapped choice's two links are joined back into the whole sentence
+    assertEquals(Arrays.asList(WRAPPED_CHOICE, "turn to 3", "turn to 4."), Arrays.asList(page.getChoiceTexts()));
+    reader.close();
+  }
+}
@@ -0,0 +1,83 @@
+package uk.co.palmr.adventurer;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The compact graph has to keep each page's relationships in the order BookGraph gives them, and be safe to query from
+ * several threads at once
+ */
+public class CompactPageGraphTest extends TestCase {
+
+  public void testRelationshipsKeepBookOrder() {
+    CompactPageGraph graph = RouteStatisticsTest.loopingBook();
+
+    assertEquals(6, graph.getPageCount());
+    assertEquals(8, graph.getRelationshipCount());
+    assertEquals(2, graph.getChoiceCount(0));
+    assertEquals(1, graph.getChoiceTarget(0, 0));
+    assertEquals(2, graph.getChoiceTarget(0, 1));
+    assertEquals(0, graph.getOutDegree(5));
+    assertEquals(2, graph.getInDegree(5));
+    assertTrue(graph.isReachable(1, 5));
+    assertFalse(graph.isReachable(3, 0));
+  }
+
+  public void testFindPage() {
+    String[] labels = {"Cover", "i", "1", "2", "1", "3"};
+    List<PageExtraction> pages = new ArrayList<>();
+    for (int i = 0; i < labels.length; i++) {
+      pages.add(new PageExtraction(i + 1, "", 10, Collections.<String>emptyList(), 0, 0, new int[0]));
+    }
+    CompactPageGraph graph = CompactPageGraph.from(BookGraph.build(pages, labels));
+
+    assertEquals(0, graph.findPage("Cover"));
+    assertEquals(3, graph.findPage("2"));
+    // A repeated label finds its first page
+    assertEquals(2, graph.findPage("1"));
+    assertEquals(-1, graph.findPage("4"));
+    assertEquals(-1, graph.findPage(""));
+  }
+
+  public void testFindPageFromManyThreads() throws InterruptedException, ExecutionException {
+    final int pageCount = 5000;
+    List<PageExtraction> pages = new ArrayList<>();
+    String[] labels = new String[pageCount];
+    for (int i = 0; i < pageCount; i++) {
+      labels[i] = String.valueOf(i + 1);
+      pages.add(new PageExtraction(i + 1, "", 10, Collections.<String>emptyList(), 0, 0, new int[0]));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (int round = 0; round < 10; round++) {
+        final CompactPageGraph graph = CompactPageGraph.from(BookGraph.build(pages, labels));
+        List<Callable<Boolean>> lookups = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+          lookups.add(() -> {
+            for (int page = 0; page < pageCount; page++) {
+              if (graph.findPage(String.valueOf(page + 1)) != page) {
+                return false;
+              }
+            }
+            return true;
+          });
+        }
+        for (Future<Boolean> lookup : executor.invokeAll(lookups)) {
+          assertTrue(lookup.get());
+        }
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+}
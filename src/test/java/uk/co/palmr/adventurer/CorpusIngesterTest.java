@@ -0,0 +1,83 @@
+package uk.co.palmr.adventurer;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Every book in a corpus has to reach the single writer, and a book that fails mustn't stop the others
+ */
+public class CorpusIngesterTest extends TestCase {
+  private Path directory;
+
+  @Override
+  protected void setUp() throws IOException {
+    directory = Files.createTempDirectory("corpus");
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  public void testIngestsEveryBookAndReportsFailures() throws IOException {
+    Path corpus = Files.createDirectory(directory.resolve("corpus"));
+    for (String bookId : new String[]{"first", "second", "third", "unwritable"}) {
+      Files.write(corpus.resolve(bookId + ".pdf"), new SyntheticBookGenerator(60, 3, 3, 11).generate());
+    }
+    Files.write(corpus.resolve("broken.pdf"), "not a PDF".getBytes("US-ASCII"));
+    Files.write(corpus.resolve("notes.txt"), "not a book".getBytes("US-ASCII"));
+
+    List<String> writtenBooks = new ArrayList<>();
+    Set<Thread> writerThreads = new HashSet<>();
+    Path pageGraphs = directory.resolve("page-graphs");
+    CorpusIngester ingester = new CorpusIngester((bookId, bookGraph) -> {
+      writerThreads.add(Thread.currentThread());
+      if (bookId.equals("unwritable")) {
+        throw new IllegalStateException("Write failed");
+      }
+      assertEquals(60, bookGraph.getPageCount());
+      writtenBooks.add(bookId);
+    }, pageGraphs, 2, false);
+    CorpusIngester.Report report = ingester.ingest(corpus);
+
+    assertEquals(5, report.getBookCount());
+    assertEquals(writtenBooks, report.getIngestedBooks());
+    assertEquals(Arrays.asList("first", "second", "third"), sorted(writtenBooks));
+    assertEquals(new HashSet<>(Arrays.asList("broken", "unwritable")), report.getFailures().keySet());
+    assertEquals(Collections.singleton(Thread.currentThread()), writerThreads);
+
+    assertEquals(60, MappedPageGraph.open(pageGraphs.resolve("second.bin")).getPageCount());
+    assertFalse(Files.exists(pageGraphs.resolve("broken.bin")));
+    assertFalse(Files.exists(pageGraphs.resolve("unwritable.bin")));
+  }
+
+  private static <T extends Comparable<T>> List<T> sorted(List<T> list) {
+    List<T> copy = new ArrayList<>(list);
+    Collections.sort(copy);
+    return copy;
+  }
+}
@@ -0,0 +1,133 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.text.pdf.PdfReader;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Pages read back from the cache have to match a fresh parse, and a damaged cache or one for another PDF must never be
+ * trusted
+ */
+public class ExtractionCacheTest extends TestCase {
+  private static final String DIGEST = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+  private Path cachePath;
+  private PdfReader reader;
+  private PageLabelIndex pageLabels;
+  private LinkDestinationIndex linkDestinations;
+
+  @Override
+  protected void setUp() throws IOException {
+    cachePath = Files.createTempFile("extraction-cache", ".bin");
+    Files.delete(cachePath);
+    reader = new PdfReader(new SyntheticBookGenerator(60, 3, 3, 5).generate());
+    pageLabels = PageLabelIndex.read(reader);
+    linkDestinations = LinkDestinationIndex.build(reader);
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    reader.close();
+    Files.deleteIfExists(cachePath);
+  }
+
+  public void testCachedPagesMatchParse() throws IOException {
+    int pageCount = reader.getNumberOfPages();
+    try (ExtractionCache cache = ExtractionCache.open(cachePath, DIGEST, pageCount)) {
+      PageExtractor extractor = new PageExtractor(reader, pageLabels, linkDestinations, false, cache);
+      for (int pdfPageNumber = 1; pdfPageNumber <= pageCount; pdfPageNumber++) {
+        extractor.extract(pdfPageNumber);
+      }
+      assertEquals(pageCount, cache.getCachedCount());
+    }
+
+    long fromCache = IngestMetrics.get().getCount(IngestMetrics.Counter.PAGES_FROM_CACHE);
+    long parseNanos = IngestMetrics.get().getStageNanos(IngestMetrics.Stage.PARSE_CONTENT);
+    List<PageExtraction> pages = new ArrayList<>();
+    try (ExtractionCache cache = ExtractionCache.open(cachePath, DIGEST, pageCount)) {
+      assertEquals(pageCount, cache.getCachedCount());
+      PageExtractor extractor = new PageExtractor(reader, pageLabels, linkDestinations, false, cache, true);
+      for (int pdfPageNumber = 1; pdfPageNumber <= pageCount; pdfPageNumber++) {
+        pages.add(extractor.extract(pdfPageNumber));
+      }
+    }
+    // Every page came from the cache without parsing a content stream
+    assertEquals(pageCount, IngestMetrics.get().getCount(IngestMetrics.Counter.PAGES_FROM_CACHE) - fromCache);
+    assertEquals(parseNanos, IngestMetrics.get().getStageNanos(IngestMetrics.Stage.PARSE_CONTENT));
+
+    PageExtractor parser = new PageExtractor(reader, pageLabels, linkDestinations, false, null, true);
+    for (PageExtraction page : pages) {
+      PageExtraction expected = parser.extract(page.getPdfPageNumber());
+      assertMatches(expected, page);
+      assertEquals(expected.getText(), page.getText());
+    }
+  }
+
+  public void testDamagedRecordsAreDropped() throws IOException {
+    int pageCount = reader.getNumberOfPages();
+    try (ExtractionCache cache = ExtractionCache.open(cachePath, DIGEST, pageCount)) {
+      PageExtractor extractor = new PageExtractor(reader, pageLabels, linkDestinations, false, cache);
+      for (int pdfPageNumber = 1; pdfPageNumber <= pageCount; pdfPageNumber++) {
+        extractor.extract(pdfPageNumber);
+      }
+    }
+
+    // Flip a byte half way through the records, as a crash or bad disk might
+    long size = Files.size(cachePath);
+    try (FileChannel channel = FileChannel.open(cachePath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      ByteBuffer b = ByteBuffer.allocate(1);
+      channel.read(b, size / 2);
+      b.put(0, (byte) (b.get(0) ^ 0x5A));
+      ((Buffer) b).rewind();
+      channel.write(b, size / 2);
+    }
+
+    try (ExtractionCache cache = ExtractionCache.open(cachePath, DIGEST, pageCount)) {
+      int cached = cache.getCachedCount();
+      assertTrue(cached > 0 && cached < pageCount);
+      assertTrue(Files.size(cachePath) < size);
+      // Dropped pages are parsed again and put back
+      PageExtractor extractor = new PageExtractor(reader, pageLabels, linkDestinations, false, cache);
+      PageExtractor parser = new PageExtractor(reader, pageLabels, linkDestinations, false);
+      for (int pdfPageNumber = 1; pdfPageNumber <= pageCount; pdfPageNumber++) {
+        assertMatches(parser.extract(pdfPageNumber), extractor.extract(pdfPageNumber));
+      }
+      assertEquals(pageCount, cache.getCachedCount());
+    }
+  }
+
+  public void testOtherPdfStartsNewCache() throws IOException {
+    int pageCount = reader.getNumberOfPages();
+    try (ExtractionCache cache = ExtractionCache.open(cachePath, DIGEST, pageCount)) {
+      new PageExtractor(reader, pageLabels, linkDestinations, false, cache).extract(1);
+      assertEquals(1, cache.getCachedCount());
+    }
+    try (ExtractionCache cache = ExtractionCache.open(cachePath, DIGEST.replace('0', 'f'), pageCount)) {
+      assertEquals(0, cache.getCachedCount());
+    }
+    Files.write(cachePath, "not a cache".getBytes("US-ASCII"));
+    try (ExtractionCache cache = ExtractionCache.open(cachePath, DIGEST, pageCount)) {
+      assertEquals(0, cache.getCachedCount());
+    }
+  }
+
+  private static void assertMatches(PageExtraction expected, PageExtraction page) {
+    assertEquals(expected.getPdfPageNumber(), page.getPdfPageNumber());
+    assertEquals(expected.getFingerprint(), page.getFingerprint());
+    assertEquals(expected.getWordCount(), page.getWordCount());
+    assertEquals(expected.getImageCount(), page.getImageCount());
+    assertEquals(expected.getContentTypeMask(), page.getContentTypeMask());
+    assertTrue(Arrays.equals(expected.getLinkTargets(), page.getLinkTargets()));
+    assertTrue(Arrays.equals(expected.getChoiceTexts(), page.getChoiceTexts()));
+  }
+}
@@ -0,0 +1,152 @@
+package uk.co.palmr.adventurer;
+
+import junit.framework.TestCase;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * A graph brought up to date incrementally has to match one ingested from scratch, choices in the same order, even once
+ * links have been deleted and Neo4j hands their ids out again
+ */
+public class IncrementalGraphUpdaterTest extends TestCase {
+  private Path directory;
+
+  @Override
+  protected void setUp() throws IOException {
+    directory = Files.createTempDirectory("incremental");
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private static BookGraph book(int[][] choices) {
+    List<PageExtraction> pages = new ArrayList<>();
+    String[] labels = new String[choices.length];
+    for (int i = 0; i < choices.length; i++) {
+      labels[i] = String.valueOf(i + 1);
+      String[] choiceTexts = new String[choices[i].length];
+      StringBuilder fingerprint = new StringBuilder();
+      for (int c = 0; c < choiceTexts.length; c++) {
+        choiceTexts[c] = "Turn to " + choices[i][c];
+        fingerprint.append(choices[i][c]).append(',');
+      }
+      int contentTypeMask = choices[i].length == 0 ? PageClassifier.bit(PageTypes.EndPage) : 0;
+      pages.add(new PageExtraction(i + 1, fingerprint.toString(), 100 * (i + 1), Collections.<String>emptyList(), 0, contentTypeMask,
+        choices[i], choiceTexts));
+    }
+    return BookGraph.build(pages, labels);
+  }
+
+  public void testIncrementalUpdateMatchesFullIngest() {
+    Path graphDbPath = directory.resolve("graph-db");
+    BookGraph original = book(new int[][]{{2, 3}, {4}, {4, 6}, {5}, {4, 6}, {}, {}});
+    GraphDatabaseService graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(graphDbPath.toFile());
+    App.createSchema(graphDb, App.UNIQUE_PAGE_PROPERTIES);
+    App.populateDatabase(original, graphDb);
+    graphDb.shutdown();
+
+    // Drop the first links written, freeing their ids to be reused once the store has been restarted
+    update(graphDbPath, book(new int[][]{{3}, {}, {6}, {5}, {4, 6}, {}, {}}));
+    // Then add links back in front of and after the ones that survived
+    BookGraph edited = book(new int[][]{{3, 2}, {4}, {5, 6, 4}, {5}, {7, 4}, {}, {}});
+    update(graphDbPath, edited);
+
+    GraphDatabaseService fullDb = new GraphDatabaseFactory().newEmbeddedDatabase(directory.resolve("full-db").toFile());
+    App.createSchema(fullDb, App.UNIQUE_PAGE_PROPERTIES);
+    App.populateDatabase(edited, fullDb);
+    graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(graphDbPath.toFile());
+    try {
+      assertEquals(dump(fullDb), dump(graphDb));
+
+      CompactPageGraph expected = CompactPageGraph.from(edited);
+      CompactPageGraph loaded = CompactPageGraph.load(graphDb);
+      assertEquals(expected.getRelationshipCount(), loaded.getRelationshipCount());
+      for (int page = 0; page < expected.getPageCount(); page++) {
+        assertEquals(expected.getOutDegree(page), loaded.getOutDegree(page));
+        for (int i = 0; i < expected.getOutDegree(page); i++) {
+          assertEquals(expected.getNeighbour(page, i), loaded.getNeighbour(page, i));
+        }
+      }
+    }
+    finally {
+      graphDb.shutdown();
+      fullDb.shutdown();
+    }
+  }
+
+  private static void update(Path graphDbPath, BookGraph bookGraph) {
+    GraphDatabaseService graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(graphDbPath.toFile());
+    try {
+      new IncrementalGraphUpdater(graphDb).apply(bookGraph);
+    }
+    finally {
+      graphDb.shutdown();
+    }
+  }
+
+  /**
+   * @return Every page with its properties and labels, and the relationships out of it in order
+   */
+  private static String dump(GraphDatabaseService graphDb) {
+    TreeMap<Integer, String> pages = new TreeMap<>();
+    try (Transaction tx = graphDb.beginTx();
+         ResourceIterator<Node> pageNodes = graphDb.findNodes(PageTypes.Page)) {
+      while (pageNodes.hasNext()) {
+        Node pageNode = pageNodes.next();
+        StringBuilder page = new StringBuilder();
+        page.append(pageNode.getProperty(App.BOOK_PAGE_LABEL)).append(' ').append(pageNode.getProperty(App.WORD_COUNT));
+        List<String> labels = new ArrayList<>();
+        for (Label label : pageNode.getLabels()) {
+          labels.add(label.name());
+        }
+        Collections.sort(labels);
+        page.append(' ').append(labels);
+
+        List<Relationship> relationships = new ArrayList<>();
+        pageNode.getRelationships(Direction.OUTGOING).forEach(relationships::add);
+        relationships.sort(App.RELATIONSHIP_ORDER);
+        for (Relationship relationship : relationships) {
+          page.append("\n  ").append(relationship.getType().name())
+            .append(' ').append(relationship.getEndNode().getProperty(App.PDF_PAGE_NUMBER))
+            .append(' ').append(relationship.getProperty(App.ORDINAL))
+            .append(' ').append(relationship.getProperty(App.WORD_COUNT))
+            .append(' ').append(relationship.getProperty(App.CHOICE_TEXT, ""));
+        }
+        pages.put((Integer) pageNode.getProperty(App.PDF_PAGE_NUMBER), page.toString());
+      }
+      tx.success();
+    }
+    return pages.toString();
+  }
+}
@@ -0,0 +1,70 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.text.pdf.PdfReader;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The metrics have to count what extraction actually found, and percentiles have to stay within a bucket of the truth
+ */
+public class IngestMetricsTest extends TestCase {
+
+  public void testHistogramQuantilesAreWithinABucket() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long micros = 1; micros <= 1000; micros++) {
+      histogram.record(micros * 1000);
+    }
+
+    assertEquals(1000, histogram.getCount());
+    assertEquals(1000000, histogram.getMax());
+    assertEquals(500500.0, histogram.getMean(), 0.001);
+    assertWithinABucket(500000, histogram.getValueAtQuantile(0.5));
+    assertWithinABucket(900000, histogram.getValueAtQuantile(0.9));
+    assertWithinABucket(990000, histogram.getValueAtQuantile(0.99));
+    assertEquals(1000000, histogram.getValueAtQuantile(1));
+    assertEquals(0, new LatencyHistogram().getValueAtQuantile(0.5));
+  }
+
+  private static void assertWithinABucket(long expected, long actual) {
+    assertTrue(expected + " but was " + actual, actual >= expected && actual <= expected + expected / 16);
+  }
+
+  public void testCountsWhatExtractionFinds() throws IOException {
+    IngestMetrics metrics = IngestMetrics.get();
+    long pagesBefore = metrics.getCount(IngestMetrics.Counter.PAGES_EXTRACTED);
+    long linksBefore = metrics.getCount(IngestMetrics.Counter.LINKS);
+    long chunksBefore = metrics.getCount(IngestMetrics.Counter.TEXT_CHUNKS);
+    long parseBefore = metrics.getStageNanos(IngestMetrics.Stage.PARSE_CONTENT);
+
+    PdfReader reader = new PdfReader(new SyntheticBookGenerator(50, 3, 3, 5).generate());
+    PageLabelIndex pageLabels = PageLabelIndex.read(reader);
+    PageExtractor extractor = new PageExtractor(reader, pageLabels);
+    int links = 0;
+    for (int pdfPageNumber = 1; pdfPageNumber <= reader.getNumberOfPages(); pdfPageNumber++) {
+      links += extractor.extract(pdfPageNumber).getLinkTargets().length;
+    }
+    reader.close();
+
+    assertEquals(50, metrics.getCount(IngestMetrics.Counter.PAGES_EXTRACTED) - pagesBefore);
+    assertEquals(links, metrics.getCount(IngestMetrics.Counter.LINKS) - linksBefore);
+    assertTrue(metrics.getCount(IngestMetrics.Counter.TEXT_CHUNKS) - chunksBefore > 50);
+    assertTrue(metrics.getStageNanos(IngestMetrics.Stage.PARSE_CONTENT) > parseBefore);
+    assertTrue(metrics.getPageParseMicros().get("count") >= 50);
+
+    Path report = Files.createTempFile("ingest-report", ".json");
+    try {
+      metrics.writeReport(report);
+      String json = new String(Files.readAllBytes(report), StandardCharsets.UTF_8);
+      assertTrue(json, json.contains("\"pages_extracted\": "));
+      assertTrue(json, json.contains("\"parse_content\": {\"count\": "));
+      assertTrue(json, json.contains("\"page_parse_micros\": {\"count\": "));
+    }
+    finally {
+      Files.deleteIfExists(report);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.text.Chunk;
+import com.itextpdf.text.Document;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.PageSize;
+import com.itextpdf.text.Paragraph;
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.PdfAction;
+import com.itextpdf.text.pdf.PdfAnnotation;
+import com.itextpdf.text.pdf.PdfDestination;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfPageEventHelper;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfWriter;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Every named destination has to resolve to its page, and links that can't be followed, or that repeat a destination
+ * already linked from the page, mustn't become choices
+ */
+public class LinkDestinationIndexTest extends TestCase {
+
+  /**
+   * Three pages, each with a named destination. The first page links to the second twice, as a choice split over two
+   * lines is, and also to a name that isn't defined and to a destination past the last page.
+   */
+  private static byte[] linkedPdf() throws DocumentException, IOException {
+    ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+    Document document = new Document(PageSize.A5);
+    PdfWriter writer = PdfWriter.getInstance(document, pdf);
+    writer.setPageEvent(new PdfPageEventHelper() {
+      @Override
+      public void onGenericTag(PdfWriter writer, Document document, Rectangle rect, String text) {
+        // A GoTo action naming the destination with a string, as the real book's links do
+        PdfAnnotation link = new PdfAnnotation(writer, rect);
+        link.put(PdfName.SUBTYPE, PdfName.LINK);
+        link.put(PdfName.A, PdfAction.gotoLocalPage(text, false));
+        writer.addAnnotation(link);
+      }
+    });
+    document.open();
+
+    Paragraph choices = new Paragraph(new Chunk("1 ").setLocalDestination("page1"));
+    choices.add(new Chunk("If you open the door ").setGenericTag("page2"));
+    choices.add(new Chunk("turn to page 2. ").setGenericTag("page2"));
+    choices.add(new Chunk("If you wait, turn to page 3. ").setGenericTag("page3"));
+    choices.add(new Chunk("Or turn to page 2 after all. ").setGenericTag("page2"));
+    choices.add(new Chunk("If you dig, turn to page 7. ").setGenericTag("page7"));
+    choices.add(new Chunk("If you fly, turn to page 40.").setGenericTag("page40"));
+    document.add(choices);
+    document.newPage();
+    document.add(new Paragraph(new Chunk("2 Nothing here links anywhere.").setLocalDestination("page2")));
+    document.newPage();
+    document.add(new Paragraph(new Chunk("3 THE END").setLocalDestination("page3")));
+    // Points at an object that isn't part of the page tree
+    PdfDestination outsidePageTree = new PdfDestination(PdfDestination.FIT);
+    outsidePageTree.addPage(writer.addToBody(new PdfDictionary()).getIndirectReference());
+    writer.getDirectContent().localDestination("page40", outsidePageTree);
+
+    document.close();
+    return pdf.toByteArray();
+  }
+
+  public void testResolvesDestinations() throws DocumentException, IOException {
+    PdfReader reader = new PdfReader(linkedPdf());
+    LinkDestinationIndex index = LinkDestinationIndex.build(reader);
+
+    assertEquals(1, index.getPdfPageNumber("page1"));
+    assertEquals(2, index.getPdfPageNumber("page2"));
+    assertEquals(3, index.getPdfPageNumber("page3"));
+    assertEquals(LinkDestinationIndex.OUTSIDE_PAGE_TREE, index.getPdfPageNumber("page40"));
+    assertEquals(LinkDestinationIndex.UNKNOWN, index.getPdfPageNumber("page7"));
+    assertEquals(LinkDestinationIndex.UNKNOWN, index.getPdfPageNumber(""));
+    reader.close();
+  }
+
+  public void testLinksBecomeDistinctChoices() throws DocumentException, IOException {
+    PdfReader reader = new PdfReader(linkedPdf());
+    PageExtractor extractor = new PageExtractor(reader, PageLabelIndex.read(reader), LinkDestinationIndex.build(reader), false);
+
+    // Repeated links keep their first position, unknown and out of range destinations are dropped
+    assertTrue(Arrays.equals(new int[]{2, 3}, extractor.extract(1).getLinkTargets()));
+    // No annotations at all
+    assertEquals(0, extractor.extract(2).getLinkTargets().length);
+    reader.close();
+  }
+
+  public void testNoDestinations() throws DocumentException, IOException {
+    ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+    Document document = new Document(PageSize.A5);
+    PdfWriter.getInstance(document, pdf);
+    document.open();
+    document.add(new Paragraph("A page without any links or destinations"));
+    document.close();
+
+    PdfReader reader = new PdfReader(pdf.toByteArray());
+    LinkDestinationIndex index = LinkDestinationIndex.build(reader);
+    assertEquals(LinkDestinationIndex.UNKNOWN, index.getPdfPageNumber("page1"));
+    assertEquals(LinkDestinationIndex.UNKNOWN, index.getPdfPageNumber(""));
+    PageExtractor extractor = new PageExtractor(reader, PageLabelIndex.read(reader), index, false);
+    assertEquals(0, extractor.extract(1).getLinkTargets().length);
+    reader.close();
+  }
+}
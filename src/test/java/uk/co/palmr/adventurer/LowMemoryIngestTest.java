@@ -0,0 +1,38 @@
+package uk.co.palmr.adventurer;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * A low memory bulk ingest has to fit in the heap the Readme promises: 64MB plus 1MB per 1,000 pages. The heap limit
+ * and a scratch working directory for App come from the low-memory-ingest execution in the pom, so the main test run
+ * leaves this out. Running out of heap fails the test with an OutOfMemoryError.
+ */
+public class LowMemoryIngestTest extends TestCase {
+  // Keep -Xmx in the pom in step with this
+  static final int PAGE_COUNT = 10000;
+
+  public void testBulkIngestFitsInHeap() throws IOException {
+    // App works in the current directory, which must be the scratch one rather than the project's
+    Path workingDirectory = Paths.get(System.getProperty("user.dir"));
+    assertEquals("Only runs from the low-memory-ingest execution", System.getProperty("lowMemoryIngest.directory"),
+      workingDirectory.toString());
+
+    Path pdfPath = workingDirectory.resolve("resources").resolve("tbontb-regular.pdf");
+    Files.createDirectories(pdfPath.getParent());
+    try (OutputStream out = Files.newOutputStream(pdfPath)) {
+      new SyntheticBookGenerator(PAGE_COUNT, 2, 3, 42).write(out);
+    }
+
+    App.main(new String[]{"--low-memory", "--bulk"});
+
+    MappedPageGraph graph = MappedPageGraph.open(App.getPageGraphPath());
+    assertEquals(PAGE_COUNT, graph.getPageCount());
+    assertTrue(graph.getRelationshipCount() > PAGE_COUNT / 2);
+  }
+}
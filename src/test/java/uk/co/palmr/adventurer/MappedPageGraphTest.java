@@ -0,0 +1,107 @@
+package uk.co.palmr.adventurer;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An exported page graph has to read back exactly like the graph it was written from
+ */
+public class MappedPageGraphTest extends TestCase {
+  private Path file;
+
+  @Override
+  protected void setUp() throws IOException {
+    file = Files.createTempFile("page-graph", ".bin");
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  /**
+   * 150 pages so the label bitsets span several words, with every 7th page an ending, a repeated label and a label
+   * that isn't ASCII
+   */
+  private static CompactPageGraph largerBook() {
+    int pageCount = 150;
+    List<PageExtraction> pages = new ArrayList<>();
+    String[] labels = new String[pageCount];
+    for (int i = 0; i < pageCount; i++) {
+      labels[i] = i < 3 ? "Cover" : i == 100 ? "Générique" : String.valueOf(i);
+      boolean ending = i % 7 == 6;
+      int[] choices = ending || i + 3 >= pageCount ? new int[0] : new int[]{i + 2, (i * 31) % pageCount + 1, i + 4};
+      pages.add(new PageExtraction(i + 1, "", 10 * i, Collections.<String>emptyList(), i == 20 ? 1 : 0,
+        ending ? PageClassifier.bit(PageTypes.EndPage) : 0, choices));
+    }
+    return CompactPageGraph.from(BookGraph.build(pages, labels));
+  }
+
+  public void testReadsBackTheWrittenGraph() throws IOException {
+    CompactPageGraph graph = largerBook();
+    MappedPageGraph.write(graph, file);
+    MappedPageGraph mapped = MappedPageGraph.open(file);
+
+    assertEquals(graph.getPageCount(), mapped.getPageCount());
+    assertEquals(graph.getRelationshipCount(), mapped.getRelationshipCount());
+    for (int page = 0; page < graph.getPageCount(); page++) {
+      assertEquals(graph.getPdfPageNumber(page), mapped.getPdfPageNumber(page));
+      assertEquals(graph.getBookPageLabel(page), mapped.getBookPageLabel(page));
+      assertEquals(graph.getWordCount(page), mapped.getWordCount(page));
+      for (PageTypes pageType : PageTypes.values()) {
+        assertEquals(pageType + " on page " + page, graph.hasPageType(page, pageType), mapped.hasPageType(page, pageType));
+      }
+      assertEquals(graph.getOutDegree(page), mapped.getOutDegree(page));
+      for (int i = 0; i < graph.getOutDegree(page); i++) {
+        assertEquals(graph.getNeighbour(page, i), mapped.getNeighbour(page, i));
+      }
+      assertEquals(graph.getContinuesCount(page), mapped.getContinuesCount(page));
+      assertEquals(graph.getInDegree(page), mapped.getInDegree(page));
+      for (int i = 0; i < graph.getInDegree(page); i++) {
+        assertEquals(graph.getIncomingNeighbour(page, i), mapped.getIncomingNeighbour(page, i));
+      }
+      assertEquals(graph.findPage(graph.getBookPageLabel(page)), mapped.findPage(graph.getBookPageLabel(page)));
+    }
+
+    assertEquals(0, mapped.findPage("Cover"));
+    assertEquals(100, mapped.findPage("Générique"));
+    assertEquals(-1, mapped.findPage("1000"));
+    assertEquals(-1, mapped.findPage(""));
+  }
+
+  public void testRoutesMatchTheInMemoryGraph() throws IOException {
+    CompactPageGraph graph = RouteStatisticsTest.loopingBook();
+    MappedPageGraph.write(graph, file);
+    MappedPageGraph mapped = MappedPageGraph.open(file);
+
+    RouteFinder.Route route = new RouteFinder(mapped).longest(0, 5);
+    assertEquals(1900, route.getWords());
+    assertTrue(Arrays.equals(new int[]{0, 2, 3, 4, 5}, route.getPages()));
+    assertEquals(RouteStatistics.compute(graph, new StronglyConnectedComponents(graph), 0).get(0).getRouteCount(),
+      RouteStatistics.compute(mapped, new StronglyConnectedComponents(mapped), 0).get(0).getRouteCount());
+  }
+
+  public void testRejectsOtherVersions() throws IOException {
+    MappedPageGraph.write(RouteStatisticsTest.loopingBook(), file);
+    byte[] bytes = Files.readAllBytes(file);
+    ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putInt(4, MappedPageGraph.VERSION + 1);
+    Files.write(file, bytes);
+
+    try {
+      MappedPageGraph.open(file);
+      fail("Opened a file of another version");
+    }
+    catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("version"));
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.text.pdf.PdfReader;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The streaming classifier has to agree with classifying the captured text, page for page, and every choice has to
+ * get the text under its links
+ */
+public class PageExtractorTest extends TestCase {
+
+  public void testStreamingMatchesTextCapture() throws IOException {
+    PdfReader reader = new PdfReader(new SyntheticBookGenerator(200, 3, 5, 7).generate());
+    PageLabelIndex pageLabels = PageLabelIndex.read(reader);
+    PageExtractor capturing = new PageExtractor(reader, pageLabels, true);
+    PageExtractor streaming = new PageExtractor(reader, pageLabels);
+
+    int endPages = 0;
+    int imagePages = 0;
+    for (int pdfPageNumber = 1; pdfPageNumber <= reader.getNumberOfPages(); pdfPageNumber++) {
+      PageExtraction captured = capturing.extract(pdfPageNumber);
+      PageExtraction streamed = streaming.extract(pdfPageNumber);
+
+      assertEquals("Word count of page " + pdfPageNumber, captured.getWordCount(), streamed.getWordCount());
+      assertEquals("Page types of page " + pdfPageNumber, captured.getContentTypeMask(), streamed.getContentTypeMask());
+      assertTrue(streamed.getTextValues().isEmpty());
+      assertTrue("Choice text of page " + pdfPageNumber, Arrays.equals(captured.getChoiceTexts(), streamed.getChoiceTexts()));
+
+      if ((streamed.getContentTypeMask() & PageClassifier.bit(PageTypes.EndPage)) != 0) {
+        endPages++;
+      }
+      if ((streamed.getContentTypeMask() & PageClassifier.bit(PageTypes.ImagePage)) != 0) {
+        imagePages++;
+      }
+    }
+    reader.close();
+
+    assertTrue(endPages > 0);
+    assertTrue(imagePages > 0);
+  }
+
+  public void testKeptTextMatchesTextCapture() throws IOException {
+    PdfReader reader = new PdfReader(new SyntheticBookGenerator(200, 3, 5, 7).generate());
+    PageLabelIndex pageLabels = PageLabelIndex.read(reader);
+    LinkDestinationIndex linkDestinations = LinkDestinationIndex.build(reader);
+    PageExtractor capturing = new PageExtractor(reader, pageLabels, linkDestinations, true, null, true);
+    PageExtractor streaming = new PageExtractor(reader, pageLabels, linkDestinations, false, null, true);
+
+    for (int pdfPageNumber = 1; pdfPageNumber <= reader.getNumberOfPages(); pdfPageNumber++) {
+      PageExtraction streamed = streaming.extract(pdfPageNumber);
+      assertEquals("Text of page " + pdfPageNumber, capturing.extract(pdfPageNumber).getText(), streamed.getText());
+      assertTrue(streamed.getTextValues().isEmpty());
+      assertTrue(streamed.withoutText().getText().isEmpty());
+    }
+    reader.close();
+  }
+
+  public void testChoiceTextIncludesWrappedLines() throws IOException {
+    PdfReader reader = new PdfReader(new SyntheticBookGenerator(200, 3, 3, 7).generate());
+    PageLabelIndex pageLabels = PageLabelIndex.read(reader);
+    PageExtractor extractor = new PageExtractor(reader, pageLabels);
+
+    int choices = 0;
+    int wrappedChoices = 0;
+    for (int pdfPageNumber = 1; pdfPageNumber <= reader.getNumberOfPages(); pdfPageNumber++) {
+      PageExtraction page = extractor.extract(pdfPageNumber);
+      int[] linkTargets = page.getLinkTargets();
+      String[] choiceTexts = page.getChoiceTexts();
+      for (int i = 0; i < linkTargets.length; i++) {
+        String targetLabel = pageLabels.getLabel(linkTargets[i]);
+        String choiceText = choiceTexts[i];
+        // The generator writes either a short choice or a long one that wraps onto a second line. Two choices leading to
+        // the same page become one relationship, so their text is joined.
+        assertTrue(choiceText, choiceText.endsWith("Turn to " + targetLabel + ".")
+          || choiceText.endsWith(" turn to page " + targetLabel + " and see what awaits you there."));
+        if (choiceText.startsWith("If you ")) {
+          wrappedChoices++;
+        }
+        choices++;
+      }
+    }
+    reader.close();
+
+    assertTrue(choices > 0);
+    assertTrue(wrappedChoices > 0);
+  }
+}
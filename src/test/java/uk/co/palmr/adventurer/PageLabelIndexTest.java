@@ -0,0 +1,96 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.text.Document;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.PageSize;
+import com.itextpdf.text.Paragraph;
+import com.itextpdf.text.pdf.PdfPageLabels;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfWriter;
+import junit.framework.TestCase;
+import uk.co.palmr.adventurer.itextbug.FixedPdfPageLabels;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The label ranges have to give the same label for every page as decoding the number tree page by page, and every
+ * label has to lead back to its page
+ */
+public class PageLabelIndexTest extends TestCase {
+
+  public void testMatchesFixedPageLabels() throws IOException {
+    // Enough ranges that the number tree is split into kids
+    PdfReader reader = new PdfReader(new SyntheticBookGenerator(400, 1, 150, 3).generate());
+    PageLabelIndex index = PageLabelIndex.read(reader);
+    String[] labels = FixedPdfPageLabels.getPageLabels(reader);
+
+    assertEquals(150, index.getRangeCount());
+    assertTrue(Arrays.equals(labels, index.toArray()));
+    for (int pdfPageNumber = 1; pdfPageNumber <= labels.length; pdfPageNumber++) {
+      assertEquals(labels[pdfPageNumber - 1], pdfPageNumber, index.findPdfPageNumber(labels[pdfPageNumber - 1]));
+    }
+    reader.close();
+  }
+
+  public void testEveryStyle() throws IOException, DocumentException {
+    PdfReader reader = new PdfReader(pdfWithLabels());
+    PageLabelIndex index = PageLabelIndex.read(reader);
+
+    assertTrue(Arrays.equals(FixedPdfPageLabels.getPageLabels(reader), index.toArray()));
+    assertTrue(Arrays.equals(new String[]{"i", "ii", "iii", "Cover", "Cover", "5", "6", "7", "A-Y", "A-Z", "A-AA", "G1", "G2", "XLVIII", "XLIX"},
+      index.toArray()));
+
+    assertEquals(3, index.findPdfPageNumber("iii"));
+    assertEquals(4, index.findPdfPageNumber("Cover"));
+    assertEquals(7, index.findPdfPageNumber("6"));
+    assertEquals(11, index.findPdfPageNumber("A-AA"));
+    assertEquals(12, index.findPdfPageNumber("G1"));
+    assertEquals(15, index.findPdfPageNumber("XLIX"));
+
+    // Numbers outside their ranges, or not written the way their style writes them
+    assertEquals(-1, index.findPdfPageNumber("8"));
+    assertEquals(-1, index.findPdfPageNumber("G3"));
+    assertEquals(-1, index.findPdfPageNumber("05"));
+    assertEquals(-1, index.findPdfPageNumber("iiii"));
+    assertEquals(-1, index.findPdfPageNumber("A-y"));
+    assertEquals(-1, index.findPdfPageNumber("Cover1"));
+    assertEquals(-1, index.findPdfPageNumber(""));
+    reader.close();
+  }
+
+  public void testExplicitLabels() {
+    PageLabelIndex index = PageLabelIndex.of(new String[]{"Cover", "Cover", "1", "Générique"});
+
+    assertEquals("Générique", index.getLabel(4));
+    assertEquals(1, index.findPdfPageNumber("Cover"));
+    assertEquals(3, index.findPdfPageNumber("1"));
+    assertEquals(-1, index.findPdfPageNumber("2"));
+  }
+
+  /**
+   * 15 pages: iii, two unnumbered covers, 5 to 7, A-Y to A-AA, G1 and G2, then XLVIII and XLIX
+   */
+  private static byte[] pdfWithLabels() throws DocumentException {
+    ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+    Document document = new Document(PageSize.A6);
+    PdfWriter writer = PdfWriter.getInstance(document, pdf);
+    document.open();
+    for (int i = 0; i < 15; i++) {
+      document.add(new Paragraph("PDF Page: " + (i + 1)));
+      document.newPage();
+    }
+
+    PdfPageLabels labels = new PdfPageLabels();
+    labels.addPageLabel(1, PdfPageLabels.LOWERCASE_ROMAN_NUMERALS);
+    labels.addPageLabel(4, PdfPageLabels.EMPTY, "Cover");
+    labels.addPageLabel(6, PdfPageLabels.DECIMAL_ARABIC_NUMERALS, null, 5);
+    labels.addPageLabel(9, PdfPageLabels.UPPERCASE_LETTERS, "A-", 25);
+    labels.addPageLabel(12, PdfPageLabels.DECIMAL_ARABIC_NUMERALS, "G", 1);
+    labels.addPageLabel(14, PdfPageLabels.UPPERCASE_ROMAN_NUMERALS, null, 48);
+    writer.setPageLabels(labels);
+    document.close();
+    return pdf.toByteArray();
+  }
+}
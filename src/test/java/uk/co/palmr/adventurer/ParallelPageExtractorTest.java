@@ -0,0 +1,93 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.text.pdf.PdfReader;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Pages extracted by the workers have to arrive in order and derive exactly the graph a sequential run does, both for
+ * the whole book at once and handed on through a window much smaller than the book
+ */
+public class ParallelPageExtractorTest extends TestCase {
+
+  public void testExtractAllBuildsSameGraphAsSequential() throws IOException {
+    Path pdfPath = Files.createTempFile("synthetic-book", ".pdf");
+    try {
+      Files.write(pdfPath, new SyntheticBookGenerator(120, 3, 4, 7).generate());
+      PdfSource pdfSource = PdfSource.inMemory(pdfPath);
+      PdfReader reader = pdfSource.open();
+      PageLabelIndex pageLabels = PageLabelIndex.read(reader);
+      LinkDestinationIndex linkDestinations = LinkDestinationIndex.build(reader);
+      int pageCount = reader.getNumberOfPages();
+
+      List<PageExtraction> sequentialPages = new ArrayList<>();
+      PageExtractor sequential = new PageExtractor(reader, pageLabels, linkDestinations, false);
+      for (int pdfPageNumber = 1; pdfPageNumber <= pageCount; pdfPageNumber++) {
+        sequentialPages.add(sequential.extract(pdfPageNumber));
+      }
+      reader.close();
+
+      List<PageExtraction> parallelPages = new ParallelPageExtractor(pdfSource, pageLabels, linkDestinations, 3).extractAll(pageCount);
+
+      BookGraph expected = BookGraph.build(sequentialPages, pageLabels);
+      BookGraph graph = BookGraph.build(parallelPages, pageLabels);
+      assertEquals(expected.getPageCount(), graph.getPageCount());
+      for (int pdfPageNumber = 1; pdfPageNumber <= pageCount; pdfPageNumber++) {
+        assertEquals(expected.getBookPageLabel(pdfPageNumber), graph.getBookPageLabel(pdfPageNumber));
+        assertEquals(expected.getFingerprint(pdfPageNumber), graph.getFingerprint(pdfPageNumber));
+        assertEquals(expected.getWordCount(pdfPageNumber), graph.getWordCount(pdfPageNumber));
+        assertEquals(expected.getPageTypeMask(pdfPageNumber), graph.getPageTypeMask(pdfPageNumber));
+      }
+      assertEquals(expected.getRelationshipCount(), graph.getRelationshipCount());
+      for (int r = 0; r < expected.getRelationshipCount(); r++) {
+        assertEquals(expected.getRelationshipStart(r), graph.getRelationshipStart(r));
+        assertEquals(expected.getRelationshipEnd(r), graph.getRelationshipEnd(r));
+        assertEquals(expected.getRelationshipType(r), graph.getRelationshipType(r));
+        assertEquals(expected.getChoiceText(r), graph.getChoiceText(r));
+      }
+    }
+    finally {
+      Files.deleteIfExists(pdfPath);
+    }
+  }
+
+  public void testExtractInOrderMatchesSequential() throws IOException {
+    Path pdfPath = Files.createTempFile("synthetic-book", ".pdf");
+    try {
+      Files.write(pdfPath, new SyntheticBookGenerator(150, 3, 3, 11).generate());
+      PdfSource pdfSource = PdfSource.inMemory(pdfPath);
+      PdfReader reader = pdfSource.open();
+      PageLabelIndex pageLabels = PageLabelIndex.read(reader);
+      LinkDestinationIndex linkDestinations = LinkDestinationIndex.build(reader);
+
+      // Start part way through, as a resumed run does, with a window of a single block
+      int firstPage = 20;
+      List<PageExtraction> pages = new ArrayList<>();
+      new ParallelPageExtractor(pdfSource, pageLabels, linkDestinations, 4)
+        .extractInOrder(firstPage, reader.getNumberOfPages(), 1, pages::add);
+
+      assertEquals(reader.getNumberOfPages() - firstPage + 1, pages.size());
+      PageExtractor sequential = new PageExtractor(reader, pageLabels, linkDestinations, false);
+      for (int i = 0; i < pages.size(); i++) {
+        PageExtraction expected = sequential.extract(firstPage + i);
+        PageExtraction page = pages.get(i);
+        assertEquals(firstPage + i, page.getPdfPageNumber());
+        assertEquals(expected.getFingerprint(), page.getFingerprint());
+        assertEquals(expected.getWordCount(), page.getWordCount());
+        assertEquals(expected.getContentTypeMask(), page.getContentTypeMask());
+        assertTrue(Arrays.equals(expected.getLinkTargets(), page.getLinkTargets()));
+        assertTrue(Arrays.equals(expected.getChoiceTexts(), page.getChoiceTexts()));
+      }
+      reader.close();
+    }
+    finally {
+      Files.deleteIfExists(pdfPath);
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package uk.co.palmr.adventurer;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Simulated playthroughs have to land on the probabilities and means worked out by hand, within their confidence
+ * intervals, and a seed has to give the same answer every time
+ */
+public class PlaythroughSimulatorTest extends TestCase {
+
+  /**
+   * 1 -> 2, 3; 2 is THE END; 3 -> 4, 5; 4 is THE END; 5 -> 6; 6 -> 5, a loop with no way out
+   */
+  private static CompactPageGraph trappingBook() {
+    int[][] choices = {{2, 3}, {}, {4, 5}, {}, {6}, {5}};
+    List<PageExtraction> pages = new ArrayList<>();
+    String[] labels = new String[choices.length];
+    for (int i = 0; i < choices.length; i++) {
+      labels[i] = String.valueOf(i + 1);
+      int contentTypeMask = i == 1 || i == 3 ? PageClassifier.bit(PageTypes.EndPage) : 0;
+      pages.add(new PageExtraction(i + 1, "", 10, Collections.<String>emptyList(), 0, contentTypeMask, choices[i]));
+    }
+    return CompactPageGraph.from(BookGraph.build(pages, labels));
+  }
+
+  public void testRoundLoopsToTheEnding() {
+    CompactPageGraph graph = RouteStatisticsTest.loopingBook();
+    PlaythroughSimulator simulator = new PlaythroughSimulator(graph, new StronglyConnectedComponents(graph));
+    PlaythroughSimulator.Result result = simulator.simulate(0, 200000, PlaythroughSimulator.Policy.UNIFORM, 42);
+
+    assertEquals(200000, result.getPlaythroughs());
+    assertEquals(1, result.getEndings().size());
+    assertEquals(5, result.getEndings().get(0).getPage());
+    assertEquals(1.0, result.getEndings().get(0).getProbability());
+    assertEquals(0, result.getLoops().getCount());
+    // Going round 4 -> 5 twice on average, 6 pages and 2,300 words are read on average. A 95% interval misses one time
+    // in twenty, twice its width doesn't miss in practice.
+    assertEquals(6.0, result.getMeanPages(), 2 * result.getMeanPagesMargin());
+    assertEquals(2300.0, result.getMeanWords(), 2 * result.getMeanWordsMargin());
+    assertEquals(result.getSteps(), Math.round(result.getMeanPages() * result.getPlaythroughs()));
+  }
+
+  public void testEndingProbabilities() {
+    CompactPageGraph graph = trappingBook();
+    PlaythroughSimulator simulator = new PlaythroughSimulator(graph, new StronglyConnectedComponents(graph));
+
+    PlaythroughSimulator.Result uniform = simulator.simulate(0, 100000, PlaythroughSimulator.Policy.UNIFORM, 7);
+    assertEquals(2, uniform.getEndings().size());
+    assertCovers(0.5, uniform.getEndings().get(0));
+    assertEquals(1, uniform.getEndings().get(0).getPage());
+    assertCovers(0.25, uniform.getEndings().get(1));
+    assertCovers(0.25, uniform.getLoops());
+    assertEquals(0, uniform.getDeadEnds().getCount());
+    assertEquals(2.0, uniform.getEndings().get(0).getMeanPages());
+    assertEquals(3.0, uniform.getEndings().get(1).getMeanPages());
+
+    // A cautious reader never walks into the loop
+    PlaythroughSimulator.Result cautious = simulator.simulate(0, 100000, PlaythroughSimulator.Policy.CAUTIOUS, 7);
+    assertEquals(0, cautious.getLoops().getCount());
+    assertCovers(0.5, cautious.getEndings().get(1));
+  }
+
+  public void testSeedGivesSameResults() {
+    CompactPageGraph graph = RouteStatisticsTest.loopingBook();
+    PlaythroughSimulator simulator = new PlaythroughSimulator(graph, new StronglyConnectedComponents(graph));
+    PlaythroughSimulator.Result first = simulator.simulate(0, 100000, PlaythroughSimulator.Policy.UNVISITED, 1);
+    PlaythroughSimulator.Result second = simulator.simulate(0, 100000, PlaythroughSimulator.Policy.UNVISITED, 1);
+    assertEquals(first.getSteps(), second.getSteps());
+    assertEquals(first.getMeanWordsMargin(), second.getMeanWordsMargin());
+    // The reader never goes back round the loop once both of its pages have been read: 1-2-4-5-6, 1-3-4-5-6 or 1-3-6
+    assertTrue(first.getMeanPages() < 5);
+  }
+
+  public void testWilsonInterval() {
+    double[] interval = PlaythroughSimulator.wilsonInterval(0, 100);
+    assertEquals(0.0, interval[0], 1e-12);
+    assertEquals(0.037, interval[1], 0.001);
+
+    interval = PlaythroughSimulator.wilsonInterval(50, 100);
+    assertEquals(0.404, interval[0], 0.001);
+    assertEquals(0.596, interval[1], 0.001);
+  }
+
+  private static void assertCovers(double probability, PlaythroughSimulator.Result.Estimate estimate) {
+    double[] interval = estimate.getConfidenceInterval();
+    assertTrue(probability + " outside " + interval[0] + " to " + interval[1], interval[0] <= probability && probability <= interval[1]);
+  }
+}
@@ -0,0 +1,170 @@
+package uk.co.palmr.adventurer;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Reachable endings, unavoidable pages and page importance over a small book with two endings, a loop and a shortcut
+ */
+public class RouteAnalysisTest extends TestCase {
+
+  /**
+   * 1 -> 2, 3; 2 -> 4, 7; 3 -> 4, 6; 4 -> 5; 5 -> 4, 6; 6 and 7 are endings
+   */
+  private static CompactPageGraph twoEndingBook() {
+    int[][] choices = {{2, 3}, {4, 7}, {4, 6}, {5}, {4, 6}, {}, {}};
+    List<PageExtraction> pages = new ArrayList<>();
+    String[] labels = new String[choices.length];
+    for (int i = 0; i < choices.length; i++) {
+      labels[i] = String.valueOf(i + 1);
+      int contentTypeMask = choices[i].length == 0 ? PageClassifier.bit(PageTypes.EndPage) : 0;
+      pages.add(new PageExtraction(i + 1, "", 100 * (i + 1), Collections.<String>emptyList(), 0, contentTypeMask, choices[i]));
+    }
+    return CompactPageGraph.from(BookGraph.build(pages, labels));
+  }
+
+  public void testReachableEndings() {
+    CompactPageGraph graph = twoEndingBook();
+    EndingReachability endings = new EndingReachability(graph, new StronglyConnectedComponents(graph));
+
+    assertEquals(2, endings.getEndingCount());
+    assertEquals(5, endings.getEnding(0));
+    assertEquals(6, endings.getEnding(1));
+    assertEquals(-1, endings.getEndingIndex(0));
+
+    for (int page = 0; page < graph.getPageCount(); page++) {
+      boolean[] reachable = reachableFrom(graph, page, -1);
+      for (int i = 0; i < endings.getEndingCount(); i++) {
+        assertEquals("page " + page + " ending " + i, reachable[endings.getEnding(i)], endings.canReach(page, endings.getEnding(i)));
+      }
+    }
+    assertEquals(2, endings.getReachableCount(0));
+    assertEquals(1, endings.getReachableCount(3));
+    assertFalse(endings.canReach(3, 3));
+  }
+
+  public void testDominators() {
+    CompactPageGraph graph = twoEndingBook();
+    DominatorTree dominators = new DominatorTree(graph, 0);
+
+    assertEquals(-1, dominators.getImmediateDominator(0));
+    assertEquals(0, dominators.getImmediateDominator(3));
+    assertEquals(3, dominators.getImmediateDominator(4));
+    assertEquals(0, dominators.getImmediateDominator(5));
+    assertTrue(Arrays.equals(new int[]{0, 1}, dominators.getDominators(6)));
+
+    // a dominates b when b can't be reached from the start without going through a
+    for (int a = 0; a < graph.getPageCount(); a++) {
+      boolean[] reachable = reachableFrom(graph, 0, a);
+      for (int b = 0; b < graph.getPageCount(); b++) {
+        assertEquals("page " + a + " dominates " + b, a == b || a == 0 || !reachable[b], dominators.dominates(a, b));
+      }
+    }
+  }
+
+  public void testProperties() {
+    RouteAnalysis analysis = RouteAnalysis.compute(twoEndingBook());
+
+    Map<String, Object> start = analysis.getProperties(0);
+    assertTrue(Arrays.equals(new long[]{3L}, (long[]) start.get(App.REACHABLE_ENDINGS)));
+    assertFalse(start.containsKey(App.IMMEDIATE_DOMINATOR));
+    assertFalse(start.containsKey(App.ENDING_INDEX));
+
+    Map<String, Object> ending = analysis.getProperties(6);
+    assertTrue(Arrays.equals(new long[]{2L}, (long[]) ending.get(App.REACHABLE_ENDINGS)));
+    assertEquals(1, ending.get(App.ENDING_INDEX));
+    assertEquals(2, ending.get(App.IMMEDIATE_DOMINATOR));
+    assertTrue(Arrays.equals(new int[]{1, 2}, (int[]) ending.get(App.UNAVOIDABLE_PAGES)));
+    assertEquals(0.25, (Double) ending.get(App.ROUTE_TRAFFIC), 1e-9);
+    assertTrue(ending.containsKey(App.PAGE_RANK));
+  }
+
+  public void testRouteTraffic() {
+    CompactPageGraph graph = twoEndingBook();
+    PageImportance importance = RouteAnalysis.compute(graph).getImportance();
+
+    // Half the readers go each way from the start, everyone through 4 reads 5 once then leaves by 6 or goes round again
+    double[] expected = {1, 0.5, 0.5, 1, 1, 0.75, 0.25};
+    for (int page = 0; page < graph.getPageCount(); page++) {
+      assertEquals("page " + page, expected[page], importance.getRouteTraffic(page), 1e-9);
+    }
+  }
+
+  public void testScoresSettle() throws Exception {
+    // Enough pages for several chunks, with links back to make loops and pages stuck in a loop with no way out
+    Random random = new Random(7);
+    int pageCount = 20000;
+    List<PageExtraction> pages = new ArrayList<>();
+    String[] labels = new String[pageCount];
+    for (int i = 0; i < pageCount; i++) {
+      labels[i] = String.valueOf(i + 1);
+      int[] choices = new int[i % 10 == 9 ? 0 : 1 + random.nextInt(3)];
+      for (int c = 0; c < choices.length; c++) {
+        choices[c] = random.nextInt(10) == 0 ? 1 + random.nextInt(pageCount) : Math.min(pageCount, i + 2 + random.nextInt(20));
+      }
+      int contentTypeMask = choices.length == 0 ? PageClassifier.bit(PageTypes.EndPage) : 0;
+      pages.add(new PageExtraction(i + 1, "", 100, Collections.<String>emptyList(), 0, contentTypeMask, choices));
+    }
+    CompactPageGraph graph = CompactPageGraph.from(BookGraph.build(pages, labels));
+    StronglyConnectedComponents components = new StronglyConnectedComponents(graph);
+    EndingReachability endings = new EndingReachability(graph, components);
+    PageImportance importance = new PageImportance(graph, components, endings, 0);
+
+    // Each score is what its incoming neighbours pass on
+    double rankSum = 0;
+    double danglingRank = 0;
+    for (int page = 0; page < pageCount; page++) {
+      rankSum += importance.getPageRank(page);
+      danglingRank += graph.getOutDegree(page) == 0 ? importance.getPageRank(page) : 0;
+    }
+    assertEquals(1, rankSum, 1e-9);
+    for (int page = 0; page < pageCount; page++) {
+      double rank = ((1 - PageImportance.DAMPING) + PageImportance.DAMPING * danglingRank) / pageCount;
+      double traffic = page == 0 ? 1 : 0;
+      for (int i = 0; i < graph.getInDegree(page); i++) {
+        int source = graph.getIncomingNeighbour(page, i);
+        rank += PageImportance.DAMPING * importance.getPageRank(source) / graph.getOutDegree(source);
+        if (endings.canReachAny(source)) {
+          traffic += importance.getRouteTraffic(source) / graph.getOutDegree(source);
+        }
+      }
+      assertEquals("page " + page, rank, importance.getPageRank(page), 1e-12);
+      assertEquals("page " + page, traffic, importance.getRouteTraffic(page), 1e-8);
+    }
+
+    // The same to the last bit on a single thread
+    PageImportance sequential = new ForkJoinPool(1).submit(() -> new PageImportance(graph, components, endings, 0)).get();
+    for (int page = 0; page < pageCount; page++) {
+      assertEquals(importance.getPageRank(page), sequential.getPageRank(page));
+      assertEquals(importance.getRouteTraffic(page), sequential.getRouteTraffic(page));
+    }
+  }
+
+  /**
+   * @return Pages reachable from a page without reading the removed page, -1 to remove none
+   */
+  private static boolean[] reachableFrom(PageGraph graph, int page, int removed) {
+    boolean[] reachable = new boolean[graph.getPageCount()];
+    List<Integer> stack = new ArrayList<>();
+    stack.add(page);
+    reachable[page] = true;
+    while (!stack.isEmpty()) {
+      int next = stack.remove(stack.size() - 1);
+      for (int i = 0; i < graph.getOutDegree(next); i++) {
+        int neighbour = graph.getNeighbour(next, i);
+        if (neighbour != removed && !reachable[neighbour]) {
+          reachable[neighbour] = true;
+          stack.add(neighbour);
+        }
+      }
+    }
+    return reachable;
+  }
+}
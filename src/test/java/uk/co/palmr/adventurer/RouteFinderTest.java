@@ -0,0 +1,43 @@
+package uk.co.palmr.adventurer;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Word-count weighted routes over the looping book from RouteStatisticsTest, where page n has 100 * n words
+ */
+public class RouteFinderTest extends TestCase {
+
+  public void testShortestRoute() {
+    RouteFinder.Route route = new RouteFinder(RouteStatisticsTest.loopingBook()).shortest(0, 5);
+
+    assertEquals(1000, route.getWords());
+    assertTrue(Arrays.equals(new int[]{0, 2, 5}, route.getPages()));
+  }
+
+  public void testLongestRouteGoesRoundTheLoopOnce() {
+    RouteFinder.Route route = new RouteFinder(RouteStatisticsTest.loopingBook()).longest(0, 5);
+
+    assertEquals(1900, route.getWords());
+    assertTrue(Arrays.equals(new int[]{0, 2, 3, 4, 5}, route.getPages()));
+  }
+
+  public void testUnreachable() {
+    RouteFinder routeFinder = new RouteFinder(RouteStatisticsTest.loopingBook());
+
+    assertNull(routeFinder.shortest(5, 0));
+    assertNull(routeFinder.longest(3, 1));
+  }
+
+  public void testAllPairs() {
+    List<RouteFinder.PairResult> pairs = new RouteFinder(RouteStatisticsTest.loopingBook()).allPairs(new int[]{0, 1, 3});
+
+    assertEquals(3, pairs.size());
+    assertEquals(1, pairs.get(1).getStart());
+    assertEquals(1700, pairs.get(1).getShortest().getWords());
+    assertEquals(1700, pairs.get(1).getLongest().getWords());
+    assertEquals(1500, pairs.get(2).getLongest().getWords());
+  }
+}
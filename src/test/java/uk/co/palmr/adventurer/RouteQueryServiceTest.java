@@ -0,0 +1,211 @@
+package uk.co.palmr.adventurer;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Repeated lookups have to come from the cache until an ingest moves the generation on, and the cache has to stay
+ * within its size however many threads look up at once. Against a real database, routes have to reach both kinds of
+ * ending and a store swapped in by a bulk ingest has to be picked up.
+ */
+public class RouteQueryServiceTest extends TestCase {
+  private final AtomicInteger runs = new AtomicInteger();
+  private final AtomicLong generation = new AtomicLong(1);
+  private Path directory;
+
+  @Override
+  protected void setUp() throws IOException {
+    directory = Files.createTempDirectory("route-query");
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /**
+   * Answers every query with a single row naming what was run, so results can be checked against their parameters
+   */
+  private RouteQueryService service(int cacheSize) {
+    return service(cacheSize, null);
+  }
+
+  private RouteQueryService service(int cacheSize, TextIndex textIndex) {
+    return new RouteQueryService((cypher, parameters) -> {
+      runs.incrementAndGet();
+      Map<String, Object> row = new LinkedHashMap<>();
+      row.put("cypher", cypher);
+      row.put("start", parameters.get("start"));
+      row.put("generation", generation.get());
+      row.put("pages", new ArrayList<>(Collections.singletonList(parameters.get("start"))));
+      row.put("mentioning", parameters.get("mentioning"));
+      return Collections.singletonList(row);
+    }, cacheSize, generation::get, () -> textIndex);
+  }
+
+  public void testRepeatedLookupsAreCachedUntilTheGenerationChanges() {
+    RouteQueryService service = service(16);
+
+    List<Map<String, Object>> routes = service.routes("348", "197", 20);
+    assertSame(routes, service.routes("348", "197", 20));
+    assertEquals(1, runs.get());
+    assertEquals(1, service.getHitCount());
+    assertTrue(((String) routes.get(0).get("cypher")).contains("-[*..20]->"));
+
+    // Different parameters or a different bound are different results
+    service.routes("348", "197", 10);
+    service.routes("348", "198", 20);
+    service.routesToEndings("348", 20);
+    assertEquals(4, runs.get());
+    assertEquals(4, service.getCachedCount());
+
+    try {
+      routes.get(0).put("start", "1");
+      fail("Cached rows mustn't be modifiable");
+    }
+    catch (UnsupportedOperationException e) {
+      // Expected
+    }
+
+    generation.incrementAndGet();
+    List<Map<String, Object>> rerun = service.routes("348", "197", 20);
+    assertEquals(5, runs.get());
+    assertEquals(2L, rerun.get(0).get("generation"));
+    assertEquals(1, service.getCachedCount());
+  }
+
+  public void testLeastRecentlyUsedResultIsEvicted() {
+    RouteQueryService service = service(2);
+    service.routesToEndings("1", 20);
+    service.routesToEndings("2", 20);
+    service.routesToEndings("1", 20);
+    service.routesToEndings("3", 20);
+    assertEquals(3, runs.get());
+
+    // "2" was the least recently used so it went, "1" is still there
+    service.routesToEndings("1", 20);
+    assertEquals(3, runs.get());
+    service.routesToEndings("2", 20);
+    assertEquals(4, runs.get());
+    assertEquals(2, service.getCachedCount());
+  }
+
+  public void testMentionsAreLookedUpInTheTextIndex() throws IOException {
+    Path indexPath = Files.createTempFile("text-index", ".bin");
+    try {
+      TextIndex.Builder builder = new TextIndex.Builder();
+      builder.add(5, "Fire the cannon.");
+      builder.add(9, "The cannon is loaded.");
+      builder.add(12, "Nothing happens.");
+      builder.write(indexPath);
+      RouteQueryService service = service(16, TextIndex.open(indexPath));
+
+      List<Map<String, Object>> routes = service.routesMentioning("348", "197", "Cannon", 20);
+      assertEquals(Arrays.asList(5, 9), routes.get(0).get("mentioning"));
+      assertTrue(((String) routes.get(0).get("cypher")).contains("IN {mentioning}"));
+      // The same pages are the same result, whatever the words were
+      assertSame(routes, service.routesMentioning("348", "197", "cannon!", 20));
+      assertEquals(Arrays.asList(9), service.mentions("cannon is").get(0).get("mentioning"));
+      assertEquals(2, runs.get());
+    }
+    finally {
+      Files.delete(indexPath);
+    }
+
+    try {
+      service(16).mentions("cannon");
+      fail("Mentions can't be looked up without a text index");
+    }
+    catch (IllegalStateException e) {
+      // Expected
+    }
+  }
+
+  public void testConcurrentReaders() throws Exception {
+    RouteQueryService service = service(8);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> lookups = new ArrayList<>();
+      for (int i = 0; i < 2000; i++) {
+        String start = Integer.toString(i % 12);
+        lookups.add(executor.submit(() -> {
+          List<Map<String, Object>> rows = service.routesToEndings(start, 20);
+          assertEquals(start, rows.get(0).get("start"));
+        }));
+      }
+      for (Future<?> lookup : lookups) {
+        lookup.get();
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+
+    assertEquals(2000, service.getHitCount() + service.getMissCount());
+    assertEquals(runs.get(), service.getMissCount());
+    assertTrue(service.getCachedCount() <= 8);
+  }
+
+  public void testEndingsAndBulkSwapFromTheDatabase() throws IOException {
+    // The first page leads to an EndPage and an ImagePage
+    List<PageExtraction> pages = new ArrayList<>();
+    pages.add(new PageExtraction(1, "page 1", 100, Collections.<String>emptyList(), 0, 0, new int[]{2, 3},
+      new String[]{"Turn to 2", "Turn to 3"}));
+    pages.add(new PageExtraction(2, "page 2", 100, Collections.<String>emptyList(), 0, PageClassifier.bit(PageTypes.EndPage), new int[0]));
+    pages.add(new PageExtraction(3, "page 3", 100, Collections.<String>emptyList(), 0, PageClassifier.bit(PageTypes.ImagePage), new int[0]));
+    Path graphDbPath = directory.resolve("graph-db");
+    new BulkGraphLoader(graphDbPath).load(BookGraph.build(pages, new String[]{"1", "2", "3"}));
+
+    RouteQueryService.ReopeningQueryRunner runner = new RouteQueryService.ReopeningQueryRunner(graphDbPath, generation::get);
+    try {
+      RouteQueryService service = new RouteQueryService(runner, 16, generation::get);
+      assertEquals(new TreeSet<>(Arrays.asList("2", "3")), endings(service.routesToEndings("1", 20)));
+
+      // A bulk ingest swaps a new store in, then moves the generation on
+      new BulkGraphLoader(graphDbPath).load(BulkGraphLoaderTest.book());
+      generation.incrementAndGet();
+      assertEquals(new TreeSet<>(Collections.singletonList("6")), endings(service.routesToEndings("1", 20)));
+    }
+    finally {
+      runner.shutdown();
+    }
+  }
+
+  private static TreeSet<Object> endings(List<Map<String, Object>> routes) {
+    TreeSet<Object> endings = new TreeSet<>();
+    for (Map<String, Object> route : routes) {
+      endings.add(route.get("ending"));
+    }
+    return endings;
+  }
+}
@@ -0,0 +1,67 @@
+package uk.co.palmr.adventurer;
+
+import junit.framework.TestCase;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Route counting over a small book with a branch, a loop and a shortcut to the ending
+ */
+public class RouteStatisticsTest extends TestCase {
+
+  /**
+   * 1 -> 2, 3; 2 -> 4; 3 -> 4, 6; 4 -> 5; 5 -> 4, 6; 6 is THE END
+   */
+  static CompactPageGraph loopingBook() {
+    int[][] choices = {{2, 3}, {4}, {4, 6}, {5}, {4, 6}, {}};
+    List<PageExtraction> pages = new ArrayList<>();
+    String[] labels = new String[choices.length];
+    for (int i = 0; i < choices.length; i++) {
+      labels[i] = String.valueOf(i + 1);
+      int contentTypeMask = choices[i].length == 0 ? PageClassifier.bit(PageTypes.EndPage) : 0;
+      pages.add(new PageExtraction(i + 1, "", 100 * (i + 1), Collections.<String>emptyList(), 0, contentTypeMask, choices[i]));
+    }
+    return CompactPageGraph.from(BookGraph.build(pages, labels));
+  }
+
+  public void testLoopIsCondensed() {
+    CompactPageGraph graph = loopingBook();
+    StronglyConnectedComponents components = new StronglyConnectedComponents(graph);
+
+    assertEquals(5, components.getComponentCount());
+    assertEquals(components.getComponent(3), components.getComponent(4));
+    assertEquals(2, components.getComponentSize(components.getComponent(3)));
+    assertTrue(components.getComponent(0) < components.getComponent(3));
+    assertTrue(components.getComponent(3) < components.getComponent(5));
+  }
+
+  public void testRoutesToEnding() {
+    CompactPageGraph graph = loopingBook();
+    List<RouteStatistics.EndingStatistics> statistics = RouteStatistics.compute(graph, new StronglyConnectedComponents(graph), 0);
+
+    assertEquals(1, statistics.size());
+    RouteStatistics.EndingStatistics ending = statistics.get(0);
+    assertEquals(5, ending.getPage());
+    // 1-2-{4,5}-6, 1-3-{4,5}-6 and 1-3-6
+    assertEquals(BigInteger.valueOf(3), ending.getRouteCount());
+    assertEquals(3, ending.getMinLength());
+    assertEquals(5, ending.getMaxLength());
+    assertEquals(0, new BigDecimal("4.333").compareTo(ending.getMeanLength().setScale(3, RoundingMode.HALF_UP)));
+  }
+
+  public void testRoutesFromLaterPages() {
+    CompactPageGraph graph = loopingBook();
+    List<RouteStatistics.EndingStatistics> statistics = RouteStatistics.compute(graph, new StronglyConnectedComponents(graph), 5);
+
+    assertEquals(BigInteger.ONE, statistics.get(0).getRouteCount());
+
+    statistics = RouteStatistics.compute(graph, new StronglyConnectedComponents(graph), 3);
+    assertEquals(BigInteger.ONE, statistics.get(0).getRouteCount());
+    assertEquals(3, statistics.get(0).getMinLength());
+  }
+}
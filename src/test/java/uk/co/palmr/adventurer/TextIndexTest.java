@@ -0,0 +1,108 @@
+package uk.co.palmr.adventurer;
+
+import com.itextpdf.text.pdf.PdfReader;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Words and phrases looked up in the index have to be found on exactly the pages a scan of their text finds them on
+ */
+public class TextIndexTest extends TestCase {
+  private Path indexPath;
+
+  @Override
+  protected void setUp() throws IOException {
+    indexPath = Files.createTempFile("text-index", ".bin");
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    Files.deleteIfExists(indexPath);
+  }
+
+  public void testFindsWordsAndPhrases() throws IOException {
+    TextIndex.Builder builder = new TextIndex.Builder();
+    builder.add(3, "The Ghost walks the castle.\nTurn to 12.");
+    builder.add(4, "A castle, the ghost's\nbones.");
+    builder.add(300, "Fire the cannon! Turn to 197.");
+    builder.write(indexPath);
+
+    TextIndex index = TextIndex.open(indexPath);
+    assertEquals(3, index.getPageCount());
+    assertTrue(Arrays.equals(new int[]{3, 4}, index.findPages("ghost")));
+    assertTrue(Arrays.equals(new int[]{3, 4}, index.findPages("  GHOST ")));
+    assertTrue(Arrays.equals(new int[]{300}, index.findPages("cannon")));
+    assertTrue(Arrays.equals(new int[]{3, 300}, index.findPages("turn to")));
+    assertTrue(Arrays.equals(new int[]{3}, index.findPages("the castle")));
+    // Punctuation and line breaks don't split a phrase, but the words have to be in order
+    assertTrue(Arrays.equals(new int[]{4}, index.findPages("castle the ghost s bones")));
+    assertEquals(0, index.findPages("castle ghost").length);
+    assertEquals(0, index.findPages("poison").length);
+    assertEquals(0, index.findPages("...").length);
+  }
+
+  public void testMatchesScanningTheText() throws IOException {
+    PdfReader reader = new PdfReader(new SyntheticBookGenerator(200, 3, 3, 11).generate());
+    PageExtractor extractor = new PageExtractor(reader, PageLabelIndex.read(reader), LinkDestinationIndex.build(reader), false, null, true);
+    TextIndex.Builder builder = new TextIndex.Builder();
+    List<List<String>> pageTerms = new ArrayList<>();
+    for (int pdfPageNumber = 1; pdfPageNumber <= reader.getNumberOfPages(); pdfPageNumber++) {
+      String text = extractor.extract(pdfPageNumber).getText();
+      builder.add(pdfPageNumber, text);
+      pageTerms.add(TextIndex.terms(text));
+    }
+    reader.close();
+    builder.write(indexPath);
+
+    TextIndex index = TextIndex.open(indexPath);
+    assertEquals(builder.getTermCount(), index.getTermCount());
+    String[] queries = {"ghost", "skull", "the end", "turn to", "see what awaits you there", "you should turn", "should you turn", "turn to 12"};
+    for (String query : queries) {
+      List<String> queryTerms = TextIndex.terms(query);
+      List<Integer> expected = new ArrayList<>();
+      for (int i = 0; i < pageTerms.size(); i++) {
+        if (Collections.indexOfSubList(pageTerms.get(i), queryTerms) >= 0) {
+          expected.add(i + 1);
+        }
+      }
+      int[] pages = index.findPages(query);
+      assertEquals(query, expected.toString(), Arrays.toString(pages));
+    }
+    assertTrue(index.findPages("turn to").length > 0);
+  }
+
+  public void testPagesMustBeAddedInOrder() {
+    TextIndex.Builder builder = new TextIndex.Builder();
+    builder.add(2, "a");
+    try {
+      builder.add(2, "b");
+      fail("Pages out of order mustn't be accepted");
+    }
+    catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  public void testOtherVersionIsRejected() throws IOException {
+    new TextIndex.Builder().write(indexPath);
+    byte[] bytes = Files.readAllBytes(indexPath);
+    ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putInt(4, TextIndex.VERSION + 1);
+    Files.write(indexPath, bytes);
+    try {
+      TextIndex.open(indexPath);
+      fail("A text index of another version mustn't be read");
+    }
+    catch (IOException e) {
+      assertTrue(e.getMessage().contains("version"));
+    }
+  }
+}